@@ -0,0 +1,405 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Aggregates downsampled series whose timestamps line up.
+ * <p>
+ * Once the series of a group are downsampled to the same buckets they
+ * usually hold a value at every timestamp, so the {@link AggregationIterator}
+ * never has to interpolate and only pays for its per point bookkeeping. This
+ * iterator folds each downsampled series into the aggregates as it's read,
+ * one series at a time, checking that its timestamps are those of the first
+ * series. Only sum, zimsum, avg, count, min, mimmin, max, mimmax, mult,
+ * first and last can be folded that way, see {@link #supports}. The results
+ * are the same as the {@link AggregationIterator}'s since no value is ever
+ * interpolated.
+ * <p>
+ * If the timestamps don't line up the group is aggregated again by a regular
+ * {@link AggregationIterator}.
+ * @since 2.3
+ */
+final class AlignedAggregationIterator implements SeekableView, DataPoint {
+
+  /** How the values of a timestamp are folded */
+  private static final int SUM = 0;
+  private static final int AVG = 1;
+  private static final int COUNT = 2;
+  private static final int MIN = 3;
+  private static final int MAX = 4;
+  private static final int MULTIPLY = 5;
+  private static final int FIRST = 6;
+  private static final int LAST = 7;
+
+  /** One of the fold constants above */
+  private final int function;
+
+  /** The timestamps of the aggregated points */
+  private long[] timestamps = new long[16];
+
+  /** The aggregated values, partial until {@link #finish} */
+  private double[] values = new double[16];
+
+  /** How many values were summed per timestamp, for sums and averages */
+  private int[] counts;
+
+  /** Number of aggregated points, -1 until a series with points was read */
+  private int count = -1;
+
+  /** Index of the next point */
+  private int next;
+
+  /** Index of the current point */
+  private int current = -1;
+
+  /**
+   * Private ctor, use the factories.
+   * @param function One of the fold constants
+   */
+  private AlignedAggregationIterator(final int function) {
+    this.function = function;
+    if (function == SUM || function == AVG) {
+      counts = new int[values.length];
+    }
+  }
+
+  /**
+   * @param aggregator The aggregation function of a group
+   * @return Whether or not the aggregator can be folded one series at a time
+   */
+  static boolean supports(final Aggregator aggregator) {
+    return function(aggregator) >= 0;
+  }
+
+  /**
+   * Creates an iterator aggregating the downsampled spans of a group.
+   * @param spans Spans in a group.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use, must be
+   * {@link #supports supported}.
+   * @param downsampler The downsampling specification to use, cannot be null.
+   * @param query_start Start of the actual query
+   * @param query_end End of the actual query
+   * @return An iterator over the aggregated points, an
+   * {@link AggregationIterator} if the series don't line up.
+   */
+  static SeekableView create(final List<Span> spans,
+      final long start_time,
+      final long end_time,
+      final Aggregator aggregator,
+      final DownsamplingSpecification downsampler,
+      final long query_start,
+      final long query_end) {
+    final SeekableView[] iterators = new SeekableView[spans.size()];
+    for (int i = 0; i < iterators.length; i++) {
+      iterators[i] = spans.get(i).downsampler(start_time, end_time,
+          downsampler, query_start, query_end);
+    }
+    final SeekableView aligned = create(iterators, start_time, end_time,
+        aggregator);
+    if (aligned != null) {
+      return aligned;
+    }
+    return AggregationIterator.create(spans, start_time, end_time, aggregator,
+        aggregator.interpolationMethod(), downsampler, query_start, query_end,
+        false, null);
+  }
+
+  /**
+   * Aggregates downsampled series.
+   * @param iterators The downsampled series. Their values must be floating
+   * points, as the downsamplers' are.
+   * @param start_time Any data point strictly before this timestamp will be
+   * ignored.
+   * @param end_time Any data point strictly after this timestamp will be
+   * ignored.
+   * @param aggregator The aggregation function to use.
+   * @return An iterator over the aggregated points or null if the series
+   * don't line up, in which case the iterators were consumed.
+   * @throws IllegalArgumentException if the aggregator isn't supported
+   */
+  static AlignedAggregationIterator create(final SeekableView[] iterators,
+      final long start_time,
+      final long end_time,
+      final Aggregator aggregator) {
+    final int function = function(aggregator);
+    if (function < 0) {
+      throw new IllegalArgumentException("Can't fold the " + aggregator
+          + " aggregator one series at a time");
+    }
+    final AlignedAggregationIterator aligned =
+        new AlignedAggregationIterator(function);
+    for (final SeekableView it : iterators) {
+      if (!aligned.add(it, start_time)) {
+        return null;
+      }
+    }
+    aligned.finish(end_time);
+    return aligned;
+  }
+
+  /** @return The fold constant of the aggregator, -1 if it has none */
+  private static int function(final Aggregator aggregator) {
+    if (aggregator == Aggregators.SUM || aggregator == Aggregators.ZIMSUM) {
+      return SUM;
+    } else if (aggregator == Aggregators.AVG) {
+      return AVG;
+    } else if (aggregator == Aggregators.COUNT) {
+      return COUNT;
+    } else if (aggregator == Aggregators.MIN
+        || aggregator == Aggregators.MIMMIN) {
+      return MIN;
+    } else if (aggregator == Aggregators.MAX
+        || aggregator == Aggregators.MIMMAX) {
+      return MAX;
+    } else if (aggregator == Aggregators.MULTIPLY) {
+      return MULTIPLY;
+    } else if (aggregator == Aggregators.FIRST) {
+      return FIRST;
+    } else if (aggregator == Aggregators.LAST) {
+      return LAST;
+    }
+    return -1;
+  }
+
+  /**
+   * Folds a series into the aggregates. The first series with points sets
+   * the timestamps, empty series are skipped as the aggregation iterator
+   * does.
+   * @param it The series to read
+   * @param start_time The first timestamp to keep
+   * @return False if the series doesn't line up with the ones before
+   */
+  private boolean add(final SeekableView it, final long start_time) {
+    it.seek(start_time);
+    int i = 0;
+    if (count < 0) {
+      while (it.hasNext()) {
+        final DataPoint dp = it.next();
+        final long timestamp = dp.timestamp();
+        if (timestamp < start_time) {
+          continue;
+        }
+        if (i == timestamps.length) {
+          grow();
+        }
+        timestamps[i] = timestamp;
+        start(i++, dp.doubleValue());
+      }
+      if (i > 0) {
+        count = i;
+      }
+      return true;
+    }
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      final long timestamp = dp.timestamp();
+      if (timestamp < start_time) {
+        continue;
+      }
+      if (i == count || timestamp != timestamps[i]) {
+        return false;
+      }
+      fold(i++, dp.doubleValue());
+    }
+    return i == 0 || i == count;
+  }
+
+  /** Sets the aggregate of a timestamp from the first series */
+  private void start(final int i, final double value) {
+    switch (function) {
+      case SUM:
+      case AVG:
+        final boolean is_nan = value != value;
+        values[i] = is_nan ? 0 : value;
+        counts[i] = is_nan ? 0 : 1;
+        break;
+      case COUNT:
+        values[i] = value != value ? 0 : 1;
+        break;
+      case MIN:
+        // false for NaNs
+        values[i] = value < Double.POSITIVE_INFINITY
+            ? value : Double.POSITIVE_INFINITY;
+        break;
+      case MAX:
+        values[i] = value > Double.NEGATIVE_INFINITY
+            ? value : Double.NEGATIVE_INFINITY;
+        break;
+      default:
+        values[i] = value;
+    }
+  }
+
+  /** Folds the value of a following series into the aggregate */
+  private void fold(final int i, final double value) {
+    switch (function) {
+      case SUM:
+      case AVG:
+        if (value == value) {  // not NaN
+          values[i] += value;
+          counts[i]++;
+        }
+        break;
+      case COUNT:
+        if (value == value) {
+          values[i]++;
+        }
+        break;
+      case MIN:
+        if (value < values[i]) {
+          values[i] = value;
+        }
+        break;
+      case MAX:
+        if (value > values[i]) {
+          values[i] = value;
+        }
+        break;
+      case MULTIPLY:
+        values[i] *= value;
+        break;
+      case LAST:
+        values[i] = value;
+        break;
+      default:  // FIRST
+    }
+  }
+
+  /**
+   * Turns the partial aggregates into the results and drops the timestamps
+   * past the end.
+   * @param end_time The last timestamp to keep
+   */
+  private void finish(final long end_time) {
+    if (count < 0) {
+      count = 0;
+    }
+    while (count > 0 && timestamps[count - 1] > end_time) {
+      count--;
+    }
+    for (int i = 0; i < count; i++) {
+      switch (function) {
+        case SUM:
+        case AVG:
+          if (counts[i] == 0) {
+            values[i] = Double.NaN;
+          } else if (function == AVG) {
+            values[i] /= counts[i];
+          }
+          break;
+        case MIN:
+          if (values[i] == Double.POSITIVE_INFINITY) {
+            values[i] = Double.NaN;
+          }
+          break;
+        case MAX:
+          if (values[i] == Double.NEGATIVE_INFINITY) {
+            values[i] = Double.NaN;
+          }
+          break;
+        default:
+      }
+    }
+    counts = null;
+  }
+
+  /** Doubles the room for the points of the first series */
+  private void grow() {
+    timestamps = Arrays.copyOf(timestamps, timestamps.length * 2);
+    values = Arrays.copyOf(values, timestamps.length);
+    if (counts != null) {
+      counts = Arrays.copyOf(counts, timestamps.length);
+    }
+  }
+
+  // ------------------ //
+  // Iterator interface //
+  // ------------------ //
+
+  @Override
+  public boolean hasNext() {
+    return next < count;
+  }
+
+  @Override
+  public DataPoint next() {
+    if (next >= count) {
+      throw new NoSuchElementException("no more elements");
+    }
+    current = next++;
+    return this;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  // ---------------------- //
+  // SeekableView interface //
+  // ---------------------- //
+
+  @Override
+  public void seek(final long timestamp) {
+    final int index = Arrays.binarySearch(timestamps, 0, count, timestamp);
+    next = index < 0 ? -index - 1 : index;
+  }
+
+  // ------------------- //
+  // DataPoint interface //
+  // ------------------- //
+
+  @Override
+  public long timestamp() {
+    return timestamps[current];
+  }
+
+  @Override
+  public boolean isInteger() {
+    return false;
+  }
+
+  @Override
+  public long longValue() {
+    throw new ClassCastException("current value is a double: " + this);
+  }
+
+  @Override
+  public double doubleValue() {
+    final double value = values[current];
+    if (Double.isInfinite(value)) {
+      throw new IllegalStateException("Got Infinity: "
+         + value + " in this " + this);
+    }
+    return value;
+  }
+
+  @Override
+  public double toDouble() {
+    return doubleValue();
+  }
+
+  @Override
+  public String toString() {
+    return "AlignedAggregationIterator(function=" + function
+        + ", count=" + count + ", current=" + current + ")";
+  }
+}
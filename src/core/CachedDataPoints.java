@@ -0,0 +1,401 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.Annotation;
+
+/**
+ * An immutable copy of the results of a query for one group: the resolved
+ * meta data and the aggregated data points in arrays. Used by the
+ * {@link QueryCache} to keep the results of a time block and to stitch the
+ * results of consecutive time ranges back together.
+ * @since 2.3
+ */
+final class CachedDataPoints implements DataPoints {
+  private final String metric;
+  private final byte[] metric_uid;
+  private final Map<String, String> tags;
+  private final ByteMap<byte[]> tag_uids;
+  private final List<String> aggregated_tags;
+  private final List<byte[]> aggregated_tag_uids;
+  private final List<String> tsuids;
+  private final List<Annotation> annotations;
+  private final int query_index;
+
+  /** Timestamps in milliseconds, in order */
+  private final long[] timestamps;
+  /** Integer values or the bits of double values */
+  private final long[] values;
+  /** Whether or not each value is an integer */
+  private final boolean[] integers;
+
+  private CachedDataPoints(final String metric, final byte[] metric_uid,
+      final Map<String, String> tags, final ByteMap<byte[]> tag_uids,
+      final List<String> aggregated_tags,
+      final List<byte[]> aggregated_tag_uids, final List<String> tsuids,
+      final List<Annotation> annotations, final int query_index,
+      final long[] timestamps, final long[] values, final boolean[] integers) {
+    this.metric = metric;
+    this.metric_uid = metric_uid;
+    this.tags = tags;
+    this.tag_uids = tag_uids;
+    this.aggregated_tags = aggregated_tags;
+    this.aggregated_tag_uids = aggregated_tag_uids;
+    this.tsuids = tsuids;
+    this.annotations = annotations;
+    this.query_index = query_index;
+    this.timestamps = timestamps;
+    this.values = values;
+    this.integers = integers;
+  }
+
+  /**
+   * Copies the results of a query, resolving the names on the way.
+   * @param dps The results to copy.
+   * @return A deferred resolving to the copy.
+   */
+  static Deferred<CachedDataPoints> copyOf(final DataPoints dps) {
+    final List<Deferred<Object>> names = new ArrayList<Deferred<Object>>(3);
+    names.add(toObject(dps.metricNameAsync()));
+    names.add(toObject(dps.getTagsAsync()));
+    names.add(toObject(dps.getAggregatedTagsAsync()));
+
+    class CopyCB implements Callback<CachedDataPoints, ArrayList<Object>> {
+      @SuppressWarnings("unchecked")
+      @Override
+      public CachedDataPoints call(final ArrayList<Object> resolved) {
+        final int size = dps.size();
+        long[] timestamps = new long[size];
+        long[] values = new long[size];
+        boolean[] integers = new boolean[size];
+        int count = 0;
+        final SeekableView it = dps.iterator();
+        while (it.hasNext()) {
+          final DataPoint dp = it.next();
+          if (count == timestamps.length) {
+            // aggregated groups may hold more points than their first span
+            final int length = Math.max(16, count * 2);
+            timestamps = Arrays.copyOf(timestamps, length);
+            values = Arrays.copyOf(values, length);
+            integers = Arrays.copyOf(integers, length);
+          }
+          timestamps[count] = dp.timestamp();
+          integers[count] = dp.isInteger();
+          values[count] = dp.isInteger() ? dp.longValue()
+              : Double.doubleToRawLongBits(dp.doubleValue());
+          count++;
+        }
+        final List<String> tsuids = dps.getTSUIDs();
+        final List<Annotation> annotations = dps.getAnnotations();
+        return new CachedDataPoints((String) resolved.get(0), dps.metricUID(),
+            new HashMap<String, String>((Map<String, String>) resolved.get(1)),
+            copy(dps.getTagUids()),
+            new ArrayList<String>((List<String>) resolved.get(2)),
+            new ArrayList<byte[]>(dps.getAggregatedTagUids()),
+            tsuids == null ? Collections.<String>emptyList()
+                : new ArrayList<String>(tsuids),
+            annotations == null ? Collections.<Annotation>emptyList()
+                : new ArrayList<Annotation>(annotations),
+            dps.getQueryIndex(), Arrays.copyOf(timestamps, count),
+            Arrays.copyOf(values, count), Arrays.copyOf(integers, count));
+      }
+      @Override
+      public String toString() {
+        return "Cached data points copy";
+      }
+    }
+    return Deferred.groupInOrder(names).addCallback(new CopyCB());
+  }
+
+  /**
+   * Returns the points and annotations from one time range.
+   * @param start The first timestamp to keep in milliseconds, inclusive.
+   * @param end The last timestamp to keep in milliseconds, exclusive.
+   * @return A copy of the range or null if there are no points in it.
+   */
+  CachedDataPoints slice(final long start, final long end) {
+    final int from = search(start);
+    final int to = search(end);
+    if (from == to) {
+      return null;
+    }
+    final List<Annotation> notes = new ArrayList<Annotation>();
+    for (final Annotation note : annotations) {
+      final long ts = toMillis(note.getStartTime());
+      if (ts >= start && ts < end) {
+        notes.add(note);
+      }
+    }
+    return new CachedDataPoints(metric, metric_uid, tags, tag_uids,
+        aggregated_tags, aggregated_tag_uids, tsuids, notes, query_index,
+        Arrays.copyOfRange(timestamps, from, to),
+        Arrays.copyOfRange(values, from, to),
+        Arrays.copyOfRange(integers, from, to));
+  }
+
+  /**
+   * Joins the results of the same group over consecutive time ranges. Tags
+   * that differ between the ranges become aggregated tags.
+   * @param parts The results in time order, at least one.
+   * @param query_index The index of the sub query the results are for.
+   * @return The joined results.
+   */
+  static CachedDataPoints concat(final List<CachedDataPoints> parts,
+      final int query_index) {
+    final CachedDataPoints first = parts.get(0);
+    final Map<String, String> tags = new HashMap<String, String>(first.tags);
+    final ByteMap<byte[]> tag_uids = copy(first.tag_uids);
+    final LinkedHashSet<String> aggregated =
+        new LinkedHashSet<String>(first.aggregated_tags);
+    final ByteMap<Boolean> aggregated_uids = new ByteMap<Boolean>();
+    final LinkedHashSet<String> tsuids = new LinkedHashSet<String>();
+    final List<Annotation> annotations = new ArrayList<Annotation>();
+    int size = 0;
+    for (final CachedDataPoints part : parts) {
+      for (final Map.Entry<String, String> tag :
+          new ArrayList<Map.Entry<String, String>>(tags.entrySet())) {
+        if (!tag.getValue().equals(part.tags.get(tag.getKey()))) {
+          tags.remove(tag.getKey());
+          aggregated.add(tag.getKey());
+        }
+      }
+      for (final Map.Entry<byte[], byte[]> uid :
+          new ArrayList<Map.Entry<byte[], byte[]>>(tag_uids.entrySet())) {
+        final byte[] other = part.tag_uids.get(uid.getKey());
+        if (other == null || Bytes.memcmp(other, uid.getValue()) != 0) {
+          tag_uids.remove(uid.getKey());
+          aggregated_uids.put(uid.getKey(), true);
+        }
+      }
+      aggregated.addAll(part.aggregated_tags);
+      for (final byte[] uid : part.aggregated_tag_uids) {
+        aggregated_uids.put(uid, true);
+      }
+      tsuids.addAll(part.tsuids);
+      annotations.addAll(part.annotations);
+      size += part.timestamps.length;
+    }
+
+    final long[] timestamps = new long[size];
+    final long[] values = new long[size];
+    final boolean[] integers = new boolean[size];
+    int offset = 0;
+    for (final CachedDataPoints part : parts) {
+      final int length = part.timestamps.length;
+      System.arraycopy(part.timestamps, 0, timestamps, offset, length);
+      System.arraycopy(part.values, 0, values, offset, length);
+      System.arraycopy(part.integers, 0, integers, offset, length);
+      offset += length;
+    }
+    return new CachedDataPoints(first.metric, first.metric_uid, tags,
+        tag_uids, new ArrayList<String>(aggregated),
+        new ArrayList<byte[]>(aggregated_uids.keySet()),
+        new ArrayList<String>(tsuids), annotations, query_index, timestamps,
+        values, integers);
+  }
+
+  /** @return A rough estimate of the memory used by this object in bytes. */
+  int weight() {
+    return 256 + timestamps.length * 17
+        + (tags.size() * 2 + aggregated_tags.size() + tsuids.size()) * 64
+        + annotations.size() * 256;
+  }
+
+  /** @return The index of the first point at or after the timestamp. */
+  private int search(final long timestamp) {
+    int index = Arrays.binarySearch(timestamps, timestamp);
+    if (index < 0) {
+      return -index - 1;
+    }
+    // timestamps are unique but play it safe
+    while (index > 0 && timestamps[index - 1] == timestamp) {
+      index--;
+    }
+    return index;
+  }
+
+  private static long toMillis(final long timestamp) {
+    return (timestamp & Const.SECOND_MASK) == 0 ? timestamp * 1000 : timestamp;
+  }
+
+  private static ByteMap<byte[]> copy(final ByteMap<byte[]> map) {
+    final ByteMap<byte[]> copy = new ByteMap<byte[]>();
+    if (map != null) {
+      copy.putAll(map);
+    }
+    return copy;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Deferred<Object> toObject(final Deferred<?> deferred) {
+    return (Deferred<Object>) deferred;
+  }
+
+  @Override
+  public String metricName() {
+    return metric;
+  }
+
+  @Override
+  public Deferred<String> metricNameAsync() {
+    return Deferred.fromResult(metric);
+  }
+
+  @Override
+  public byte[] metricUID() {
+    return metric_uid;
+  }
+
+  @Override
+  public Map<String, String> getTags() {
+    return tags;
+  }
+
+  @Override
+  public Deferred<Map<String, String>> getTagsAsync() {
+    return Deferred.fromResult(tags);
+  }
+
+  @Override
+  public ByteMap<byte[]> getTagUids() {
+    return tag_uids;
+  }
+
+  @Override
+  public List<String> getAggregatedTags() {
+    return aggregated_tags;
+  }
+
+  @Override
+  public Deferred<List<String>> getAggregatedTagsAsync() {
+    return Deferred.fromResult(aggregated_tags);
+  }
+
+  @Override
+  public List<byte[]> getAggregatedTagUids() {
+    return aggregated_tag_uids;
+  }
+
+  @Override
+  public List<String> getTSUIDs() {
+    return tsuids;
+  }
+
+  @Override
+  public List<Annotation> getAnnotations() {
+    return annotations;
+  }
+
+  @Override
+  public int size() {
+    return timestamps.length;
+  }
+
+  @Override
+  public int aggregatedSize() {
+    return timestamps.length;
+  }
+
+  @Override
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  @Override
+  public long timestamp(final int i) {
+    return timestamps[i];
+  }
+
+  @Override
+  public boolean isInteger(final int i) {
+    return integers[i];
+  }
+
+  @Override
+  public long longValue(final int i) {
+    if (!integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a long");
+    }
+    return values[i];
+  }
+
+  @Override
+  public double doubleValue(final int i) {
+    if (integers[i]) {
+      throw new ClassCastException("value #" + i + " is not a float");
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  @Override
+  public int getQueryIndex() {
+    return query_index;
+  }
+
+  @Override
+  public String toString() {
+    return "CachedDataPoints(metric=" + metric + ", tags=" + tags
+        + ", aggregated_tags=" + aggregated_tags + ", size="
+        + timestamps.length + ")";
+  }
+
+  /** Iterates over the points, the data point returned is reused. */
+  private final class Iterator implements SeekableView {
+    private final MutableDataPoint dp = new MutableDataPoint();
+    private int pos;
+
+    @Override
+    public boolean hasNext() {
+      return pos < timestamps.length;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements");
+      }
+      if (integers[pos]) {
+        dp.reset(timestamps[pos], values[pos]);
+      } else {
+        dp.reset(timestamps[pos], Double.longBitsToDouble(values[pos]));
+      }
+      pos++;
+      return dp;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      pos = Math.max(pos, search(timestamp));
+    }
+  }
+}
@@ -14,14 +14,18 @@ package net.opentsdb.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
@@ -40,10 +44,16 @@ import net.opentsdb.utils.JSON;
  * "Queue" of rows to compact.
  * <p>
  * Whenever we write a data point to HBase, the row key we write to is added
- * to this queue, which is effectively a sorted set.  There is a separate
- * thread that periodically goes through the queue and look for "old rows" to
- * compact.  A row is considered "old" if the timestamp in the row key is
- * older than a certain threshold.
+ * to this queue.  There is a separate thread that periodically goes through
+ * the queue and look for "old rows" to compact.  A row is considered "old"
+ * if the timestamp in the row key is older than a certain threshold.
+ * <p>
+ * The rows are sharded by base time and salt bucket so that writers only
+ * contend with the writers of the same shard and the compaction thread can
+ * find the old rows without walking the new ones.  The compaction thread
+ * hands the old shards to a pool of workers that drain them in parallel at
+ * a steady rate, spreading the work over the flush interval instead of
+ * firing every row at once.
  * <p>
  * The compaction process consists in reading all the cells within a given row
  * and writing them back out as a single big cell.  Once that writes succeeds,
@@ -53,16 +63,24 @@ import net.opentsdb.utils.JSON;
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
  */
-final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
+final class CompactionQueue {
 
   private static final Logger LOG = LoggerFactory.getLogger(CompactionQueue.class);
 
-  /**
-   * How many items are currently in the queue.
-   * Because {@link ConcurrentSkipListMap#size} has O(N) complexity.
-   */
+  /** Bits of a shard key holding the salt bucket, the rest is the base time */
+  private static final int BUCKET_BITS = 16;
+
+  /** How many items are currently in the queue.  */
   private final AtomicInteger size = new AtomicInteger();
 
+  /** The rows to compact, sharded by base time then salt bucket.  */
+  private final ConcurrentSkipListMap<Long, Shard> shards =
+      new ConcurrentSkipListMap<Long, Shard>();
+
+  /** Shards handed to the workers by the compaction thread.  */
+  private final LinkedBlockingQueue<Shard> due_shards =
+      new LinkedBlockingQueue<Shard>();
+
   private final AtomicLong duplicates_different = new AtomicLong();
   private final AtomicLong duplicates_same = new AtomicLong();
   private final AtomicLong compaction_count = new AtomicLong();
@@ -87,32 +105,72 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   /** If this is X then we'll flush X times faster than we really need.  */
   private final int flush_speed;  // multiplicative factor
 
+  /** How many threads drain the shards.  */
+  private final int workers;
+
+  /** Paces the workers so the rows are compacted at an even rate.  */
+  private final RateLimiter limiter;
+
+  /** Bounds how many rows the workers compact concurrently.  */
+  private final Semaphore inflight;
+
+  /** Cells written to open rows, null unless the buffer is enabled.  */
+  private final RowWriteBuffer buffer;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
    */
   public CompactionQueue(final TSDB tsdb) {
-    super(new Cmp(tsdb));
     this.tsdb = tsdb;
     metric_width = tsdb.metrics.width();
     flush_interval = tsdb.config.getInt("tsd.storage.compaction.flush_interval");
     min_flush_threshold = tsdb.config.getInt("tsd.storage.compaction.min_flush_threshold");
     max_concurrent_flushes = tsdb.config.getInt("tsd.storage.compaction.max_concurrent_flushes");
     flush_speed = tsdb.config.getInt("tsd.storage.compaction.flush_speed");
+    workers = Math.max(1, tsdb.config.getInt("tsd.storage.compaction.workers"));
+    limiter = RateLimiter.create(Math.max(1, min_flush_threshold));
+    inflight = new Semaphore(Math.max(1, max_concurrent_flushes));
+    if (tsdb.config.enable_compactions() && 
+        tsdb.config.getBoolean("tsd.storage.compaction.buffer.enable")) {
+      buffer = new RowWriteBuffer(
+          tsdb.config.getLong("tsd.storage.compaction.buffer.max_memory"));
+    } else {
+      buffer = null;
+    }
     if (tsdb.config.enable_compactions()) {
       startCompactionThread();
+      startWorkers();
     }
   }
 
-  @Override
+  /** @return the number of rows in the queue */
   public int size() {
     return size.get();
   }
 
   public void add(final byte[] row) {
-    if (super.put(row, Boolean.TRUE) == null) {
-      size.incrementAndGet();  // We added a new entry, count it.
+    if (buffer != null) {
+      // we don't know what was written so the row must be read back
+      buffer.invalidate(row);
     }
+    enqueue(row);
+  }
+
+  /**
+   * Adds a row to the queue along with a cell written to it so that the row
+   * can be compacted without reading it back if the buffer is enabled.
+   * @param row The row key.
+   * @param base_time The base time of the row in seconds.
+   * @param qualifier The qualifier of the cell written.
+   * @param value The value of the cell written.
+   */
+  public void add(final byte[] row, final long base_time, 
+      final byte[] qualifier, final byte[] value) {
+    if (buffer != null) {
+      buffer.add(row, base_time, qualifier, value);
+    }
+    enqueue(row);
   }
 
   /**
@@ -144,12 +202,109 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
     // The remaining stats only make sense with compactions enabled.
     collector.record("compaction.queue.size", size);
+    collector.record("compaction.queue.shards", shards.size());
+    for (final Shard shard : shards.values()) {
+      collector.addExtraTag("hour", Long.toString(shard.base_time));
+      try {
+        collector.record("compaction.queue.shard.size", shard.size, 
+            "salt=" + shard.bucket);
+      } finally {
+        collector.clearExtraTag("hour");
+      }
+    }
     collector.record("compaction.errors", handle_read_error.errors, "rpc=read");
     collector.record("compaction.errors", handle_write_error.errors, "rpc=put");
     collector.record("compaction.errors", handle_delete_error.errors,
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    if (buffer != null) {
+      buffer.collectStats(collector);
+    }
+  }
+
+  /**
+   * Adds a row to its shard, creating the shard if needed.
+   * @param row The row key.
+   */
+  private void enqueue(final byte[] row) {
+    final long key = shardKey(row);
+    while (true) {
+      Shard shard = shards.get(key);
+      if (shard == null) {
+        final Shard fresh = new Shard(key);
+        shard = shards.putIfAbsent(key, fresh);
+        if (shard == null) {
+          shard = fresh;
+        }
+      }
+      if (shard.rows.put(row, Boolean.TRUE) == null) {
+        shard.size.incrementAndGet();
+        size.incrementAndGet();  // We added a new entry, count it.
+      }
+      if (!shard.retired) {
+        return;
+      }
+      // The shard was retired while we added the row, move it to a new one.
+      take(shard, row);
+    }
+  }
+
+  /**
+   * Removes a row from a shard.
+   * @param shard The shard holding the row.
+   * @param row The row key.
+   * @return True if we removed the row, false if someone else took it.
+   */
+  private boolean take(final Shard shard, final byte[] row) {
+    if (shard.rows.remove(row) == null) {
+      return false;
+    }
+    shard.size.decrementAndGet();
+    size.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Drops an empty shard from the queue.  Rows added while the shard is
+   * retired are moved to a new shard.
+   * @param shard The shard to retire.
+   */
+  private void retire(final Shard shard) {
+    if (!shards.remove(shard.key, shard)) {
+      return;
+    }
+    shard.retired = true;
+    for (final byte[] row : shard.rows.keySet()) {
+      if (take(shard, row)) {
+        enqueue(row);
+      }
+    }
+  }
+
+  /**
+   * Computes the shard a row belongs to.
+   * @param row The row key.
+   * @return The base time of the row followed by its salt bucket.
+   */
+  private long shardKey(final byte[] row) {
+    final long base_time = Bytes.getUnsignedInt(row, 
+        Const.SALT_WIDTH() + metric_width);
+    int bucket = 0;
+    for (int i = 0; i < Const.SALT_WIDTH(); i++) {
+      bucket = (bucket << 8) | (row[i] & 0xFF);
+    }
+    return (base_time << BUCKET_BITS) | (bucket & ((1 << BUCKET_BITS) - 1));
+  }
+
+  /**
+   * Returns the shards holding rows older than the cut off, oldest first.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   */
+  private Collection<Shard> dueShards(final long cut_off) {
+    final long last = (Math.min(cut_off, 0xFFFFFFFFL) << BUCKET_BITS) 
+        | ((1 << BUCKET_BITS) - 1);
+    return shards.headMap(last, true).values();
   }
 
   /**
@@ -171,33 +326,29 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       new ArrayList<Deferred<Object>>(Math.min(maxflushes, max_concurrent_flushes));
     int nflushes = 0;
     int seed = (int) (System.nanoTime() % 3);
-    for (final byte[] row : this.keySet()) {
-      if (maxflushes == 0) {
+    for (final Shard shard : dueShards(cut_off)) {
+      if (maxflushes == 0 || nflushes == max_concurrent_flushes) {
         break;
       }
-      if (seed == row.hashCode() % 3) {
-        continue;
-      }
-      final long base_time = Bytes.getUnsignedInt(row, 
-          Const.SALT_WIDTH() + metric_width);
-      if (base_time > cut_off) {
-        break;
-      } else if (nflushes == max_concurrent_flushes) {
-        // We kicked off the compaction of too many rows already, let's wait
-        // until they're done before kicking off more.
-        break;
-      }
-      // You'd think that it would be faster to grab an iterator on the map
-      // and then call remove() on the iterator to "unlink" the element
-      // directly from where the iterator is at, but no, the JDK implements
-      // it by calling remove(key) so it has to lookup the key again anyway.
-      if (super.remove(row) == null) {  // We didn't remove anything.
-        continue;  // So someone else already took care of this entry.
+      for (final byte[] row : shard.rows.keySet()) {
+        if (maxflushes == 0) {
+          break;
+        }
+        if (seed == row.hashCode() % 3) {
+          continue;
+        }
+        if (nflushes == max_concurrent_flushes) {
+          // We kicked off the compaction of too many rows already, let's wait
+          // until they're done before kicking off more.
+          break;
+        }
+        if (!take(shard, row)) {  // We didn't remove anything.
+          continue;  // So someone else already took care of this entry.
+        }
+        nflushes++;
+        maxflushes--;
+        ds.add(compactRow(row));
       }
-      nflushes++;
-      maxflushes--;
-      size.decrementAndGet();
-      ds.add(tsdb.get(row).addCallbacks(compactcb, handle_read_error));
     }
     final Deferred<ArrayList<Object>> group = Deferred.group(ds);
     if (nflushes == max_concurrent_flushes && maxflushes > 0) {
@@ -222,8 +373,120 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return group;
   }
 
+  /**
+   * Hands the shards holding rows older than the cut off to the workers.
+   * Shards still being drained are skipped and empty shards are retired.
+   * Each shard gets a share of the rows to flush proportional to its size
+   * and the workers are paced so they flush them evenly over the next
+   * flush interval.
+   * @param cut_off A UNIX timestamp in seconds (unsigned 32-bit integer).
+   * @param maxflushes How many rows to flush during this interval.
+   * @return The number of shards handed to the workers.
+   */
+  private int schedule(final long cut_off, final int maxflushes) {
+    long pending = 0;
+    for (final Shard shard : dueShards(cut_off)) {
+      pending += shard.size.get();
+    }
+    if (pending > 0) {
+      limiter.setRate(Math.max(1.0, 
+          (double) Math.min(maxflushes, pending) / Math.max(1, flush_interval)));
+    }
+    int scheduled = 0;
+    for (final Shard shard : dueShards(cut_off)) {
+      if (shard.draining.get()) {
+        continue;
+      }
+      final int depth = shard.size.get();
+      if (depth == 0) {
+        retire(shard);
+        continue;
+      }
+      shard.draining.set(true);
+      shard.quota = (int) Math.max(1, Math.min(depth, 
+          (long) maxflushes * depth / pending));
+      due_shards.add(shard);
+      scheduled++;
+    }
+    return scheduled;
+  }
+
+  /**
+   * Kicks off the compaction of up to the shard's quota of rows, taking a
+   * permit from the rate limiter for each of them and waiting when too many
+   * rows are being compacted already.  Called by the workers.
+   * @param shard The shard to drain.
+   * @return The number of rows whose compaction was kicked off.
+   */
+  private int drain(final Shard shard) {
+    int nflushes = 0;
+    final int seed = (int) (System.nanoTime() % 3);
+    try {
+      for (final byte[] row : shard.rows.keySet()) {
+        if (nflushes == shard.quota) {
+          break;
+        }
+        if (seed == row.hashCode() % 3) {
+          continue;
+        }
+        limiter.acquire();
+        if (!inflight.tryAcquire()) {
+          tsdb.getClient().flush();  // Speed up the outstanding compactions.
+          inflight.acquireUninterruptibly();
+        }
+        if (!take(shard, row)) {
+          inflight.release();
+          continue;
+        }
+        nflushes++;
+        compactRow(row).addBoth(release_inflight);
+      }
+    } finally {
+      shard.draining.set(false);
+    }
+    return nflushes;
+  }
+
+  /**
+   * Compacts a row, reading it back unless the buffer has all of its cells.
+   * @param row The row key.
+   * @return A deferred called back once the row is compacted.
+   */
+  private Deferred<Object> compactRow(final byte[] row) {
+    final ArrayList<KeyValue> cells = buffer != null ? buffer.remove(row) : null;
+    if (cells != null) {
+      // we wrote every cell of the row so we can skip the read
+      return Deferred.fromResult(cells).addCallbacks(compactcb, handle_read_error);
+    }
+    return tsdb.get(row).addCallbacks(compactcb, handle_read_error);
+  }
+
+  private final ReleaseCB release_inflight = new ReleaseCB();
+
+  /** Lets a worker compact another row once a compaction completes.  */
+  private final class ReleaseCB implements Callback<Object, Object> {
+    @Override
+    public Object call(final Object arg) {
+      inflight.release();
+      return arg;
+    }
+    @Override
+    public String toString() {
+      return "release compaction permit";
+    }
+  }
+
   private final CompactCB compactcb = new CompactCB();
 
+  /** Value lengths of the columns of a sorted merge, reused per thread.  */
+  private static final ThreadLocal<int[]> SORTED_VALUE_LENGTHS = 
+      new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+          return new int[16];
+        }
+      };
+
   /**
    * Callback to compact a row once it's been read.
    * <p>
@@ -254,6 +517,21 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     return compacted[0];
   }
 
+  /**
+   * Compacts a row into a single {@link KeyValue} with the heap merge, even
+   * if its data points are already in order.  Lets tests and benchmarks
+   * compare it with the sorted merge {@link #compact(ArrayList, List)} uses.
+   * @param row The row containing all the KVs to compact.
+   * Must contain at least one element.
+   * @return A compacted version of this row.
+   */
+  KeyValue heapCompact(final ArrayList<KeyValue> row,
+      List<Annotation> annotations) {
+    final KeyValue[] compacted = { null };
+    new Compaction(row, compacted, annotations, false).compact();
+    return compacted[0];
+  }
+
   /**
    * Maintains state for a single compaction; exists to break the steps down into manageable
    * pieces without having to worry about returning multiple values and passing many parameters
@@ -290,7 +568,30 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     // and if we only had a single column with a single value, we return this.
     private KeyValue last_append_column;
 
+    // the decoded form of the latest compressed column, returned if it was
+    // the only column in the row and held a single value.
+    private KeyValue last_compressed_column;
+
+    // totals of the columns when their data points are already in order,
+    // see scanSortedColumns()
+    private int sorted_columns;
+    private int sorted_points;
+    private int sorted_qual_length;
+    private int sorted_val_length;
+    private int sorted_last_ts;
+    private boolean sorted_ms;
+    private boolean sorted_s;
+
+    // whether or not columns already in order are merged without the heap
+    private final boolean sorted_merge;
+
     public Compaction(ArrayList<KeyValue> row, KeyValue[] compacted, List<Annotation> annotations) {
+      this(row, compacted, annotations, true);
+    }
+
+    public Compaction(ArrayList<KeyValue> row, KeyValue[] compacted, List<Annotation> annotations,
+        boolean sorted_merge) {
+      this.sorted_merge = sorted_merge;
       nkvs = row.size();
       this.row = row;
       this.compacted = compacted;
@@ -336,34 +637,51 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         return null;
       }
 
-      // go through all the columns, process annotations, and
-      heap = new PriorityQueue<ColumnDatapointIterator>(nkvs);
-      int tot_values = buildHeapProcessAnnotations();
-
-      // if there are no datapoints or only one that needs no fixup, we are done
-      if (noMergesOrFixups()) {
-        // return the single non-annotation entry if requested
-        if (compacted != null && heap.size() == 1) {
-          compacted[0] = findFirstDatapointColumn();
+      final KeyValue compact;
+      if (sorted_merge && scanSortedColumns()) {
+        // the data points are already in order, so skip the heap
+        processSortedColumns();
+        if (sorted_columns == 0 || (sorted_columns == 1 && sorted_points == 1)) {
+          // return the single non-annotation entry if requested
+          if (compacted != null && sorted_columns == 1) {
+            compacted[0] = findFirstDatapointColumn();
+          }
+          return null;
+        }
+        compaction_count.incrementAndGet();
+        compact = concatSortedColumns();
+      } else {
+        // go through all the columns, process annotations, and
+        heap = new PriorityQueue<ColumnDatapointIterator>(nkvs);
+        int tot_values = buildHeapProcessAnnotations();
+
+        // if there are no datapoints or only one that needs no fixup, we are done
+        if (noMergesOrFixups()) {
+          // return the single non-annotation entry if requested
+          if (compacted != null && heap.size() == 1) {
+            compacted[0] = findFirstDatapointColumn();
+          }
+          return null;
         }
-        return null;
-      }
 
-      // merge the datapoints, ordered by timestamp and removing duplicates
-      final ByteBufferList compacted_qual = new ByteBufferList(tot_values);
-      final ByteBufferList compacted_val = new ByteBufferList(tot_values);
-      compaction_count.incrementAndGet();
-      mergeDatapoints(compacted_qual, compacted_val);
+        // merge the datapoints, ordered by timestamp and removing duplicates
+        final ByteBufferList compacted_qual = new ByteBufferList(tot_values);
+        final ByteBufferList compacted_val = new ByteBufferList(tot_values);
+        compaction_count.incrementAndGet();
+        mergeDatapoints(compacted_qual, compacted_val);
 
-      // if we wound up with no data in the compacted column, we are done
-      if (compacted_qual.segmentCount() == 0) {
-        return null;
-      }
+        // if we wound up with no data in the compacted column, we are done
+        if (compacted_qual.segmentCount() == 0) {
+          return null;
+        }
 
-      // build the compacted columns
-      final KeyValue compact = buildCompactedColumn(compacted_qual, compacted_val);
+        // build the compacted columns
+        compact = buildCompactedColumn(compacted_qual, compacted_val);
+      }
+      // the column written to storage, callers always get the regular format
+      final KeyValue stored = compressCompactedColumn(compact);
 
-      final boolean write = updateDeletesCheckForWrite(compact);
+      final boolean write = updateDeletesCheckForWrite(stored);
 
       if (compacted != null) {  // Caller is interested in the compacted form.
         compacted[0] = compact;
@@ -385,7 +703,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       deleted_cells.addAndGet(to_delete.size());  // We're going to delete this.
       if (write) {
         written_cells.incrementAndGet();
-        Deferred<Object> deferred = tsdb.put(key, compact.qualifier(), compact.value());
+        Deferred<Object> deferred = tsdb.put(key, stored.qualifier(), stored.value());
         if (!to_delete.isEmpty()) {
           deferred = deferred.addCallbacks(new DeleteCompactedCB(to_delete), handle_write_error);
         }
@@ -410,6 +728,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       if (last_append_column != null) {
         return last_append_column;
       }
+      if (last_compressed_column != null) {
+        return last_compressed_column;
+      }
       for (final KeyValue kv : row) {
         if (isDatapoint(kv)) {
           return kv;
@@ -418,6 +739,165 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return null;
     }
 
+    /**
+     * Checks whether the data point columns can simply be concatenated, i.e.
+     * their data points are in increasing order without duplicates and need
+     * no fixups.  That's the case for rows of single cells in seconds or
+     * milliseconds and for a compacted column followed by later cells.  A
+     * compressed column is decoded and placed first, rows with appends or
+     * unknown formats go through the heap.  Only the sorted_* fields and
+     * the decoded compressed column are set so the heap can still be used.
+     *
+     * @return true if the columns are sorted
+     */
+    private boolean scanSortedColumns() {
+      sorted_last_ts = -1;
+      last_compressed_column = null;
+      for (final KeyValue kv : row) {
+        final byte[] qual = kv.qualifier();
+        if ((qual.length & 1) == 0 || qual[0] == Annotation.PREFIX()) {
+          continue;
+        }
+        if (!CompressedDataPoints.isCompressedDataPoints(qual) || 
+            last_compressed_column != null) {
+          return false;
+        }
+        last_compressed_column = CompressedDataPoints.decode(kv);
+        if (!scanSortedColumn(last_compressed_column, 0)) {
+          return false;
+        }
+      }
+      for (final KeyValue kv : row) {
+        if (isDatapoint(kv) && !scanSortedColumn(kv, sorted_columns)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Adds a column to the sorted totals if its data points come after the
+     * ones seen so far.
+     *
+     * @param kv the data point column
+     * @param index the index of the column in the merge
+     * @return false if the column is out of order, has duplicates, needs a
+     * fixup or doesn't have as many values as qualifiers
+     */
+    private boolean scanSortedColumn(final KeyValue kv, final int index) {
+      final byte[] qual = kv.qualifier();
+      final byte[] value = kv.value();
+      if (qual.length == 2 && 
+          (Internal.floatingPointValueToFix(qual[1], value) ||
+           Internal.fixQualifierFlags(qual[1], value.length) != qual[1])) {
+        return false;
+      }
+      int q = 0;
+      int length = 0;
+      int points = 0;
+      while (q < qual.length) {
+        final boolean ms = Internal.inMilliseconds(qual[q]);
+        if (q + (ms ? 4 : 2) > qual.length) {
+          return false;
+        }
+        final int ts = Internal.getOffsetFromQualifier(qual, q);
+        if (ts <= sorted_last_ts) {
+          return false;
+        }
+        sorted_last_ts = ts;
+        sorted_ms |= ms;
+        sorted_s |= !ms;
+        length += Internal.getValueLengthFromQualifier(qual, q);
+        q += ms ? 4 : 2;
+        points++;
+      }
+      // compacted columns end with a meta data byte
+      if (value.length != length && (points < 2 || value.length != length + 1)) {
+        return false;
+      }
+      int[] lengths = SORTED_VALUE_LENGTHS.get();
+      if (index >= lengths.length) {
+        lengths = Arrays.copyOf(lengths, Math.max(index + 1, lengths.length * 2));
+        SORTED_VALUE_LENGTHS.set(lengths);
+      }
+      lengths[index] = length;
+      sorted_columns++;
+      sorted_points += points;
+      sorted_qual_length += qual.length;
+      sorted_val_length += length;
+      return true;
+    }
+
+    /**
+     * Processes the annotations and records the columns to delete once the
+     * row is known to be sorted, like {@link #buildHeapProcessAnnotations}.
+     */
+    private void processSortedColumns() {
+      if (last_compressed_column != null) {
+        // the original compressed column is the only odd length one we keep
+        for (final KeyValue kv : row) {
+          if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+            to_delete.add(kv);
+          }
+        }
+      }
+      for (final KeyValue kv : row) {
+        if (isDatapoint(kv)) {
+          if (longest == null || longest.qualifier().length < kv.qualifier().length) {
+            longest = kv;
+          }
+          to_delete.add(kv);
+        } else if (kv.qualifier()[0] == Annotation.PREFIX()) {
+          annotations.add(JSON.parseToObject(kv.value(), Annotation.class));
+        }
+      }
+    }
+
+    /**
+     * Concatenates the sorted columns into the compacted column with two
+     * array copies per column.  A lone compacted column that already has
+     * the right meta data byte is returned as is.
+     *
+     * @return the compacted column
+     */
+    private KeyValue concatSortedColumns() {
+      final byte flag = sorted_ms && sorted_s ? Const.MS_MIXED_COMPACT : 0;
+      if (sorted_columns == 1 && last_compressed_column == null) {
+        final KeyValue kv = findFirstDatapointColumn();
+        final byte[] value = kv.value();
+        if (value.length == sorted_val_length + 1 && 
+            value[value.length - 1] == flag) {
+          return kv;
+        }
+      }
+      final int[] lengths = SORTED_VALUE_LENGTHS.get();
+      final byte[] cq = new byte[sorted_qual_length];
+      final byte[] cv = new byte[sorted_val_length + 1];
+      int q = 0;
+      int v = 0;
+      int index = 0;
+      if (last_compressed_column != null) {
+        final byte[] qual = last_compressed_column.qualifier();
+        System.arraycopy(qual, 0, cq, q, qual.length);
+        System.arraycopy(last_compressed_column.value(), 0, cv, v, lengths[index]);
+        q += qual.length;
+        v += lengths[index++];
+      }
+      for (final KeyValue kv : row) {
+        if (!isDatapoint(kv)) {
+          continue;
+        }
+        final byte[] qual = kv.qualifier();
+        System.arraycopy(qual, 0, cq, q, qual.length);
+        System.arraycopy(kv.value(), 0, cv, v, lengths[index]);
+        q += qual.length;
+        v += lengths[index++];
+      }
+      cv[cv.length - 1] = flag;
+      final KeyValue first = row.get(0);
+      return new KeyValue(first.key(), first.family(), cq, cv);
+    }
+
     /**
      * Build a heap of columns containing datapoints.  Assumes that non-datapoint columns are
      * never merged.  Adds datapoint columns to the list of rows to be deleted.
@@ -447,6 +927,17 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             if (col.hasMoreData()) {
               heap.add(col);
             }
+          } else if (CompressedDataPoints.isCompressedDataPoints(qual)) {
+            last_compressed_column = CompressedDataPoints.decode(kv);
+            tot_values += CompressedDataPoints.pointCount(kv.value());
+            final ColumnDatapointIterator col = 
+                new ColumnDatapointIterator(last_compressed_column);
+            if (col.hasMoreData()) {
+              heap.add(col);
+            }
+            // an existing compressed column is either re-written in place or
+            // replaced by a regular compacted column
+            to_delete.add(kv);
           } else {
             LOG.warn("Ignoring unexpected extended format type " + qual[0]);
           }
@@ -542,6 +1033,28 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       return new KeyValue(first.key(), first.family(), cq, cv);
     }
 
+    /**
+     * Encodes the compacted column in the compressed format if enabled.
+     * Single values and columns the format can't represent are left as is.
+     *
+     * @param compact the compacted column
+     * @return the column to write to storage
+     */
+    private KeyValue compressCompactedColumn(final KeyValue compact) {
+      final byte[] qual = compact.qualifier();
+      if (!tsdb.config.compress_compactions() || qual.length == 2 ||
+          (qual.length == 4 && Internal.inMilliseconds(qual))) {
+        return compact;
+      }
+      final byte[] compressed = 
+          CompressedDataPoints.encode(compact.qualifier(), compact.value());
+      if (compressed == null) {
+        return compact;
+      }
+      return new KeyValue(compact.key(), compact.family(), 
+          CompressedDataPoints.QUALIFIER, compressed);
+    }
+
     /**
      * Make sure we don't delete the row that is the result of the compaction, so we
      * remove the compacted value from the list of values to delete if it is there.
@@ -559,8 +1072,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       }
       
       // if the longest entry isn't as long as the compacted one, obviously the compacted
-      // one can't have already existed
-      if (longest != null && longest.qualifier().length >= compact.qualifier().length) {
+      // one can't have already existed. Compressed columns share one qualifier.
+      if (CompressedDataPoints.isCompressedDataPoints(compact.qualifier()) ||
+          (longest != null && longest.qualifier().length >= compact.qualifier().length)) {
         final Iterator<KeyValue> deleteIterator = to_delete.iterator();
         while (deleteIterator.hasNext()) {
           final KeyValue cur = deleteIterator.next();
@@ -689,8 +1203,6 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     }
   }
 
-  static final long serialVersionUID = 1307386642;
-
   /** Starts a compaction thread.  Only one such thread is needed.  */
   private void startCompactionThread() {
     final Thrd thread = new Thrd();
@@ -698,7 +1210,15 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
     thread.start();
   }
 
-
+  /** Starts the workers draining the shards handed off by the thread.  */
+  private void startWorkers() {
+    for (int i = 0; i < workers; i++) {
+      final Worker worker = new Worker();
+      worker.setName("CompactionWorker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
 
   /**
    * Background thread to trigger periodic compactions.
@@ -735,15 +1255,16 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
             // FLUSH_SPEED is 2, then instead of taking 1h to flush what we have
             // for the previous hour, we'll take only 30m.  This is desirable so
             // that we evict old entries from the queue a bit faster.
+            // The workers spread these flushes over the interval so HBase
+            // doesn't see a burst every time we wake up.
             final int maxflushes = Math.max(min_flush_threshold,
               size * flush_interval * flush_speed / Const.MAX_TIMESPAN);
             final long now = System.currentTimeMillis();
-            flush(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
+            final int scheduled = 
+                schedule(now / 1000 - Const.MAX_TIMESPAN - 1, maxflushes);
             if (LOG.isDebugEnabled()) {
-              final int newsize = size();
-              LOG.debug("flush() took " + (System.currentTimeMillis() - now)
-                        + "ms, new queue size=" + newsize
-                        + " (" + (newsize - size) + ')');
+              LOG.debug("Handed " + scheduled + " shards to the workers to flush "
+                        + maxflushes + " rows, queue size=" + size);
             }
           }
         } catch (Exception e) {
@@ -751,7 +1272,7 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
         } catch (OutOfMemoryError e) {
           // Let's free up some memory by throwing away the compaction queue.
           final int sz = size.get();
-          CompactionQueue.super.clear();
+          shards.clear();
           size.set(0);
           LOG.error("Discarded the compaction queue, size=" + sz, e);
         } catch (Throwable e) {
@@ -785,25 +1306,61 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /**
-   * Helper to sort the byte arrays in the compaction queue.
-   * <p>
-   * This comparator sorts things by timestamp first, this way we can find
-   * all rows of the same age at once.
+   * Background thread draining the shards handed off by the compaction
+   * thread.
    */
-  private static final class Cmp implements Comparator<byte[]> {
-
-    /** The position with which the timestamp of metric starts.  */
-    private final short timestamp_pos;
-
-    public Cmp(final TSDB tsdb) {
-      timestamp_pos = (short) (Const.SALT_WIDTH() + tsdb.metrics.width());
+  final class Worker extends Thread {
+    public Worker() {
+      super("CompactionWorker");
     }
 
     @Override
-    public int compare(final byte[] a, final byte[] b) {
-      final int c = Bytes.memcmp(a, b, timestamp_pos, Const.TIMESTAMP_BYTES);
-      // If the timestamps are equal, sort according to the entire row key.
-      return c != 0 ? c : Bytes.memcmp(a, b);
+    public void run() {
+      while (true) {
+        final Shard shard;
+        try {
+          shard = due_shards.take();
+        } catch (InterruptedException e) {
+          LOG.error("Compaction worker interrupted", e);
+          return;
+        }
+        try {
+          drain(shard);
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in compaction worker", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * The rows of a single base time and salt bucket.
+   */
+  private static final class Shard {
+    final long key;
+    final long base_time;
+    final int bucket;
+
+    /** The row keys, sorted so the rows of a region are flushed together */
+    final ConcurrentSkipListMap<byte[], Boolean> rows =
+        new ConcurrentSkipListMap<byte[], Boolean>(Bytes.MEMCMP);
+
+    /** Because {@link ConcurrentSkipListMap#size} has O(N) complexity.  */
+    final AtomicInteger size = new AtomicInteger();
+
+    /** Set while the shard is queued for or being drained by a worker */
+    final AtomicBoolean draining = new AtomicBoolean();
+
+    /** How many rows the worker should flush from this shard */
+    volatile int quota;
+
+    /** Set once the shard was removed from the queue */
+    volatile boolean retired;
+
+    Shard(final long key) {
+      this.key = key;
+      base_time = key >>> BUCKET_BITS;
+      bucket = (int) (key & ((1 << BUCKET_BITS) - 1));
     }
   }
 }
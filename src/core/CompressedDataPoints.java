@@ -0,0 +1,524 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Encodes and decodes compacted columns in a compressed format inspired by
+ * Facebook's Gorilla. The column is identified by a 3 byte qualifier starting
+ * with {@link #PREFIX} and holds every data point of the row in a bit stream:
+ * <ul>
+ * <li>Timestamps are the delta of the delta from the previous point, so
+ * regularly spaced points cost a single bit.</li>
+ * <li>Integers are the zig-zag encoded difference from the previous integer,
+ * written as a varint in groups of 7 bits, a repeated value costs a single
+ * bit.</li>
+ * <li>Floating point values are XOR'd with the previous value of the same
+ * width and only the meaningful bits are written, a repeated value costs a
+ * single bit.</li>
+ * <li>The qualifier flags, i.e. the type and length of the value and whether
+ * the timestamp is in milliseconds, cost a single bit when unchanged.</li>
+ * </ul>
+ * The value starts with a header byte holding the format version and whether
+ * the timestamps are in milliseconds, followed by the number of data points
+ * as a varint, then the bit stream.
+ * <p>
+ * Decoding rebuilds the exact compacted column the data points were encoded
+ * from, including the trailing meta data byte, so readers can handle it like
+ * any other compacted column.
+ * @since 2.3
+ */
+public final class CompressedDataPoints {
+
+  /** The prefix ID of compressed columns */
+  public static final byte PREFIX = 0x07;
+
+  /** The full column qualifier for compressed columns */
+  public static final byte[] QUALIFIER = new byte[] { PREFIX, 0x00, 0x00 };
+
+  /** Format version written in the low bits of the header. */
+  private static final byte VERSION = 1;
+
+  /** Header flag set when the time line is in milliseconds. */
+  private static final byte MS_TIMELINE = 0x10;
+
+  /** Format bit set on data points with a timestamp in milliseconds. */
+  private static final int MS_POINT = 0x10;
+
+  /** Sentinel for the previous XOR window before the first value. */
+  private static final int NO_WINDOW = -1;
+
+  private CompressedDataPoints() {
+    // Static class.
+  }
+
+  /** @return whether or not the qualifier is a compressed column's */
+  public static boolean isCompressedDataPoints(final byte[] qualifier) {
+    return qualifier != null && qualifier.length == 3 &&
+        qualifier[0] == PREFIX;
+  }
+
+  /**
+   * Encodes a compacted column. The data points must be sorted and unique,
+   * as written by the compaction.
+   * @param qualifiers The concatenated qualifiers of the compacted column.
+   * @param values The concatenated values of the compacted column, with or
+   * without the trailing meta data byte.
+   * @return The compressed value or null if the column can't be encoded,
+   * for instance when a value has an unexpected length.
+   */
+  public static byte[] encode(final byte[] qualifiers, final byte[] values) {
+    // first pass to validate the column and pick the time line unit
+    boolean ms_timeline = false;
+    int count = 0;
+    int val_idx = 0;
+    for (int i = 0; i < qualifiers.length; ) {
+      final boolean ms = Internal.inMilliseconds(qualifiers[i]);
+      final int qlen = ms ? 4 : 2;
+      if (i + qlen > qualifiers.length) {
+        return null;
+      }
+      ms_timeline |= ms;
+      val_idx += Internal.getValueLengthFromQualifier(qualifiers, i);
+      i += qlen;
+      count++;
+    }
+    if (count == 0 || (val_idx != values.length &&
+        val_idx != values.length - 1)) {
+      return null;
+    }
+
+    final BitWriter out = new BitWriter(values.length + 8);
+    out.writeByte((byte) (VERSION | (ms_timeline ? MS_TIMELINE : 0)));
+    out.writeVarint(count);
+
+    long last_time = -1;
+    long last_delta = 0;
+    int last_format = -1;
+    long last_int = 0;
+    long last_float = 0;
+    int float_lead = NO_WINDOW;
+    int float_trail = 0;
+    long last_double = 0;
+    int double_lead = NO_WINDOW;
+    int double_trail = 0;
+    val_idx = 0;
+    for (int i = 0; i < qualifiers.length; i += 2) {
+      final boolean ms = Internal.inMilliseconds(qualifiers[i]);
+      final short flags = Internal.getFlagsFromQualifier(qualifiers, i);
+      final int vlen = (flags & Const.LENGTH_MASK) + 1;
+      final long offset = Internal.getOffsetFromQualifier(qualifiers, i);
+      final long time = ms_timeline ? offset : offset / 1000;
+      if (ms) {
+        i += 2;
+      }
+
+      // timestamp
+      if (last_time < 0) {
+        out.writeBits(time, ms_timeline ? 22 : 12);
+      } else {
+        final long delta = time - last_time;
+        if (delta <= 0) {
+          return null;  // out of order or duplicate
+        }
+        writeDeltaOfDelta(out, delta - last_delta);
+        last_delta = delta;
+      }
+      last_time = time;
+
+      // flags
+      final int format = flags | (ms ? MS_POINT : 0);
+      if (format == last_format) {
+        out.writeBit(false);
+      } else {
+        out.writeBit(true);
+        out.writeBits(format, 5);
+        last_format = format;
+      }
+
+      // value
+      if ((flags & Const.FLAG_FLOAT) == 0) {
+        if (vlen != 1 && vlen != 2 && vlen != 4 && vlen != 8) {
+          return null;
+        }
+        final long value = Internal.extractIntegerValue(values, val_idx,
+            (byte) flags);
+        final long diff = value - last_int;
+        if (diff == 0) {
+          out.writeBit(false);
+        } else {
+          out.writeBit(true);
+          out.writeVarint((diff << 1) ^ (diff >> 63));
+        }
+        last_int = value;
+      } else if (vlen == 4) {
+        final long bits = Bytes.getInt(values, val_idx) & 0xFFFFFFFFL;
+        final long xor = bits ^ last_float;
+        if (xor == 0) {
+          out.writeBit(false);
+        } else {
+          final int lead = Math.min(Long.numberOfLeadingZeros(xor) - 32, 31);
+          final int trail = Long.numberOfTrailingZeros(xor);
+          out.writeBit(true);
+          if (float_lead != NO_WINDOW && lead >= float_lead &&
+              trail >= float_trail) {
+            out.writeBit(false);
+            out.writeBits(xor >>> float_trail, 32 - float_lead - float_trail);
+          } else {
+            out.writeBit(true);
+            out.writeBits(lead, 5);
+            out.writeBits(32 - lead - trail - 1, 5);
+            out.writeBits(xor >>> trail, 32 - lead - trail);
+            float_lead = lead;
+            float_trail = trail;
+          }
+        }
+        last_float = bits;
+      } else if (vlen == 8) {
+        final long bits = Bytes.getLong(values, val_idx);
+        final long xor = bits ^ last_double;
+        if (xor == 0) {
+          out.writeBit(false);
+        } else {
+          final int lead = Long.numberOfLeadingZeros(xor);
+          final int trail = Long.numberOfTrailingZeros(xor);
+          out.writeBit(true);
+          if (double_lead != NO_WINDOW && lead >= double_lead &&
+              trail >= double_trail) {
+            out.writeBit(false);
+            out.writeBits(xor >>> double_trail,
+                64 - double_lead - double_trail);
+          } else {
+            out.writeBit(true);
+            out.writeBits(lead, 6);
+            out.writeBits(64 - lead - trail - 1, 6);
+            out.writeBits(xor >>> trail, 64 - lead - trail);
+            double_lead = lead;
+            double_trail = trail;
+          }
+        }
+        last_double = bits;
+      } else {
+        return null;
+      }
+      val_idx += vlen;
+    }
+    return out.toBytes();
+  }
+
+  /**
+   * Decodes a compressed column in the regular compacted format.
+   * @param kv The compressed column.
+   * @return A column with the concatenated qualifiers and values, plus the
+   * meta data byte if there is more than one data point.
+   * @throws IllegalDataException if the column is not compressed or is
+   * corrupted.
+   */
+  public static KeyValue decode(final KeyValue kv) {
+    if (!isCompressedDataPoints(kv.qualifier())) {
+      throw new IllegalDataException("Not a compressed column: " + kv);
+    }
+    final byte[][] column = decode(kv.value());
+    return new KeyValue(kv.key(), kv.family(), column[0], kv.timestamp(),
+        column[1]);
+  }
+
+  /**
+   * Decodes a compressed value in the regular compacted format.
+   * @param value The compressed value.
+   * @return An array with the concatenated qualifiers then the concatenated
+   * values, plus the meta data byte if there is more than one data point.
+   * @throws IllegalDataException if the value is corrupted.
+   */
+  public static byte[][] decode(final byte[] value) {
+    if (value == null || value.length < 2 ||
+        (value[0] & 0x0F) != VERSION) {
+      throw new IllegalDataException("Unknown compressed column format: "
+          + Arrays.toString(value));
+    }
+    try {
+      final BitReader in = new BitReader(value);
+      final boolean ms_timeline = (in.readByte() & MS_TIMELINE) != 0;
+      final int count = (int) in.readVarint();
+      if (count < 1) {
+        throw new IllegalDataException("Empty compressed column");
+      }
+      // worst cases, trimmed at the end
+      byte[] qualifiers = new byte[count * 4];
+      byte[] values = new byte[count * 8 + 1];
+      int q_idx = 0;
+      int v_idx = 0;
+      boolean has_ms = false;
+      boolean has_seconds = false;
+
+      long time = 0;
+      long delta = 0;
+      int format = 0;
+      long last_int = 0;
+      long last_float = 0;
+      int float_lead = 0;
+      int float_trail = 0;
+      long last_double = 0;
+      int double_lead = 0;
+      int double_trail = 0;
+      for (int i = 0; i < count; i++) {
+        if (i == 0) {
+          time = in.readBits(ms_timeline ? 22 : 12);
+        } else {
+          delta += readDeltaOfDelta(in);
+          time += delta;
+        }
+        if (in.readBit()) {
+          format = (int) in.readBits(5);
+        }
+        final short flags = (short) (format & Const.FLAGS_MASK);
+        final int vlen = (flags & Const.LENGTH_MASK) + 1;
+
+        if ((format & MS_POINT) != 0) {
+          final int qual = (int) ((time << Const.MS_FLAG_BITS) | flags
+              | Const.MS_FLAG);
+          Bytes.setInt(qualifiers, qual, q_idx);
+          q_idx += 4;
+          has_ms = true;
+        } else {
+          final long seconds = ms_timeline ? time / 1000 : time;
+          Bytes.setShort(qualifiers,
+              (short) ((seconds << Const.FLAG_BITS) | flags), q_idx);
+          q_idx += 2;
+          has_seconds = true;
+        }
+
+        if ((flags & Const.FLAG_FLOAT) == 0) {
+          if (in.readBit()) {
+            final long zigzag = in.readVarint();
+            last_int += (zigzag >>> 1) ^ -(zigzag & 1);
+          }
+          switch (vlen) {
+            case 8: Bytes.setLong(values, last_int, v_idx); break;
+            case 4: Bytes.setInt(values, (int) last_int, v_idx); break;
+            case 2: Bytes.setShort(values, (short) last_int, v_idx); break;
+            case 1: values[v_idx] = (byte) last_int; break;
+            default:
+              throw new IllegalDataException("Bad integer length " + vlen);
+          }
+        } else if (vlen == 4) {
+          if (in.readBit()) {
+            if (in.readBit()) {
+              float_lead = (int) in.readBits(5);
+              final int length = (int) in.readBits(5) + 1;
+              float_trail = 32 - float_lead - length;
+            }
+            last_float ^= in.readBits(32 - float_lead - float_trail)
+                << float_trail;
+          }
+          Bytes.setInt(values, (int) last_float, v_idx);
+        } else if (vlen == 8) {
+          if (in.readBit()) {
+            if (in.readBit()) {
+              double_lead = (int) in.readBits(6);
+              final int length = (int) in.readBits(6) + 1;
+              double_trail = 64 - double_lead - length;
+            }
+            last_double ^= in.readBits(64 - double_lead - double_trail)
+                << double_trail;
+          }
+          Bytes.setLong(values, last_double, v_idx);
+        } else {
+          throw new IllegalDataException("Bad floating point length " + vlen);
+        }
+        v_idx += vlen;
+      }
+
+      qualifiers = Arrays.copyOf(qualifiers, q_idx);
+      if (count > 1) {
+        values[v_idx++] = has_ms && has_seconds ? Const.MS_MIXED_COMPACT : 0;
+      }
+      values = Arrays.copyOf(values, v_idx);
+      return new byte[][] { qualifiers, values };
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalDataException("Corrupted compressed column: "
+          + Arrays.toString(value), e);
+    }
+  }
+
+  /**
+   * Reads the number of data points in a compressed value without decoding
+   * them.
+   * @param value The compressed value.
+   * @return The number of data points.
+   * @throws IllegalDataException if the value is corrupted.
+   */
+  public static int pointCount(final byte[] value) {
+    if (value == null || value.length < 2) {
+      throw new IllegalDataException("Corrupted compressed column: "
+          + Arrays.toString(value));
+    }
+    return (int) new BitReader(value, 1).readVarint();
+  }
+
+  /**
+   * Writes the delta of delta of a timestamp: '0' when the delta didn't
+   * change then '10', '110', '1110' prefixes for 7, 9 and 12 bit signed
+   * values and '1111' for 32 bits.
+   */
+  private static void writeDeltaOfDelta(final BitWriter out, final long dod) {
+    if (dod == 0) {
+      out.writeBit(false);
+    } else if (dod >= -64 && dod < 64) {
+      out.writeBits(0x2, 2);
+      out.writeBits(dod, 7);
+    } else if (dod >= -256 && dod < 256) {
+      out.writeBits(0x6, 3);
+      out.writeBits(dod, 9);
+    } else if (dod >= -2048 && dod < 2048) {
+      out.writeBits(0xE, 4);
+      out.writeBits(dod, 12);
+    } else {
+      out.writeBits(0xF, 4);
+      out.writeBits(dod, 32);
+    }
+  }
+
+  /** Reads a value written by {@link #writeDeltaOfDelta}. */
+  private static long readDeltaOfDelta(final BitReader in) {
+    int bits = 32;
+    if (!in.readBit()) {
+      return 0;
+    } else if (!in.readBit()) {
+      bits = 7;
+    } else if (!in.readBit()) {
+      bits = 9;
+    } else if (!in.readBit()) {
+      bits = 12;
+    }
+    // sign extend
+    return (in.readBits(bits) << (64 - bits)) >> (64 - bits);
+  }
+
+  /** Appends bits, most significant first, to a growing byte array. */
+  private static final class BitWriter {
+    private byte[] buf;
+    /** Number of bits written. */
+    private long position;
+
+    BitWriter(final int size) {
+      buf = new byte[Math.max(size, 16)];
+    }
+
+    void writeBit(final boolean bit) {
+      ensure(1);
+      if (bit) {
+        buf[(int) (position >>> 3)] |= 0x80 >>> (position & 7);
+      }
+      position++;
+    }
+
+    /** Writes the lowest {@code count} bits of the value. */
+    void writeBits(final long value, int count) {
+      ensure(count);
+      while (count > 0) {
+        final int idx = (int) (position >>> 3);
+        final int free = 8 - (int) (position & 7);
+        final int n = Math.min(free, count);
+        final int chunk = (int) ((value >>> (count - n)) & ((1 << n) - 1));
+        buf[idx] |= chunk << (free - n);
+        position += n;
+        count -= n;
+      }
+    }
+
+    void writeByte(final byte value) {
+      writeBits(value & 0xFF, 8);
+    }
+
+    /** Writes an unsigned value in groups of 7 bits plus a continuation bit */
+    void writeVarint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        writeBits((value & 0x7F) | 0x80, 8);
+        value >>>= 7;
+      }
+      writeBits(value, 8);
+    }
+
+    private void ensure(final int bits) {
+      final long needed = (position + bits + 7) >>> 3;
+      if (needed > buf.length) {
+        buf = Arrays.copyOf(buf, (int) Math.max(needed, buf.length * 2L));
+      }
+    }
+
+    byte[] toBytes() {
+      return Arrays.copyOf(buf, (int) ((position + 7) >>> 3));
+    }
+  }
+
+  /** Reads bits written by a {@link BitWriter}. */
+  private static final class BitReader {
+    private final byte[] buf;
+    private long position;
+
+    BitReader(final byte[] buf) {
+      this(buf, 0);
+    }
+
+    BitReader(final byte[] buf, final int offset) {
+      this.buf = buf;
+      position = offset * 8L;
+    }
+
+    boolean readBit() {
+      final boolean bit =
+          (buf[(int) (position >>> 3)] & (0x80 >>> (position & 7))) != 0;
+      position++;
+      return bit;
+    }
+
+    long readBits(int count) {
+      long value = 0;
+      while (count > 0) {
+        final int idx = (int) (position >>> 3);
+        final int avail = 8 - (int) (position & 7);
+        final int n = Math.min(avail, count);
+        final int chunk = ((buf[idx] & 0xFF) >>> (avail - n)) & ((1 << n) - 1);
+        value = (value << n) | chunk;
+        position += n;
+        count -= n;
+      }
+      return value;
+    }
+
+    byte readByte() {
+      return (byte) readBits(8);
+    }
+
+    long readVarint() {
+      long value = 0;
+      int shift = 0;
+      while (true) {
+        final long b = readBits(8);
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+        if (shift > 63) {
+          throw new IllegalDataException("Varint too long");
+        }
+      }
+    }
+  }
+}
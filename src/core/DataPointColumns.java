@@ -0,0 +1,337 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * The data points of a time series decoded once into columns: timestamps in
+ * milliseconds, integer values or the bits of floating point values, and a
+ * bitmap flagging the floating point values.
+ * <p>
+ * Rows are decoded as they're added so iterating, seeking and accessing a
+ * point by index never parse qualifiers again. Rows are expected in time
+ * order and are appended, rows that overlap the points we hold are merged in
+ * and their duplicate timestamps are dropped.
+ * @since 2.3
+ */
+final class DataPointColumns {
+  /** Timestamps in milliseconds, in order */
+  private long[] timestamps;
+
+  /** Integer values or the bits of floating point values */
+  private long[] values;
+
+  /** One bit per point, set when the value is a floating point */
+  private long[] floats;
+
+  /** Number of points held */
+  private int size;
+
+  /** Default ctor */
+  DataPointColumns() {
+    this(0);
+  }
+
+  /**
+   * Ctor sizing the columns.
+   * @param capacity The number of points to make room for
+   */
+  DataPointColumns(final int capacity) {
+    timestamps = new long[capacity];
+    values = new long[capacity];
+    floats = new long[words(capacity)];
+  }
+
+  /** @return The number of points held */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Decodes a row and adds its points.
+   * @param row The row to decode
+   * @throws IllegalDataException if the row is malformed
+   */
+  void add(final RowSeq row) {
+    final int count = row.size();
+    if (count == 0) {
+      return;
+    }
+    if (size == 0 || row.timestamp(0) > timestamps[size - 1]) {
+      ensureCapacity(size + count);
+      append(row.internalIterator());
+      return;
+    }
+    final DataPointColumns other = new DataPointColumns(count);
+    other.append(row.internalIterator());
+    merge(other);
+  }
+
+  /**
+   * @param i The index of the point
+   * @return The timestamp of the point in milliseconds
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i];
+  }
+
+  /**
+   * @param i The index of the point
+   * @return Whether or not the value of the point is an integer
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   */
+  boolean isInteger(final int i) {
+    checkIndex(i);
+    return !isFloat(floats, i);
+  }
+
+  /**
+   * @param i The index of the point
+   * @return The value of the point
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is a floating point
+   */
+  long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
+  }
+
+  /**
+   * @param i The index of the point
+   * @return The value of the point
+   * @throws IndexOutOfBoundsException if the index is out of bounds
+   * @throws ClassCastException if the value is an integer
+   */
+  double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in "
+          + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /** @return An iterator over the points */
+  Iterator iterator() {
+    return new Iterator();
+  }
+
+  /**
+   * @param timestamp A timestamp in milliseconds
+   * @return The index of the first point at or after the timestamp
+   */
+  int search(final long timestamp) {
+    final int index = Arrays.binarySearch(timestamps, 0, size, timestamp);
+    return index < 0 ? -index - 1 : index;
+  }
+
+  @Override
+  public String toString() {
+    return "DataPointColumns(size=" + size + (size == 0 ? "" : ", first="
+        + timestamps[0] + ", last=" + timestamps[size - 1]) + ")";
+  }
+
+  /** Appends the remaining points of a row, the capacity must be there */
+  private void append(final RowSeq.Iterator it) {
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      timestamps[size] = dp.timestamp();
+      if (dp.isInteger()) {
+        values[size] = dp.longValue();
+      } else {
+        values[size] = Double.doubleToRawLongBits(dp.doubleValue());
+        setFloat(floats, size);
+      }
+      size++;
+    }
+  }
+
+  /**
+   * Adds the points of other columns.
+   * @param other The columns to add, left untouched
+   */
+  void add(final DataPointColumns other) {
+    if (other.size == 0) {
+      return;
+    }
+    if (size == 0 || other.timestamps[0] > timestamps[size - 1]) {
+      ensureCapacity(size + other.size);
+      System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+      System.arraycopy(other.values, 0, values, size, other.size);
+      for (int i = 0; i < other.size; i++) {
+        if (isFloat(other.floats, i)) {
+          setFloat(floats, size + i);
+        }
+      }
+      size += other.size;
+      return;
+    }
+    merge(other);
+  }
+
+  /**
+   * Merges points overlapping ours, keeping our point when both have the
+   * same timestamp.
+   */
+  private void merge(final DataPointColumns other) {
+    final int capacity = Math.max(size + other.size, timestamps.length);
+    final long[] merged_timestamps = new long[capacity];
+    final long[] merged_values = new long[capacity];
+    final long[] merged_floats = new long[words(capacity)];
+    int local = 0;
+    int remote = 0;
+    int merged = 0;
+    while (local < size || remote < other.size) {
+      final boolean take_local;
+      if (remote >= other.size) {
+        take_local = true;
+      } else if (local >= size) {
+        take_local = false;
+      } else if (other.timestamps[remote] == timestamps[local]) {
+        remote++;  // duplicate, ours wins
+        continue;
+      } else {
+        take_local = timestamps[local] < other.timestamps[remote];
+      }
+      final DataPointColumns source = take_local ? this : other;
+      final int index = take_local ? local++ : remote++;
+      merged_timestamps[merged] = source.timestamps[index];
+      merged_values[merged] = source.values[index];
+      if (isFloat(source.floats, index)) {
+        setFloat(merged_floats, merged);
+      }
+      merged++;
+    }
+    timestamps = merged_timestamps;
+    values = merged_values;
+    floats = merged_floats;
+    size = merged;
+  }
+
+  /** Grows the columns by half at least so appending rows is linear */
+  private void ensureCapacity(final int capacity) {
+    if (capacity <= timestamps.length) {
+      return;
+    }
+    final int length = Math.max(capacity, timestamps.length
+        + (timestamps.length >> 1));
+    timestamps = Arrays.copyOf(timestamps, length);
+    values = Arrays.copyOf(values, length);
+    floats = Arrays.copyOf(floats, words(length));
+  }
+
+  /** @throws IndexOutOfBoundsException if {@code i} is out of bounds. */
+  private void checkIndex(final int i) {
+    if (i >= size || i < 0) {
+      throw new IndexOutOfBoundsException("index " + i + " out of bounds for "
+          + this);
+    }
+  }
+
+  /** @return The number of longs needed to hold a bit per point */
+  private static int words(final int points) {
+    return (points + 63) >>> 6;
+  }
+
+  private static boolean isFloat(final long[] bits, final int i) {
+    return (bits[i >>> 6] & (1L << i)) != 0;
+  }
+
+  private static void setFloat(final long[] bits, final int i) {
+    bits[i >>> 6] |= 1L << i;
+  }
+
+  /**
+   * Iterates over the columns. The iterator is the data point it returns so
+   * nothing is allocated per point.
+   */
+  final class Iterator implements SeekableView, DataPoint {
+    /** Index of the next point */
+    private int next;
+
+    /** Index of the current point */
+    private int current = -1;
+
+    @Override
+    public boolean hasNext() {
+      return next < size;
+    }
+
+    @Override
+    public DataPoint next() {
+      if (next >= size) {
+        throw new NoSuchElementException("no more elements");
+      }
+      current = next++;
+      return this;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void seek(final long timestamp) {
+      if ((timestamp & Const.MILLISECOND_MASK) != 0) {  // negative or not 48 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      next = search(timestamp);
+    }
+
+    @Override
+    public long timestamp() {
+      return timestamps[current];
+    }
+
+    @Override
+    public boolean isInteger() {
+      return !isFloat(floats, current);
+    }
+
+    @Override
+    public long longValue() {
+      if (!isInteger()) {
+        throw new ClassCastException("value #" + current
+            + " is not a long in " + DataPointColumns.this);
+      }
+      return values[current];
+    }
+
+    @Override
+    public double doubleValue() {
+      if (isInteger()) {
+        throw new ClassCastException("value #" + current
+            + " is not a float in " + DataPointColumns.this);
+      }
+      return Double.longBitsToDouble(values[current]);
+    }
+
+    @Override
+    public double toDouble() {
+      return isInteger() ? values[current]
+          : Double.longBitsToDouble(values[current]);
+    }
+
+    @Override
+    public String toString() {
+      return "DataPointColumns.Iterator(next=" + next + ", columns="
+          + DataPointColumns.this + ")";
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
 
 import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
 
 /**
  * <strong>This class is not part of the public API.</strong>
@@ -134,6 +135,12 @@ public final class Internal {
         TSDB.metrics_width());
   }
   
+  /** @see TSDB#recompact */
+  public static Deferred<Object> recompact(final TSDB tsdb, 
+      final ArrayList<KeyValue> row) {
+    return tsdb.recompact(row);
+  }
+
   /** @see Tags#getTags */
   public static Map<String, String> getTags(final TSDB tsdb, final byte[] row) {
     return Tags.getTags(tsdb, row);
@@ -223,7 +230,10 @@ public final class Internal {
   public static ArrayList<Cell> extractDataPoints(final ArrayList<KeyValue> row,
       final int estimated_nvalues) {
     final ArrayList<Cell> cells = new ArrayList<Cell>(estimated_nvalues);
-    for (final KeyValue kv : row) {
+    for (KeyValue kv : row) {
+      if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+        kv = CompressedDataPoints.decode(kv);
+      }
       final byte[] qual = kv.qualifier();
       final int len = qual.length;
       final byte[] val = kv.value();
@@ -0,0 +1,345 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.TSUIDQuery;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * In memory store of the most recent data point written for each time series
+ * so that last data point queries can be answered without hitting storage.
+ * <p>
+ * Every point that makes it past the filters in {@link TSDB#addPoint} updates
+ * the entry for its TSUID if it is at least as recent as the one cached.
+ * The store is a segmented Guava cache so writers only contend on a stripe,
+ * and updates are compare-and-set so a late, older point never overwrites a
+ * newer one. The size is bounded by an estimate of the memory used per entry
+ * and the least recently used series are evicted first.
+ * <p>
+ * Note that points are cached as soon as they are sent to storage so a write
+ * that later fails can still be returned.
+ * @since 2.3
+ */
+public final class LastValueCache {
+  private static final Logger LOG = LoggerFactory.getLogger(LastValueCache.class);
+
+  /** Preserves every byte of the TSUID in the key string. */
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /**
+   * Rough size of an entry without the TSUID: the cache entry, the key
+   * string and its array header and the value object.
+   */
+  static final int ENTRY_OVERHEAD = 128;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Map of the TSUID, as an ISO-8859-1 string, to its last value. */
+  private final Cache<String, LastValue> values;
+
+  /** Estimated bytes used by the entries in the cache. */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /** Number of entries loaded by the warm up. */
+  private final AtomicLong warmed = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the max memory is less than 1.
+   */
+  LastValueCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final long max_memory =
+        tsdb.config.getLong("tsd.core.last_value_cache.max_memory");
+    if (max_memory < 1) {
+      throw new IllegalArgumentException(
+          "tsd.core.last_value_cache.max_memory must be greater than 0");
+    }
+    values = CacheBuilder.newBuilder()
+        .maximumWeight(max_memory)
+        .weigher(new Weigher<String, LastValue>() {
+          @Override
+          public int weigh(final String key, final LastValue value) {
+            return weight(key);
+          }
+        })
+        .removalListener(new RemovalListener<String, LastValue>() {
+          @Override
+          public void onRemoval(
+              final RemovalNotification<String, LastValue> notification) {
+            if (notification.getCause() != RemovalCause.REPLACED) {
+              bytes.addAndGet(-weight(notification.getKey()));
+            }
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Records a data point if it's at least as recent as the cached one.
+   * @param tsuid The TSUID of the series.
+   * @param timestamp The timestamp of the point in seconds or milliseconds.
+   * @param value The encoded value, as written to storage.
+   * @param flags The qualifier flags of the value.
+   */
+  void put(final byte[] tsuid, final long timestamp, final byte[] value,
+           final short flags) {
+    final boolean integer = (flags & Const.FLAG_FLOAT) == 0;
+    final long bits = integer ?
+        Internal.extractIntegerValue(value, 0, (byte) flags) :
+        Double.doubleToRawLongBits(
+            Internal.extractFloatingPointValue(value, 0, (byte) flags));
+    put(new String(tsuid, CHARSET), new LastValue(
+        (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000,
+        integer, bits));
+  }
+
+  /**
+   * Compare and set loop so concurrent writers of the same series keep the
+   * most recent point.
+   * @param key The encoded TSUID.
+   * @param fresh The new value.
+   */
+  private void put(final String key, final LastValue fresh) {
+    final ConcurrentMap<String, LastValue> map = values.asMap();
+    while (true) {
+      final LastValue current = map.get(key);
+      if (current == null) {
+        if (map.putIfAbsent(key, fresh) == null) {
+          bytes.addAndGet(weight(key));
+          return;
+        }
+      } else if (current.timestamp > fresh.timestamp) {
+        return;
+      } else if (map.replace(key, current, fresh)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the last data point cached for the TSUID.
+   * @param tsuid The TSUID to look up.
+   * @return A data point with the timestamp in milliseconds, the value and the
+   * TSUID set but no metric or tags, or null if the series wasn't cached.
+   */
+  public IncomingDataPoint get(final byte[] tsuid) {
+    final LastValue last = values.getIfPresent(new String(tsuid, CHARSET));
+    if (last == null) {
+      return null;
+    }
+    final IncomingDataPoint dp = new IncomingDataPoint();
+    dp.setTimestamp(last.timestamp);
+    dp.setValue(last.integer ? Long.toString(last.bits) :
+        Double.toString(Double.longBitsToDouble(last.bits)));
+    dp.setTSUID(UniqueId.uidToString(tsuid));
+    return dp;
+  }
+
+  /**
+   * Loads the last data point of every series written to within the warm up
+   * window, using the last write times kept in the meta table. Requires TSUID
+   * tracking. Runs in the background, a series written while it's loading
+   * keeps the newer point.
+   * @return A deferred resolving to the number of series loaded.
+   */
+  public Deferred<Long> warmUp() {
+    final long hours =
+        tsdb.config.getInt("tsd.core.last_value_cache.warmup_hours");
+    if (hours < 1 || !(tsdb.config.enable_tsuid_tracking() ||
+        tsdb.config.enable_tsuid_incrementing())) {
+      return Deferred.fromResult(0L);
+    }
+    final long cutoff = DateTime.currentTimeMillis() - (hours * 3600000L);
+    final int concurrency =
+        tsdb.config.getInt("tsd.core.last_value_cache.warmup_concurrency");
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.metaTable());
+    scanner.setFamily(TSMeta.FAMILY());
+    scanner.setQualifier(TSMeta.COUNTER_QUALIFIER());
+    scanner.setMaxNumRows(concurrency);
+    final Deferred<Long> result = new Deferred<Long>();
+    LOG.info("Warming up the last value cache with series written since "
+        + cutoff);
+
+    /** Stores the point fetched for one series. */
+    final class FetchCB implements Callback<Object, IncomingDataPoint> {
+      final byte[] tsuid;
+      FetchCB(final byte[] tsuid) {
+        this.tsuid = tsuid;
+      }
+      @Override
+      public Object call(final IncomingDataPoint dp) throws Exception {
+        if (dp != null) {
+          final boolean integer = Tags.looksLikeInteger(dp.getValue());
+          put(new String(tsuid, CHARSET), new LastValue(dp.getTimestamp(),
+              integer, integer ? Long.parseLong(dp.getValue()) :
+                Double.doubleToRawLongBits(Double.parseDouble(dp.getValue()))));
+          warmed.incrementAndGet();
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Last value cache warm up fetch";
+      }
+    }
+
+    /** Skips a series we couldn't load rather than aborting the warm up. */
+    final class FetchErrBack implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.warn("Failed to load a series in the last value cache", e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Last value cache warm up fetch errback";
+      }
+    }
+
+    final class ErrBack implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to warm up the last value cache", e);
+        result.callback(warmed.get());
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Last value cache warm up errback";
+      }
+    }
+
+    /**
+     * Scans a batch of meta rows then waits on the data fetches for the
+     * recent ones before moving on, bounding the number of outstanding gets.
+     */
+    final class ScannerCB implements Callback<Object,
+        ArrayList<ArrayList<KeyValue>>> {
+      Object scan() {
+        return scanner.nextRows().addCallback(this)
+            .addErrback(new ErrBack());
+      }
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows)
+          throws Exception {
+        if (rows == null) {
+          LOG.info("Loaded " + warmed.get() + " series in the last value cache");
+          result.callback(warmed.get());
+          return null;
+        }
+        final ArrayList<Deferred<Object>> fetches =
+            new ArrayList<Deferred<Object>>(rows.size());
+        for (final ArrayList<KeyValue> row : rows) {
+          final KeyValue column = row.get(0);
+          if (column.timestamp() < cutoff) {
+            continue;
+          }
+          final byte[] tsuid = column.key();
+          final TSUIDQuery query = new TSUIDQuery(tsdb, tsuid);
+          query.setLastTimestamp(column.timestamp());
+          fetches.add(query.getLastPoint(false, 0)
+              .addCallback(new FetchCB(tsuid))
+              .addErrback(new FetchErrBack()));
+        }
+        return Deferred.group(fetches).addCallback(
+            new Callback<Object, ArrayList<Object>>() {
+              @Override
+              public Object call(final ArrayList<Object> ignored) {
+                return scan();
+              }
+              @Override
+              public String toString() {
+                return "Last value cache warm up next batch";
+              }
+            }).addErrback(new ErrBack());
+      }
+      @Override
+      public String toString() {
+        return "Last value cache warm up scanner";
+      }
+    }
+
+    new ScannerCB().scan();
+    return result;
+  }
+
+  /** @return The number of series currently cached. */
+  long size() {
+    return values.size();
+  }
+
+  /** @return The estimated number of bytes used by the cached entries. */
+  long memoryUsage() {
+    return bytes.get();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = values.stats();
+    collector.record("lastvalue.cache-hit", stats.hitCount());
+    collector.record("lastvalue.cache-miss", stats.missCount());
+    collector.record("lastvalue.cache-size", values.size());
+    collector.record("lastvalue.cache-bytes", bytes.get());
+    collector.record("lastvalue.cache-evictions", stats.evictionCount());
+    collector.record("lastvalue.cache-warmed", warmed.get());
+  }
+
+  /** @return The estimated size in bytes of the entry for this key. */
+  private static int weight(final String key) {
+    return ENTRY_OVERHEAD + key.length() * 2;
+  }
+
+  /** An immutable last value, integers are stored as is and floating point
+   * values as the bits of a double. */
+  private static final class LastValue {
+    final long timestamp;
+    final boolean integer;
+    final long bits;
+
+    LastValue(final long timestamp, final boolean integer, final long bits) {
+      this.timestamp = timestamp;
+      this.integer = integer;
+      this.bits = bits;
+    }
+  }
+}
@@ -0,0 +1,508 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Aggregators.Interpolation;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Cache of the downsampled results of sub queries, kept per aligned block of
+ * time so that a dashboard refreshing the same query over a sliding window
+ * only reads the blocks it hasn't seen yet from storage.
+ * <p>
+ * Blocks are {@code tsd.query.cache.block_size} seconds long, rounded up to
+ * a multiple of the downsampling interval so no bucket spans two blocks. A
+ * block is only cached once it ended more than
+ * {@code tsd.query.cache.mutable_window} seconds ago as late points may still
+ * be written to it. When a query comes in, the blocks fully within its range
+ * are looked up in order. The part of the range before the first block and
+ * the part from the first missing block to the end are queried from storage
+ * and the results of each group are stitched together with the cached
+ * blocks. The settled blocks read from storage are then cached.
+ * <p>
+ * Only sub queries whose buckets don't depend on their neighbours are cached:
+ * they must be downsampled on a fixed interval, without a rate, and either
+ * fill missing buckets or use an aggregator that doesn't interpolate. The
+ * size of the cache is bounded by an estimate of the memory used by the
+ * blocks and the least recently used blocks are evicted first. Queries can
+ * opt out with {@link TSQuery#setNoCache}.
+ * @since 2.3
+ */
+public final class QueryCache {
+  private static final Logger LOG = LoggerFactory.getLogger(QueryCache.class);
+
+  /** Rough size of a block without its results. */
+  static final int BLOCK_OVERHEAD = 128;
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Length of a block in milliseconds, before alignment on the interval */
+  private final long block_size;
+
+  /** How long after its end a block may still be written to, in ms */
+  private final long mutable_window;
+
+  /** Results of a sub query for a block, keyed by query and block start */
+  private final Cache<String, CachedDataPoints[]> blocks;
+
+  /** Estimated bytes used by the blocks in the cache. */
+  private final AtomicLong bytes = new AtomicLong();
+
+  /** Blocks answered from the cache and read from storage */
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** Sub queries that couldn't be cached */
+  private final AtomicLong uncacheable = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the max memory or the block size is
+   * less than 1 or the mutable window is negative.
+   */
+  QueryCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final long max_memory = tsdb.config.getLong("tsd.query.cache.max_memory");
+    if (max_memory < 1) {
+      throw new IllegalArgumentException(
+          "tsd.query.cache.max_memory must be greater than 0");
+    }
+    block_size = tsdb.config.getLong("tsd.query.cache.block_size") * 1000;
+    if (block_size < 1) {
+      throw new IllegalArgumentException(
+          "tsd.query.cache.block_size must be greater than 0");
+    }
+    mutable_window =
+        tsdb.config.getLong("tsd.query.cache.mutable_window") * 1000;
+    if (mutable_window < 0) {
+      throw new IllegalArgumentException(
+          "tsd.query.cache.mutable_window cannot be negative");
+    }
+    blocks = CacheBuilder.newBuilder()
+        .maximumWeight(max_memory)
+        .weigher(new Weigher<String, CachedDataPoints[]>() {
+          @Override
+          public int weigh(final String key, final CachedDataPoints[] block) {
+            return weight(key, block);
+          }
+        })
+        .removalListener(new RemovalListener<String, CachedDataPoints[]>() {
+          @Override
+          public void onRemoval(final RemovalNotification<String,
+              CachedDataPoints[]> notification) {
+            if (notification.getCause() != RemovalCause.REPLACED) {
+              bytes.addAndGet(
+                  -weight(notification.getKey(), notification.getValue()));
+            }
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Runs a sub query, answering what it can from the cache. If the sub query
+   * can't be cached or the caller opted out, the query is simply run.
+   * @param ts_query The validated query.
+   * @param index The index of the sub query to run.
+   * @param query The sub query compiled from the query.
+   * @return A deferred resolving to the results of the sub query.
+   */
+  public Deferred<DataPoints[]> run(final TSQuery ts_query, final int index,
+      final Query query) {
+    final TSSubQuery sub = ts_query.getQueries().get(index);
+    if (ts_query.getNoCache()) {
+      return query.runAsync();
+    }
+    if (!cacheable(ts_query, sub)) {
+      uncacheable.incrementAndGet();
+      return query.runAsync();
+    }
+
+    // blocks must hold whole buckets
+    final long interval = sub.downsamplingSpecification().getInterval();
+    final long block = ((block_size + interval - 1) / interval) * interval;
+    final long start = ts_query.startTime();
+    final long end = ts_query.endTime();  // inclusive
+    final long first = ((start + block - 1) / block) * block;
+    if (first + block - 1 > end) {
+      return query.runAsync();  // not a single whole block
+    }
+    final String key = key(ts_query, sub);
+
+    final List<CachedDataPoints[]> cached = new ArrayList<CachedDataPoints[]>();
+    long tail = first;
+    while (tail + block - 1 <= end && settled(tail + block)) {
+      final CachedDataPoints[] results = blocks.getIfPresent(key + tail);
+      if (results == null) {
+        break;
+      }
+      cached.add(results);
+      tail += block;
+    }
+    final int hit = cached.size();
+    int miss = 0;
+    for (long ts = tail; ts + block - 1 <= end && settled(ts + block);
+        ts += block) {
+      miss++;
+    }
+    hits.addAndGet(hit);
+    misses.addAndGet(miss);
+    final QueryStats query_stats = ts_query.getQueryStats();
+    if (query_stats != null) {
+      query_stats.addStat(index, QueryStat.CACHE_HITS, hit);
+      query_stats.addStat(index, QueryStat.CACHE_MISSES, miss);
+    }
+
+    if (hit == 0) {
+      if (miss == 0) {
+        return query.runAsync();  // nothing to cache
+      }
+      return query.runAsync().addCallbackDeferring(new CopyCB())
+          .addCallback(new StoreCB(key, block, start, end, index))
+          .addCallback(new ToArrayCB());
+    }
+
+    // head, cached blocks and tail in time order
+    final List<Deferred<List<CachedDataPoints>>> parts =
+        new ArrayList<Deferred<List<CachedDataPoints>>>(hit + 2);
+    if (start < first) {
+      parts.add(runRange(ts_query, index, start, first - 1)
+          .addCallbackDeferring(new CopyCB())
+          .addCallback(new TrimCB(Long.MIN_VALUE, first)));
+    }
+    for (final CachedDataPoints[] results : cached) {
+      final List<CachedDataPoints> list = new ArrayList<CachedDataPoints>();
+      Collections.addAll(list, results);
+      parts.add(Deferred.fromResult(list));
+    }
+    if (tail <= end) {
+      parts.add(runRange(ts_query, index, tail, end)
+          .addCallbackDeferring(new CopyCB())
+          .addCallback(new TrimCB(tail, Long.MAX_VALUE))
+          .addCallback(new StoreCB(key, block, tail, end, index)));
+    }
+
+    class StitchCB implements Callback<DataPoints[],
+        ArrayList<List<CachedDataPoints>>> {
+      @Override
+      public DataPoints[] call(final ArrayList<List<CachedDataPoints>> parts) {
+        return stitch(parts, sub, index);
+      }
+      @Override
+      public String toString() {
+        return "Query cache stitch callback";
+      }
+    }
+    return Deferred.groupInOrder(parts).addCallback(new StitchCB());
+  }
+
+  /** Collects the cache stats. */
+  void collectStats(final StatsCollector collector) {
+    collector.record("query.cache-hit", hits.get());
+    collector.record("query.cache-miss", misses.get());
+    collector.record("query.cache-uncacheable", uncacheable.get());
+    collector.record("query.cache-size", blocks.size());
+    collector.record("query.cache-bytes", bytes.get());
+    collector.record("query.cache-evictions", blocks.stats().evictionCount());
+  }
+
+  /** Drops every cached block. */
+  public void invalidateAll() {
+    blocks.invalidateAll();
+  }
+
+  /** @return The number of blocks in the cache. */
+  long size() {
+    return blocks.size();
+  }
+
+  /**
+   * Whether or not the buckets of a sub query only depend on the data points
+   * within them, so that the results of each block can be computed alone.
+   * @param ts_query The query.
+   * @param sub The sub query.
+   * @return True if the sub query can be cached.
+   */
+  static boolean cacheable(final TSQuery ts_query, final TSSubQuery sub) {
+    if (ts_query.getDelete() || sub.getRate()) {
+      return false;
+    }
+    final DownsamplingSpecification ds = sub.downsamplingSpecification();
+    if (ds == null || ds == DownsamplingSpecification.NO_DOWNSAMPLER ||
+        ds.getInterval() <= 0 || ds.useCalendar()) {
+      return false;
+    }
+    final Aggregator agg = sub.aggregator();
+    if (agg == null || agg == Aggregators.NONE) {
+      return false;
+    }
+    return ds.getFillPolicy() != FillPolicy.NONE ||
+        agg.interpolationMethod() != Interpolation.LERP;
+  }
+
+  /** @return The key identifying the results of a sub query. */
+  static String key(final TSQuery ts_query, final TSSubQuery sub) {
+    final TreeSet<String> filters = new TreeSet<String>();
+    if (sub.getFilters() != null) {
+      for (final TagVFilter filter : sub.getFilters()) {
+        filters.add(filter.getType() + ":" + filter.getTagk() + "="
+            + filter.getFilter() + ":" + filter.isGroupBy());
+      }
+    }
+    final StringBuilder buf = new StringBuilder();
+    buf.append(sub.getMetric())
+       .append('|').append(sub.getTsuids())
+       .append('|').append(sub.getAggregator())
+       .append('|').append(sub.getDownsample())
+       .append('|').append(filters)
+       .append('|').append(sub.getExplicitTags())
+       .append('|').append(ts_query.getTimezone())
+       .append('@');
+    return buf.toString();
+  }
+
+  /** @return Whether or not no more points should be written before then. */
+  private boolean settled(final long timestamp) {
+    return timestamp <= DateTime.currentTimeMillis() - mutable_window;
+  }
+
+  /** Compiles and runs a sub query over part of the query's time range. */
+  private Deferred<DataPoints[]> runRange(final TSQuery ts_query,
+      final int index, final long start, final long end) {
+    final Query query = tsdb.newQuery();
+
+    class RunCB implements Callback<Deferred<DataPoints[]>, Object> {
+      @Override
+      public Deferred<DataPoints[]> call(final Object ignored) {
+        query.setStartTime(start);
+        query.setEndTime(end);
+        return query.runAsync();
+      }
+      @Override
+      public String toString() {
+        return "Query cache range callback";
+      }
+    }
+    return query.configureFromQuery(ts_query, index)
+        .addCallbackDeferring(new RunCB());
+  }
+
+  /**
+   * Groups the results of consecutive ranges and joins each group's points.
+   * Groups are matched on the values of the tags they're grouped by.
+   */
+  private static DataPoints[] stitch(final List<List<CachedDataPoints>> parts,
+      final TSSubQuery sub, final int index) {
+    final TreeSet<String> group_bys = new TreeSet<String>();
+    if (sub.getFilters() != null) {
+      for (final TagVFilter filter : sub.getFilters()) {
+        if (filter.isGroupBy()) {
+          group_bys.add(filter.getTagk());
+        }
+      }
+    }
+    final Map<String, List<CachedDataPoints>> groups =
+        new LinkedHashMap<String, List<CachedDataPoints>>();
+    for (final List<CachedDataPoints> part : parts) {
+      for (final CachedDataPoints dps : part) {
+        final StringBuilder group = new StringBuilder();
+        for (final String tagk : group_bys) {
+          group.append(tagk).append('=').append(dps.getTags().get(tagk))
+               .append(',');
+        }
+        List<CachedDataPoints> list = groups.get(group.toString());
+        if (list == null) {
+          list = new ArrayList<CachedDataPoints>();
+          groups.put(group.toString(), list);
+        }
+        list.add(dps);
+      }
+    }
+    final DataPoints[] results = new DataPoints[groups.size()];
+    int i = 0;
+    for (final List<CachedDataPoints> group : groups.values()) {
+      results[i++] = CachedDataPoints.concat(group, index);
+    }
+    return results;
+  }
+
+  /** @return The estimated size in bytes of a cached block. */
+  private static int weight(final String key, final CachedDataPoints[] block) {
+    int weight = BLOCK_OVERHEAD + key.length() * 2;
+    for (final CachedDataPoints dps : block) {
+      weight += dps.weight();
+    }
+    return weight;
+  }
+
+  /** Copies the results of a query so they can be cached. */
+  private static final class CopyCB implements
+      Callback<Deferred<List<CachedDataPoints>>, DataPoints[]> {
+    @Override
+    public Deferred<List<CachedDataPoints>> call(final DataPoints[] results) {
+      final List<Deferred<CachedDataPoints>> copies =
+          new ArrayList<Deferred<CachedDataPoints>>(results.length);
+      for (final DataPoints dps : results) {
+        copies.add(CachedDataPoints.copyOf(dps));
+      }
+      class ListCB implements Callback<List<CachedDataPoints>,
+          ArrayList<CachedDataPoints>> {
+        @Override
+        public List<CachedDataPoints> call(
+            final ArrayList<CachedDataPoints> copies) {
+          return copies;
+        }
+        @Override
+        public String toString() {
+          return "Query cache copy list callback";
+        }
+      }
+      return Deferred.groupInOrder(copies).addCallback(new ListCB());
+    }
+    @Override
+    public String toString() {
+      return "Query cache copy callback";
+    }
+  }
+
+  /**
+   * Drops the points a query over part of the range returned on the other
+   * side of the cached blocks, e.g. the bucket starting right at its end, so
+   * the parts don't overlap.
+   */
+  private static final class TrimCB implements
+      Callback<List<CachedDataPoints>, List<CachedDataPoints>> {
+    private final long start;
+    private final long end;
+
+    /**
+     * @param start The first timestamp to keep, inclusive.
+     * @param end The last timestamp to keep, exclusive.
+     */
+    TrimCB(final long start, final long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public List<CachedDataPoints> call(final List<CachedDataPoints> results) {
+      final List<CachedDataPoints> trimmed =
+          new ArrayList<CachedDataPoints>(results.size());
+      for (final CachedDataPoints dps : results) {
+        final CachedDataPoints slice = dps.slice(start, end);
+        if (slice != null) {
+          trimmed.add(slice);
+        }
+      }
+      return trimmed;
+    }
+
+    @Override
+    public String toString() {
+      return "Query cache trim callback";
+    }
+  }
+
+  /** Returns the copied results as an array. */
+  private static final class ToArrayCB implements
+      Callback<DataPoints[], List<CachedDataPoints>> {
+    @Override
+    public DataPoints[] call(final List<CachedDataPoints> results) {
+      return results.toArray(new DataPoints[results.size()]);
+    }
+    @Override
+    public String toString() {
+      return "Query cache to array callback";
+    }
+  }
+
+  /**
+   * Caches the settled blocks fully within the range of the results then
+   * passes the results on.
+   */
+  private final class StoreCB implements Callback<List<CachedDataPoints>,
+      List<CachedDataPoints>> {
+    private final String key;
+    private final long block;
+    private final long start;
+    private final long end;
+    private final int index;
+
+    StoreCB(final String key, final long block, final long start,
+        final long end, final int index) {
+      this.key = key;
+      this.block = block;
+      this.start = start;
+      this.end = end;
+      this.index = index;
+    }
+
+    @Override
+    public List<CachedDataPoints> call(final List<CachedDataPoints> results) {
+      for (long ts = ((start + block - 1) / block) * block;
+          ts + block - 1 <= end && settled(ts + block); ts += block) {
+        final List<CachedDataPoints> slices =
+            new ArrayList<CachedDataPoints>(results.size());
+        for (final CachedDataPoints dps : results) {
+          final CachedDataPoints slice = dps.slice(ts, ts + block);
+          if (slice != null) {
+            slices.add(slice);
+          }
+        }
+        final CachedDataPoints[] cached =
+            slices.toArray(new CachedDataPoints[slices.size()]);
+        final String block_key = key + ts;
+        final CachedDataPoints[] old = blocks.asMap().put(block_key, cached);
+        bytes.addAndGet(weight(block_key, cached)
+            - (old == null ? 0 : weight(block_key, old)));
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Cached the blocks of sub query " + index + " from "
+            + start + " to " + end);
+      }
+      return results;
+    }
+
+    @Override
+    public String toString() {
+      return "Query cache store callback";
+    }
+  }
+}
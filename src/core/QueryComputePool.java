@@ -0,0 +1,260 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * A bounded pool of threads the groups of a query are aggregated and
+ * serialized on, so a query with hundreds of groups doesn't keep a single
+ * Netty or HBase thread busy while the other cores sit idle.
+ * <p>
+ * The pool has {@code tsd.query.compute.threads} threads, the number of
+ * processors by default. Each query submits its tasks through its own
+ * {@link Batch} that runs at most {@code tsd.query.compute.max_per_query}
+ * of them at a time, the others wait in the batch instead of the pool's
+ * queue so a large query can't starve the ones that come after it. With a
+ * limit of 1 the tasks run on the calling thread as before.
+ * @since 2.3
+ */
+public final class QueryComputePool {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryComputePool.class);
+
+  /** The threads shared by every query, null when running inline */
+  private final ThreadPoolExecutor executor;
+
+  /** How many tasks of a single query may run at a time */
+  private final int max_per_query;
+
+  /** Number of tasks run on the pool */
+  private final AtomicLong completed = new AtomicLong();
+
+  /** Number of tasks that had to wait for another task of their query */
+  private final AtomicLong deferred = new AtomicLong();
+
+  /** Number of tasks run on the calling thread as the pool was shut down */
+  private final AtomicLong rejected = new AtomicLong();
+
+  /**
+   * Creates the pool from the config. Threads are started on demand and
+   * time out after a minute of idling.
+   * @param config The config to load the settings from
+   * @throws IllegalArgumentException if a setting is negative
+   */
+  public QueryComputePool(final Config config) {
+    int threads = config.getInt("tsd.query.compute.threads");
+    if (threads < 0) {
+      throw new IllegalArgumentException(
+          "tsd.query.compute.threads must be 0 or more: " + threads);
+    }
+    if (threads == 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    // always set with the defaults, only missing from mocked configs
+    max_per_query = config.hasProperty("tsd.query.compute.max_per_query") 
+        ? config.getInt("tsd.query.compute.max_per_query") : 1;
+    if (max_per_query < 1) {
+      throw new IllegalArgumentException(
+          "tsd.query.compute.max_per_query must be 1 or more: "
+          + max_per_query);
+    }
+    if (max_per_query == 1) {
+      executor = null;
+    } else {
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ComputeThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+    }
+    LOG.info("Query compute pool with " + (executor == null ? 0 : threads)
+        + " threads and " + max_per_query + " tasks per query");
+  }
+
+  /** @return A new batch to submit the tasks of a single query to */
+  public Batch newBatch() {
+    return new Batch();
+  }
+
+  /** @return How many tasks of a single query may run at a time */
+  public int maxPerQuery() {
+    return max_per_query;
+  }
+
+  /** @return Whether or not the tasks run in parallel */
+  public boolean isParallel() {
+    return executor != null;
+  }
+
+  /**
+   * Stops accepting tasks. Tasks submitted afterwards run on the calling
+   * thread.
+   */
+  public void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Collects the stats of the pool.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.compute.threads",
+        executor == null ? 0 : executor.getPoolSize());
+    collector.record("query.compute.active",
+        executor == null ? 0 : executor.getActiveCount());
+    collector.record("query.compute.queued",
+        executor == null ? 0 : executor.getQueue().size());
+    collector.record("query.compute.completed", completed.get());
+    collector.record("query.compute.deferred", deferred.get());
+    collector.record("query.compute.rejected", rejected.get());
+  }
+
+  /**
+   * The tasks of a single query. At most {@code max_per_query} of them are
+   * handed to the pool at a time, the next one starts when one completes.
+   * Tasks may be submitted from any thread.
+   */
+  public final class Batch {
+    /** Tasks waiting for a slot */
+    private final ArrayDeque<Task<?>> pending = new ArrayDeque<Task<?>>();
+
+    /** Number of tasks handed to the pool and not completed yet */
+    private int running;
+
+    private Batch() {
+    }
+
+    /**
+     * Runs a task on the pool, or right away on the calling thread if the
+     * pool isn't parallel. The deferred is called back from the thread that
+     * ran the task.
+     * @param task The task to run
+     * @return A deferred with the result of the task or the exception it
+     * threw.
+     */
+    public <T> Deferred<T> submit(final Callable<T> task) {
+      final Task<T> wrapper = new Task<T>(this, task);
+      if (executor == null) {
+        wrapper.run();
+        return wrapper.result;
+      }
+      synchronized (this) {
+        if (running >= max_per_query) {
+          pending.add(wrapper);
+          deferred.incrementAndGet();
+          return wrapper.result;
+        }
+        running++;
+      }
+      execute(wrapper);
+      return wrapper.result;
+    }
+
+    /** Starts the next pending task, if any, as a task completed */
+    private void completed() {
+      final Task<?> next;
+      synchronized (this) {
+        next = pending.poll();
+        if (next == null) {
+          running--;
+          return;
+        }
+      }
+      execute(next);
+    }
+
+    private void execute(final Task<?> task) {
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        rejected.incrementAndGet();
+        task.run();
+      }
+    }
+  }
+
+  /** Runs a task and calls its deferred back, even if it threw an error */
+  private final class Task<T> implements Runnable {
+    private final Batch batch;
+    private final Callable<T> task;
+    private final Deferred<T> result = new Deferred<T>();
+
+    Task(final Batch batch, final Callable<T> task) {
+      this.batch = batch;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      T value = null;
+      Exception error = null;
+      try {
+        value = task.call();
+      } catch (Exception e) {
+        error = e;
+      } catch (Throwable e) {
+        // deferreds only run errbacks on exceptions, an error would be
+        // passed on as the result
+        LOG.error("Uncaught *Throwable* in query compute task " + task, e);
+        error = new RuntimeException("Query compute task failed", e);
+      } finally {
+        if (executor != null) {
+          completed.incrementAndGet();
+          // free the slot before running the callbacks, they may submit
+          batch.completed();
+        }
+      }
+      if (error != null) {
+        result.callback(error);
+      } else {
+        result.callback(value);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "QueryComputePool.Task(" + task + ")";
+    }
+  }
+
+  /** Names the threads and makes them daemons so they don't block exits */
+  private static final class ComputeThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable,
+          "QueryCompute #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
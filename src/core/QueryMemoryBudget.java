@@ -0,0 +1,216 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.KeyValue;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Keeps track of the bytes the scanners of running queries hold on to so a
+ * single wildcard query can't load the whole table and take the TSD down
+ * for everybody.
+ * <p>
+ * Each query takes a {@link Reservation} and reserves the estimated size of
+ * every row it keeps. A query that goes over
+ * {@code tsd.query.limits.bytes.per_query}, or would push the sum of all
+ * queries over {@code tsd.query.limits.bytes.global}, fails with a
+ * {@link QueryException} carrying a 413 status and its scanners are closed.
+ * A limit of 0 disables it, the bytes are still counted for the stats.
+ * @since 2.3
+ */
+public final class QueryMemoryBudget {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(QueryMemoryBudget.class);
+
+  /** Rough size of the objects and array headers of a key value */
+  static final int KEYVALUE_OVERHEAD = 96;
+
+  /** The most bytes a single query may hold, 0 for no limit */
+  private final long per_query_limit;
+
+  /** The most bytes all of the queries may hold, 0 for no limit */
+  private final long global_limit;
+
+  /** Bytes held by the running queries */
+  private final AtomicLong used = new AtomicLong();
+
+  /** The most bytes held by the running queries at a time */
+  private final AtomicLong high_water = new AtomicLong();
+
+  /** The most bytes held by a single query */
+  private final AtomicLong query_high_water = new AtomicLong();
+
+  /** Queries rejected for going over their own limit */
+  private final AtomicLong rejected_query = new AtomicLong();
+
+  /** Queries rejected as the global limit was reached */
+  private final AtomicLong rejected_global = new AtomicLong();
+
+  /**
+   * Creates the budget from the config.
+   * @param config The config to load the limits from
+   * @throws IllegalArgumentException if a limit is negative
+   */
+  public QueryMemoryBudget(final Config config) {
+    per_query_limit = config.getLong("tsd.query.limits.bytes.per_query");
+    global_limit = config.getLong("tsd.query.limits.bytes.global");
+    if (per_query_limit < 0) {
+      throw new IllegalArgumentException(
+          "tsd.query.limits.bytes.per_query must be 0 or more: "
+          + per_query_limit);
+    }
+    if (global_limit < 0) {
+      throw new IllegalArgumentException(
+          "tsd.query.limits.bytes.global must be 0 or more: " + global_limit);
+    }
+    LOG.info("Query memory limits of " + per_query_limit + " bytes per query"
+        + " and " + global_limit + " bytes overall");
+  }
+
+  /** @return A new reservation for a single query to account its bytes to */
+  public Reservation newReservation() {
+    return new Reservation();
+  }
+
+  /** @return The bytes held by the running queries */
+  public long used() {
+    return used.get();
+  }
+
+  /**
+   * Estimates the heap used by a key value kept by a scanner.
+   * @param kv The key value to measure
+   * @return The estimated size in bytes
+   */
+  public static long sizeOf(final KeyValue kv) {
+    return kv.key().length + kv.qualifier().length + kv.value().length
+        + KEYVALUE_OVERHEAD;
+  }
+
+  /**
+   * Collects the stats of the budget.
+   * @param collector The collector to use.
+   */
+  public void collectStats(final StatsCollector collector) {
+    collector.record("query.memory.used", used.get());
+    collector.record("query.memory.high_water", high_water.get());
+    collector.record("query.memory.query_high_water", query_high_water.get());
+    collector.record("query.memory.rejected", rejected_query.get(),
+        "type=query");
+    collector.record("query.memory.rejected", rejected_global.get(),
+        "type=global");
+  }
+
+  /** Raises the given high water mark to the value if it's higher */
+  private static void raise(final AtomicLong mark, final long value) {
+    long current = mark.get();
+    while (value > current) {
+      if (mark.compareAndSet(current, value)) {
+        return;
+      }
+      current = mark.get();
+    }
+  }
+
+  /**
+   * The bytes held by a single query. Rows may be reserved from any thread,
+   * the bytes are handed back with {@link #release} once the query is done.
+   */
+  public final class Reservation {
+    /** Bytes held by the query */
+    private long held;
+
+    /** The most bytes held by the query at a time */
+    private long max;
+
+    /** Set once the query went over a limit so its other scanners stop too */
+    private QueryException rejection;
+
+    /** Set once the bytes were handed back, later reservations are ignored */
+    private boolean released;
+
+    private Reservation() {
+    }
+
+    /**
+     * Reserves bytes for the query.
+     * @param bytes The number of bytes to reserve
+     * @throws QueryException with a 413 status if the query or the TSD is
+     * over its limit. The bytes are not reserved in that case.
+     */
+    public synchronized void reserve(final long bytes) {
+      if (rejection != null) {
+        throw rejection;
+      }
+      if (released) {
+        return;
+      }
+      if (per_query_limit > 0 && held + bytes > per_query_limit) {
+        rejected_query.incrementAndGet();
+        rejection = new QueryException(
+            HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+            "Query exceeded the limit of " + per_query_limit + " bytes. "
+            + "Please narrow the time range or add filters.");
+        throw rejection;
+      }
+      final long total = used.addAndGet(bytes);
+      if (global_limit > 0 && total > global_limit) {
+        used.addAndGet(-bytes);
+        rejected_global.incrementAndGet();
+        rejection = new QueryException(
+            HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE,
+            "Running queries exceeded the limit of " + global_limit
+            + " bytes. Please try again later.");
+        throw rejection;
+      }
+      held += bytes;
+      if (held > max) {
+        max = held;
+        raise(query_high_water, held);
+      }
+      raise(high_water, total);
+    }
+
+    /** Hands the bytes of the query back. Safe to call more than once. */
+    public synchronized void release() {
+      if (released) {
+        return;
+      }
+      released = true;
+      used.addAndGet(-held);
+      held = 0;
+    }
+
+    /** @return The bytes held by the query */
+    public synchronized long held() {
+      return held;
+    }
+
+    /** @return The most bytes the query held at a time */
+    public synchronized long max() {
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "QueryMemoryBudget.Reservation(held=" + held() + ")";
+    }
+  }
+}
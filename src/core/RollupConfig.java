@@ -0,0 +1,316 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.utils.Config;
+
+/**
+ * The rollup intervals configured with {@code tsd.rollups.intervals} and the
+ * planner that picks which one, if any, can answer a downsampled query.
+ * <p>
+ * Each interval stores the sum, count, min and max of every series in its
+ * own table, filled by the {@code rollup} CLI tool. A query downsampled with
+ * sum, count, min, max or avg on a fixed interval that is a multiple of a
+ * rollup interval reads the coarsest such table instead of the raw data.
+ * Averages are derived from the sums and counts.
+ * <p>
+ * The tool runs offline and records the range it completed in the marker
+ * row of each table. A table is only read from the start of that range up to
+ * a watermark at its end, the rest of the query is read from the raw table
+ * and stitched to the rollups. The markers are reloaded every
+ * {@code tsd.rollups.refresh_interval} milliseconds.
+ * @since 2.3
+ */
+public final class RollupConfig {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupConfig.class);
+
+  /** The intervals sorted from the finest to the coarsest */
+  private final List<RollupInterval> intervals;
+
+  /** How often the markers are reloaded, in milliseconds */
+  private final long refresh_interval;
+
+  /** The completed range of each interval as { start, end } in seconds, as
+   * last loaded from the markers. Intervals without a marker are missing. */
+  private final ConcurrentHashMap<RollupInterval, long[]> completed =
+      new ConcurrentHashMap<RollupInterval, long[]>();
+
+  /**
+   * Loads the intervals from the config.
+   * @param config The config to load from
+   * @throws IllegalArgumentException if no interval, an invalid one or an
+   * invalid refresh interval was configured
+   */
+  public RollupConfig(final Config config) {
+    refresh_interval = config.getLong("tsd.rollups.refresh_interval");
+    if (refresh_interval < 1) {
+      throw new IllegalArgumentException(
+          "tsd.rollups.refresh_interval must be greater than 0");
+    }
+    final String table_prefix = config.getString("tsd.rollups.table_prefix");
+    final int intervals_per_row = config.getInt("tsd.rollups.intervals_per_row");
+    intervals = new ArrayList<RollupInterval>();
+    for (final String interval :
+        config.getString("tsd.rollups.intervals").split(",")) {
+      if (!interval.trim().isEmpty()) {
+        intervals.add(new RollupInterval(interval.trim(), intervals_per_row,
+            table_prefix));
+      }
+    }
+    if (intervals.isEmpty()) {
+      throw new IllegalArgumentException(
+          "Rollups are enabled but no interval was configured");
+    }
+    Collections.sort(intervals, new Comparator<RollupInterval>() {
+      @Override
+      public int compare(final RollupInterval a, final RollupInterval b) {
+        return a.getInterval() - b.getInterval();
+      }
+    });
+  }
+
+  /** @return The intervals sorted from the finest to the coarsest */
+  public List<RollupInterval> getIntervals() {
+    return Collections.unmodifiableList(intervals);
+  }
+
+  /**
+   * @param string_interval The interval as configured, e.g. "1h"
+   * @return The matching interval or null if it wasn't configured
+   */
+  public RollupInterval getInterval(final String string_interval) {
+    for (final RollupInterval interval : intervals) {
+      if (interval.getStringInterval().equals(string_interval)) {
+        return interval;
+      }
+    }
+    return null;
+  }
+
+  /** @return How often the markers are reloaded, in milliseconds */
+  public long getRefreshInterval() {
+    return refresh_interval;
+  }
+
+  /**
+   * @param interval One of the configured intervals
+   * @return The range the tool completed as { start, end } in seconds, as
+   * last loaded, or null if the table had no marker
+   */
+  public long[] getCompleted(final RollupInterval interval) {
+    return completed.get(interval);
+  }
+
+  /**
+   * Reloads the completed range of every interval from the markers. A table
+   * without a marker isn't read anymore, one that failed to load keeps the
+   * range loaded before.
+   * @param client The client to read the markers with
+   * @return A deferred resolving once all the markers were read
+   */
+  public Deferred<ArrayList<Object>> loadMarkers(final HBaseClient client) {
+    final ArrayList<Deferred<Object>> loads =
+        new ArrayList<Deferred<Object>>(intervals.size());
+    for (final RollupInterval interval : intervals) {
+      class LoadCB implements Callback<Object, long[]> {
+        @Override
+        public Object call(final long[] range) {
+          if (range == null) {
+            completed.remove(interval);
+          } else {
+            completed.put(interval, range);
+          }
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Rollup marker load callback";
+        }
+      }
+
+      class ErrorCB implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception e) {
+          LOG.warn("Failed to load the rollup marker of " + interval, e);
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Rollup marker error callback";
+        }
+      }
+
+      loads.add(readMarker(client, interval)
+          .addCallbacks(new LoadCB(), new ErrorCB()));
+    }
+    return Deferred.group(loads);
+  }
+
+  /**
+   * Reads the range the tool completed from the marker of an interval.
+   * @param client The client to read the marker with
+   * @param interval The interval to read the marker of
+   * @return The range as { start, end } in seconds or null if the table has
+   * no valid marker
+   */
+  public static Deferred<long[]> readMarker(final HBaseClient client,
+      final RollupInterval interval) {
+    class MarkerCB implements Callback<long[], ArrayList<KeyValue>> {
+      @Override
+      public long[] call(final ArrayList<KeyValue> row) {
+        if (row == null || row.isEmpty()) {
+          return null;
+        }
+        long start = -1;
+        long end = -1;
+        for (final KeyValue kv : row) {
+          if (kv.value().length != 8) {
+            continue;
+          }
+          if (Bytes.equals(kv.qualifier(), RollupInterval.MARKER_START)) {
+            start = Bytes.getLong(kv.value());
+          } else if (Bytes.equals(kv.qualifier(), RollupInterval.MARKER_END)) {
+            end = Bytes.getLong(kv.value());
+          }
+        }
+        if (start < 0 || end <= start) {
+          LOG.warn("Ignoring the invalid rollup marker of " + interval
+              + ": " + row);
+          return null;
+        }
+        return new long[] { start, end };
+      }
+      @Override
+      public String toString() {
+        return "Rollup marker callback";
+      }
+    }
+
+    return client.get(new GetRequest(interval.getTable(),
+        RollupInterval.MARKER_KEY, TSDB.FAMILY())).addCallback(new MarkerCB());
+  }
+
+  /**
+   * Records the range the tool completed in the marker of an interval.
+   * @param client The client to write the marker with
+   * @param interval The interval to write the marker of
+   * @param start The start of the range, inclusive, in seconds
+   * @param end The end of the range, exclusive, in seconds
+   * @return A deferred resolving once the marker was written
+   */
+  public static Deferred<Object> writeMarker(final HBaseClient client,
+      final RollupInterval interval, final long start, final long end) {
+    return client.put(new PutRequest(interval.getTable(),
+        RollupInterval.MARKER_KEY, TSDB.FAMILY(),
+        new byte[][] { RollupInterval.MARKER_START, RollupInterval.MARKER_END },
+        new byte[][] { Bytes.fromLong(start), Bytes.fromLong(end) }));
+  }
+
+  /**
+   * Picks the coarsest rollup interval able to answer a query whose completed
+   * range holds the start of the query.
+   * @param downsampler The downsampler of the query, may be null
+   * @param rate Whether or not the query is a rate
+   * @param delete Whether or not the query deletes the data it reads
+   * @param start The first timestamp the query reads, in seconds
+   * @return A plan to read the rollups or null if the query must read the
+   * raw data
+   */
+  RollupQuery plan(final DownsamplingSpecification downsampler,
+      final boolean rate, final boolean delete, final long start) {
+    if (rate || delete || downsampler == null
+        || downsampler.getInterval() <= 0 || downsampler.useCalendar()) {
+      return null;
+    }
+    final Aggregator function = downsampler.getFunction();
+    final byte aggregate;
+    if (function == Aggregators.SUM || function == Aggregators.ZIMSUM) {
+      aggregate = RollupInterval.SUM;
+    } else if (function == Aggregators.COUNT) {
+      aggregate = RollupInterval.COUNT;
+    } else if (function == Aggregators.MIN || function == Aggregators.MIMMIN) {
+      aggregate = RollupInterval.MIN;
+    } else if (function == Aggregators.MAX || function == Aggregators.MIMMAX) {
+      aggregate = RollupInterval.MAX;
+    } else if (function == Aggregators.AVG) {
+      aggregate = RollupQuery.AVG;
+    } else {
+      return null;
+    }
+
+    for (int i = intervals.size() - 1; i >= 0; i--) {
+      final RollupInterval interval = intervals.get(i);
+      if (downsampler.getInterval() % (interval.getInterval() * 1000L) != 0) {
+        continue;
+      }
+      // averages are computed per bucket so a bucket can't span two rows
+      if (aggregate == RollupQuery.AVG &&
+          (interval.getRowSpan() * 1000L) % downsampler.getInterval() != 0) {
+        continue;
+      }
+      final long[] range = completed.get(interval);
+      if (range == null || range[0] > start) {
+        continue;
+      }
+      final long watermark =
+          watermark(range[1], downsampler.getInterval() / 1000);
+      if (watermark <= start) {
+        continue;
+      }
+      return new RollupQuery(interval, aggregate, downsampler, watermark);
+    }
+    return null;
+  }
+
+  /**
+   * Computes the timestamp a rollup table is read up to. It's aligned on both
+   * the downsampling buckets and the raw data rows so that a bucket never
+   * mixes rollups and raw data and raw rows are read whole.
+   * @param end The end of the range the tool completed, in seconds
+   * @param bucket_size The downsampling interval, in seconds
+   * @return The watermark, in seconds
+   */
+  private static long watermark(final long end, final long bucket_size) {
+    long a = bucket_size;
+    long b = Const.MAX_TIMESPAN;
+    while (b != 0) {
+      final long remainder = a % b;
+      a = b;
+      b = remainder;
+    }
+    final long alignment = bucket_size / a * Const.MAX_TIMESPAN;
+    return end - (end % alignment);
+  }
+
+  @Override
+  public String toString() {
+    return "RollupConfig(" + intervals + ")";
+  }
+}
@@ -0,0 +1,197 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.nio.charset.Charset;
+
+import org.hbase.async.Bytes;
+
+import net.opentsdb.utils.DateTime;
+
+/**
+ * One of the configured rollup intervals, e.g. {@code 1h}, with the table its
+ * aggregates are stored in.
+ * <p>
+ * Rollup rows use the same key layout as the data table, salt included, but
+ * the base time is aligned on {@code intervals_per_row} intervals. Each cell
+ * holds one aggregate of one interval of the series. The qualifier is the
+ * aggregate ID followed by two bytes with the index of the interval in the
+ * row shifted left by {@link Const#FLAG_BITS} and the usual value flags. The
+ * value is always 8 bytes wide.
+ * <p>
+ * Each table also holds a marker row, {@link #MARKER_KEY}, with the range the
+ * {@code rollup} tool last completed. Queries only read the aggregates of
+ * that range.
+ * @since 2.3
+ */
+public final class RollupInterval {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Aggregate ID of the sum of the values in an interval */
+  public static final byte SUM = 1;
+  /** Aggregate ID of the number of values in an interval */
+  public static final byte COUNT = 2;
+  /** Aggregate ID of the smallest value in an interval */
+  public static final byte MIN = 3;
+  /** Aggregate ID of the largest value in an interval */
+  public static final byte MAX = 4;
+
+  /** Width of a rollup qualifier */
+  public static final int QUALIFIER_WIDTH = 3;
+
+  /** Largest number of intervals we can index in a qualifier */
+  public static final int MAX_INTERVALS_PER_ROW = 1 << (16 - Const.FLAG_BITS);
+
+  /** Key of the marker row. Metric UIDs start at 1 so it sorts before the
+   * rows of every series, salted or not, and no query scans it. */
+  public static final byte[] MARKER_KEY = { 0 };
+
+  /** Marker qualifiers of the start, inclusive, and the end, exclusive, of
+   * the completed range. The values are 8 byte timestamps in seconds. */
+  public static final byte[] MARKER_START = "rollup_start".getBytes(CHARSET);
+  public static final byte[] MARKER_END = "rollup_end".getBytes(CHARSET);
+
+  /** The interval as configured, e.g. "1h" */
+  private final String string_interval;
+
+  /** Length of an interval in seconds */
+  private final int interval;
+
+  /** Number of intervals stored in one row */
+  private final int intervals_per_row;
+
+  /** Name of the table holding the aggregates */
+  private final byte[] table;
+
+  /**
+   * Default ctor.
+   * @param string_interval The interval, e.g. "1h"
+   * @param intervals_per_row How many intervals to store per row
+   * @param table_prefix Prefix of the table name, the interval is appended
+   * after a dash
+   * @throws IllegalArgumentException if the interval isn't a whole number of
+   * seconds or the row would hold too many intervals
+   */
+  public RollupInterval(final String string_interval,
+      final int intervals_per_row, final String table_prefix) {
+    final long interval_ms = DateTime.parseDuration(string_interval);
+    if (interval_ms < 1000 || interval_ms % 1000 != 0) {
+      throw new IllegalArgumentException("Rollup interval must be a whole "
+          + "number of seconds: " + string_interval);
+    }
+    if (intervals_per_row < 1 || intervals_per_row > MAX_INTERVALS_PER_ROW) {
+      throw new IllegalArgumentException("Intervals per row must be between "
+          + "1 and " + MAX_INTERVALS_PER_ROW + ": " + intervals_per_row);
+    }
+    if ((interval_ms / 1000) * intervals_per_row > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Rollup rows would be too wide: "
+          + string_interval + " x " + intervals_per_row);
+    }
+    this.string_interval = string_interval;
+    interval = (int) (interval_ms / 1000);
+    this.intervals_per_row = intervals_per_row;
+    table = (table_prefix + "-" + string_interval).getBytes(CHARSET);
+  }
+
+  /** @return The interval as configured, e.g. "1h" */
+  public String getStringInterval() {
+    return string_interval;
+  }
+
+  /** @return The length of an interval in seconds */
+  public int getInterval() {
+    return interval;
+  }
+
+  /** @return The number of intervals stored in one row */
+  public int getIntervalsPerRow() {
+    return intervals_per_row;
+  }
+
+  /** @return The number of seconds covered by one row */
+  public long getRowSpan() {
+    return (long) interval * intervals_per_row;
+  }
+
+  /** @return The name of the table holding the aggregates */
+  public byte[] getTable() {
+    return table;
+  }
+
+  /**
+   * @param timestamp A Unix epoch timestamp in seconds
+   * @return The base time of the row holding the timestamp
+   */
+  public long rowBaseTime(final long timestamp) {
+    return timestamp - (timestamp % getRowSpan());
+  }
+
+  /**
+   * @param timestamp A Unix epoch timestamp in seconds
+   * @return The start of the interval holding the timestamp
+   */
+  public long intervalStart(final long timestamp) {
+    return timestamp - (timestamp % interval);
+  }
+
+  /**
+   * Builds the qualifier of an aggregate.
+   * @param aggregate The aggregate ID, e.g. {@link #SUM}
+   * @param timestamp Start of the interval, in seconds
+   * @param is_integer Whether the value is a long or a double
+   * @return A qualifier of {@link #QUALIFIER_WIDTH} bytes
+   */
+  public byte[] qualifier(final byte aggregate, final long timestamp,
+      final boolean is_integer) {
+    final int index = (int) ((timestamp - rowBaseTime(timestamp)) / interval);
+    final short flags = (short) (is_integer ? 0x7 : Const.FLAG_FLOAT | 0x7);
+    final byte[] qualifier = new byte[QUALIFIER_WIDTH];
+    qualifier[0] = aggregate;
+    Bytes.setShort(qualifier, (short) (index << Const.FLAG_BITS | flags), 1);
+    return qualifier;
+  }
+
+  /**
+   * @param base_time The base time of the row, in seconds
+   * @param qualifier A rollup qualifier
+   * @return The start of the interval the cell belongs to, in seconds
+   */
+  public long timestamp(final long base_time, final byte[] qualifier) {
+    final int index = (Bytes.getUnsignedShort(qualifier, 1)) >>> Const.FLAG_BITS;
+    return base_time + (long) index * interval;
+  }
+
+  /**
+   * @param qualifier A rollup qualifier
+   * @return Whether or not the value of the cell is a long
+   */
+  public static boolean isInteger(final byte[] qualifier) {
+    return (qualifier[2] & Const.FLAG_FLOAT) == 0;
+  }
+
+  /**
+   * @param qualifier A rollup qualifier
+   * @param value The 8 byte value of the cell
+   * @return The value as a double, whatever its type
+   */
+  public static double doubleValue(final byte[] qualifier, final byte[] value) {
+    return isInteger(qualifier) ? Bytes.getLong(value)
+        : Double.longBitsToDouble(Bytes.getLong(value));
+  }
+
+  @Override
+  public String toString() {
+    return "RollupInterval(" + string_interval + ", intervals_per_row="
+        + intervals_per_row + ", table=" + new String(table, CHARSET) + ")";
+  }
+}
@@ -0,0 +1,313 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * The plan of a query answered from a rollup table.
+ * <p>
+ * Rollup rows are turned into regular compacted rows, one per hour, so the
+ * spans, downsamplers and group bys work as they do with raw data. Sums,
+ * counts, mins and maxes are emitted as one point per rollup interval and
+ * the query is downsampled with a function combining them: sum for sums and
+ * counts, min for mins and max for maxes. Averages are divided out per
+ * downsampling bucket from the sums and counts of the row, which is why the
+ * planner only picks intervals whose rows hold whole buckets.
+ * <p>
+ * Data past the watermark is read from the raw table with the same
+ * downsampler. Sums, mins, maxes and averages of raw points are what the
+ * query asked for, counts are turned into ones so that summing them counts
+ * the points.
+ * @since 2.3
+ */
+final class RollupQuery {
+  /** Pseudo aggregate ID for averages, derived from sums and counts */
+  static final byte AVG = 0;
+
+  /** The interval we read */
+  private final RollupInterval interval;
+
+  /** The aggregate we read or {@link #AVG} */
+  private final byte aggregate;
+
+  /** The downsampler of the query */
+  private final DownsamplingSpecification downsampler;
+
+  /** The rollups are read before this timestamp, in seconds */
+  private final long watermark;
+
+  /**
+   * Default ctor.
+   * @param interval The interval we read
+   * @param aggregate The aggregate ID or {@link #AVG}
+   * @param downsampler The downsampler of the query
+   * @param watermark The rollups are read before this timestamp and the raw
+   * data after it, in seconds
+   */
+  RollupQuery(final RollupInterval interval, final byte aggregate,
+      final DownsamplingSpecification downsampler, final long watermark) {
+    this.interval = interval;
+    this.aggregate = aggregate;
+    this.downsampler = downsampler;
+    this.watermark = watermark;
+  }
+
+  /** @return The interval we read */
+  RollupInterval getInterval() {
+    return interval;
+  }
+
+  /** @return The aggregate ID we read or {@link #AVG} */
+  byte getAggregate() {
+    return aggregate;
+  }
+
+  /**
+   * @return The rollups are read before this timestamp and the raw data
+   * after it, in seconds
+   */
+  long getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * @return The downsampler to run over the points we emit. It has the
+   * interval and fill policy of the query but combines the partial
+   * aggregates instead of raw values.
+   */
+  DownsamplingSpecification downsampler() {
+    final Aggregator function;
+    switch (aggregate) {
+      case RollupInterval.MIN:
+        function = Aggregators.MIN;
+        break;
+      case RollupInterval.MAX:
+        function = Aggregators.MAX;
+        break;
+      case AVG:
+        // a rollup bucket holds a single average, a raw one the raw points
+        function = Aggregators.AVG;
+        break;
+      default:
+        function = Aggregators.SUM;
+    }
+    return new DownsamplingSpecification(downsampler.getInterval() + "ms-"
+        + function + "-" + downsampler.getFillPolicy().getName());
+  }
+
+  /**
+   * @param start The first timestamp the query scans, in seconds
+   * @return The base time of the first rollup row to scan
+   */
+  long scanStart(final long start) {
+    return interval.rowBaseTime(start);
+  }
+
+  /**
+   * @param end The timestamp the query stops scanning at, exclusive, in
+   * seconds
+   * @return The base time the rollup scan stops at, exclusive
+   */
+  long scanEnd(final long end) {
+    return interval.rowBaseTime(end - 1) + interval.getRowSpan();
+  }
+
+  /**
+   * Turns a rollup row into compacted data rows of one hour each.
+   * @param row The cells of a rollup row
+   * @param start The first timestamp to emit, in seconds
+   * @param end The timestamp to stop at, exclusive, in seconds
+   * @return The data rows in time order, empty if the row had nothing in
+   * the range
+   */
+  ArrayList<KeyValue> toDataRows(final ArrayList<KeyValue> row,
+      final long start, final long end) {
+    final byte[] key = row.get(0).key();
+    final long base_time = Bytes.getUnsignedInt(key,
+        Const.SALT_WIDTH() + TSDB.metrics_width());
+
+    // timestamp to its value, a Long or a Double
+    final TreeMap<Long, Number> points = new TreeMap<Long, Number>();
+    if (aggregate == AVG) {
+      final long bucket_size = downsampler.getInterval() / 1000;
+      final TreeMap<Long, Number> sums = new TreeMap<Long, Number>();
+      final TreeMap<Long, Long> counts = new TreeMap<Long, Long>();
+      for (final KeyValue kv : row) {
+        final byte[] qualifier = kv.qualifier();
+        final long timestamp = interval.timestamp(base_time, qualifier);
+        if (timestamp < start || timestamp >= end) {
+          continue;
+        }
+        final long bucket = timestamp - (timestamp % bucket_size);
+        if (qualifier[0] == RollupInterval.SUM) {
+          sums.put(bucket, add(sums.get(bucket), qualifier, kv.value()));
+        } else if (qualifier[0] == RollupInterval.COUNT) {
+          final Long count = counts.get(bucket);
+          counts.put(bucket, (count == null ? 0 : count)
+              + Bytes.getLong(kv.value()));
+        }
+      }
+      for (final Map.Entry<Long, Number> sum : sums.entrySet()) {
+        final Long count = counts.get(sum.getKey());
+        if (count == null || count == 0) {
+          continue;
+        }
+        points.put(sum.getKey(), sum.getValue().doubleValue() / count);
+      }
+    } else {
+      for (final KeyValue kv : row) {
+        final byte[] qualifier = kv.qualifier();
+        if (qualifier[0] != aggregate) {
+          continue;
+        }
+        final long timestamp = interval.timestamp(base_time, qualifier);
+        if (timestamp >= start && timestamp < end) {
+          points.put(timestamp, RollupInterval.isInteger(qualifier)
+              ? (Number) Bytes.getLong(kv.value())
+              : (Number) Double.longBitsToDouble(Bytes.getLong(kv.value())));
+        }
+      }
+    }
+    return toDataRows(key, points);
+  }
+
+  /**
+   * Prepares a compacted row read from the raw table past the watermark for
+   * the downsampler of {@link #downsampler}.
+   * @param row The compacted data row
+   * @return The row itself or, when counting, a row with a one in place of
+   * each value
+   * @throws IllegalDataException if the row couldn't be read
+   */
+  KeyValue rawRow(final KeyValue row) {
+    if (aggregate != RollupInterval.COUNT) {
+      return row;
+    }
+    final ArrayList<Internal.Cell> cells = Internal.extractDataPoints(row);
+    if (cells.isEmpty()) {
+      return row;
+    }
+    int qualifier_length = 0;
+    boolean has_ms = false;
+    boolean has_seconds = false;
+    for (final Internal.Cell cell : cells) {
+      qualifier_length += cell.qualifier.length;
+      if (Internal.inMilliseconds(cell.qualifier)) {
+        has_ms = true;
+      } else {
+        has_seconds = true;
+      }
+    }
+    final byte[] qualifier = new byte[qualifier_length];
+    final byte[] value = new byte[cells.size() + (cells.size() > 1 ? 1 : 0)];
+    int q_idx = 0;
+    int v_idx = 0;
+    for (final Internal.Cell cell : cells) {
+      System.arraycopy(cell.qualifier, 0, qualifier, q_idx,
+          cell.qualifier.length);
+      q_idx += cell.qualifier.length;
+      // an integer one byte long
+      qualifier[q_idx - 1] &= ~Const.FLAGS_MASK;
+      value[v_idx++] = 1;
+    }
+    if (cells.size() > 1) {
+      value[v_idx] = has_ms && has_seconds ? Const.MS_MIXED_COMPACT : 0;
+    }
+    return new KeyValue(row.key(), row.family(), qualifier, row.timestamp(),
+        value);
+  }
+
+  /**
+   * Adds a sum cell to a running sum, staying a long while both are.
+   * @param sum The running sum, may be null
+   * @param qualifier The qualifier of the cell
+   * @param value The value of the cell
+   * @return The new sum
+   */
+  private static Number add(final Number sum, final byte[] qualifier,
+      final byte[] value) {
+    if (RollupInterval.isInteger(qualifier) &&
+        (sum == null || sum instanceof Long)) {
+      return (sum == null ? 0 : sum.longValue()) + Bytes.getLong(value);
+    }
+    return (sum == null ? 0 : sum.doubleValue())
+        + RollupInterval.doubleValue(qualifier, value);
+  }
+
+  /**
+   * Packs points into compacted data rows, one per hour.
+   * @param rollup_key The key of the rollup row
+   * @param points The points to pack in time order
+   * @return The rows in time order
+   */
+  private static ArrayList<KeyValue> toDataRows(final byte[] rollup_key,
+      final TreeMap<Long, Number> points) {
+    final ArrayList<KeyValue> rows = new ArrayList<KeyValue>();
+    final ArrayList<Map.Entry<Long, Number>> hour =
+        new ArrayList<Map.Entry<Long, Number>>();
+    long hour_base = -1;
+    for (final Map.Entry<Long, Number> point : points.entrySet()) {
+      final long base = Internal.baseTime(point.getKey());
+      if (base != hour_base && !hour.isEmpty()) {
+        rows.add(toDataRow(rollup_key, hour_base, hour));
+        hour.clear();
+      }
+      hour_base = base;
+      hour.add(point);
+    }
+    if (!hour.isEmpty()) {
+      rows.add(toDataRow(rollup_key, hour_base, hour));
+    }
+    return rows;
+  }
+
+  /**
+   * Builds one compacted data row.
+   * @param rollup_key The key of the rollup row
+   * @param base_time The base time of the data row
+   * @param points The points of the hour in time order
+   * @return The row as a single column
+   */
+  private static KeyValue toDataRow(final byte[] rollup_key,
+      final long base_time, final ArrayList<Map.Entry<Long, Number>> points) {
+    final byte[] key = rollup_key.clone();
+    Internal.setBaseTime(key, (int) base_time);
+    final byte[] qualifier = new byte[points.size() * 2];
+    final byte[] value = new byte[points.size() * 8
+                                  + (points.size() > 1 ? 1 : 0)];
+    int i = 0;
+    for (final Map.Entry<Long, Number> point : points) {
+      final boolean is_integer = point.getValue() instanceof Long;
+      System.arraycopy(Internal.buildQualifier(point.getKey(),
+          (short) (is_integer ? 0x7 : Const.FLAG_FLOAT | 0x7)), 0,
+          qualifier, i * 2, 2);
+      Bytes.setLong(value, is_integer ? point.getValue().longValue()
+          : Double.doubleToRawLongBits(point.getValue().doubleValue()), i * 8);
+      i++;
+    }
+    return new KeyValue(key, TSDB.FAMILY(), qualifier, 0, value);
+  }
+
+  @Override
+  public String toString() {
+    return "RollupQuery(interval=" + interval.getStringInterval()
+        + ", aggregate=" + (aggregate == AVG ? "avg" : aggregate)
+        + ", downsampler=" + downsampler + ", watermark=" + watermark + ")";
+  }
+}
@@ -76,8 +76,14 @@ final class RowSeq implements DataPoints {
     }
 
     this.key = row.key();
-    this.qualifiers = row.qualifier();
-    this.values = row.value();
+    if (CompressedDataPoints.isCompressedDataPoints(row.qualifier())) {
+      final byte[][] column = CompressedDataPoints.decode(row.value());
+      this.qualifiers = column[0];
+      this.values = column[1];
+    } else {
+      this.qualifiers = row.qualifier();
+      this.values = row.value();
+    }
   }
 
   /**
@@ -103,8 +109,16 @@ final class RowSeq implements DataPoints {
           + row + ", this=" + this);
     }
 
-    final byte[] remote_qual = row.qualifier();
-    final byte[] remote_val = row.value();
+    final byte[] remote_qual;
+    final byte[] remote_val;
+    if (CompressedDataPoints.isCompressedDataPoints(row.qualifier())) {
+      final byte[][] column = CompressedDataPoints.decode(row.value());
+      remote_qual = column[0];
+      remote_val = column[1];
+    } else {
+      remote_qual = row.qualifier();
+      remote_val = row.value();
+    }
     final byte[] merged_qualifiers = new byte[qualifiers.length + remote_qual.length];
     final byte[] merged_values = new byte[values.length + remote_val.length]; 
 
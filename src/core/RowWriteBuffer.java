@@ -0,0 +1,294 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps the cells this TSD wrote to rows that are still open so that the
+ * {@link CompactionQueue} can compact them without reading them back.
+ * <p>
+ * Cells are packed per row in a single array as
+ * {@code <qualifier length><value length><qualifier><value>} entries, in the
+ * order they were written. A cell written again with the same qualifier
+ * replaces the earlier one, like it does in HBase. When the compaction queue
+ * flushes a row it takes the cells out of the buffer and compacts them as if
+ * they had been read from storage.
+ * <p>
+ * A row can only be compacted from memory if the buffer is sure it saw every
+ * cell of the row, otherwise it's marked as incomplete and {@link #remove}
+ * returns null so the queue reads it back. That's the case:
+ * <ul>
+ * <li>for rows older than the start of this buffer, as cells may have been
+ * written before a restart,</li>
+ * <li>for rows written to after their compaction was due, as the row may
+ * already hold a compacted column,</li>
+ * <li>for rows written through a path that doesn't record its cells, see
+ * {@link #invalidate},</li>
+ * <li>for rows evicted because the buffer was full.</li>
+ * </ul>
+ * The buffer can't see writes from other TSDs so it should only be enabled
+ * when each time series is written by a single TSD.
+ * @since 2.3
+ */
+final class RowWriteBuffer {
+
+  /** Rough size of a row without its key and cells. */
+  static final int ROW_OVERHEAD = 96;
+
+  /** The rows in the buffer, including the incomplete ones. */
+  private final ConcurrentSkipListMap<byte[], Row> rows =
+      new ConcurrentSkipListMap<byte[], Row>(Bytes.MEMCMP);
+
+  /** Maximum number of bytes used by the rows. */
+  private final long max_memory;
+
+  /** Rows with an older base time may hold cells written before we started */
+  private final long start_time;
+
+  /** Estimated bytes used by the rows. */
+  private final AtomicLong memory = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param max_memory Maximum number of bytes the rows may use.
+   * @throws IllegalArgumentException if the maximum is less than 1.
+   */
+  RowWriteBuffer(final long max_memory) {
+    if (max_memory < 1) {
+      throw new IllegalArgumentException(
+          "The row write buffer's memory must be greater than 0");
+    }
+    this.max_memory = max_memory;
+    start_time = System.currentTimeMillis() / 1000;
+  }
+
+  /**
+   * Records a cell written to storage.
+   * @param row The row key.
+   * @param base_time The base time of the row in seconds.
+   * @param qualifier The qualifier of the cell.
+   * @param value The value of the cell.
+   */
+  void add(final byte[] row, final long base_time, final byte[] qualifier,
+      final byte[] value) {
+    while (true) {
+      Row r = rows.get(row);
+      if (r == null) {
+        final Row fresh = new Row(base_time >= start_time &&
+            base_time > System.currentTimeMillis() / 1000
+              - Const.MAX_TIMESPAN - 1);
+        r = rows.putIfAbsent(row, fresh);
+        if (r == null) {
+          r = fresh;
+          memory.addAndGet(ROW_OVERHEAD + row.length);
+        }
+      }
+      synchronized (r) {
+        if (r.removed) {
+          continue;  // compacted in the mean time, try again with a new row
+        }
+        if (!r.complete) {
+          return;
+        }
+        final int size = 2 + qualifier.length + value.length;
+        if (memory.get() + size > max_memory) {
+          evict(r);
+          return;
+        }
+        memory.addAndGet(r.put(qualifier, value));
+        return;
+      }
+    }
+  }
+
+  /**
+   * Marks a row as written through a path that doesn't record its cells so
+   * that it will be read back.
+   * @param row The row key.
+   */
+  void invalidate(final byte[] row) {
+    final Row fresh = new Row(false);
+    final Row r = rows.putIfAbsent(row, fresh);
+    if (r == null) {
+      memory.addAndGet(ROW_OVERHEAD + row.length);
+      return;
+    }
+    synchronized (r) {
+      if (r.complete) {
+        memory.addAndGet(-r.length);
+        r.drop();
+      }
+    }
+  }
+
+  /**
+   * Removes a row from the buffer.
+   * @param row The row key.
+   * @return The cells of the row or null if the row has to be read back
+   * because the buffer didn't see all of its cells.
+   */
+  ArrayList<KeyValue> remove(final byte[] row) {
+    final Row r = rows.remove(row);
+    if (r == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    synchronized (r) {
+      r.removed = true;
+      memory.addAndGet(-(ROW_OVERHEAD + row.length + r.length));
+      if (!r.complete) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return r.toKeyValues(row);
+    }
+  }
+
+  /** @return the number of rows in the buffer */
+  int size() {
+    return rows.size();
+  }
+
+  /** @return the estimated number of bytes used by the rows */
+  long memoryUsage() {
+    return memory.get();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("compaction.buffer.memory", memory.get());
+    collector.record("compaction.buffer.reads", hits, "type=hit");
+    collector.record("compaction.buffer.reads", misses, "type=miss");
+    collector.record("compaction.buffer.evictions", evictions);
+  }
+
+  /** Drops the cells of a row to free up memory. Must hold the row's lock */
+  private void evict(final Row r) {
+    memory.addAndGet(-r.length);
+    r.drop();
+    evictions.incrementAndGet();
+  }
+
+  /** The cells of a row. All accesses must be synchronized on the row. */
+  private static final class Row {
+    /** Whether or not we saw every cell of the row so far. */
+    boolean complete;
+    /** Set once the row was taken out of the buffer. */
+    boolean removed;
+    byte[] cells;
+    int length;
+    int count;
+    /** The largest offset written so far, later ones can't be duplicates. */
+    int max_offset = -1;
+
+    Row(final boolean complete) {
+      this.complete = complete;
+      cells = complete ? new byte[64] : null;
+    }
+
+    /**
+     * Adds a cell, replacing an earlier cell with the same qualifier.
+     * @return the change in the length of the cells
+     */
+    int put(final byte[] qualifier, final byte[] value) {
+      final int size = 2 + qualifier.length + value.length;
+      final int offset = Internal.getOffsetFromQualifier(qualifier);
+      if (offset > max_offset) {
+        max_offset = offset;
+        append(qualifier, value);
+        return size;
+      }
+      int pos = 0;
+      for (int i = 0; i < count; i++) {
+        final int qlen = cells[pos] & 0xFF;
+        final int old_size = 2 + qlen + (cells[pos + 1] & 0xFF);
+        if (qlen == qualifier.length && matches(pos + 2, qualifier)) {
+          System.arraycopy(cells, pos + old_size, cells, pos,
+              length - pos - old_size);
+          length -= old_size;
+          count--;
+          append(qualifier, value);
+          return size - old_size;
+        }
+        pos += old_size;
+      }
+      append(qualifier, value);
+      return size;
+    }
+
+    /** @return whether the cells hold the qualifier at the position */
+    private boolean matches(final int pos, final byte[] qualifier) {
+      for (int i = 0; i < qualifier.length; i++) {
+        if (cells[pos + i] != qualifier[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void append(final byte[] qualifier, final byte[] value) {
+      final int size = 2 + qualifier.length + value.length;
+      if (length + size > cells.length) {
+        cells = Arrays.copyOf(cells, Math.max(length + size, cells.length * 2));
+      }
+      cells[length++] = (byte) qualifier.length;
+      cells[length++] = (byte) value.length;
+      System.arraycopy(qualifier, 0, cells, length, qualifier.length);
+      length += qualifier.length;
+      System.arraycopy(value, 0, cells, length, value.length);
+      length += value.length;
+      count++;
+    }
+
+    void drop() {
+      complete = false;
+      cells = null;
+      length = 0;
+      count = 0;
+      max_offset = -1;
+    }
+
+    /** @return the cells as KeyValues with increasing timestamps */
+    ArrayList<KeyValue> toKeyValues(final byte[] row) {
+      final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(count);
+      int pos = 0;
+      for (int i = 0; i < count; i++) {
+        final int qlen = cells[pos++] & 0xFF;
+        final int vlen = cells[pos++] & 0xFF;
+        final byte[] qualifier = Arrays.copyOfRange(cells, pos, pos + qlen);
+        pos += qlen;
+        final byte[] value = Arrays.copyOfRange(cells, pos, pos + vlen);
+        pos += vlen;
+        kvs.add(new KeyValue(row, TSDB.FAMILY(), qualifier, i, value));
+      }
+      return kvs;
+    }
+  }
+}
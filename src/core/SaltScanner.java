@@ -112,6 +112,20 @@ public class SaltScanner {
    * for null or assigning from a scanner's callback. */
   private volatile Exception exception;
   
+  /** The rollup table we read instead of the raw data, may be null */
+  private RollupQuery rollup;
+  
+  /** Range of the rollup intervals to emit, in seconds, end exclusive */
+  private long rollup_start;
+  private long rollup_end;
+
+  /** The rollup plan raw rows are prepared for past its watermark, may be
+   * null */
+  private RollupQuery raw_rollup;
+  
+  /** The bytes of the rows kept are reserved from this, may be null */
+  private QueryMemoryBudget.Reservation reservation;
+  
   /**
    * Default ctor that performs some validation. Call {@link scan} after 
    * construction to actually start fetching data.
@@ -191,6 +205,38 @@ public class SaltScanner {
     this.query_index = query_index;
   }
 
+  /**
+   * Tells the scanner its rows come from a rollup table so they're turned into
+   * data rows instead of being compacted. Call before {@link #scan}.
+   * @param rollup The rollup plan of the query
+   * @param start The first timestamp to emit, in seconds
+   * @param end The timestamp to stop at, exclusive, in seconds
+   */
+  void setRollup(final RollupQuery rollup, final long start, final long end) {
+    this.rollup = rollup;
+    rollup_start = start;
+    rollup_end = end;
+  }
+
+  /**
+   * Tells the scanner its raw rows are stitched after the rollups of a query
+   * so they're prepared for the rollup downsampler. Call before
+   * {@link #scan}.
+   * @param rollup The rollup plan of the query
+   */
+  void setRawRollup(final RollupQuery rollup) {
+    raw_rollup = rollup;
+  }
+
+  /**
+   * Reserves the size of every row the scanners keep from the query's memory
+   * budget. Going over the budget fails the scan. Call before {@link #scan}.
+   * @param reservation The reservation of the query
+   */
+  void setReservation(final QueryMemoryBudget.Reservation reservation) {
+    this.reservation = reservation;
+  }
+
   /**
    * Starts all of the scanners asynchronously and returns the data fetched
    * once all of the scanners have completed. Note that the result may be an
@@ -380,6 +426,9 @@ public class SaltScanner {
           }
           return null;
         }
+        if (query_stats != null) {
+          query_stats.checkCancelled();
+        }
 
         // used for UID resolution if a filter is involved
         final List<Deferred<Object>> lookups = 
@@ -425,6 +474,8 @@ public class SaltScanner {
                 idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                 ++dps_pre_filter;
               }
+            } else if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+              dps_pre_filter += CompressedDataPoints.pointCount(kv.value());
             }
           }
           
@@ -506,6 +557,14 @@ public class SaltScanner {
         } else {
           return scan();
         }
+      } catch (final QueryException e) {
+        // cancelled or over its memory budget
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Aborting scanner " + scanner + ": " + e.getMessage());
+        }
+        close(false);
+        handleException(e);
+        return null;
       } catch (final RuntimeException e) {
         LOG.error("Unexpected exception on scanner " + this, e);
         close(false);
@@ -554,9 +613,23 @@ public class SaltScanner {
             idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
             ++dps_post_filter;
           }
+        } else if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+          dps_post_filter += CompressedDataPoints.pointCount(kv.value());
         }
       }
 
+      if (rollup != null) {
+        final List<KeyValue> data_rows = 
+            rollup.toDataRows(row, rollup_start, rollup_end);
+        if (reservation != null) {
+          for (final KeyValue data_row : data_rows) {
+            reservation.reserve(QueryMemoryBudget.sizeOf(data_row));
+          }
+        }
+        kvs.addAll(data_rows);
+        return;
+      }
+      
       final KeyValue compacted;
       // let IllegalDataExceptions bubble up so the handler above can close
       // the scanner
@@ -582,7 +655,14 @@ public class SaltScanner {
       }
       compaction_time += (DateTime.nanoTime() - compaction_start);
       if (compacted != null) { // Can be null if we ignored all KVs.
-        kvs.add(compacted);
+        final KeyValue data_row = raw_rollup == null ? compacted
+            : raw_rollup.rawRow(compacted);
+        // a query over its budget throws here and the handlers above close
+        // the scanner
+        if (reservation != null) {
+          reservation.reserve(QueryMemoryBudget.sizeOf(data_row));
+        }
+        kvs.add(data_row);
       }
     }
   
@@ -611,6 +691,10 @@ public class SaltScanner {
             QueryStat.HBASE_TIME, fetch_time);
         query_stats.addScannerStat(query_index, index, 
             QueryStat.SUCCESSFUL_SCAN, ok ? 1 : 0);
+        if (!ok && query_stats.isCancelled()) {
+          query_stats.addScannerStat(query_index, index, 
+              QueryStat.CANCELLED_SCAN, 1);
+        }
         
         // Post Scan stats
         query_stats.addScannerStat(query_index, index, 
@@ -0,0 +1,156 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Bounded cache of row key templates for the series written to this TSD.
+ * <p>
+ * Resolving a row key for a data point means validating the metric and every
+ * tag, looking each of them up in the {@link net.opentsdb.uid.UniqueId} caches
+ * and building a new array.  Agents tend to send the same series over and
+ * over, so we remember the template (row key without base time or salt) for
+ * the exact metric and tag strings we were given.  Only series that resolved
+ * successfully are cached, so a hit implies the strings already passed
+ * validation.
+ * <p>
+ * Lookups compare the metric and tag map of the data point with those of the
+ * cached series, so a hit doesn't have to sort or encode the strings.
+ * Callers get a copy of the template they are free to modify, it becomes
+ * the row key of the data point.
+ * @since 2.3
+ */
+final class SeriesKeyCache {
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Map of the metric and tags to the row key template. */
+  private final Cache<SeriesKey, byte[]> templates;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the max size is less than 1.
+   */
+  SeriesKeyCache(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final int max_size = tsdb.config.getInt("tsd.core.series_key_cache.max_size");
+    if (max_size < 1) {
+      throw new IllegalArgumentException(
+          "tsd.core.series_key_cache.max_size must be greater than 0");
+    }
+    templates = CacheBuilder.newBuilder()
+        .maximumSize(max_size)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns a partially initialized row key for this metric and these tags,
+   * from the cache if possible. The base timestamp and salt are left empty.
+   * @param metric The metric name.
+   * @param tags The tags of the series.
+   * @return A new row key template.
+   * @throws IllegalArgumentException if the metric or tags are invalid.
+   * @throws net.opentsdb.uid.NoSuchUniqueName if a name could not be resolved
+   * and auto creation is disabled.
+   */
+  byte[] rowKeyTemplate(final String metric, final Map<String, String> tags) {
+    final byte[] cached = templates.getIfPresent(new SeriesKey(metric, tags));
+    if (cached != null) {
+      return Arrays.copyOf(cached, cached.length);
+    }
+    IncomingDataPoints.checkMetricAndTags(metric, tags);
+    final byte[] template = IncomingDataPoints.rowKeyTemplate(tsdb, metric, tags);
+    // the caller may reuse its map, keep our own copy
+    templates.put(new SeriesKey(metric, new HashMap<String, String>(tags)),
+        Arrays.copyOf(template, template.length));
+    return template;
+  }
+
+  /** Drops all of the cached templates, e.g. after UIDs were renamed. */
+  void invalidateAll() {
+    templates.invalidateAll();
+  }
+
+  /** @return The number of templates currently cached. */
+  long size() {
+    return templates.size();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final CacheStats stats = templates.stats();
+    collector.record("series.cache-hit", stats.hitCount());
+    collector.record("series.cache-miss", stats.missCount());
+    collector.record("series.cache-size", templates.size());
+    collector.record("series.cache-evictions", stats.evictionCount());
+    collector.record("series.cache-hit-ratio",
+        (long) (stats.hitRate() * 100));
+  }
+
+  /**
+   * The metric and tags of a series. The hash code of a map doesn't depend on
+   * its iteration order and the hash codes of the strings are cached, so
+   * neither hashing nor comparing keys allocates or sorts anything.
+   */
+  static final class SeriesKey {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final int hash;
+
+    SeriesKey(final String metric, final Map<String, String> tags) {
+      this.metric = metric;
+      this.tags = tags;
+      hash = (metric == null ? 0 : metric.hashCode()) * 31 + tags.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof SeriesKey)) {
+        return false;
+      }
+      final SeriesKey other = (SeriesKey) obj;
+      return hash == other.hash
+          && (metric == null ? other.metric == null 
+              : metric.equals(other.metric))
+          && tags.equals(other.tags);
+    }
+
+    @Override
+    public String toString() {
+      return "SeriesKey(metric=" + metric + ", tags=" + tags + ")";
+    }
+  }
+}
@@ -17,7 +17,6 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.uid.UniqueId;
@@ -31,26 +30,24 @@ import com.stumbleupon.async.Deferred;
 /**
  * Represents a read-only sequence of continuous data points.
  * <p>
- * This class stores a continuous sequence of {@link RowSeq}s in memory.
+ * This class decodes the rows of a time series as they're added and keeps
+ * the data points in {@link DataPointColumns}.
  */
 final class Span implements DataPoints {
 
   /** The {@link TSDB} instance we belong to. */
   private final TSDB tsdb;
 
-  /** All the rows in this span. */
-  private final ArrayList<RowSeq> rows = new ArrayList<RowSeq>();
+  /** The key of the first row added, null while the span is empty. */
+  private byte[] key;
+
+  /** All the data points in this span. */
+  private final DataPointColumns columns = new DataPointColumns();
 
   /** A list of annotations for this span. We can't lazily initialize since we
    * have to pass a collection to the compaction queue */
   private final ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
-  
-  /** 
-   * Whether or not the rows have been sorted. This should be toggled by the
-   * first call to an iterator method
-   */
-  private boolean sorted;
-  
+
   /**
    * Default constructor.
    * @param tsdb The TSDB to which we belong
@@ -61,7 +58,7 @@ final class Span implements DataPoints {
 
   /** @throws IllegalStateException if the span doesn't have any rows */
   private void checkNotEmpty() {
-    if (rows.size() == 0) {
+    if (key == null) {
       throw new IllegalStateException("empty Span");
     }
   }
@@ -83,13 +80,14 @@ final class Span implements DataPoints {
   
   public Deferred<String> metricNameAsync() {
     checkNotEmpty();
-    return rows.get(0).metricNameAsync();
+    return RowKey.metricNameAsync(tsdb, key);
   }
 
   @Override
   public byte[] metricUID() {
     checkNotEmpty();
-    return rows.get(0).metricUID();
+    return Arrays.copyOfRange(key, Const.SALT_WIDTH(), 
+        Const.SALT_WIDTH() + TSDB.metrics_width());
   }
   
   /**
@@ -109,13 +107,13 @@ final class Span implements DataPoints {
 
   public Deferred<Map<String, String>> getTagsAsync() {
     checkNotEmpty();
-    return rows.get(0).getTagsAsync();
+    return Tags.getTagsAsync(tsdb, key);
   }
   
   @Override
   public ByteMap<byte[]> getTagUids() {
     checkNotEmpty();
-    return rows.get(0).getTagUids();
+    return Tags.getTagUids(key);
   }
   
   /** @return an empty list since aggregated tags cannot exist on a single span */
@@ -133,15 +131,9 @@ final class Span implements DataPoints {
     return Collections.emptyList();
   }
 
-  /** @return the number of data points in this span, O(n)
-   * Unfortunately we must walk the entire array for every row as there may be a 
-   * mix of second and millisecond timestamps */
+  /** @return the number of data points in this span */
   public int size() {
-    int size = 0;
-    for (final RowSeq row : rows) {
-      size += row.size();
-    }
-    return size;
+    return columns.size();
   }
 
   /** @return 0 since aggregation cannot happen at the span level */
@@ -150,10 +142,10 @@ final class Span implements DataPoints {
   }
 
   public List<String> getTSUIDs() {
-    if (rows.size() < 1) {
+    if (key == null) {
       return null;
     }
-    final byte[] tsuid = UniqueId.getTSUIDFromKey(rows.get(0).key, 
+    final byte[] tsuid = UniqueId.getTSUIDFromKey(key, 
         TSDB.metrics_width(), Const.TIMESTAMP_BYTES);
     final List<String> tsuids = new ArrayList<String>(1);
     tsuids.add(UniqueId.uidToString(tsuid));
@@ -166,55 +158,72 @@ final class Span implements DataPoints {
   }
   
   /**
-   * Adds a compacted row to the span, merging with an existing RowSeq or 
-   * creating a new one if necessary. 
+   * Decodes a compacted row into the span, merging it with the points we
+   * already hold if they overlap.
    * @param row The compacted row to add to this span.
    * @throws IllegalArgumentException if the argument and this span are for
    * two different time series.
    */
   void addRow(final KeyValue row) {
-    long last_ts = 0;
-    if (rows.size() != 0) {
-      // Verify that we have the same metric id and tags.
-      final byte[] key = row.key();
-      final RowSeq last = rows.get(rows.size() - 1);
-      final short metric_width = tsdb.metrics.width();
-      final short tags_offset = 
-          (short) (Const.SALT_WIDTH() + metric_width + Const.TIMESTAMP_BYTES);
-      final short tags_bytes = (short) (key.length - tags_offset);
-      String error = null;
-      if (key.length != last.key.length) {
-        error = "row key length mismatch";
-      } else if (
-          Bytes.memcmp(key, last.key, Const.SALT_WIDTH(), metric_width) != 0) {
-        error = "metric ID mismatch";
-      } else if (Bytes.memcmp(key, last.key, tags_offset, tags_bytes) != 0) {
-        error = "tags mismatch";
-      }
-      if (error != null) {
-        throw new IllegalArgumentException(error + ". "
-            + "This Span's last row key is " + Arrays.toString(last.key)
-            + " whereas the row key being added is " + Arrays.toString(key)
-            + " and metric_width=" + metric_width);
-      }
-      last_ts = last.timestamp(last.size() - 1);  // O(n)
-    }
+    final byte[] key = row.key();
+    checkSeries(key);
 
     final RowSeq rowseq = new RowSeq(tsdb);
     rowseq.setRow(row);
-    sorted = false;
-    if (last_ts >= rowseq.timestamp(0)) {
-      // scan to see if we need to merge into an existing row
-      for (final RowSeq rs : rows) {
-        if (Bytes.memcmp(rs.key, row.key(), Const.SALT_WIDTH(), 
-            (rs.key.length - Const.SALT_WIDTH())) == 0) {
-          rs.addRow(row);
-          return;
-        }
-      }
+    columns.add(rowseq);
+    if (this.key == null) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Adds the points and annotations of another span of the same time series,
+   * merging them with ours if they overlap.
+   * @param span The span to add, left untouched
+   * @throws IllegalArgumentException if the argument and this span are for
+   * two different time series.
+   * @since 2.3
+   */
+  void addSpan(final Span span) {
+    if (span.key == null) {
+      return;
+    }
+    checkSeries(span.key);
+    columns.add(span.columns);
+    annotations.addAll(span.annotations);
+    if (key == null) {
+      key = span.key;
+    }
+  }
+
+  /**
+   * Verifies that a row key has the same metric id and tags as our rows.
+   * @param key The row key to check
+   * @throws IllegalArgumentException if the key is for another time series
+   */
+  private void checkSeries(final byte[] key) {
+    if (this.key == null) {
+      return;
+    }
+    final short metric_width = tsdb.metrics.width();
+    final short tags_offset = 
+        (short) (Const.SALT_WIDTH() + metric_width + Const.TIMESTAMP_BYTES);
+    final short tags_bytes = (short) (key.length - tags_offset);
+    String error = null;
+    if (key.length != this.key.length) {
+      error = "row key length mismatch";
+    } else if (
+        Bytes.memcmp(key, this.key, Const.SALT_WIDTH(), metric_width) != 0) {
+      error = "metric ID mismatch";
+    } else if (Bytes.memcmp(key, this.key, tags_offset, tags_bytes) != 0) {
+      error = "tags mismatch";
+    }
+    if (error != null) {
+      throw new IllegalArgumentException(error + ". "
+          + "This Span's row key is " + Arrays.toString(this.key)
+          + " whereas the row key being added is " + Arrays.toString(key)
+          + " and metric_width=" + metric_width);
     }
-    
-    rows.add(rowseq);
   }
 
   /**
@@ -239,46 +248,18 @@ final class Span implements DataPoints {
 
   /** @return an iterator to run over the list of data points */
   public SeekableView iterator() {
-    checkRowOrder();
     return spanIterator();
   }
 
-  /**
-   * Finds the index of the row of the ith data point and the offset in the row.
-   * @param i The index of the data point to find.
-   * @return two ints packed in a long.  The first int is the index of the row
-   * in {@code rows} and the second is offset in that {@link RowSeq} instance.
-   */
-  private long getIdxOffsetFor(final int i) {
-    checkRowOrder();
-    int idx = 0;
-    int offset = 0;
-    for (final RowSeq row : rows) {
-      final int sz = row.size();
-      if (offset + sz > i) {
-        break;
-      }
-      offset += sz;
-      idx++;
-    }
-    return ((long) idx << 32) | (i - offset);
-  }
-
   /**
    * Returns the timestamp for a data point at index {@code i} if it exists.
-   * <b>Note:</b> To get to a timestamp this method must walk the entire byte
-   * array, i.e. O(n) so call this sparingly. Use the iterator instead.
    * @param i A 0 based index incremented per the number of data points in the
    * span.
    * @return A Unix epoch timestamp in milliseconds
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public long timestamp(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).timestamp(offset);
+    return columns.timestamp(i);
   }
 
   /**
@@ -289,11 +270,7 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    */
   public boolean isInteger(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).isInteger(offset);
+    return columns.isInteger(i);
   }
 
   /**
@@ -304,14 +281,9 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    * @throws ClassCastException if the value is a float instead. Call 
    * {@link #isInteger} first
-   * @throws IllegalDataException if the data is malformed
    */
   public long longValue(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).longValue(offset);
+    return columns.longValue(i);
   }
 
   /**
@@ -322,139 +294,21 @@ final class Span implements DataPoints {
    * @throws IndexOutOfBoundsException if the index would be out of bounds
    * @throws ClassCastException if the value is an integer instead. Call 
    * {@link #isInteger} first
-   * @throws IllegalDataException if the data is malformed
    */
   public double doubleValue(final int i) {
-    checkRowOrder();
-    final long idxoffset = getIdxOffsetFor(i);
-    final int idx = (int) (idxoffset >>> 32);
-    final int offset = (int) (idxoffset & 0x00000000FFFFFFFF);
-    return rows.get(idx).doubleValue(offset);
+    return columns.doubleValue(i);
   }
 
   /** Returns a human readable string representation of the object. */
   @Override
   public String toString() {
-    final StringBuilder buf = new StringBuilder();
-    buf.append("Span(")
-       .append(rows.size())
-       .append(" rows, [");
-    for (int i = 0; i < rows.size(); i++) {
-      if (i != 0) {
-        buf.append(", ");
-      }
-      buf.append(rows.get(i).toString());
-    }
-    buf.append("])");
-    return buf.toString();
+    return "Span(key=" + (key == null ? "<null>" : Arrays.toString(key))
+        + ", " + columns + ")";
   }
 
-  /**
-   * Finds the index of the row in which the given timestamp should be.
-   * @param timestamp A strictly positive 32-bit integer.
-   * @return A strictly positive index in the {@code rows} array.
-   */
-  private int seekRow(final long timestamp) {
-    checkRowOrder();
-    int row_index = 0;
-    RowSeq row = null;
-    final int nrows = rows.size();
-    for (int i = 0; i < nrows; i++) {
-      row = rows.get(i);
-      final int sz = row.size();
-      if (row.timestamp(sz - 1) < timestamp) {
-        row_index++;  // The last DP in this row is before 'timestamp'.
-      } else {
-        break;
-      }
-    }
-    if (row_index == nrows) {  // If this timestamp was too large for the
-      --row_index;             // last row, return the last row.
-    }
-    return row_index;
-  }
-
-  /**
-   * Checks the sorted flag and sorts the rows if necessary. Should be called
-   * by any iteration method.
-   * Since 2.0
-   */
-  private void checkRowOrder() {
-    if (!sorted) {
-      Collections.sort(rows, new RowSeq.RowSeqComparator());
-      sorted = true;
-    }
-  }
-  
-  /** Package private iterator method to access it as a Span.Iterator. */
-  Span.Iterator spanIterator() {
-    if (!sorted) {
-      Collections.sort(rows, new RowSeq.RowSeqComparator());
-      sorted = true;
-    }
-    return new Span.Iterator();
-  }
-
-  /** Iterator for {@link Span}s. */
-  final class Iterator implements SeekableView {
-
-    /** Index of the {@link RowSeq} we're currently at, in {@code rows}. */
-    private int row_index;
-
-    /** Iterator on the current row. */
-    private RowSeq.Iterator current_row;
-
-    Iterator() {
-      current_row = rows.get(0).internalIterator();
-    }
-
-    // ------------------ //
-    // Iterator interface //
-    // ------------------ //
-    
-    @Override
-    public boolean hasNext() {
-      return (current_row.hasNext()             // more points in this row
-              || row_index < rows.size() - 1);  // or more rows
-    }
-
-    @Override
-    public DataPoint next() {
-      if (current_row.hasNext()) {
-        return current_row.next();
-      } else if (row_index < rows.size() - 1) {
-        row_index++;
-        current_row = rows.get(row_index).internalIterator();
-        return current_row.next();
-      }
-      throw new NoSuchElementException("no more elements");
-    }
-
-    @Override
-    public void remove() {
-      throw new UnsupportedOperationException();
-    }
-
-    // ---------------------- //
-    // SeekableView interface //
-    // ---------------------- //
-    
-    @Override
-    public void seek(final long timestamp) {
-      int row_index = seekRow(timestamp);
-      if (row_index != this.row_index) {
-        this.row_index = row_index;
-        current_row = rows.get(row_index).internalIterator();
-      }
-      current_row.seek(timestamp);
-    }
-
-    @Override
-    public String toString() {
-      return "Span.Iterator(row_index=" + row_index
-        + ", current_row=" + current_row + ", span=" + Span.this + ')';
-    }
-
+  /** Package private iterator method to iterate over the decoded points. */
+  SeekableView spanIterator() {
+    return columns.iterator();
   }
 
   /**
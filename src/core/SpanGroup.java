@@ -484,6 +484,13 @@ final class SpanGroup implements DataPoints {
   }
 
   public SeekableView iterator() {
+    if (!rate && downsampler != null
+        && downsampler != DownsamplingSpecification.NO_DOWNSAMPLER
+        && AlignedAggregationIterator.supports(aggregator)) {
+      // downsampled series usually line up and don't need interpolating
+      return AlignedAggregationIterator.create(spans, start_time, end_time,
+          aggregator, downsampler, query_start, query_end);
+    }
     return AggregationIterator.create(spans, start_time, end_time, aggregator,
                                   aggregator.interpolationMethod(),
                                   downsampler, query_start, query_end,
@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
@@ -41,6 +42,7 @@ import org.hbase.async.PutRequest;
 import org.jboss.netty.util.HashedWheelTimer;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import net.opentsdb.tree.TreeBuilder;
 import net.opentsdb.tsd.RTPublisher;
@@ -120,6 +122,42 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /**
+   * Optional buffer grouping the points written to the same row into a single
+   * RPC. Null unless {@code tsd.storage.coalesce.enable} is set.
+   */
+  private final WriteCoalescer coalescer;
+
+  /**
+   * Optional cache of row key templates for series we've seen before. Null
+   * unless {@code tsd.core.series_key_cache.enable} is set.
+   */
+  private final SeriesKeyCache series_cache;
+
+  /**
+   * Optional cache of the last data point written to each series. Null
+   * unless {@code tsd.core.last_value_cache.enable} is set.
+   */
+  private final LastValueCache last_values;
+
+  /**
+   * Optional cache of downsampled query results. Null unless
+   * {@code tsd.query.cache.enable} is set.
+   */
+  private final QueryCache query_cache;
+
+  /** Threads the groups of queries are aggregated and serialized on */
+  private final QueryComputePool compute_pool;
+
+  /** Bytes held by the scanners of running queries */
+  private final QueryMemoryBudget memory_budget;
+
+  /**
+   * Rollup intervals queries may be answered from. Null unless
+   * {@code tsd.rollups.enable} is set.
+   */
+  private final RollupConfig rollup_config;
+
   /** Search indexer to use if configure */
   private SearchPlugin search = null;
 
@@ -211,13 +249,61 @@ public final class TSDB {
     }
     tag_names = new UniqueId(this, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH, false);
     tag_values = new UniqueId(this, uidtable, TAG_VALUE_QUAL, TAG_VALUE_WIDTH, false);
+    // always set with the defaults, only missing from mocked configs
+    if (config.hasProperty("tsd.core.uid.id_block_size")) {
+      final int id_block_size = config.getInt("tsd.core.uid.id_block_size");
+      if (id_block_size < 1) {
+        throw new IllegalArgumentException(
+            "tsd.core.uid.id_block_size must be 1 or more: " + id_block_size);
+      }
+      metrics.setIdBlockSize(id_block_size);
+      tag_names.setIdBlockSize(id_block_size);
+      tag_values.setIdBlockSize(id_block_size);
+    }
+    if (config.getBoolean("tsd.core.uid.random_metrics") && 
+        config.getBoolean("tsd.core.uid.random_id_filter.enable")) {
+      // seeds in the background, the CAS catches collisions until then
+      metrics.enableRandomIdFilter(
+          config.getInt("tsd.core.uid.random_id_filter.expected_ids"), 
+          config.getDouble("tsd.core.uid.random_id_filter.fpp"));
+    }
     compactionq = new CompactionQueue(this);
+    if (config.getBoolean("tsd.storage.coalesce.enable")) {
+      coalescer = new WriteCoalescer(this);
+    } else {
+      coalescer = null;
+    }
+    if (config.getBoolean("tsd.core.series_key_cache.enable")) {
+      series_cache = new SeriesKeyCache(this);
+    } else {
+      series_cache = null;
+    }
+    if (config.getBoolean("tsd.core.last_value_cache.enable")) {
+      last_values = new LastValueCache(this);
+    } else {
+      last_values = null;
+    }
+    if (config.getBoolean("tsd.query.cache.enable")) {
+      query_cache = new QueryCache(this);
+    } else {
+      query_cache = null;
+    }
+    if (config.getBoolean("tsd.rollups.enable")) {
+      rollup_config = new RollupConfig(config);
+    } else {
+      rollup_config = null;
+    }
     
     if (config.hasProperty("tsd.core.timezone")) {
       DateTime.setDefaultTimezone(config.getString("tsd.core.timezone"));
     }
     
     timer = Threads.newTimer("TSDB Timer");
+    if (rollup_config != null) {
+      timer.newTimeout(new RollupMarkerRefresh(), 0, TimeUnit.MILLISECONDS);
+    }
+    compute_pool = new QueryComputePool(config);
+    memory_budget = new QueryMemoryBudget(config);
     
     QueryStats.setEnableDuplicates(
         config.getBoolean("tsd.query.allow_simultaneous_duplicates"));
@@ -494,6 +580,46 @@ public final class TSDB {
   public UniqueIdFilterPlugin getUidFilter() {
     return uid_filter;
   }
+
+  /**
+   * @return The cache of last written data points, may be null.
+   * @since 2.3
+   */
+  public LastValueCache getLastValueCache() {
+    return last_values;
+  }
+
+  /**
+   * @return The cache of downsampled query results, may be null.
+   * @since 2.3
+   */
+  public QueryCache getQueryCache() {
+    return query_cache;
+  }
+
+  /**
+   * @return The pool the groups of queries are aggregated and serialized on
+   * @since 2.3
+   */
+  public QueryComputePool getQueryComputePool() {
+    return compute_pool;
+  }
+
+  /**
+   * @return The budget the scanners of queries account their rows to
+   * @since 2.3
+   */
+  public QueryMemoryBudget getQueryMemoryBudget() {
+    return memory_budget;
+  }
+
+  /**
+   * @return The rollup intervals queries may be answered from, may be null.
+   * @since 2.3
+   */
+  public RollupConfig getRollupConfig() {
+    return rollup_config;
+  }
   
   /**
    * Attempts to find the name for a unique identifier given a type
@@ -714,6 +840,20 @@ public final class TSDB {
         stats.idleConnectionsClosed());
 
     compactionq.collectStats(collector);
+    if (coalescer != null) {
+      coalescer.collectStats(collector);
+    }
+    if (series_cache != null) {
+      series_cache.collectStats(collector);
+    }
+    if (query_cache != null) {
+      query_cache.collectStats(collector);
+    }
+    compute_pool.collectStats(collector);
+    memory_budget.collectStats(collector);
+    if (last_values != null) {
+      last_values.collectStats(collector);
+    }
     // Collect Stats from Plugins
     if (startup != null) {
       try {
@@ -789,6 +929,17 @@ public final class TSDB {
         "kind=" + uid.kind());
     collector.record("uid.rejected-assignments", uid.rejectedAssignments(), 
         "kind=" + uid.kind());
+    collector.record("uid.random-screened", uid.randomIdsScreened(), 
+        "kind=" + uid.kind());
+    collector.record("uid.random-false-positive-checks", 
+        uid.randomIdFalsePositiveChecks(), "kind=" + uid.kind());
+    collector.record("uid.random-false-positives", 
+        uid.randomIdFalsePositives(), "kind=" + uid.kind());
+    collector.record("uid.assignment-latency", uid.assignmentLatency(), 
+        "kind=" + uid.kind());
+    collector.record("uid.block-leased", uid.idsLeased(), "kind=" + uid.kind());
+    collector.record("uid.block-assigned", uid.idsFromBlocks(), 
+        "kind=" + uid.kind());
   }
 
   /** @return the width, in bytes, of metric UIDs */
@@ -959,8 +1110,13 @@ public final class TSDB {
           + " when trying to add value=" + Arrays.toString(value) + '/' + flags
           + " to metric=" + metric + ", tags=" + tags);
     }
-    IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    final byte[] row;
+    if (series_cache != null) {
+      row = series_cache.rowKeyTemplate(metric, tags);
+    } else {
+      IncomingDataPoints.checkMetricAndTags(metric, tags);
+      row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
+    }
     final long base_time;
     final byte[] qualifier = Internal.buildQualifier(timestamp, flags);
     
@@ -986,13 +1142,18 @@ public final class TSDB {
         RowKey.prefixKeyWithSalt(row);
 
         Deferred<Object> result = null;
-        if (config.enable_appends()) {
+        if (coalescer != null) {
+          if (!config.enable_appends()) {
+            scheduleForCompaction(row, (int) base_time, qualifier, value);
+          }
+          result = coalescer.add(row, qualifier, value);
+        } else if (config.enable_appends()) {
           final AppendDataPoints kv = new AppendDataPoints(qualifier, value);
           final AppendRequest point = new AppendRequest(table, row, FAMILY, 
               AppendDataPoints.APPEND_COLUMN_QUALIFIER, kv.getBytes());
           result = client.append(point);
         } else {
-          scheduleForCompaction(row, (int) base_time);
+          scheduleForCompaction(row, (int) base_time, qualifier, value);
           final PutRequest point = new PutRequest(table, row, FAMILY, qualifier, value);
           result = client.put(point);
         }
@@ -1005,12 +1166,16 @@ public final class TSDB {
         // timing in a moving Histogram (once we have a class for this).
         
         if (!config.enable_realtime_ts() && !config.enable_tsuid_incrementing() && 
-            !config.enable_tsuid_tracking() && rt_publisher == null) {
+            !config.enable_tsuid_tracking() && rt_publisher == null &&
+            last_values == null) {
           return result;
         }
         
         final byte[] tsuid = UniqueId.getTSUIDFromKey(row, METRICS_WIDTH, 
             Const.TIMESTAMP_BYTES);
+        if (last_values != null) {
+          last_values.put(tsuid, timestamp, value, flags);
+        }
         
         // if the meta cache plugin is instantiated then tracking goes through it
         if (meta_cache != null) {
@@ -1072,9 +1237,22 @@ public final class TSDB {
       }
     }
 
-    return config.enable_compactions() && compactionq != null
-      ? compactionq.flush().addCallback(new HClientFlush())
-      : client.flush();
+    final class CompactionFlush 
+      implements Callback<Deferred<Object>, ArrayList<Object>> {
+      public Deferred<Object> call(final ArrayList<Object> args) {
+        return config.enable_compactions() && compactionq != null
+            ? compactionq.flush().addCallback(new HClientFlush())
+            : client.flush();
+      }
+      public String toString() {
+        return "flush compaction queue";
+      }
+    }
+
+    if (coalescer != null) {
+      return coalescer.flush().addCallbackDeferring(new CompactionFlush());
+    }
+    return new CompactionFlush().call(null);
   }
 
   /**
@@ -1101,6 +1279,7 @@ public final class TSDB {
         if (result instanceof Exception) {
           LOG.error("A previous shutdown failed", (Exception)result);
         }
+        compute_pool.shutdown();
         final Set<Timeout> timeouts = timer.stop();
         // TODO - at some point we should clean these up.
         if (timeouts.size() > 0) {
@@ -1165,6 +1344,10 @@ public final class TSDB {
       }
     }
     
+    if (coalescer != null) {
+      LOG.info("Flushing coalesced writes");
+      deferreds.add(coalescer.flush().addCallback(new CompactCB()));
+    }
     if (config.enable_compactions()) {
       LOG.info("Flushing compaction queue");
       deferreds.add(compactionq.flush().addCallback(new CompactCB()));
@@ -1277,6 +1460,9 @@ public final class TSDB {
     metrics.dropCaches();
     tag_names.dropCaches();
     tag_values.dropCaches();
+    if (series_cache != null) {
+      series_cache.invalidateAll();
+    }
   }
 
   /**
@@ -1335,16 +1521,38 @@ public final class TSDB {
    */
   public Deferred<Object> deleteUidAsync(final String type, final String name) {
     final UniqueIdType uid_type = UniqueId.stringToUniqueIdType(type);
+    final Deferred<Object> deleted;
     switch (uid_type) {
     case METRIC:
-      return metrics.deleteAsync(name);
+      deleted = metrics.deleteAsync(name);
+      break;
     case TAGK:
-      return tag_names.deleteAsync(name);
+      deleted = tag_names.deleteAsync(name);
+      break;
     case TAGV:
-      return tag_values.deleteAsync(name);
+      deleted = tag_values.deleteAsync(name);
+      break;
     default:
       throw new IllegalArgumentException("Unrecognized UID type: " + uid_type); 
     }
+    if (series_cache == null) {
+      return deleted;
+    }
+    
+    /** Drops the templates once the UID is gone, puts racing with the delete 
+     * may have cached it again in the mean time */
+    class InvalidateCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object result) {
+        series_cache.invalidateAll();
+        return result;
+      }
+      @Override
+      public String toString() {
+        return "Invalidate series cache callback";
+      }
+    }
+    return deleted.addBoth(new InvalidateCB());
   }
   
   /**
@@ -1391,6 +1599,10 @@ public final class TSDB {
       LOG.warn("Unknown type name: " + type);
       throw new IllegalArgumentException("Unknown type name");
     }
+    if (series_cache != null) {
+      // cached templates are keyed on the old name
+      series_cache.invalidateAll();
+    }
   }
 
   /** @return the name of the UID table as a byte array for client requests */
@@ -1523,7 +1735,35 @@ public final class TSDB {
       return null;
     }
   }
-  
+
+  /**
+   * Reloads the ranges the rollup tables were completed over, then schedules
+   * the next reload once it's done.
+   */
+  final class RollupMarkerRefresh implements TimerTask,
+      Callback<Object, ArrayList<Object>> {
+    @Override
+    public void run(final Timeout timeout) {
+      rollup_config.loadMarkers(client).addBoth(this);
+    }
+
+    @Override
+    public Object call(final ArrayList<Object> ignored) {
+      try {
+        timer.newTimeout(this, rollup_config.getRefreshInterval(),
+            TimeUnit.MILLISECONDS);
+      } catch (IllegalStateException e) {
+        // the timer was stopped by the shutdown
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "Rollup marker refresh";
+    }
+  }
+
   /**
    * Blocks while pre-fetching meta data from the data and uid tables
    * so that performance improves, particularly with a large number of 
@@ -1566,6 +1806,18 @@ public final class TSDB {
     return compactionq.compact(row, annotations);
   }
 
+  /**
+   * Compacts a row and writes the compacted column back right away, however
+   * recent the row is. Compactions must be enabled.
+   * @param row The row to compact.
+   * @return A deferred called back once the compacted column is written and
+   * the cells it replaces are deleted, or null if there was nothing to write.
+   * @since 2.3
+   */
+  final Deferred<Object> recompact(final ArrayList<KeyValue> row) {
+    return compactionq.compact(row, null, new ArrayList<Annotation>(0));
+  }
+
   /**
    * Schedules the given row key for later re-compaction.
    * Once this row key has become "old enough", we'll read back all the data
@@ -1580,6 +1832,21 @@ public final class TSDB {
     }
   }
 
+  /**
+   * Schedules the given row key for later re-compaction along with the cell
+   * written to it so the row may be compacted without reading it back.
+   * @param row The row key to re-compact later.  Will not be modified.
+   * @param base_time The 32-bit unsigned UNIX timestamp.
+   * @param qualifier The qualifier of the cell written.
+   * @param value The value of the cell written.
+   */
+  final void scheduleForCompaction(final byte[] row, final int base_time,
+      final byte[] qualifier, final byte[] value) {
+    if (config.enable_compactions()) {
+      compactionq.add(row, base_time & 0xFFFFFFFFL, qualifier, value);
+    }
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
@@ -99,6 +99,9 @@ public final class TSQuery {
   /** A flag denoting whether or not to align intervals based on the calendar */
   private boolean use_calendar;
   
+  /** Whether or not to bypass the query cache */
+  private boolean no_cache;
+  
   /** The query status for tracking over all performance of this query */
   private QueryStats query_stats;
   
@@ -280,6 +283,8 @@ public final class TSQuery {
       .append(show_tsuids)
       .append(", ms_resolution=")
       .append(ms_resolution)
+      .append(", no_cache=")
+      .append(no_cache)
       .append(", options=[");
     if (options != null && !options.isEmpty()) {
       int counter = 0;
@@ -389,6 +394,12 @@ public final class TSQuery {
     return use_calendar;
   }
   
+  /** @return whether or not to bypass the query cache
+   * @since 2.3 */
+  public boolean getNoCache() {
+    return no_cache;
+  }
+  
   /** @return the query stats object. Ignored during JSON serialization */
   @JsonIgnore
   public QueryStats getQueryStats() {
@@ -480,6 +491,11 @@ public final class TSQuery {
     this.use_calendar = use_calendar;
   }
   
+  /** @param no_cache whether or not to bypass the query cache @since 2.3 */
+  public void setNoCache(boolean no_cache) {
+    this.no_cache = no_cache;
+  }
+  
   /** @param query_stats the query stats object to associate with this query */
   public void setQueryStats(final QueryStats query_stats) {
     this.query_stats = query_stats;
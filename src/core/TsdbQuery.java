@@ -137,6 +137,14 @@ final class TsdbQuery implements Query {
   /** Whether or not to match series with ONLY the given tags */
   private boolean explicit_tags;
   
+  /** The rollup table to read instead of the raw data, null to read the
+   * raw data. Planned when the query runs. */
+  private RollupQuery rollup;
+  
+  /** The bytes of the rows scanned are reserved from this, null if the TSD
+   * doesn't have a budget. Taken when the query runs. */
+  private QueryMemoryBudget.Reservation reservation;
+  
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -512,7 +520,62 @@ final class TsdbQuery implements Query {
   
   @Override
   public Deferred<DataPoints[]> runAsync() throws HBaseException {
-    return findSpans().addCallback(new GroupByAndAggregateCB());
+    final QueryMemoryBudget budget = tsdb.getQueryMemoryBudget();
+    if (budget == null) {
+      return findSpans().addCallback(new GroupByAndAggregateCB());
+    }
+    reservation = budget.newReservation();
+    if (query_stats != null) {
+      // the spans are referenced until the response is serialized
+      query_stats.addReservation(reservation);
+    }
+    
+    /** Records the bytes held once the spans are grouped. The reservation is
+     * released by the query stats once the query is done, if we have them */
+    class ReleaseCB implements Callback<DataPoints[], DataPoints[]> {
+      @Override
+      public DataPoints[] call(final DataPoints[] groups) {
+        recordBytesHeld();
+        if (query_stats == null) {
+          reservation.release();
+        }
+        return groups;
+      }
+      @Override
+      public String toString() {
+        return "Release memory reservation callback";
+      }
+    }
+    
+    /** Hands the bytes back when the scan failed or was aborted */
+    class ReleaseErrCB implements Callback<Exception, Exception> {
+      @Override
+      public Exception call(final Exception e) {
+        recordBytesHeld();
+        reservation.release();
+        return e;
+      }
+      @Override
+      public String toString() {
+        return "Release memory reservation errback";
+      }
+    }
+    
+    try {
+      return findSpans().addCallback(new GroupByAndAggregateCB())
+          .addCallbacks(new ReleaseCB(), new ReleaseErrCB());
+    } catch (RuntimeException e) {
+      reservation.release();
+      throw e;
+    }
+  }
+  
+  /** Records the most bytes the scan held */
+  private void recordBytesHeld() {
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.MAX_BYTES_HELD, 
+          reservation.max());
+    }
   }
 
   /**
@@ -528,10 +591,86 @@ final class TsdbQuery implements Query {
    */
   private Deferred<TreeMap<byte[], Span>> findSpans() throws HBaseException {
     final short metric_width = tsdb.metrics.width();
+    final long scan_start = getScanStartTimeSeconds();
+    final long scan_end = 
+        end_time == UNSET ? Long.MAX_VALUE : getScanEndTimeSeconds();
+    rollup = tsdb.getRollupConfig() == null ? null
+        : tsdb.getRollupConfig().plan(downsampler, rate, delete, scan_start);
+    if (query_stats != null) {
+      query_stats.addStat(query_index, QueryStat.ROLLUP_INTERVAL,
+          rollup == null ? 0 : rollup.getInterval().getInterval());
+    }
     final TreeMap<byte[], Span> spans = // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(
           (short)(Const.SALT_WIDTH() + metric_width)));
+    if (rollup == null) {
+      return findSpans(spans, null, scan_start, scan_end);
+    }
+    final long watermark = rollup.getWatermark();
+    if (watermark >= scan_end) {
+      return findSpans(spans, rollup, scan_start, scan_end);
+    }
+    
+    final TreeMap<byte[], Span> raw_spans = 
+      new TreeMap<byte[], Span>(new SpanCmp(
+          (short)(Const.SALT_WIDTH() + metric_width)));
+    
+    /** Appends the raw spans to the rollup spans of the same series. A scan
+     * without rows may return null instead of its map. */
+    final class StitchCB implements Callback<TreeMap<byte[], Span>, 
+      TreeMap<byte[], Span>> {
+      @Override
+      public TreeMap<byte[], Span> call(final TreeMap<byte[], Span> ignored) {
+        for (final Map.Entry<byte[], Span> entry : raw_spans.entrySet()) {
+          final Span span = spans.get(entry.getKey());
+          if (span == null) {
+            spans.put(entry.getKey(), entry.getValue());
+          } else {
+            span.addSpan(entry.getValue());
+          }
+        }
+        return spans;
+      }
+      @Override
+      public String toString() {
+        return "Rollup stitch callback";
+      }
+    }
+    
+    /** Reads the raw data past the watermark once the rollups were read */
+    final class RawCB implements Callback<Deferred<TreeMap<byte[], Span>>, 
+      TreeMap<byte[], Span>> {
+      @Override
+      public Deferred<TreeMap<byte[], Span>> call(
+          final TreeMap<byte[], Span> ignored) {
+        return findSpans(raw_spans, null, watermark, scan_end)
+            .addCallback(new StitchCB());
+      }
+      @Override
+      public String toString() {
+        return "Rollup raw data callback";
+      }
+    }
     
+    return findSpans(spans, rollup, scan_start, watermark)
+        .addCallbackDeferring(new RawCB());
+  }
+  
+  /**
+   * Scans one table for the spans of the query over part of its range.
+   * @param spans The map to add the spans to
+   * @param from_rollup The rollup plan to read the rollup table of or null to
+   * read the raw table. Raw rows are still prepared for {@link #rollup} when
+   * it's set as they're stitched after the rollups.
+   * @param scan_start The first timestamp to read, in seconds
+   * @param scan_end The timestamp to stop at, exclusive, in seconds. 
+   * {@code Long.MAX_VALUE} to read until the end of the table.
+   * @return The spans or null if the scan found no rows
+   */
+  private Deferred<TreeMap<byte[], Span>> findSpans(
+      final TreeMap<byte[], Span> spans, final RollupQuery from_rollup, 
+      final long scan_start, final long scan_end) throws HBaseException {
+    final short metric_width = tsdb.metrics.width();
     // Copy only the filters that should trigger a tag resolution. If this list
     // is empty due to literals or a wildcard star, then we'll save a TON of
     // UID lookups
@@ -550,15 +689,22 @@ final class TsdbQuery implements Query {
     if (Const.SALT_WIDTH() > 0) {
       final List<Scanner> scanners = new ArrayList<Scanner>(Const.SALT_BUCKETS());
       for (int i = 0; i < Const.SALT_BUCKETS(); i++) {
-        scanners.add(getScanner(i));
+        scanners.add(getScanner(i, from_rollup, scan_start, scan_end));
       }
       scan_start_time = DateTime.nanoTime();
-      return new SaltScanner(tsdb, metric, scanners, spans, scanner_filters,
-          delete, query_stats, query_index).scan();
+      final SaltScanner salt_scanner = new SaltScanner(tsdb, metric, scanners,
+          spans, scanner_filters, delete, query_stats, query_index);
+      salt_scanner.setReservation(reservation);
+      if (from_rollup != null) {
+        salt_scanner.setRollup(from_rollup, scan_start, scan_end);
+      } else if (rollup != null) {
+        salt_scanner.setRawRollup(rollup);
+      }
+      return salt_scanner.scan();
     }
     
     scan_start_time = DateTime.nanoTime();
-    final Scanner scanner = getScanner();
+    final Scanner scanner = getScanner(0, from_rollup, scan_start, scan_end);
     if (query_stats != null) {
       query_stats.addScannerId(query_index, 0, scanner.toString());
     }
@@ -638,6 +784,9 @@ final class TsdbQuery implements Query {
                DateTime.nanoTime(), scanner_start) > timeout) {
              throw new InterruptedException("Query timeout exceeded!");
            }
+           if (query_stats != null) {
+             query_stats.checkCancelled();
+           }
            
            rows_pre_filter += rows.size();
            
@@ -683,6 +832,8 @@ final class TsdbQuery implements Query {
                    idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                    ++dps_pre_filter;
                  }
+               } else if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+                 dps_pre_filter += CompressedDataPoints.pointCount(kv.value());
                }
              }
              
@@ -809,6 +960,8 @@ final class TsdbQuery implements Query {
                idx += qlength + Internal.getValueLengthFromQualifier(kv.value(), idx);
                ++dps_post_filter;
              }
+           } else if (CompressedDataPoints.isCompressedDataPoints(kv.qualifier())) {
+             dps_post_filter += CompressedDataPoints.pointCount(kv.value());
            }
          }
          
@@ -817,13 +970,30 @@ final class TsdbQuery implements Query {
            datapoints = new Span(tsdb);
            spans.put(key, datapoints);
          }
+         if (from_rollup != null) {
+           for (final KeyValue data_row : 
+               from_rollup.toDataRows(row, scan_start, scan_end)) {
+             if (reservation != null) {
+               reservation.reserve(QueryMemoryBudget.sizeOf(data_row));
+             }
+             datapoints.addRow(data_row);
+             ++nrows;
+           }
+           return;
+         }
          final long compaction_start = DateTime.nanoTime();
          final KeyValue compacted = 
            tsdb.compact(row, datapoints.getAnnotations());
          compaction_time += (DateTime.nanoTime() - compaction_start);
          seenAnnotation |= !datapoints.getAnnotations().isEmpty();
          if (compacted != null) { // Can be null if we ignored all KVs.
-           datapoints.addRow(compacted);
+           final KeyValue data_row = 
+               rollup == null ? compacted : rollup.rawRow(compacted);
+           // a query over its budget throws here, aborting the scan
+           if (reservation != null) {
+             reservation.reserve(QueryMemoryBudget.sizeOf(data_row));
+           }
+           datapoints.addRow(data_row);
            ++nrows;
          }
        }
@@ -847,6 +1017,10 @@ final class TsdbQuery implements Query {
                QueryStat.HBASE_TIME, fetch_time);
            query_stats.addScannerStat(query_index, index, 
                QueryStat.SUCCESSFUL_SCAN, e == null ? 1 : 0);
+           if (e != null && query_stats.isCancelled()) {
+             query_stats.addScannerStat(query_index, index, 
+                 QueryStat.CANCELLED_SCAN, 1);
+           }
            
            // Post Scan stats
            query_stats.addScannerStat(query_index, index, 
@@ -898,6 +1072,7 @@ final class TsdbQuery implements Query {
       if (query_stats != null) {
         query_stats.addStat(query_index, QueryStat.QUERY_SCAN_TIME, 
                 (System.nanoTime() - TsdbQuery.this.scan_start_time));
+        query_stats.checkCancelled();
       }
       
       if (spans == null || spans.size() <= 0) {
@@ -920,7 +1095,7 @@ final class TsdbQuery implements Query {
               rate, 
               rate_options,
               aggregator,
-              downsampler,
+              groupDownsampler(),
               getStartTime(), 
               getEndTime(),
               query_index);
@@ -939,7 +1114,7 @@ final class TsdbQuery implements Query {
                                               spans.values(),
                                               rate, rate_options,
                                               aggregator,
-                                              downsampler,
+                                              groupDownsampler(),
                                               getStartTime(), 
                                               getEndTime(),
                                               query_index);
@@ -989,7 +1164,7 @@ final class TsdbQuery implements Query {
           thegroup = new SpanGroup(tsdb, getScanStartTimeSeconds(),
                                    getScanEndTimeSeconds(),
                                    null, rate, rate_options, aggregator,
-                                   downsampler,
+                                   groupDownsampler(),
                                    getStartTime(), 
                                    getEndTime(),
                                    query_index);
@@ -1033,6 +1208,23 @@ final class TsdbQuery implements Query {
    * @return A scanner to use for fetching data points
    */
   protected Scanner getScanner(final int salt_bucket) throws HBaseException {
+    return getScanner(salt_bucket, rollup, getScanStartTimeSeconds(),
+        end_time == UNSET ? Long.MAX_VALUE : getScanEndTimeSeconds());
+  }
+  
+  /**
+   * Returns a scanner for part of the query's range.
+   * @param salt_bucket The salt bucket to scan over when salting is enabled.
+   * @param from_rollup The rollup plan to read the table of or null to read
+   * the raw table
+   * @param scan_start The first timestamp to read, in seconds
+   * @param scan_end The timestamp to stop at, in seconds. 
+   * {@code Long.MAX_VALUE} to read until the end of the table.
+   * @return A scanner to use for fetching data points
+   */
+  private Scanner getScanner(final int salt_bucket, 
+      final RollupQuery from_rollup, final long scan_start, 
+      final long scan_end) throws HBaseException {
     final short metric_width = tsdb.metrics.width();
     
     // set the metric UID based on the TSUIDs if given, or the metric UID
@@ -1048,10 +1240,20 @@ final class TsdbQuery implements Query {
     // rely on having a few extra data points before & after the exact start
     // & end dates in order to do proper rate calculation or downsampling near
     // the "edges" of the graph.
-    final Scanner scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
-        (int) getScanStartTimeSeconds(), end_time == UNSET
+    final Scanner scanner;
+    if (from_rollup != null) {
+      // rollup rows span several intervals so widen the range to whole rows
+      scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric,
+          (int) from_rollup.scanStart(scan_start), scan_end == Long.MAX_VALUE
+          ? -1
+          : (int) from_rollup.scanEnd(scan_end),
+          from_rollup.getInterval().getTable(), TSDB.FAMILY());
+    } else {
+      scanner = QueryUtil.getMetricScanner(tsdb, salt_bucket, metric, 
+        (int) scan_start, scan_end == Long.MAX_VALUE
         ? -1  // Will scan until the end (0xFFF...).
-        : (int) getScanEndTimeSeconds(), tsdb.table, TSDB.FAMILY());
+        : (int) scan_end, tsdb.table, TSDB.FAMILY());
+    }
     if (tsuids != null && !tsuids.isEmpty()) {
       createAndSetTSUIDFilter(scanner);
     } else if (filters.size() > 0) {
@@ -1060,6 +1262,14 @@ final class TsdbQuery implements Query {
     return scanner;
   }
 
+  /**
+   * @return The downsampler the groups should use. Rollups emit partial
+   * aggregates that need combining rather than the query's function.
+   */
+  private DownsamplingSpecification groupDownsampler() {
+    return rollup == null ? downsampler : rollup.downsampler();
+  }
+
   /** Returns the UNIX timestamp from which we must start scanning.  */
   private long getScanStartTimeSeconds() {
     // Begin with the raw query start time.
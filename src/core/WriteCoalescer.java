@@ -0,0 +1,366 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.hbase.async.AppendRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Groups data points destined for the same row into a single RPC.
+ * <p>
+ * Every call to {@link TSDB#addPoint} normally results in its own single
+ * cell {@link PutRequest}.  When coalescing is enabled, points are parked
+ * here for up to {@code tsd.storage.coalesce.window_ms} milliseconds (or until
+ * {@code tsd.storage.coalesce.max_points} points are waiting on the same row)
+ * and then sent as a single multi-qualifier put.  If appends are enabled, the
+ * points are concatenated into a single {@link AppendRequest} instead, exactly
+ * as if they had been appended one after the other.
+ * <p>
+ * Row keys given to this class must be complete, i.e. the base time and the
+ * salt must already have been written.  Each caller gets its own deferred
+ * that is called back once the RPC carrying its point completes.
+ * @since 2.3
+ */
+final class WriteCoalescer {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteCoalescer.class);
+
+  /** The {@code TSDB} instance we belong to. */
+  private final TSDB tsdb;
+
+  /** Rows with points waiting to be written. */
+  private final ConcurrentSkipListMap<byte[], Batch> batches =
+      new ConcurrentSkipListMap<byte[], Batch>(Bytes.MEMCMP);
+
+  /** How long a point may wait for company before it's written.  */
+  private final int window;  // ms
+
+  /** Maximum number of points we'll hold for a single row.  */
+  private final int max_points;
+
+  /** How many rows currently have points waiting. */
+  private final AtomicInteger pending_rows = new AtomicInteger();
+
+  /** How many data points are currently waiting. */
+  private final AtomicInteger pending_points = new AtomicInteger();
+
+  private final AtomicLong points_coalesced = new AtomicLong();
+  private final AtomicLong rpcs_sent = new AtomicLong();
+  private final AtomicLong full_flushes = new AtomicLong();
+  private final AtomicLong rpc_errors = new AtomicLong();
+
+  /**
+   * Time (in ms) the oldest point of a batch waited before its RPC was sent.
+   * Buckets of 1ms up to 100ms then exponential up to 16s.
+   */
+  private final Histogram flush_latency = new Histogram(16000, (short) 1, 100);
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @throws IllegalArgumentException if the window or max points are invalid.
+   */
+  WriteCoalescer(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    window = tsdb.config.getInt("tsd.storage.coalesce.window_ms");
+    max_points = tsdb.config.getInt("tsd.storage.coalesce.max_points");
+    if (window < 1) {
+      throw new IllegalArgumentException(
+          "tsd.storage.coalesce.window_ms must be greater than 0");
+    }
+    if (max_points < 1) {
+      throw new IllegalArgumentException(
+          "tsd.storage.coalesce.max_points must be greater than 0");
+    }
+    if (tsdb.config.getBoolean("tsd.storage.coalesce.enable")) {
+      startCoalescerThread();
+    }
+  }
+
+  /**
+   * Queues a data point for writing.
+   * @param row The complete row key, including salt and base time. Must not
+   * be modified by the caller afterwards.
+   * @param qualifier The qualifier of the data point.
+   * @param value The value of the data point.
+   * @return A deferred called back with {@code null} once the RPC carrying
+   * the point completes, or with the exception if it failed.
+   */
+  Deferred<Object> add(final byte[] row, final byte[] qualifier,
+                       final byte[] value) {
+    while (true) {
+      Batch batch = batches.get(row);
+      if (batch == null) {
+        final Batch fresh = new Batch(row);
+        batch = batches.putIfAbsent(row, fresh);
+        if (batch == null) {
+          batch = fresh;
+          pending_rows.incrementAndGet();
+        }
+      }
+      final Deferred<Object> deferred = batch.add(qualifier, value);
+      if (deferred == null) {
+        // We raced with a flush that closed this batch, so try again with a
+        // new one.
+        continue;
+      }
+      pending_points.incrementAndGet();
+      points_coalesced.incrementAndGet();
+      if (batch.size() >= max_points) {
+        full_flushes.incrementAndGet();
+        flush(batch);
+      }
+      return deferred;
+    }
+  }
+
+  /**
+   * Forces all pending points out, regardless of how long they waited.
+   * @return A deferred called back once all the RPCs complete.
+   */
+  Deferred<ArrayList<Object>> flush() {
+    return flush(Long.MAX_VALUE);
+  }
+
+  /**
+   * Sends every batch whose first point was queued before the cut off.
+   * @param cut_off A timestamp in ms as per {@link System#currentTimeMillis}.
+   * @return A deferred called back once all the RPCs complete.
+   */
+  private Deferred<ArrayList<Object>> flush(final long cut_off) {
+    final ArrayList<Deferred<Object>> ds = new ArrayList<Deferred<Object>>();
+    for (final Batch batch : batches.values()) {
+      if (batch.created <= cut_off) {
+        final Deferred<Object> d = flush(batch);
+        if (d != null) {
+          ds.add(d);
+        }
+      }
+    }
+    return Deferred.group(ds);
+  }
+
+  /**
+   * Closes the given batch and sends its points in a single RPC.
+   * @param batch The batch to send.
+   * @return The deferred of the RPC or null if another thread already sent
+   * this batch.
+   */
+  private Deferred<Object> flush(final Batch batch) {
+    if (!batch.close()) {
+      return null;
+    }
+    if (batches.remove(batch.row, batch)) {
+      pending_rows.decrementAndGet();
+    }
+    final int npoints = batch.qualifiers.size();
+    pending_points.addAndGet(-batch.deferreds.size());
+    flush_latency.add(
+        (int) Math.max(0, System.currentTimeMillis() - batch.created));
+
+    final Deferred<Object> rpc;
+    if (tsdb.config.enable_appends()) {
+      int size = 0;
+      for (int i = 0; i < npoints; i++) {
+        size += batch.qualifiers.get(i).length + batch.values.get(i).length;
+      }
+      final byte[] appended = new byte[size];
+      int pos = 0;
+      for (int i = 0; i < npoints; i++) {
+        final byte[] qualifier = batch.qualifiers.get(i);
+        final byte[] value = batch.values.get(i);
+        System.arraycopy(qualifier, 0, appended, pos, qualifier.length);
+        pos += qualifier.length;
+        System.arraycopy(value, 0, appended, pos, value.length);
+        pos += value.length;
+      }
+      rpc = tsdb.client.append(new AppendRequest(tsdb.table, batch.row,
+          TSDB.FAMILY, AppendDataPoints.APPEND_COLUMN_QUALIFIER, appended));
+    } else {
+      final byte[][] qualifiers = batch.qualifiers.toArray(new byte[npoints][]);
+      final byte[][] values = batch.values.toArray(new byte[npoints][]);
+      rpc = tsdb.client.put(new PutRequest(tsdb.table, batch.row, TSDB.FAMILY,
+          qualifiers, values));
+    }
+    rpcs_sent.incrementAndGet();
+    return rpc.addBoth(new NotifyCB(batch));
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    final long points = points_coalesced.get();
+    final long rpcs = rpcs_sent.get();
+    collector.record("coalesce.points", points);
+    collector.record("coalesce.rpcs", rpcs);
+    collector.record("coalesce.rpcs.full", full_flushes);
+    collector.record("coalesce.errors", rpc_errors);
+    collector.record("coalesce.pending", pending_points.get(), "type=points");
+    collector.record("coalesce.pending", pending_rows.get(), "type=rows");
+    // Points per RPC, multiplied by 100 to keep some precision.
+    collector.record("coalesce.ratio", rpcs == 0 ? 0 : points * 100 / rpcs);
+    collector.record("coalesce.flush.latency", flush_latency, null);
+  }
+
+  /**
+   * Calls back every caller waiting on a batch once its RPC completes.
+   */
+  private final class NotifyCB implements Callback<Object, Object> {
+    private final Batch batch;
+
+    NotifyCB(final Batch batch) {
+      this.batch = batch;
+    }
+
+    @Override
+    public Object call(final Object result) {
+      if (result instanceof Exception) {
+        rpc_errors.incrementAndGet();
+      }
+      final Object arg = result instanceof Exception ? result : null;
+      for (final Deferred<Object> deferred : batch.deferreds) {
+        try {
+          deferred.callback(arg);
+        } catch (Exception e) {
+          LOG.error("Unexpected exception calling back a coalesced write "
+              + "for row " + Arrays.toString(batch.row), e);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "notify " + batch.deferreds.size() + " coalesced writers";
+    }
+  }
+
+  /**
+   * Points waiting to be written to a single row.  All access is
+   * synchronized on the instance, and once closed a batch no longer
+   * accepts points.
+   */
+  private static final class Batch {
+    final byte[] row;
+    final long created = System.currentTimeMillis();
+    final ArrayList<byte[]> qualifiers = new ArrayList<byte[]>();
+    final ArrayList<byte[]> values = new ArrayList<byte[]>();
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>();
+    private boolean closed;
+
+    Batch(final byte[] row) {
+      this.row = row;
+    }
+
+    /** @return A deferred for the caller or null if the batch was closed. */
+    synchronized Deferred<Object> add(final byte[] qualifier,
+                                      final byte[] value) {
+      if (closed) {
+        return null;
+      }
+      // A newer value for the same qualifier replaces the older one, just as
+      // it would have if the two puts had been sent separately.
+      boolean replaced = false;
+      for (int i = 0; i < qualifiers.size(); i++) {
+        if (Bytes.equals(qualifiers.get(i), qualifier)) {
+          values.set(i, value);
+          replaced = true;
+          break;
+        }
+      }
+      if (!replaced) {
+        qualifiers.add(qualifier);
+        values.add(value);
+      }
+      final Deferred<Object> deferred = new Deferred<Object>();
+      deferreds.add(deferred);
+      return deferred;
+    }
+
+    synchronized int size() {
+      return qualifiers.size();
+    }
+
+    /** @return True if we closed the batch, false if it already was. */
+    synchronized boolean close() {
+      if (closed) {
+        return false;
+      }
+      closed = true;
+      return true;
+    }
+  }
+
+  /** Starts a coalescer thread.  Only one such thread is needed.  */
+  private void startCoalescerThread() {
+    final Thrd thread = new Thrd();
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Background thread sending the batches that waited long enough.
+   */
+  final class Thrd extends Thread {
+    public Thrd() {
+      super("WriteCoalescerThread");
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          if (pending_rows.get() > 0) {
+            flush(System.currentTimeMillis() - window);
+          }
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in write coalescer thread", e);
+        } catch (Throwable e) {
+          LOG.error("Uncaught *Throwable* in write coalescer thread", e);
+          try {
+            Thread.sleep(1000);  // Avoid busy looping creating new threads.
+          } catch (InterruptedException i) {
+            LOG.error("Write coalescer thread interrupted in error handling", i);
+            return;
+          }
+          startCoalescerThread();
+          return;
+        }
+        try {
+          Thread.sleep(window);
+        } catch (InterruptedException e) {
+          LOG.error("Write coalescer thread interrupted, doing one last flush", e);
+          flush();
+          return;
+        }
+      }
+    }
+  }
+}
@@ -14,6 +14,8 @@ TSDB_TABLE=${TSDB_TABLE-'tsdb'}
 UID_TABLE=${UID_TABLE-'tsdb-uid'}
 TREE_TABLE=${TREE_TABLE-'tsdb-tree'}
 META_TABLE=${META_TABLE-'tsdb-meta'}
+# Space separated rollup tables, e.g. 'tsdb-rollup-1h tsdb-rollup-1d'
+ROLLUP_TABLES=${ROLLUP_TABLES-''}
 BLOOMFILTER=${BLOOMFILTER-'ROW'}
 # LZO requires lzo2 64bit to be installed + the hadoop-gpl-compression jar.
 COMPRESSION=${COMPRESSION-'LZO'}
@@ -27,6 +29,14 @@ case $COMPRESSION in
     ;;
 esac
 
+ROLLUP_CREATES=
+for table in $ROLLUP_TABLES; do
+  ROLLUP_CREATES="$ROLLUP_CREATES
+create '$table',
+  {NAME => 't', VERSIONS => 1, COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
+"
+done
+
 # HBase scripts also use a variable named `HBASE_HOME', and having this
 # variable in the environment with a value somewhat different from what
 # they expect can confuse them in some cases.  So rename the variable.
@@ -45,4 +55,5 @@ create '$TREE_TABLE',
   
 create '$META_TABLE',
   {NAME => 'name', COMPRESSION => '$COMPRESSION', BLOOMFILTER => '$BLOOMFILTER'}
+$ROLLUP_CREATES
 EOF
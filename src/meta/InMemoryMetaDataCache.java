@@ -0,0 +1,497 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Built-in meta data cache that counts data points per TSUID in memory and
+ * writes the accumulated counts to the meta table in periodic batches, so
+ * TSUID tracking costs one RPC per series per flush instead of one per data
+ * point.
+ * <p>
+ * Counters live in {@code tsd.core.meta.cache.stripes} open addressing hash
+ * tables, each guarded by its own lock, holding the TSUIDs and their pending
+ * deltas in parallel arrays. Every {@code tsd.core.meta.cache.flush_interval}
+ * ms a background thread drains the deltas and, for each series written to
+ * since the last flush, either increments the counter by the delta (with
+ * {@code tsd.core.meta.enable_tsuid_incrementing}) or touches the counter
+ * column. The first time a TSUID is seen, and if
+ * {@code tsd.core.meta.enable_realtime_ts} is set, the flush also creates its
+ * {@link TSMeta} if it doesn't exist yet. Deltas of failed writes are put
+ * back and retried on the next flush.
+ * <p>
+ * Series that are not written to for
+ * {@code tsd.core.meta.cache.max_idle_flushes} flushes are dropped from memory
+ * so a new sighting checks the meta again.
+ * <p>
+ * To enable it, set {@code tsd.core.meta.cache.plugin} to
+ * {@code net.opentsdb.meta.InMemoryMetaDataCache}.
+ * @since 2.3
+ */
+public final class InMemoryMetaDataCache extends MetaDataCache {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(InMemoryMetaDataCache.class);
+
+  private static final String PREFIX = "tsd.core.meta.cache.";
+
+  /** Initial number of slots in each stripe, must be a power of 2. */
+  private static final int INITIAL_CAPACITY = 256;
+
+  /** Maximum number of stripes, they are picked with the top hash byte. */
+  private static final int MAX_STRIPES = 256;
+
+  private TSDB tsdb;
+  private Stripe[] stripes;
+  private long flush_interval;
+  private int max_idle_flushes;
+  private boolean tracking;
+  private boolean incrementing;
+  private boolean realtime_ts;
+  private FlushThread flusher;
+
+  /** Number of counter writes sent to the meta table. */
+  private final AtomicLong counter_writes = new AtomicLong();
+  /** Number of new TSUIDs checked for, and given, a meta entry. */
+  private final AtomicLong meta_checked = new AtomicLong();
+  /** Number of writes that failed and were put back for the next flush. */
+  private final AtomicLong errors = new AtomicLong();
+  /** Number of idle series dropped from memory. */
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    open(tsdb);
+    if (tracking) {
+      flusher = new FlushThread();
+      flusher.setDaemon(true);
+      flusher.start();
+    }
+  }
+
+  /**
+   * Loads the config and sets up the stripes without starting the flush
+   * thread.
+   * @param tsdb The TSDB to write the counters with.
+   * @throws IllegalArgumentException if the config is invalid.
+   */
+  void open(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final int num_stripes = config.getInt(PREFIX + "stripes");
+    flush_interval = config.getLong(PREFIX + "flush_interval");
+    max_idle_flushes = config.getInt(PREFIX + "max_idle_flushes");
+    if (num_stripes < 1 || num_stripes > MAX_STRIPES) {
+      throw new IllegalArgumentException(PREFIX + "stripes must be between 1 "
+          + "and " + MAX_STRIPES);
+    }
+    if (flush_interval < 1) {
+      throw new IllegalArgumentException(PREFIX
+          + "flush_interval must be greater than 0");
+    }
+    if (max_idle_flushes < 1) {
+      throw new IllegalArgumentException(PREFIX
+          + "max_idle_flushes must be greater than 0");
+    }
+    // round up so the stripe can be picked with a mask
+    int count = 1;
+    while (count < num_stripes) {
+      count <<= 1;
+    }
+    stripes = new Stripe[count];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    tracking = config.enable_tsuid_tracking();
+    incrementing = config.enable_tsuid_incrementing();
+    realtime_ts = config.enable_realtime_ts();
+    if (!tracking) {
+      LOG.warn("TSUID tracking is disabled, the meta data cache won't do "
+          + "anything");
+    }
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    if (flusher != null) {
+      flusher.interrupt();
+      try {
+        flusher.join(10000);
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for the flush thread");
+        Thread.currentThread().interrupt();
+      }
+    }
+    // write out whatever was counted since the last flush
+    return flush();
+  }
+
+  @Override
+  public String version() {
+    return "2.3.0";
+  }
+
+  /** @return The number of series in memory. */
+  long size() {
+    long series = 0;
+    for (final Stripe stripe : stripes) {
+      synchronized (stripe) {
+        series += stripe.size;
+      }
+    }
+    return series;
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    long series = 0;
+    long increments = 0;
+    for (final Stripe stripe : stripes) {
+      synchronized (stripe) {
+        series += stripe.size;
+        increments += stripe.increments;
+      }
+    }
+    collector.record("meta.cache.series", series);
+    collector.record("meta.cache.increments", increments);
+    collector.record("meta.cache.flushes", flushes.get());
+    collector.record("meta.cache.writes", counter_writes.get(),
+        "type=counter");
+    collector.record("meta.cache.writes", meta_checked.get(), "type=meta");
+    collector.record("meta.cache.errors", errors.get());
+    collector.record("meta.cache.expired", expired.get());
+  }
+
+  @Override
+  public void increment(final byte[] tsuid) {
+    if (!tracking) {
+      return;
+    }
+    final int hash = hash(tsuid);
+    final Stripe stripe = stripes[(hash >>> 24) & (stripes.length - 1)];
+    synchronized (stripe) {
+      stripe.add(tsuid, hash, 1, false);
+      stripe.increments++;
+    }
+  }
+
+  /**
+   * Puts back the delta of a write that failed so it's retried on the next
+   * flush.
+   * @param tsuid The TSUID of the series.
+   * @param delta The number of data points that weren't counted.
+   * @param fresh Whether or not the meta still has to be checked.
+   */
+  private void restore(final byte[] tsuid, final long delta,
+      final boolean fresh) {
+    final int hash = hash(tsuid);
+    final Stripe stripe = stripes[(hash >>> 24) & (stripes.length - 1)];
+    synchronized (stripe) {
+      stripe.add(tsuid, hash, delta, fresh);
+    }
+  }
+
+  /**
+   * Drains the counters of every stripe and writes them to the meta table.
+   * Stripes are only locked while they're drained.
+   * @return A deferred resolving to null once all of the writes have
+   * completed or failed.
+   */
+  Deferred<Object> flush() {
+    if (!tracking) {
+      return Deferred.fromResult(null);
+    }
+    final ArrayList<Deferred<Object>> deferreds =
+        new ArrayList<Deferred<Object>>();
+    final List<Pending> pending = new ArrayList<Pending>();
+    for (final Stripe stripe : stripes) {
+      pending.clear();
+      synchronized (stripe) {
+        expired.addAndGet(stripe.drain(pending, max_idle_flushes));
+      }
+      for (final Pending series : pending) {
+        if (series.fresh && realtime_ts) {
+          deferreds.add(TSMeta.storeIfNecessary(tsdb, series.tsuid)
+              .addCallbacks(new MetaCB(series.tsuid),
+                  new ErrBack(series.tsuid, 0, true)));
+        }
+        if (series.delta > 0) {
+          deferreds.add(writeCounter(series));
+        }
+      }
+    }
+    flushes.incrementAndGet();
+    if (deferreds.isEmpty()) {
+      return Deferred.fromResult(null);
+    }
+    LOG.debug("Flushing " + deferreds.size() + " meta writes");
+    return Deferred.group(deferreds).addCallback(
+        new Callback<Object, ArrayList<Object>>() {
+          @Override
+          public Object call(final ArrayList<Object> ignored) {
+            return null;
+          }
+          @Override
+          public String toString() {
+            return "Meta data cache flush";
+          }
+        });
+  }
+
+  /**
+   * Writes the counter of a series, incrementing it by the delta or simply
+   * touching it if counting is disabled.
+   * @param series The series to write.
+   * @return A deferred resolving to null once the write is done or failed.
+   */
+  @SuppressWarnings("unchecked")
+  private Deferred<Object> writeCounter(final Pending series) {
+    counter_writes.incrementAndGet();
+    final Deferred<Object> write;
+    if (incrementing) {
+      write = (Deferred) tsdb.getClient().atomicIncrement(
+          new AtomicIncrementRequest(tsdb.metaTable(), series.tsuid,
+              TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(), series.delta));
+    } else {
+      write = tsdb.getClient().put(new PutRequest(tsdb.metaTable(),
+          series.tsuid, TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER(),
+          Bytes.fromLong(1)));
+    }
+    return write.addCallbacks(new Callback<Object, Object>() {
+      @Override
+      public Object call(final Object ignored) {
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Meta data cache counter write";
+      }
+    }, new ErrBack(series.tsuid, series.delta, false));
+  }
+
+  /** Counts the meta entries checked. */
+  final class MetaCB implements Callback<Object, Boolean> {
+    final byte[] tsuid;
+    MetaCB(final byte[] tsuid) {
+      this.tsuid = tsuid;
+    }
+    @Override
+    public Object call(final Boolean stored) {
+      if (stored) {
+        meta_checked.incrementAndGet();
+      } else {
+        LOG.warn("Unable to store the meta for TSUID " + Arrays.toString(tsuid));
+      }
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "Meta data cache meta check";
+    }
+  }
+
+  /** Puts the work of a failed write back in the cache. */
+  final class ErrBack implements Callback<Object, Exception> {
+    final byte[] tsuid;
+    final long delta;
+    final boolean fresh;
+    ErrBack(final byte[] tsuid, final long delta, final boolean fresh) {
+      this.tsuid = tsuid;
+      this.delta = delta;
+      this.fresh = fresh;
+    }
+    @Override
+    public Object call(final Exception e) {
+      errors.incrementAndGet();
+      LOG.warn("Failed to flush the meta of TSUID " + Arrays.toString(tsuid)
+          + ", will retry", e);
+      restore(tsuid, delta, fresh);
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "Meta data cache flush errback";
+    }
+  }
+
+  /** @return A well mixed hash of the TSUID. */
+  private static int hash(final byte[] tsuid) {
+    int hash = Arrays.hashCode(tsuid);
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    return hash;
+  }
+
+  /** A series drained from a stripe, waiting to be written. */
+  private static final class Pending {
+    final byte[] tsuid;
+    final long delta;
+    final boolean fresh;
+    Pending(final byte[] tsuid, final long delta, final boolean fresh) {
+      this.tsuid = tsuid;
+      this.delta = delta;
+      this.fresh = fresh;
+    }
+  }
+
+  /**
+   * An open addressing hash table with linear probing mapping TSUIDs to the
+   * number of data points not flushed yet. Not thread safe, callers must
+   * synchronize on the stripe.
+   */
+  static final class Stripe {
+    byte[][] keys = new byte[INITIAL_CAPACITY][];
+    int[] hashes = new int[INITIAL_CAPACITY];
+    long[] deltas = new long[INITIAL_CAPACITY];
+    /** Whether or not the meta of the series has to be checked. */
+    boolean[] fresh = new boolean[INITIAL_CAPACITY];
+    /** Number of flushes since the series was last written to. */
+    int[] idle = new int[INITIAL_CAPACITY];
+    int size;
+    /** Number of data points counted by this stripe. */
+    long increments;
+
+    /**
+     * Adds the delta to the series, inserting it if needed. A new series is
+     * flagged so its meta is checked on the next flush.
+     */
+    void add(final byte[] tsuid, final int hash, final long delta,
+        final boolean check_meta) {
+      final int mask = keys.length - 1;
+      int i = hash & mask;
+      while (keys[i] != null) {
+        if (hashes[i] == hash && Arrays.equals(keys[i], tsuid)) {
+          deltas[i] += delta;
+          fresh[i] |= check_meta;
+          idle[i] = 0;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      keys[i] = tsuid;
+      hashes[i] = hash;
+      deltas[i] = delta;
+      fresh[i] = true;
+      idle[i] = 0;
+      if (++size * 4 >= keys.length * 3) {
+        rebuild(keys.length * 2);
+      }
+    }
+
+    /**
+     * Moves the pending deltas, and new series, to the list and drops the
+     * series that have been idle for too long.
+     * @param pending The list to add the series to write to.
+     * @param max_idle_flushes How many flushes a series can stay idle.
+     * @return The number of series dropped.
+     */
+    int drain(final List<Pending> pending, final int max_idle_flushes) {
+      int expired = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (keys[i] == null) {
+          continue;
+        }
+        if (deltas[i] > 0 || fresh[i]) {
+          pending.add(new Pending(keys[i], deltas[i], fresh[i]));
+          deltas[i] = 0;
+          fresh[i] = false;
+          idle[i] = 0;
+        } else if (++idle[i] > max_idle_flushes) {
+          keys[i] = null;
+          size--;
+          expired++;
+        }
+      }
+      if (expired > 0) {
+        // removing from a linear probing table breaks the probe chains
+        int capacity = INITIAL_CAPACITY;
+        while (size * 4 >= capacity * 3) {
+          capacity *= 2;
+        }
+        rebuild(capacity);
+      }
+      return expired;
+    }
+
+    /** Re-inserts the live series in tables of the given capacity. */
+    private void rebuild(final int capacity) {
+      final byte[][] old_keys = keys;
+      final int[] old_hashes = hashes;
+      final long[] old_deltas = deltas;
+      final boolean[] old_fresh = fresh;
+      final int[] old_idle = idle;
+      keys = new byte[capacity][];
+      hashes = new int[capacity];
+      deltas = new long[capacity];
+      fresh = new boolean[capacity];
+      idle = new int[capacity];
+      final int mask = capacity - 1;
+      for (int j = 0; j < old_keys.length; j++) {
+        if (old_keys[j] == null) {
+          continue;
+        }
+        int i = old_hashes[j] & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = old_keys[j];
+        hashes[i] = old_hashes[j];
+        deltas[i] = old_deltas[j];
+        fresh[i] = old_fresh[j];
+        idle[i] = old_idle[j];
+      }
+    }
+  }
+
+  /** Flushes the counters every flush interval. */
+  final class FlushThread extends Thread {
+    FlushThread() {
+      super("MetaDataCacheFlush");
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        try {
+          Thread.sleep(flush_interval);
+          // wait for the writes so a slow meta table isn't flooded
+          flush().joinUninterruptibly();
+        } catch (InterruptedException e) {
+          LOG.info("Meta data cache flush thread interrupted, stopping");
+          return;
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in the meta data cache flush thread",
+              e);
+        }
+      }
+    }
+  }
+}
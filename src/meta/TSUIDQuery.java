@@ -22,6 +22,7 @@ import java.util.Map;
 
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Internal;
+import net.opentsdb.core.LastValueCache;
 import net.opentsdb.core.RowKey;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -151,6 +152,8 @@ public class TSUIDQuery {
    * However if backscan is set, then we'll start with the current time and 
    * iterate back "back_scan" number of hours until we find a value.
    * <p>
+   * If the {@link LastValueCache} is enabled it's checked first and storage
+   * is only read on a miss.
    * @param resolve_names Whether or not to resolve the UIDs back to their
    * names when we find a value.
    * @param back_scan The number of hours back in time to scan
@@ -180,6 +183,11 @@ public class TSUIDQuery {
         } else if (incoming_tsuid != null) {
           setTSUID(incoming_tsuid);
         }
+        final IncomingDataPoint cached = getCachedPoint();
+        if (cached != null) {
+          return resolve_names ? resolveNames(cached) :
+            Deferred.fromResult(cached);
+        }
         if (back_scan < 1 && meta_enabled) {
           final GetRequest get = new GetRequest(tsdb.metaTable(), tsuid);
           get.family(TSMeta.FAMILY());
@@ -230,6 +238,17 @@ public class TSUIDQuery {
     tag_uids = Tags.resolveAll(tsdb, tags);
   }
   
+  /**
+   * Sets the time of the last write to the series. When the meta table isn't
+   * used, {@link #getLastPoint(boolean, int)} reads the row holding this
+   * time instead of the current hour.
+   * @param last_timestamp The timestamp in milliseconds of the last write
+   * @since 2.3
+   */
+  public void setLastTimestamp(final long last_timestamp) {
+    this.last_timestamp = last_timestamp;
+  }
+  
   /**
    * Fetches a list of TSUIDs given the metric and optional tag pairs. The query
    * format is similar to TsdbQuery but doesn't support grouping operators for 
@@ -551,7 +570,7 @@ public class TSUIDQuery {
       final byte[] tsuid, final boolean resolve_names, final int max_lookups, 
       final long last_timestamp) {
     final TSUIDQuery query = new TSUIDQuery(tsdb, tsuid);
-    query.last_timestamp = last_timestamp;
+    query.setLastTimestamp(last_timestamp);
     return query.getLastPoint(resolve_names, max_lookups);
   }
   
@@ -601,6 +620,26 @@ public class TSUIDQuery {
         .addCallbackDeferring(new MetricCB());
   }
   
+  /**
+   * Looks the TSUID up in the last value cache, if enabled. When back scanning
+   * the cached point has to fall within the scanned hours, otherwise we let
+   * storage have the final word.
+   * @return The cached data point or null on a miss.
+   */
+  private IncomingDataPoint getCachedPoint() {
+    final LastValueCache cache = tsdb.getLastValueCache();
+    if (cache == null) {
+      return null;
+    }
+    final IncomingDataPoint dp = cache.get(tsuid);
+    if (dp == null || back_scan < 1) {
+      return dp;
+    }
+    final long oldest = (Internal.baseTime(DateTime.currentTimeMillis()) -
+        (back_scan * 3600L)) * 1000;
+    return dp.getTimestamp() >= oldest ? dp : null;
+  }
+
   /**
    * Handles getting the results of the first GetRequest and keeps iterating
    * back in time until we find a point or run out of back scans.
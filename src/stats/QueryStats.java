@@ -22,6 +22,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
@@ -33,6 +34,7 @@ import com.google.common.cache.CacheBuilder;
 
 import net.opentsdb.core.Const;
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryMemoryBudget;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
@@ -66,6 +68,14 @@ public class QueryStats {
    * run simultaneously. */
   private static boolean ENABLE_DUPLICATES = true;
   
+  /** The status recorded for queries cancelled as their client went away.
+   * Not a standard code, it's the one nginx logs for the same case. */
+  public static final HttpResponseStatus CLIENT_CLOSED_REQUEST = 
+      new HttpResponseStatus(499, "Client Closed Request");
+  
+  /** Number of queries cancelled as their client went away */
+  private static final AtomicLong cancelled_queries = new AtomicLong();
+  
   /** Stores queries currently executing. If a thread doesn't call into 
    * markComplete then it's possible for this map to fill up.
    * Hash is the remote + query */
@@ -126,6 +136,16 @@ public class QueryStats {
   /** Whether or not the data was successfully sent to the client */
   private boolean sent_to_client;
   
+  /** Set when the client went away before the query completed */
+  private volatile boolean cancelled;
+  
+  /** Memory held by the sub queries until the query is done */
+  private final List<QueryMemoryBudget.Reservation> reservations = 
+      new ArrayList<QueryMemoryBudget.Reservation>(1);
+  
+  /** Set once the reservations were released, later ones are released at once */
+  private boolean reservations_released;
+  
   /**
    * A list of statistics surrounding individual queries
    */
@@ -138,6 +158,7 @@ public class QueryStats {
     ROWS_FROM_STORAGE ("rowsFromStorage", false),
     BYTES_FROM_STORAGE ("bytesFromStorage", false),
     SUCCESSFUL_SCAN ("successfulScan", false),
+    CANCELLED_SCAN ("cancelledScan", false),
     
     // Single Scanner stats
     DPS_PRE_FILTER ("dpsPreFilter", false),
@@ -157,6 +178,16 @@ public class QueryStats {
     QUERY_SCAN_TIME ("queryScanTime", true),
     GROUP_BY_TIME ("groupByTime", true),
     
+    // Query cache stats, in time blocks
+    CACHE_HITS ("cacheHits", false),
+    CACHE_MISSES ("cacheMisses", false),
+    
+    // Rollup plan, the interval read in seconds or 0 for the raw data
+    ROLLUP_INTERVAL ("rollupInterval", false),
+    
+    // The most bytes of rows the scanners held at a time
+    MAX_BYTES_HELD ("maxBytesHeld", false),
+    
     // Serialization time stats
     UID_TO_STRING_TIME ("uidToStringTime", true),
     AGGREGATED_SIZE ("emittedDPs", false),
@@ -164,6 +195,9 @@ public class QueryStats {
     AGGREGATION_TIME ("aggregationTime", true),
     SERIALIZATION_TIME ("serializationTime", true),
     
+    // Set when the client went away before the query completed
+    CANCELLED ("cancelled", false),
+    
     // Final stats
     PROCESSING_PRE_WRITE_TIME ("processingPreWriteTime", true),
     TOTAL_TIME ("totalTime", true),
@@ -390,6 +424,72 @@ public class QueryStats {
     QUERY_LOG.info(this.toString());
   }
   
+  /**
+   * Holds on to the memory reservation of a sub query until the query is
+   * done, as the spans are referenced until the response is serialized.
+   * Released right away if the query was already done.
+   * @param reservation The reservation to release once the query is done
+   */
+  public void addReservation(final QueryMemoryBudget.Reservation reservation) {
+    synchronized (reservations) {
+      if (!reservations_released) {
+        reservations.add(reservation);
+        return;
+      }
+    }
+    reservation.release();
+  }
+  
+  /**
+   * Hands back the memory held by the sub queries. Called from the last 
+   * callback of the query, whatever its outcome, so it doesn't depend on 
+   * every path marking the query serialized. Safe to call more than once.
+   */
+  public void releaseReservations() {
+    synchronized (reservations) {
+      reservations_released = true;
+      for (final QueryMemoryBudget.Reservation reservation : reservations) {
+        reservation.release();
+      }
+      reservations.clear();
+    }
+  }
+  
+  /**
+   * Cancels the query as the client closed the connection before it was
+   * answered. Scanners of the query close on their next batch of rows and
+   * serialization stops before the next series. Ignored once the query was
+   * serialized.
+   */
+  public void cancel() {
+    synchronized (this) {
+      if (cancelled || response != null) {
+        return;
+      }
+      cancelled = true;
+    }
+    cancelled_queries.incrementAndGet();
+    addStat(QueryStat.CANCELLED, 1);
+    LOG.info("Cancelling query as the client disconnected: " + remote_address);
+  }
+  
+  /** @return Whether or not the query was cancelled */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+  
+  /**
+   * Stops the query if it was cancelled.
+   * @throws QueryException with the {@link #CLIENT_CLOSED_REQUEST} status if
+   * the query was cancelled
+   */
+  public void checkCancelled() {
+    if (cancelled) {
+      throw new QueryException(CLIENT_CLOSED_REQUEST, 
+          "Query cancelled as the client disconnected");
+    }
+  }
+  
   /**
    * Builds a serializable map from the running and cached query maps to be
    * returned to a caller.
@@ -434,6 +534,7 @@ public class QueryStats {
    */
   public static void collectStats(final StatsCollector collector) {
     collector.record("query.count", running_queries.size(), "type=running");
+    collector.record("query.cancelled", cancelled_queries.get());
   }
   
   /**
@@ -453,11 +554,12 @@ public class QueryStats {
    * @param name The name of the stat to update
    * @param value The value to set
    */
-  public void addStat(final int query_index, final QueryStat name, 
-      final long value) {
+  public synchronized void addStat(final int query_index, 
+      final QueryStat name, final long value) {
     Map<QueryStat, Long> qs = query_stats.get(query_index);
     if (qs == null) {
-      qs = new HashMap<QueryStat, Long>();
+      // groups of a sub query may be serialized in parallel
+      qs = new ConcurrentHashMap<QueryStat, Long>();
       query_stats.put(query_index, qs);
     }
     qs.put(name, value);
@@ -586,12 +688,12 @@ public class QueryStats {
    * @param name The name of the stat
    * @param value The value to add to the existing value
    */
-  public void updateStat(final int query_index, final QueryStat name, 
-      final long value) {
+  public synchronized void updateStat(final int query_index, 
+      final QueryStat name, final long value) {
     Map<QueryStat, Long> qs = query_stats.get(query_index);
     long cum_time = value;
     if (qs == null) {
-      qs = new HashMap<QueryStat, Long>();
+      qs = new ConcurrentHashMap<QueryStat, Long>();
       query_stats.put(query_index, qs);
     }
     
@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 
 import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.CompressedDataPoints;
 import org.hbase.async.DeleteRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.KeyValue;
@@ -182,7 +183,9 @@ final class DumpSeries {
     final byte[] value = kv.value();
     final int q_len = qualifier.length;
 
-    if (!AppendDataPoints.isAppendDataPoints(qualifier) && q_len % 2 != 0) {
+    if (!AppendDataPoints.isAppendDataPoints(qualifier) && 
+        !CompressedDataPoints.isCompressedDataPoints(qualifier) && 
+        q_len % 2 != 0) {
       if (!importformat) {
         // custom data object, not a data point
         if (kv.qualifier()[0] == Annotation.PREFIX()) {
@@ -206,12 +209,12 @@ final class DumpSeries {
       }
     } else {
       final Collection<Cell> cells;
-      if (q_len == 3) {
+      if (AppendDataPoints.isAppendDataPoints(qualifier)) {
         // append data points
         final AppendDataPoints adps = new AppendDataPoints();
         cells = adps.parseKeyValue(tsdb, kv);
       } else {
-        // compacted column
+        // compacted or compressed column
         cells = Internal.extractDataPoints(kv);
       }
 
@@ -35,6 +35,7 @@ import org.hbase.async.Scanner;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.CompressedDataPoints;
 import net.opentsdb.core.Const;
 import net.opentsdb.core.IllegalDataException;
 import net.opentsdb.core.Internal;
@@ -95,6 +96,7 @@ final class Fsck {
   final AtomicLong annotations = new AtomicLong();
   final AtomicLong append_dps = new AtomicLong();
   final AtomicLong append_dps_fixed = new AtomicLong();
+  final AtomicLong compressed_columns = new AtomicLong();
   final AtomicLong bad_key = new AtomicLong();
   final AtomicLong bad_key_fixed = new AtomicLong();
   final AtomicLong duplicates = new AtomicLong();
@@ -397,6 +399,34 @@ final class Fsck {
               LOG.error("Unexpected exception processing append data point: " + kv, e);
             }
             continue;
+          } else if (CompressedDataPoints.isCompressedDataPoints(qual)) {
+            // check the data points like those of a compacted column
+            compressed_columns.getAndIncrement();
+            try {
+              final ArrayList<Cell> cells = 
+                  Internal.extractDataPoints(kv);
+              for (final Cell cell : cells) {
+                final long ts = cell.timestamp(base_time);
+                ArrayList<DP> dps = datapoints.get(ts);
+                if (dps == null) {
+                  dps = new ArrayList<DP>(1);
+                  datapoints.put(ts, dps);
+                }
+                dps.add(new DP(kv, cell));
+                qualifier_bytes += cell.qualifier().length;
+                value_bytes += cell.value().length;
+              }
+              compact_row = true;
+            } catch (IllegalDataException e) {
+              bad_compacted_columns.getAndIncrement();
+              LOG.error(e.getMessage());
+              if (options.fix() && options.deleteBadCompacts()) {
+                final DeleteRequest delete = new DeleteRequest(tsdb.dataTable(), kv);
+                tsdb.getClient().delete(delete);
+                bad_compacted_columns_deleted.getAndIncrement();
+              }
+            }
+            continue;
           }
           LOG.warn("Found an object possibly from a future version of OpenTSDB\n\t"
               + kv);
@@ -695,8 +725,9 @@ final class Fsck {
       
       if ((options.compact() || compact_row) && options.fix() 
           && qualifier_index > 0) {
-        if (qualifier_index == 2 || (qualifier_index == 4 && 
-            Internal.inMilliseconds(compact_qualifier))) {
+        final boolean single_value = qualifier_index == 2 || 
+            (qualifier_index == 4 && Internal.inMilliseconds(compact_qualifier));
+        if (single_value) {
           // we may have deleted all but one value from the row and that one 
           // value may have a different qualifier than it originally had. We
           // can't write a compacted column with a single data point as the length
@@ -708,10 +739,18 @@ final class Fsck {
           compact_value[value_index] = 1;
         }
         value_index++;
-        final byte[] new_qualifier = Arrays.copyOfRange(compact_qualifier, 0, 
+        byte[] new_qualifier = Arrays.copyOfRange(compact_qualifier, 0, 
             qualifier_index);
-        final byte[] new_value = Arrays.copyOfRange(compact_value, 0, 
+        byte[] new_value = Arrays.copyOfRange(compact_value, 0, 
             value_index);
+        if (!single_value && tsdb.getConfig().compress_compactions()) {
+          final byte[] compressed = 
+              CompressedDataPoints.encode(new_qualifier, new_value);
+          if (compressed != null) {
+            new_qualifier = CompressedDataPoints.QUALIFIER;
+            new_value = compressed;
+          }
+        }
         final PutRequest put = new PutRequest(tsdb.dataTable(), key, 
             TSDB.FAMILY(), new_qualifier, new_value);
         
@@ -1157,6 +1196,7 @@ final class Fsck {
     LOG.info("Rows Processed: " + rows_processed.get());
     LOG.info("Valid Datapoints: " + valid_datapoints.get());
     LOG.info("Annotations: " + annotations.get());
+    LOG.info("Compressed Columns: " + compressed_columns.get());
     LOG.info("Invalid Row Keys Found: " + bad_key.get());
     LOG.info("Invalid Rows Deleted: " + bad_key_fixed.get());
     LOG.info("Duplicate Datapoints: " + duplicates.get());
@@ -0,0 +1,463 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hbase.async.HBaseRpc;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.core.WritableDataPoints;
+
+/**
+ * Imports text files with several reader threads and writes every row as a
+ * single, already compacted column.
+ * <p>
+ * Readers parse lines into a shared buffer keyed by series and base hour.
+ * Once the buffer holds more than {@code max_points} data points it is
+ * swapped out and flushed: each row is sorted by timestamp (the last value
+ * read wins on duplicates) and written with one put through
+ * {@link TSDB#newBatch}, so the compaction queue never sees these points.
+ * A row that straddles two flushes ends up with two compacted columns, which
+ * the next compaction or fsck will merge.
+ */
+final class ParallelTextImporter {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(ParallelTextImporter.class);
+
+  /** How often, in milliseconds, the progress reporter logs. */
+  private static final long REPORT_INTERVAL = 10000;
+
+  private final TSDB tsdb;
+  private final int threads;
+  private final long max_points;
+  private final boolean skip_errors;
+
+  /** Files waiting for a reader. */
+  private final ConcurrentLinkedQueue<String> files =
+      new ConcurrentLinkedQueue<String>();
+
+  /** Readers hold the read lock while appending, a flush takes the write lock
+   * just long enough to swap the buffer. */
+  private final ReentrantReadWriteLock buffer_lock =
+      new ReentrantReadWriteLock();
+  /** Serializes flushes so at most one swapped buffer is in flight. */
+  private final Object flush_lock = new Object();
+  private ConcurrentHashMap<String, Series> buffer =
+      new ConcurrentHashMap<String, Series>();
+
+  private final AtomicLong buffered = new AtomicLong();
+  private final AtomicLong points_read = new AtomicLong();
+  private final AtomicLong points_written = new AtomicLong();
+  private final AtomicLong rows_written = new AtomicLong();
+  private final AtomicLong duplicates = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  /** The first error a reader gave up on, rethrown from {@link #run}. */
+  private volatile Exception failure;
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB to write to.
+   * @param threads How many files to read in parallel.
+   * @param max_points How many data points to buffer before flushing.
+   * @param skip_errors Whether or not to log and skip bad lines.
+   * @throws IllegalArgumentException if threads or max_points are less than 1
+   */
+  ParallelTextImporter(final TSDB tsdb, final int threads,
+                       final long max_points, final boolean skip_errors) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Threads must be at least 1: "
+          + threads);
+    }
+    if (max_points < 1) {
+      throw new IllegalArgumentException("Max points must be at least 1: "
+          + max_points);
+    }
+    this.tsdb = tsdb;
+    this.threads = threads;
+    this.max_points = max_points;
+    this.skip_errors = skip_errors;
+  }
+
+  /**
+   * Reads all of the given files, flushing as the buffer fills, and returns
+   * once everything has been written.
+   * @param paths The files to import, gzip'ed if they end in ".gz"
+   * @return The number of data points read.
+   * @throws Exception if a reader failed or a flush could not be written.
+   */
+  long run(final List<String> paths) throws Exception {
+    files.addAll(paths);
+    final long start_time = System.nanoTime();
+    final ProgressReporter reporter = new ProgressReporter(start_time);
+    reporter.start();
+    final List<Reader> readers = new ArrayList<Reader>(threads);
+    try {
+      for (int i = 0; i < Math.min(threads, paths.size()); i++) {
+        final Reader reader = new Reader(i);
+        readers.add(reader);
+        reader.start();
+      }
+      for (final Reader reader : readers) {
+        reader.join();
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      flush(true);
+    } finally {
+      reporter.interrupt();
+    }
+    final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
+    LOG.info(String.format("Total: imported %d data points into %d rows in "
+        + "%.3fs (%.1f points/s), %d duplicates, %d errors",
+        points_read.get(), rows_written.get(), time_delta,
+        points_read.get() / time_delta, duplicates.get(), errors.get()));
+    return points_read.get();
+  }
+
+  /**
+   * Parses a line and adds it to the buffer.
+   * @param line The line to parse
+   * @throws RuntimeException if the line is invalid
+   */
+  void addLine(final String line) {
+    final String[] words = Tags.splitString(line, ' ');
+    if (words.length < 4) {
+      throw new IllegalArgumentException("not enough fields: " + line);
+    }
+    final String metric = words[0];
+    if (metric.length() <= 0) {
+      throw new IllegalArgumentException("invalid metric: " + metric);
+    }
+    final long timestamp = Tags.parseLong(words[1]);
+    if (timestamp <= 0 || ((timestamp & Const.SECOND_MASK) != 0
+        && timestamp > 9999999999999L)) {
+      throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+    }
+    final String value = words[2];
+    if (value.length() <= 0) {
+      throw new IllegalArgumentException("invalid value: " + value);
+    }
+    final boolean is_float = !Tags.looksLikeInteger(value);
+    final long bits;
+    if (is_float) {
+      final float f = Float.parseFloat(value);
+      if (Float.isNaN(f) || Float.isInfinite(f)) {
+        throw new IllegalArgumentException("value is NaN or Infinite: "
+            + value);
+      }
+      bits = Float.floatToRawIntBits(f);
+    } else {
+      bits = Tags.parseLong(value);
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>();
+    for (int i = 3; i < words.length; i++) {
+      if (!words[i].isEmpty()) {
+        Tags.parse(tags, words[i]);
+      }
+    }
+    // sorted as the order of a HashMap depends on how it was filled
+    final String key = metric + new TreeMap<String, String>(tags);
+
+    buffer_lock.readLock().lock();
+    try {
+      Series series = buffer.get(key);
+      if (series == null) {
+        // resolves the UIDs so bad series fail here, with the line at hand
+        final Series fresh = new Series(tsdb.newBatch(metric, tags));
+        series = buffer.putIfAbsent(key, fresh);
+        if (series == null) {
+          series = fresh;
+        }
+      }
+      series.add(timestamp, bits, is_float);
+    } finally {
+      buffer_lock.readLock().unlock();
+    }
+    points_read.incrementAndGet();
+    if (buffered.incrementAndGet() >= max_points) {
+      flush(false);
+    }
+  }
+
+  /**
+   * Swaps out the buffer and writes every row in it. Readers keep filling the
+   * new buffer in the mean time.
+   * @param force Whether or not to flush even if another thread just did
+   * and the buffer is below the limit again.
+   */
+  void flush(final boolean force) {
+    synchronized (flush_lock) {
+      final Map<String, Series> flushing;
+      buffer_lock.writeLock().lock();
+      try {
+        if (buffer.isEmpty() || (!force && buffered.get() < max_points)) {
+          return;
+        }
+        flushing = buffer;
+        buffer = new ConcurrentHashMap<String, Series>();
+        buffered.set(0);
+      } finally {
+        buffer_lock.writeLock().unlock();
+      }
+
+      final ThrottleErrback errback = new ThrottleErrback();
+      final List<Deferred<Object>> deferreds = new ArrayList<Deferred<Object>>();
+      for (final Series series : flushing.values()) {
+        for (final Row row : series.rows.values()) {
+          deferreds.add(row.write(series.batch).addErrback(errback));
+          rows_written.incrementAndGet();
+        }
+      }
+      try {
+        Deferred.group(deferreds).joinUninterruptibly();
+      } catch (RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to write a batch of rows", e);
+      }
+    }
+  }
+
+  /** Number of data points read so far. */
+  long pointsRead() {
+    return points_read.get();
+  }
+
+  /** Number of data points written so far, excluding duplicates. */
+  long pointsWritten() {
+    return points_written.get();
+  }
+
+  /** Number of duplicate timestamps that were dropped. */
+  long duplicates() {
+    return duplicates.get();
+  }
+
+  /** Number of data points waiting in the buffer. */
+  long buffered() {
+    return buffered.get();
+  }
+
+  /** All of the data points buffered for one series. */
+  final class Series {
+    final WritableDataPoints batch;
+    /** Rows keyed on their base time, in seconds. */
+    final TreeMap<Long, Row> rows = new TreeMap<Long, Row>();
+
+    Series(final WritableDataPoints batch) {
+      this.batch = batch;
+    }
+
+    synchronized void add(final long timestamp, final long value,
+                          final boolean is_float) {
+      final long timestamp_ms = (timestamp & Const.SECOND_MASK) != 0 ?
+          timestamp : timestamp * 1000;
+      final long base_time = (timestamp_ms / 1000) -
+          ((timestamp_ms / 1000) % Const.MAX_TIMESPAN);
+      Row row = rows.get(base_time);
+      if (row == null) {
+        row = new Row(base_time);
+        rows.put(base_time, row);
+      }
+      row.add(timestamp, timestamp_ms, value, is_float);
+    }
+  }
+
+  /** The data points of one series in one base hour, in the order read. */
+  final class Row {
+    final long base_time;
+    int size;
+    long[] timestamps = new long[16];
+    long[] values = new long[16];
+    boolean[] floats = new boolean[16];
+    /** Offset from the base time in milliseconds. */
+    int[] offsets = new int[16];
+
+    Row(final long base_time) {
+      this.base_time = base_time;
+    }
+
+    void add(final long timestamp, final long timestamp_ms, final long value,
+             final boolean is_float) {
+      if (size == timestamps.length) {
+        final int length = size * 2;
+        timestamps = Arrays.copyOf(timestamps, length);
+        values = Arrays.copyOf(values, length);
+        floats = Arrays.copyOf(floats, length);
+        offsets = Arrays.copyOf(offsets, length);
+      }
+      timestamps[size] = timestamp;
+      values[size] = value;
+      floats[size] = is_float;
+      offsets[size] = (int) (timestamp_ms - base_time * 1000);
+      size++;
+    }
+
+    /**
+     * Sorts the points and writes them as one compacted column. Sorting
+     * packs the offset and the read order into a long so ties keep their
+     * read order and the last one wins.
+     * @param batch The batch for the series, reset by the previous persist.
+     * @return The deferred put.
+     */
+    Deferred<Object> write(final WritableDataPoints batch) {
+      final long[] order = new long[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = ((long) offsets[i] << 32) | i;
+      }
+      Arrays.sort(order);
+      for (int i = 0; i < size; i++) {
+        if (i + 1 < size && (order[i] >>> 32) == (order[i + 1] >>> 32)) {
+          duplicates.incrementAndGet();
+          continue;
+        }
+        final int idx = (int) order[i];
+        if (floats[idx]) {
+          batch.addPoint(timestamps[idx],
+              Float.intBitsToFloat((int) values[idx]));
+        } else {
+          batch.addPoint(timestamps[idx], values[idx]);
+        }
+        points_written.incrementAndGet();
+      }
+      return batch.persist();
+    }
+  }
+
+  /** Pulls files off the queue until it's empty. */
+  final class Reader extends Thread {
+    Reader(final int id) {
+      super("TextImporter-" + id);
+    }
+
+    @Override
+    public void run() {
+      String path;
+      while (failure == null && (path = files.poll()) != null) {
+        try {
+          importFile(path);
+        } catch (Exception e) {
+          LOG.error("Exception caught while processing file " + path, e);
+          failure = e;
+        }
+      }
+    }
+
+    private void importFile(final String path) throws IOException {
+      final long start_time = System.nanoTime();
+      final BufferedReader in = TextImporter.open(path);
+      long points = 0;
+      String line = null;
+      LOG.info("reading from file:" + path);
+      try {
+        while (failure == null && (line = in.readLine()) != null) {
+          try {
+            addLine(line);
+            points++;
+          } catch (RuntimeException e) {
+            if (!skip_errors) {
+              throw new RuntimeException("error while processing file "
+                  + path + " line=[" + line + "]", e);
+            }
+            errors.incrementAndGet();
+            LOG.error("Exception: " + e.getMessage());
+            LOG.error("error while processing file "
+                      + path + " line=" + line + "... Continuing");
+          }
+        }
+      } finally {
+        in.close();
+      }
+      final long time_delta = (System.nanoTime() - start_time) / 1000000;
+      LOG.info(String.format("Processed %s in %d ms, %d data points"
+                             + " (%.1f points/s)",
+                             path, time_delta, points,
+                             (points * 1000.0 / Math.max(time_delta, 1))));
+    }
+  }
+
+  /** Retries puts HBase pushed back on instead of losing them. */
+  final class ThrottleErrback implements Callback<Object, Exception> {
+    public Object call(final Exception arg) {
+      if (arg instanceof PleaseThrottleException) {
+        final PleaseThrottleException e = (PleaseThrottleException) arg;
+        LOG.warn("Need to throttle, HBase isn't keeping up.", e);
+        final HBaseRpc rpc = e.getFailedRpc();
+        if (rpc instanceof PutRequest) {
+          return tsdb.getClient().put((PutRequest) rpc)
+              .addErrback(this);  // Don't lose edits.
+        }
+        return null;
+      }
+      return arg;
+    }
+    public String toString() {
+      return "parallel import throttle errback";
+    }
+  }
+
+  /** Logs throughput and backlog while the import runs. */
+  final class ProgressReporter extends Thread {
+    private final long start_time;
+
+    ProgressReporter(final long start_time) {
+      super("Progress");
+      this.start_time = start_time;
+      setDaemon(true);
+    }
+
+    public void run() {
+      long last_read = 0;
+      long last_time = start_time;
+      while (true) {
+        try {
+          Thread.sleep(REPORT_INTERVAL);
+        } catch (InterruptedException e) {
+          return;
+        }
+        final long now = System.nanoTime();
+        final long read = points_read.get();
+        LOG.info(String.format("Read %d data points (%.1f points/s), wrote %d "
+            + "data points in %d rows, %d points buffered, %d files pending",
+            read, (read - last_read) * 1000000000.0 / (now - last_time),
+            points_written.get(), rows_written.get(), buffered.get(),
+            files.size()));
+        last_read = read;
+        last_time = now;
+      }
+    }
+  }
+}
@@ -0,0 +1,631 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.CompressedDataPoints;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Tool to compact the rows of a time range that were never compacted, e.g.
+ * because they were written while compactions were disabled or by a TSD that
+ * died before the end of the hour.
+ * <p>
+ * The data table is cut into splits, one per salt bucket and metric ID range,
+ * that are scanned in parallel. As row keys start with the metric, each split
+ * skips from one metric to the next so only the rows of the time range are
+ * read. Rows with more than one data point column are compacted with the same
+ * code as the TSD's compaction queue: the compacted column is written then the
+ * cells it replaces are deleted.
+ * <p>
+ * Compactions can be rate limited and a checkpoint file records the time
+ * range and how far each split got so an interrupted run can be resumed,
+ * over the same range even if the dates given were relative or defaulted.
+ * Progress is logged periodically.
+ * @since 2.3
+ */
+final class Recompact {
+  private static final Logger LOG = LoggerFactory.getLogger(Recompact.class);
+
+  /** Header of the checkpoint files */
+  static final String CHECKPOINT_HEADER = "# OpenTSDB recompact checkpoint";
+
+  /** The TSDB to use for access */
+  private final TSDB tsdb;
+
+  /** Base time of the first and last rows to compact, in seconds. Replaced
+   * by the range of the checkpoint when resuming. */
+  private long start_time;
+  private long end_time;
+
+  /** How many splits are scanned at once */
+  private final int threads;
+
+  /** Limits the compactions per second, null if unlimited */
+  private final RateLimiter limiter;
+
+  /** Whether or not to only count the rows that would be compacted */
+  private final boolean dry_run;
+
+  /** Where to record the progress, may be null */
+  private final File checkpoint;
+
+  /** How often to log the progress and write the checkpoint, in ms */
+  long report_interval = 10000;
+
+  /** Counters incremented by the workers */
+  final AtomicLong rows_scanned = new AtomicLong();
+  final AtomicLong rows_compacted = new AtomicLong();
+  final AtomicLong cells_compacted = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+  final AtomicLong seeks = new AtomicLong();
+
+  /** Splits left to scan */
+  private final ConcurrentLinkedQueue<Split> pending =
+      new ConcurrentLinkedQueue<Split>();
+
+  /**
+   * Default Ctor
+   * @param tsdb The TSDB to use for access, compactions must be enabled
+   * @param start_time The first base time to compact, in seconds
+   * @param end_time The last base time to compact, in seconds
+   * @param threads How many splits to scan at once
+   * @param rate Maximum number of rows to compact per second, 0 for no limit
+   * @param dry_run Whether or not to only count the rows to compact
+   * @param checkpoint Where to record the progress, may be null
+   * @throws IllegalArgumentException if the time range or the thread count
+   * is invalid
+   */
+  Recompact(final TSDB tsdb, final long start_time, final long end_time,
+      final int threads, final double rate, final boolean dry_run,
+      final File checkpoint) {
+    if (end_time < start_time) {
+      throw new IllegalArgumentException("End time " + end_time
+          + " is before the start time " + start_time);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+          "Number of threads must be 1 or more: " + threads);
+    }
+    this.tsdb = tsdb;
+    this.start_time = start_time - (start_time % Const.MAX_TIMESPAN);
+    this.end_time = end_time;
+    this.threads = threads;
+    limiter = rate > 0 ? RateLimiter.create(rate) : null;
+    this.dry_run = dry_run;
+    this.checkpoint = checkpoint;
+  }
+
+  /**
+   * Cuts the data table into splits, one per salt bucket and metric ID range,
+   * enough to keep every thread busy.
+   * @return The splits covering the whole table
+   */
+  List<Split> split() {
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    final int ranges = (threads + buckets - 1) / buckets;
+    final short metric_width = TSDB.metrics_width();
+    long max_id = CliUtils.getMaxMetricID(tsdb);
+    if (max_id < 1) {
+      max_id = Internal.getMaxUnsignedValueOnBytes(metric_width);
+    }
+    final long quotient = (max_id + ranges - 1) / ranges;
+
+    final List<Split> splits = new ArrayList<Split>(buckets * ranges);
+    for (int bucket = 0; bucket < buckets; bucket++) {
+      final byte[] salt = RowKey.getSaltBytes(bucket);
+      for (int i = 0; i < ranges; i++) {
+        final byte[] start = Arrays.copyOf(salt,
+            Const.SALT_WIDTH() + metric_width);
+        final byte[] stop;
+        if (i > 0) {
+          setMetric(start, i * quotient);
+        }
+        if (i + 1 < ranges && (i + 1) * quotient <= max_id) {
+          stop = Arrays.copyOf(salt, Const.SALT_WIDTH() + metric_width);
+          setMetric(stop, (i + 1) * quotient);
+        } else if (bucket + 1 < buckets) {
+          stop = RowKey.getSaltBytes(bucket + 1);
+        } else {
+          stop = HBaseClient.EMPTY_ARRAY;
+        }
+        splits.add(new Split(start, stop));
+        if (stop.length != Const.SALT_WIDTH() + metric_width) {
+          break;  // the metric IDs ran out
+        }
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Compacts the rows of the splits, blocking until all are done.
+   * @param splits The splits to scan, the ones already done are skipped
+   * @throws Exception If something goes pear shaped.
+   */
+  void run(final List<Split> splits) throws Exception {
+    final long start = System.currentTimeMillis();
+    LOG.info("Compacting rows from " + start_time + " to " + end_time
+        + " in " + splits.size() + " splits with " + threads + " threads"
+        + (dry_run ? ", dry run" : ""));
+    for (final Split split : splits) {
+      if (!split.done) {
+        pending.add(split);
+      }
+    }
+    final List<Thread> workers = new ArrayList<Thread>(threads);
+    for (int i = 0; i < threads; i++) {
+      final Worker worker = new Worker();
+      worker.setName("Recompact #" + i);
+      worker.start();
+      workers.add(worker);
+    }
+
+    final ProgressReporter reporter = new ProgressReporter(splits);
+    reporter.start();
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+    reporter.interrupt();
+    reporter.join();
+
+    logProgress(splits);
+    writeCheckpoint(splits);
+    LOG.info("Completed recompaction in ["
+        + (System.currentTimeMillis() - start) / 1000 + "] seconds");
+  }
+
+  /**
+   * Scans a split from where it stopped, skipping from one metric to the
+   * next to stay within the time range.
+   * @param split The split to scan
+   * @throws Exception If something goes pear shaped.
+   */
+  void scan(final Split split) throws Exception {
+    byte[] from = split.resume != null ? split.resume : seekKey(split.start);
+    while (from != null && (split.stop.length == 0 ||
+        Bytes.memcmp(from, split.stop) < 0)) {
+      split.resume = from;
+      from = scan(split, from);
+    }
+    split.done = true;
+  }
+
+  /**
+   * Scans a split from the given key until it reaches a row outside of the
+   * time range.
+   * @return The key to scan from next, or null if the split is done
+   */
+  private byte[] scan(final Split split, final byte[] from) throws Exception {
+    final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+    scanner.setStartKey(from);
+    if (split.stop.length > 0) {
+      scanner.setStopKey(split.stop);
+    }
+    scanner.setFamily(TSDB.FAMILY());
+    try {
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        final ArrayList<Deferred<Object>> writes =
+            new ArrayList<Deferred<Object>>(rows.size());
+        byte[] last = null;
+        boolean skip = false;
+        byte[] next = null;
+        for (final ArrayList<KeyValue> row : rows) {
+          final byte[] key = row.get(0).key();
+          final long base_time = Internal.baseTime(tsdb, key);
+          if (base_time < start_time) {
+            skip = true;
+            next = seekKey(key);
+            break;
+          } else if (base_time > end_time) {
+            skip = true;
+            next = nextMetric(key);
+            break;
+          }
+          last = key;
+          rows_scanned.incrementAndGet();
+          final int columns = countDataColumns(row);
+          if (columns < 2) {
+            continue;
+          }
+          rows_compacted.incrementAndGet();
+          cells_compacted.addAndGet(columns);
+          if (dry_run) {
+            continue;
+          }
+          if (limiter != null) {
+            limiter.acquire();
+          }
+          final Deferred<Object> write = Internal.recompact(tsdb, row);
+          if (write != null) {
+            writes.add(write.addErrback(new ErrorCB(key)));
+          }
+        }
+        // only move the checkpoint once the writes for the rows are done
+        Deferred.group(writes).joinUninterruptibly();
+        if (last != null) {
+          split.resume = last;
+        }
+        if (skip) {
+          seeks.incrementAndGet();
+          return next;
+        }
+      }
+      return null;
+    } finally {
+      scanner.close();
+    }
+  }
+
+  /**
+   * @param key A row key or a salt and metric prefix
+   * @return The key of the first row of the metric in the time range
+   */
+  private byte[] seekKey(final byte[] key) {
+    final int prefix = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final byte[] seek = Arrays.copyOf(key, prefix + Const.TIMESTAMP_BYTES);
+    Bytes.setInt(seek, (int) start_time, prefix);
+    return seek;
+  }
+
+  /**
+   * @param key A row key
+   * @return The key of the first row of the next metric in the time range or
+   * null if the metric was the last one of the salt bucket
+   */
+  private byte[] nextMetric(final byte[] key) {
+    final int prefix = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final byte[] seek = seekKey(key);
+    for (int i = prefix - 1; i >= Const.SALT_WIDTH(); i--) {
+      if (++seek[i] != 0) {
+        return seek;
+      }
+    }
+    return null;
+  }
+
+  /** Writes the metric ID on the bytes following the salt */
+  private static void setMetric(final byte[] key, final long id) {
+    final short width = TSDB.metrics_width();
+    final byte[] bytes = Bytes.fromLong(id);
+    System.arraycopy(bytes, 8 - width, key, Const.SALT_WIDTH(), width);
+  }
+
+  /**
+   * @return The number of data point columns of the row, single cells,
+   * compacted and compressed columns, that a compaction would merge
+   */
+  static int countDataColumns(final ArrayList<KeyValue> row) {
+    int columns = 0;
+    for (final KeyValue kv : row) {
+      final byte[] qual = kv.qualifier();
+      if ((qual.length & 1) == 0 ||
+          CompressedDataPoints.isCompressedDataPoints(qual)) {
+        columns++;
+      }
+    }
+    return columns;
+  }
+
+  /** Logs the failed compaction of a row, rate limited */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final byte[] key;
+
+    ErrorCB(final byte[] key) {
+      this.key = key;
+    }
+
+    @Override
+    public Object call(final Exception e) {
+      if (failures.incrementAndGet() % 100 == 1) {
+        LOG.error("Failed to compact row " + Arrays.toString(key), e);
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "recompact error";
+    }
+  }
+
+  /** Scans the pending splits until there are none left */
+  final class Worker extends Thread {
+    @Override
+    public void run() {
+      Split split;
+      while ((split = pending.poll()) != null) {
+        try {
+          scan(split);
+        } catch (Exception e) {
+          LOG.error("Failed to scan " + split + ", it will be resumed on the "
+              + "next run", e);
+        }
+      }
+    }
+  }
+
+  /** Logs the progress and writes the checkpoint periodically */
+  final class ProgressReporter extends Thread {
+    private final List<Split> splits;
+
+    ProgressReporter(final List<Split> splits) {
+      super("Progress");
+      this.splits = splits;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(report_interval);
+        } catch (InterruptedException e) {
+          return;
+        }
+        logProgress(splits);
+        try {
+          writeCheckpoint(splits);
+        } catch (IOException e) {
+          LOG.error("Failed to write the checkpoint " + checkpoint, e);
+        }
+      }
+    }
+  }
+
+  private void logProgress(final List<Split> splits) {
+    int done = 0;
+    for (final Split split : splits) {
+      if (split.done) {
+        done++;
+      }
+    }
+    LOG.info("Scanned " + rows_scanned.get() + " rows, "
+        + (dry_run ? "would compact " : "compacted ") + rows_compacted.get()
+        + " rows of " + cells_compacted.get() + " columns, " + failures.get()
+        + " failures, " + done + "/" + splits.size() + " splits done");
+  }
+
+  /**
+   * Writes the state of the splits to the checkpoint file, if any. The file
+   * is replaced at once so it's never left half written.
+   * @param splits The splits to record
+   * @throws IOException if the file couldn't be written
+   */
+  void writeCheckpoint(final List<Split> splits) throws IOException {
+    if (checkpoint == null) {
+      return;
+    }
+    final File tmp = new File(checkpoint.getPath() + ".tmp");
+    final PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+        new FileOutputStream(tmp), Const.ASCII_CHARSET));
+    try {
+      writer.println(CHECKPOINT_HEADER);
+      writer.println("range " + start_time + " " + end_time);
+      for (final Split split : splits) {
+        writer.println("split " + hex(split.start) + " " + hex(split.stop)
+            + " " + hex(split.resume) + " " + split.done);
+      }
+    } finally {
+      writer.close();
+    }
+    if (writer.checkError()) {
+      throw new IOException("Failed to write " + tmp);
+    }
+    if (!tmp.renameTo(checkpoint)) {
+      throw new IOException("Failed to rename " + tmp + " to " + checkpoint);
+    }
+  }
+
+  /**
+   * Reads the splits recorded in the checkpoint file and resumes the time
+   * range they were written for. The range given to the ctor is usually
+   * computed from the current time so it's replaced rather than compared.
+   * @return The splits or null if there is no checkpoint to resume from
+   * @throws IOException if the file couldn't be read
+   * @throws IllegalArgumentException if the file is invalid
+   */
+  List<Split> readCheckpoint() throws IOException {
+    if (checkpoint == null || !checkpoint.exists()) {
+      return null;
+    }
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(checkpoint), Const.ASCII_CHARSET));
+    try {
+      if (!CHECKPOINT_HEADER.equals(reader.readLine())) {
+        throw new IllegalArgumentException("Not a recompact checkpoint: "
+            + checkpoint);
+      }
+      final String range = reader.readLine();
+      final String[] times = range == null ? null : range.split(" ");
+      if (times == null || times.length != 3 || !"range".equals(times[0])) {
+        throw new IllegalArgumentException("Invalid range in the checkpoint "
+            + checkpoint + ": " + range);
+      }
+      final long start = Long.parseLong(times[1]);
+      final long end = Long.parseLong(times[2]);
+      if (start != start_time || end != end_time) {
+        LOG.info("Resuming the range from " + start + " to " + end
+            + " of the checkpoint " + checkpoint + " instead of " + start_time
+            + " to " + end_time);
+      }
+      start_time = start;
+      end_time = end;
+      final List<Split> splits = new ArrayList<Split>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] parts = line.split(" ");
+        if (parts.length != 5 || !"split".equals(parts[0])) {
+          throw new IllegalArgumentException("Invalid line in the checkpoint "
+              + checkpoint + ": " + line);
+        }
+        final Split split = new Split(unhex(parts[1]), unhex(parts[2]));
+        split.resume = parts[3].equals("-") ? null : unhex(parts[3]);
+        split.done = Boolean.parseBoolean(parts[4]);
+        splits.add(split);
+      }
+      return splits;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static String hex(final byte[] bytes) {
+    return bytes == null ? "-" : "x" + UniqueId.uidToString(bytes);
+  }
+
+  private static byte[] unhex(final String hex) {
+    if (hex.length() < 1 || hex.charAt(0) != 'x') {
+      throw new IllegalArgumentException("Invalid key in the checkpoint: "
+          + hex);
+    }
+    return hex.length() == 1 ? HBaseClient.EMPTY_ARRAY
+        : UniqueId.stringToUid(hex.substring(1));
+  }
+
+  /** A key range of the data table and how far it was scanned */
+  static final class Split {
+    final byte[] start;
+    final byte[] stop;
+    /** The key to resume the scan from, null if not started */
+    volatile byte[] resume;
+    volatile boolean done;
+
+    Split(final byte[] start, final byte[] stop) {
+      this.start = start;
+      this.stop = stop;
+    }
+
+    @Override
+    public String toString() {
+      return "split [" + hex(start) + ", " + hex(stop) + ")";
+    }
+  }
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: recompact [flags] START-DATE [END-DATE]\n"
+        + "Compacts the rows of the given time range that hold more than one\n"
+        + "data point column, e.g. rows written while compactions were off.\n"
+        + "END-DATE defaults to the last hour that's no longer written to.\n"
+        + "Dates are in the same format as for the 'query' command.\n"
+        + "With --checkpoint, an interrupted run is resumed when started again"
+        + " over the\ntime range it was first started with.\n");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  /**
+   * The main class executed from the "tsdb" script
+   * @param args Command line arguments to parse
+   * @throws Exception If something goes pear shaped
+   */
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    argp.addOption("--help", "Print help information.");
+    CliOptions.addCommon(argp);
+    argp.addOption("--threads", "NUMBER",
+        "Number of splits to scan at once. (default: # of cores * 2)");
+    argp.addOption("--rate", "ROWS",
+        "Maximum number of rows to compact per second. (default: unlimited)");
+    argp.addOption("--checkpoint", "PATH",
+        "File recording the progress to resume from.");
+    argp.addOption("--dry-run", "Only count the rows that would be compacted.");
+    args = CliOptions.parse(argp, args);
+    if (argp.has("--help")) {
+      usage(argp, "", 0);
+    }
+    if (args == null || args.length < 1 || args.length > 2) {
+      usage(argp, "Invalid usage", 1);
+    }
+
+    final Config config = CliOptions.getConfig(argp);
+    // the rows are written back by the compaction code, whatever the TSDs do
+    config.enableCompactions();
+    final long start = DateTime.parseDateTimeString(args[0], null) / 1000;
+    // never touch the rows that may still be written to
+    final long last_closed = System.currentTimeMillis() / 1000
+        - Const.MAX_TIMESPAN - 1;
+    final long end = args.length > 1
+        ? Math.min(DateTime.parseDateTimeString(args[1], null) / 1000,
+            last_closed)
+        : last_closed;
+    final int threads = argp.has("--threads")
+        ? Integer.parseInt(argp.get("--threads"))
+        : Runtime.getRuntime().availableProcessors() * 2;
+    final double rate = argp.has("--rate")
+        ? Double.parseDouble(argp.get("--rate")) : 0;
+    final File checkpoint = argp.has("--checkpoint")
+        ? new File(argp.get("--checkpoint")) : null;
+    final boolean dry_run = argp.has("--dry-run");
+    argp = null;
+
+    final TSDB tsdb = new TSDB(config);
+    int retval = 0;
+    try {
+      tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+      final Recompact recompact = new Recompact(tsdb, start, end, threads,
+          rate, dry_run, checkpoint);
+      List<Split> splits = recompact.readCheckpoint();
+      if (splits != null) {
+        LOG.info("Resuming from the checkpoint " + checkpoint);
+      } else {
+        splits = recompact.split();
+      }
+      recompact.run(splits);
+      for (final Split split : splits) {
+        if (!split.done) {
+          retval = 1;
+        }
+      }
+      if (recompact.failures.get() > 0) {
+        retval = 1;
+      }
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(retval);
+  }
+}
@@ -0,0 +1,544 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Bytes.ByteMap;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.core.AppendDataPoints;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.core.RollupConfig;
+import net.opentsdb.core.RollupInterval;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+/**
+ * Tool to fill the rollup tables from the raw data of a time range.
+ * <p>
+ * Each salt bucket of the data table is scanned on its own thread, skipping
+ * from one metric to the next so only the rows of the time range are read.
+ * The points of every series are folded into the sum, count, min and max of
+ * each configured interval, which are written once all the rows of a metric
+ * were read. The range is widened back to the start of the coarsest interval
+ * and an interval is only written once it's complete, so running the tool
+ * again over the same or an overlapping range overwrites the same values.
+ * <p>
+ * Once a run completes without failures, the marker row of each table is
+ * extended with the range it covered. Queries only read the rollups within
+ * that range, so a run that would leave a gap isn't recorded until the gap
+ * is rolled up too. Rerun the tool over a range whose raw data changed.
+ * @since 2.3
+ */
+final class Rollup {
+  private static final Logger LOG = LoggerFactory.getLogger(Rollup.class);
+
+  /** The TSDB to use for access */
+  private final TSDB tsdb;
+
+  /** The intervals to fill, finest first */
+  private final List<RollupInterval> intervals;
+
+  /** First timestamp to read and the one to stop at, in seconds */
+  private final long start_time;
+  private final long end_time;
+
+  /** How many salt buckets are scanned at once */
+  private final int threads;
+
+  /** Counters incremented by the workers */
+  final AtomicLong rows_scanned = new AtomicLong();
+  final AtomicLong points_read = new AtomicLong();
+  final AtomicLong cells_written = new AtomicLong();
+  final AtomicLong failures = new AtomicLong();
+
+  /** Salt buckets left to scan */
+  private final ConcurrentLinkedQueue<Integer> pending =
+      new ConcurrentLinkedQueue<Integer>();
+
+  /**
+   * Default Ctor
+   * @param tsdb The TSDB to use for access
+   * @param config The rollup intervals to fill
+   * @param start_time The first timestamp to roll up, in seconds
+   * @param end_time The timestamp to stop at, exclusive, in seconds
+   * @param threads How many salt buckets to scan at once
+   * @throws IllegalArgumentException if the time range or the thread count
+   * is invalid
+   */
+  Rollup(final TSDB tsdb, final RollupConfig config, final long start_time,
+      final long end_time, final int threads) {
+    if (end_time <= start_time) {
+      throw new IllegalArgumentException("End time " + end_time
+          + " must be after the start time " + start_time);
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException(
+          "Number of threads must be 1 or more: " + threads);
+    }
+    this.tsdb = tsdb;
+    intervals = config.getIntervals();
+    this.start_time = intervals.get(intervals.size() - 1)
+        .intervalStart(start_time);
+    this.end_time = end_time;
+    this.threads = threads;
+  }
+
+  /**
+   * Rolls up the range, blocking until all the salt buckets are done.
+   * @throws Exception If something goes pear shaped.
+   */
+  void run() throws Exception {
+    final long start = System.currentTimeMillis();
+    final int buckets = Const.SALT_WIDTH() > 0 ? Const.SALT_BUCKETS() : 1;
+    LOG.info("Rolling up " + intervals + " from " + start_time + " to "
+        + end_time + " with " + Math.min(threads, buckets) + " threads");
+    for (int i = 0; i < buckets; i++) {
+      pending.add(i);
+    }
+    final List<Thread> workers = new ArrayList<Thread>(threads);
+    for (int i = 0; i < Math.min(threads, buckets); i++) {
+      final Worker worker = new Worker();
+      worker.setName("Rollup #" + i);
+      worker.start();
+      workers.add(worker);
+    }
+    for (final Thread worker : workers) {
+      worker.join();
+    }
+    LOG.info("Rolled up " + points_read.get() + " points from "
+        + rows_scanned.get() + " rows into " + cells_written.get()
+        + " cells with " + failures.get() + " failures in ["
+        + (System.currentTimeMillis() - start) / 1000 + "] seconds");
+    if (failures.get() > 0) {
+      LOG.warn("Not recording the rolled up range because of the failures");
+      return;
+    }
+    for (final RollupInterval interval : intervals) {
+      mark(interval);
+    }
+  }
+
+  /**
+   * Extends the completed range in the marker of an interval with the
+   * complete intervals of the run. The marker is left alone if the run
+   * neither overlaps nor touches it, as that would record a gap.
+   * @param interval The interval to mark
+   * @throws Exception If something goes pear shaped.
+   */
+  private void mark(final RollupInterval interval) throws Exception {
+    long start = interval.intervalStart(start_time);
+    if (start < start_time) {
+      start += interval.getInterval();  // partial, not written
+    }
+    long end = interval.intervalStart(end_time);
+    if (end <= start) {
+      return;
+    }
+    final long[] range = RollupConfig.readMarker(tsdb.getClient(), interval)
+        .joinUninterruptibly();
+    if (range != null) {
+      if (start > range[1] || end < range[0]) {
+        LOG.warn("Not recording the " + interval.getStringInterval()
+            + " rollups from " + start + " to " + end + " as they don't "
+            + "touch the completed range from " + range[0] + " to "
+            + range[1] + ", roll up the gap first");
+        return;
+      }
+      start = Math.min(start, range[0]);
+      end = Math.max(end, range[1]);
+    }
+    RollupConfig.writeMarker(tsdb.getClient(), interval, start, end)
+        .joinUninterruptibly();
+    LOG.info("The " + interval.getStringInterval() + " rollups are complete "
+        + "from " + start + " to " + end);
+  }
+
+  /**
+   * Scans a salt bucket, skipping from one metric to the next to stay within
+   * the time range, and writes the rollups of each metric.
+   * @param bucket The salt bucket to scan
+   * @throws Exception If something goes pear shaped.
+   */
+  void scan(final int bucket) throws Exception {
+    final int prefix = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final byte[] stop = Const.SALT_WIDTH() > 0 &&
+        bucket + 1 < Const.SALT_BUCKETS()
+        ? RowKey.getSaltBytes(bucket + 1) : HBaseClient.EMPTY_ARRAY;
+    byte[] from = seekKey(Arrays.copyOf(RowKey.getSaltBytes(bucket), prefix));
+    final ByteMap<Series> series = new ByteMap<Series>();
+    byte[] metric = null;
+    while (from != null) {
+      final Scanner scanner = tsdb.getClient().newScanner(tsdb.dataTable());
+      scanner.setStartKey(from);
+      if (stop.length > 0) {
+        scanner.setStopKey(stop);
+      }
+      scanner.setFamily(TSDB.FAMILY());
+      from = null;
+      try {
+        ArrayList<ArrayList<KeyValue>> rows;
+        scan:
+        while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+          for (final ArrayList<KeyValue> row : rows) {
+            final byte[] key = row.get(0).key();
+            final long base_time = Internal.baseTime(tsdb, key);
+            if (base_time < start_time - (start_time % Const.MAX_TIMESPAN)) {
+              from = seekKey(key);
+              break scan;
+            } else if (base_time >= end_time) {
+              from = nextMetric(key);
+              break scan;
+            }
+            if (metric != null && Bytes.memcmp(metric, key, 0, prefix) != 0) {
+              flush(series);
+            }
+            metric = key;
+            rows_scanned.incrementAndGet();
+            addRow(series, key, base_time, row);
+          }
+        }
+      } finally {
+        scanner.close();
+      }
+    }
+    flush(series);
+  }
+
+  /**
+   * Folds the points of a row in the aggregates of its series.
+   * @param series The series of the metric being scanned
+   * @param key The row key
+   * @param base_time The base time of the row
+   * @param row The cells of the row
+   */
+  private void addRow(final ByteMap<Series> series, final byte[] key,
+      final long base_time, final ArrayList<KeyValue> row) {
+    final byte[] series_key = key.clone();
+    Internal.setBaseTime(series_key, 0);
+    Series aggregates = series.get(series_key);
+    if (aggregates == null) {
+      aggregates = new Series(intervals.size());
+      series.put(series_key, aggregates);
+    }
+
+    final ArrayList<KeyValue> columns = new ArrayList<KeyValue>(row.size());
+    final List<Cell> cells = new ArrayList<Cell>();
+    for (final KeyValue kv : row) {
+      if (AppendDataPoints.isAppendDataPoints(kv.qualifier())) {
+        cells.addAll(new AppendDataPoints().parseKeyValue(tsdb, kv));
+      } else {
+        columns.add(kv);
+      }
+    }
+    cells.addAll(Internal.extractDataPoints(columns, columns.size()));
+    for (final Cell cell : cells) {
+      final long timestamp = cell.timestamp(base_time) / 1000;
+      if (timestamp < start_time || timestamp >= end_time) {
+        continue;
+      }
+      points_read.incrementAndGet();
+      final Number value = cell.parseValue();
+      for (int i = 0; i < intervals.size(); i++) {
+        aggregates.add(i, intervals.get(i).intervalStart(timestamp), value);
+      }
+    }
+  }
+
+  /**
+   * Writes the complete intervals of the series then forgets them.
+   * @param series The series of the metric that was scanned
+   * @throws Exception If something goes pear shaped.
+   */
+  private void flush(final ByteMap<Series> series) throws Exception {
+    final ArrayList<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    for (final Map.Entry<byte[], Series> entry : series.entrySet()) {
+      for (int i = 0; i < intervals.size(); i++) {
+        writes.addAll(write(intervals.get(i), entry.getKey(),
+            entry.getValue().intervals.get(i)));
+      }
+    }
+    series.clear();
+    Deferred.group(writes).joinUninterruptibly();
+  }
+
+  /**
+   * Writes the complete intervals of one series to a rollup table, one put
+   * per rollup row.
+   * @param interval The interval to write
+   * @param series_key The key of the series with a zeroed base time
+   * @param aggregates The aggregates per interval start
+   * @return The writes
+   */
+  private List<Deferred<Object>> write(final RollupInterval interval,
+      final byte[] series_key, final TreeMap<Long, Aggregate> aggregates) {
+    final List<Deferred<Object>> writes = new ArrayList<Deferred<Object>>();
+    long row_base = -1;
+    final List<byte[]> qualifiers = new ArrayList<byte[]>();
+    final List<byte[]> values = new ArrayList<byte[]>();
+    for (final Map.Entry<Long, Aggregate> entry : aggregates.entrySet()) {
+      final long timestamp = entry.getKey();
+      if (timestamp + interval.getInterval() > end_time) {
+        break;  // not complete
+      }
+      if (interval.rowBaseTime(timestamp) != row_base && !qualifiers.isEmpty()) {
+        writes.add(put(interval, series_key, row_base, qualifiers, values));
+        qualifiers.clear();
+        values.clear();
+      }
+      row_base = interval.rowBaseTime(timestamp);
+      entry.getValue().toCells(interval, timestamp, qualifiers, values);
+    }
+    if (!qualifiers.isEmpty()) {
+      writes.add(put(interval, series_key, row_base, qualifiers, values));
+    }
+    return writes;
+  }
+
+  private Deferred<Object> put(final RollupInterval interval,
+      final byte[] series_key, final long row_base,
+      final List<byte[]> qualifiers, final List<byte[]> values) {
+    final byte[] key = series_key.clone();
+    Internal.setBaseTime(key, (int) row_base);
+    final PutRequest put = new PutRequest(interval.getTable(), key,
+        TSDB.FAMILY(), qualifiers.toArray(new byte[qualifiers.size()][]),
+        values.toArray(new byte[values.size()][]));
+    cells_written.addAndGet(qualifiers.size());
+    return tsdb.getClient().put(put).addErrback(new ErrorCB(key));
+  }
+
+  /**
+   * @param key A row key or a salt and metric prefix
+   * @return The key of the first row of the metric in the time range
+   */
+  private byte[] seekKey(final byte[] key) {
+    final int prefix = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final byte[] seek = Arrays.copyOf(key, prefix + Const.TIMESTAMP_BYTES);
+    Bytes.setInt(seek, (int) (start_time - (start_time % Const.MAX_TIMESPAN)),
+        prefix);
+    return seek;
+  }
+
+  /**
+   * @param key A row key
+   * @return The key of the first row of the next metric in the time range or
+   * null if the metric was the last one of the salt bucket
+   */
+  private byte[] nextMetric(final byte[] key) {
+    final int prefix = Const.SALT_WIDTH() + TSDB.metrics_width();
+    final byte[] seek = seekKey(key);
+    for (int i = prefix - 1; i >= Const.SALT_WIDTH(); i--) {
+      if (++seek[i] != 0) {
+        return seek;
+      }
+    }
+    return null;
+  }
+
+  /** The aggregates of a series, per interval then per interval start */
+  private static final class Series {
+    final List<TreeMap<Long, Aggregate>> intervals;
+
+    Series(final int count) {
+      intervals = new ArrayList<TreeMap<Long, Aggregate>>(count);
+      for (int i = 0; i < count; i++) {
+        intervals.add(new TreeMap<Long, Aggregate>());
+      }
+    }
+
+    void add(final int interval, final long timestamp, final Number value) {
+      Aggregate aggregate = intervals.get(interval).get(timestamp);
+      if (aggregate == null) {
+        aggregate = new Aggregate();
+        intervals.get(interval).put(timestamp, aggregate);
+      }
+      aggregate.add(value);
+    }
+  }
+
+  /** The sum, count, min and max of the points of one interval */
+  static final class Aggregate {
+    /** Whether or not all the values were longs */
+    boolean is_integer = true;
+    long long_sum;
+    double double_sum;
+    long count;
+    long long_min = Long.MAX_VALUE;
+    long long_max = Long.MIN_VALUE;
+    double double_min = Double.POSITIVE_INFINITY;
+    double double_max = Double.NEGATIVE_INFINITY;
+
+    void add(final Number value) {
+      if (value instanceof Long && is_integer) {
+        long_sum += value.longValue();
+        long_min = Math.min(long_min, value.longValue());
+        long_max = Math.max(long_max, value.longValue());
+      } else {
+        if (is_integer) {
+          double_sum = long_sum;
+          if (count > 0) {
+            double_min = long_min;
+            double_max = long_max;
+          }
+          is_integer = false;
+        }
+        double_sum += value.doubleValue();
+        double_min = Math.min(double_min, value.doubleValue());
+        double_max = Math.max(double_max, value.doubleValue());
+      }
+      count++;
+    }
+
+    /** Appends the cells of the four aggregates */
+    void toCells(final RollupInterval interval, final long timestamp,
+        final List<byte[]> qualifiers, final List<byte[]> values) {
+      qualifiers.add(interval.qualifier(RollupInterval.SUM, timestamp,
+          is_integer));
+      values.add(is_integer ? Bytes.fromLong(long_sum)
+          : Bytes.fromLong(Double.doubleToRawLongBits(double_sum)));
+      qualifiers.add(interval.qualifier(RollupInterval.COUNT, timestamp, true));
+      values.add(Bytes.fromLong(count));
+      qualifiers.add(interval.qualifier(RollupInterval.MIN, timestamp,
+          is_integer));
+      values.add(is_integer ? Bytes.fromLong(long_min)
+          : Bytes.fromLong(Double.doubleToRawLongBits(double_min)));
+      qualifiers.add(interval.qualifier(RollupInterval.MAX, timestamp,
+          is_integer));
+      values.add(is_integer ? Bytes.fromLong(long_max)
+          : Bytes.fromLong(Double.doubleToRawLongBits(double_max)));
+    }
+  }
+
+  /** Logs the failed write of a rollup row, rate limited */
+  private final class ErrorCB implements Callback<Object, Exception> {
+    private final byte[] key;
+
+    ErrorCB(final byte[] key) {
+      this.key = key;
+    }
+
+    @Override
+    public Object call(final Exception e) {
+      if (failures.incrementAndGet() % 100 == 1) {
+        LOG.error("Failed to write rollup row " + Arrays.toString(key), e);
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return "rollup error";
+    }
+  }
+
+  /** Scans the pending salt buckets until there are none left */
+  final class Worker extends Thread {
+    @Override
+    public void run() {
+      Integer bucket;
+      while ((bucket = pending.poll()) != null) {
+        try {
+          scan(bucket);
+        } catch (Exception e) {
+          failures.incrementAndGet();
+          LOG.error("Failed to roll up salt bucket " + bucket, e);
+        }
+      }
+    }
+  }
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: rollup [flags] START-DATE [END-DATE]\n"
+        + "Fills the rollup tables configured with tsd.rollups.intervals from\n"
+        + "the raw data of the given time range. The start is moved back to\n"
+        + "the start of the coarsest interval and only complete intervals are\n"
+        + "written. END-DATE defaults to the last hour that's no longer\n"
+        + "written to. Queries read the range recorded by the runs that\n"
+        + "completed without failures, as long as the runs left no gap.\n"
+        + "Dates are in the same format as for the 'query' command.\n");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  /**
+   * The main class executed from the "tsdb" script
+   * @param args Command line arguments to parse
+   * @throws Exception If something goes pear shaped
+   */
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    argp.addOption("--help", "Print help information.");
+    CliOptions.addCommon(argp);
+    argp.addOption("--threads", "NUMBER",
+        "Number of salt buckets to scan at once. (default: # of cores * 2)");
+    args = CliOptions.parse(argp, args);
+    if (argp.has("--help")) {
+      usage(argp, "", 0);
+    }
+    if (args == null || args.length < 1 || args.length > 2) {
+      usage(argp, "Invalid usage", 1);
+    }
+
+    final Config config = CliOptions.getConfig(argp);
+    final long start = DateTime.parseDateTimeString(args[0], null) / 1000;
+    // never roll up the hours that may still be written to
+    final long last_closed = System.currentTimeMillis() / 1000
+        - Const.MAX_TIMESPAN;
+    final long end = args.length > 1
+        ? Math.min(DateTime.parseDateTimeString(args[1], null) / 1000,
+            last_closed)
+        : last_closed;
+    final int threads = argp.has("--threads")
+        ? Integer.parseInt(argp.get("--threads"))
+        : Runtime.getRuntime().availableProcessors() * 2;
+    argp = null;
+
+    final TSDB tsdb = new TSDB(config);
+    int retval = 0;
+    try {
+      tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+      final Rollup rollup = new Rollup(tsdb, new RollupConfig(config), start,
+          end, threads);
+      rollup.run();
+      if (rollup.failures.get() > 0) {
+        retval = 1;
+      }
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(retval);
+  }
+}
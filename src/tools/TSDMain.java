@@ -193,6 +193,10 @@ final class TSDMain {
       
       // Make sure we don't even start if we can't find our tables.
       tsdb.checkNecessaryTablesExist().joinUninterruptibly();
+      if (tsdb.getLastValueCache() != null) {
+        // loads in the background while we start serving
+        tsdb.getLastValueCache().warmUp();
+      }
       
       registerShutdownHook();
       final ServerBootstrap server = new ServerBootstrap(factory);
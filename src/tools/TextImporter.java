@@ -17,6 +17,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
 
@@ -55,6 +56,10 @@ final class TextImporter {
     CliOptions.addAutoMetricFlag(argp);
     argp.addOption("--skip-errors", "Whether or not to skip exceptions "
         + "during processing");
+    argp.addOption("--threads", "NUM", "Read NUM files in parallel and write "
+        + "pre-compacted rows, bypassing the compaction queue");
+    argp.addOption("--max-points", "NUM", "With --threads, the number of data "
+        + "points to buffer in memory before flushing (default: 1000000)");
     args = CliOptions.parse(argp, args);
     if (args == null) {
       usage(argp, 1);
@@ -67,18 +72,26 @@ final class TextImporter {
 
     final TSDB tsdb = new TSDB(config);
     final boolean skip_errors = argp.has("--skip-errors");
+    final int threads = Integer.parseInt(argp.get("--threads", "0"));
+    final long max_points = Long.parseLong(argp.get("--max-points", "1000000"));
     tsdb.checkNecessaryTablesExist().joinUninterruptibly();
     argp = null;
     try {
-      int points = 0;
-      final long start_time = System.nanoTime();
-      for (final String path : args) {
-        points += importFile(tsdb.getClient(), tsdb, path, skip_errors);
+      if (threads > 0) {
+        new ParallelTextImporter(tsdb, threads, max_points, skip_errors)
+          .run(Arrays.asList(args));
+      } else {
+        int points = 0;
+        final long start_time = System.nanoTime();
+        for (final String path : args) {
+          points += importFile(tsdb.getClient(), tsdb, path, skip_errors);
+        }
+        final double time_delta = 
+            (System.nanoTime() - start_time) / 1000000000.0;
+        LOG.info(String.format("Total: imported %d data points in %.3fs"
+                               + " (%.1f points/s)",
+                               points, time_delta, (points / time_delta)));
       }
-      final double time_delta = (System.nanoTime() - start_time) / 1000000000.0;
-      LOG.info(String.format("Total: imported %d data points in %.3fs"
-                             + " (%.1f points/s)",
-                             points, time_delta, (points / time_delta)));
       // TODO(tsuna): Figure out something better than just writing to stderr.
       tsdb.collectStats(new StatsCollector("tsd") {
         @Override
@@ -258,7 +271,7 @@ final class TextImporter {
    * @return A buffered reader to read the file, decompressing it if needed.
    * @throws IOException when shit happens.
    */
-  private static BufferedReader open(final String path) throws IOException {
+  static BufferedReader open(final String path) throws IOException {
     if (path.equals("-")) {
       return new BufferedReader(new InputStreamReader(System.in));
     }
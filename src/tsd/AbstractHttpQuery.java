@@ -26,7 +26,9 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -76,6 +78,9 @@ public abstract class AbstractHttpQuery {
   /** Used for recording query statistics */
   protected QueryStats stats;
   
+  /** Cancels the query if the client goes away, null if not registered */
+  private ChannelFutureListener cancel_listener;
+  
   /**
    * Set up required internal state.  For subclasses.
    * 
@@ -180,6 +185,41 @@ public abstract class AbstractHttpQuery {
     this.stats = stats;
   }
   
+  /**
+   * Cancels the query if the client closes the connection before it was
+   * answered so its scanners and serialization stop early instead of
+   * producing a response nobody will read. The listener is removed once the
+   * query is done.
+   * @param query_stats The stats of the query to cancel
+   */
+  public void cancelOnDisconnect(final QueryStats query_stats) {
+    /** Cancels the query when the channel is closed */
+    final class CancelListener implements ChannelFutureListener {
+      @Override
+      public void operationComplete(final ChannelFuture future) {
+        query_stats.cancel();
+      }
+      @Override
+      public String toString() {
+        return "Cancel query on disconnect listener";
+      }
+    }
+    
+    clearCancelOnDisconnect();
+    cancel_listener = new CancelListener();
+    // fires right away if the client is already gone
+    chan.getCloseFuture().addListener(cancel_listener);
+  }
+  
+  /** Removes the listener registered by {@link #cancelOnDisconnect}, if any,
+   * so keep-alive connections don't collect one per query */
+  protected final void clearCancelOnDisconnect() {
+    if (cancel_listener != null) {
+      chan.getCloseFuture().removeListener(cancel_listener);
+      cancel_listener = null;
+    }
+  }
+  
   /** Return the time in nanoseconds that this query object was 
    * created.
    */
@@ -352,6 +392,7 @@ public abstract class AbstractHttpQuery {
    * is to simply log the request info.  Can be overridden by subclasses.
    */
   public void done() {
+    clearCancelOnDisconnect();
     final int processing_time = processingTimeMillis();
    final String url = request.getUri();
    final String msg = String.format("HTTP %s done in %d ms", url, processing_time);
@@ -454,6 +495,67 @@ public abstract class AbstractHttpQuery {
     done();
   }
   
+  /**
+   * Starts a chunked HTTP reply. The content is then sent with
+   * {@link #sendChunk} and the reply completed with {@link #endChunkedReply}.
+   * @param status The status of the reply (e.g. 200 OK).
+   * @param contentType The content type of the reply.
+   * @return The future of the write or null if the client went away, in
+   * which case the query is done.
+   * @since 2.3
+   */
+  public ChannelFuture startChunkedReply(final HttpResponseStatus status,
+                                         final String contentType) {
+    if (!chan.isConnected()) {
+      if(stats != null) {
+        stats.markSendFailed();
+      }
+      done();
+      return null;
+    }
+    response.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+    response.setStatus(status);
+    response.setChunked(true);
+    HttpHeaders.setTransferEncodingChunked(response);
+    return chan.write(response);
+  }
+
+  /**
+   * Sends a chunk of a reply started with {@link #startChunkedReply}.
+   * @param buf The content of the chunk, must not be empty as an empty chunk
+   * ends the reply.
+   * @return The future of the write.
+   * @since 2.3
+   */
+  public ChannelFuture sendChunk(final ChannelBuffer buf) {
+    return chan.write(new DefaultHttpChunk(buf));
+  }
+
+  /**
+   * Ends a reply started with {@link #startChunkedReply} with the last, empty
+   * chunk.
+   * @param close Whether or not to close the connection afterwards even if
+   * the client asked to keep it alive, e.g. when the reply is incomplete.
+   * @since 2.3
+   */
+  public void endChunkedReply(final boolean close) {
+    if (!chan.isConnected()) {
+      if(stats != null) {
+        stats.markSendFailed();
+      }
+      done();
+      return;
+    }
+    final ChannelFuture future = chan.write(HttpChunk.LAST_CHUNK);
+    if (stats != null) {
+      future.addListener(new SendSuccess());
+    }
+    if (close || !HttpHeaders.isKeepAlive(request)) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+    done();
+  }
+  
   /** A simple class that marks a query as complete when the stats are set */
   private class SendSuccess implements ChannelFutureListener {
     @Override
@@ -0,0 +1,232 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Pushes back on clients writing data points when storage can't keep up.
+ * <p>
+ * Every put deferred handed to {@link #admit} is counted as in flight until
+ * it completes, and the time it took is folded into a moving average.  Once
+ * either crosses its high-water mark, reads are suspended on every channel
+ * that sent us data points, so clients fill up their socket buffers instead
+ * of our heap.  Reads resume once both are back under their low-water marks
+ * (or nothing is in flight anymore).
+ * <p>
+ * The thresholds are:
+ * <ul>
+ * <li>{@code tsd.network.backpressure.high_inflight} and
+ * {@code tsd.network.backpressure.low_inflight}: number of put RPCs waiting
+ * on storage</li>
+ * <li>{@code tsd.network.backpressure.high_latency_ms} and
+ * {@code tsd.network.backpressure.low_latency_ms}: smoothed put latency, 0
+ * disables the latency check</li>
+ * </ul>
+ * @since 2.3
+ */
+final class AdmissionController {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(AdmissionController.class);
+
+  /** Weight of a new latency sample in the moving average, as a shift. */
+  private static final int LATENCY_SMOOTHING = 4;  // 1/16th
+
+  private final int high_inflight;
+  private final int low_inflight;
+  private final long high_latency;  // µs
+  private final long low_latency;   // µs
+
+  /** Channels that sent us data points and may have to be throttled. */
+  private final DefaultChannelGroup writers =
+      new DefaultChannelGroup("put-writers");
+
+  /** Number of put RPCs that haven't completed yet. */
+  private final AtomicInteger inflight = new AtomicInteger();
+
+  /**
+   * Moving average of the put latency in µs.  Updates aren't atomic, a lost
+   * sample now and then doesn't matter for an average.
+   */
+  private volatile long latency;
+
+  /** Whether or not reads are currently suspended. */
+  private volatile boolean throttled;
+
+  /** When the current throttling started, in ms.  Guarded by this. */
+  private long throttled_since;
+
+  private final AtomicLong throttle_events = new AtomicLong();
+  /** Total time spent throttled in ms, excluding the current period. */
+  private final AtomicLong throttled_time = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param config The config to load the thresholds from.
+   * @throws IllegalArgumentException if a threshold is negative or a low
+   * water mark is greater than its high water mark.
+   */
+  AdmissionController(final Config config) {
+    high_inflight = config.getInt("tsd.network.backpressure.high_inflight");
+    low_inflight = config.getInt("tsd.network.backpressure.low_inflight");
+    high_latency =
+        config.getInt("tsd.network.backpressure.high_latency_ms") * 1000L;
+    low_latency =
+        config.getInt("tsd.network.backpressure.low_latency_ms") * 1000L;
+    if (high_inflight < 1 || low_inflight < 0 || low_inflight > high_inflight) {
+      throw new IllegalArgumentException("Invalid in-flight water marks: low="
+          + low_inflight + ", high=" + high_inflight);
+    }
+    if (high_latency < 0 || low_latency < 0
+        || (high_latency > 0 && low_latency > high_latency)) {
+      throw new IllegalArgumentException("Invalid latency water marks: low="
+          + low_latency / 1000 + "ms, high=" + high_latency / 1000 + "ms");
+    }
+    LOG.info("Put backpressure enabled with in-flight water marks "
+        + low_inflight + "/" + high_inflight + " and latency water marks "
+        + low_latency / 1000 + "/" + high_latency / 1000 + "ms");
+  }
+
+  /**
+   * Starts tracking a put RPC.
+   * @param chan The channel the data point came from, may be null.
+   * @param deferred The deferred of the put, called back when it's stored.
+   */
+  void admit(final Channel chan, final Deferred<Object> deferred) {
+    inflight.incrementAndGet();
+    if (chan != null) {
+      writers.add(chan);
+      if (throttled) {
+        // in case the channel is new or raced with the suspension
+        chan.setReadable(false);
+      }
+    }
+    deferred.addBoth(new CompletionCB(System.nanoTime()));
+    check();
+  }
+
+  /** @return Whether or not reads are currently suspended. */
+  boolean isThrottled() {
+    return throttled;
+  }
+
+  /** @return The number of put RPCs that haven't completed yet. */
+  int inflight() {
+    return inflight.get();
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    long time = throttled_time.get();
+    synchronized (this) {
+      if (throttled) {
+        time += System.currentTimeMillis() - throttled_since;
+      }
+    }
+    collector.record("rpc.backpressure.throttled", throttled ? 1 : 0);
+    collector.record("rpc.backpressure.throttled_time", time);
+    collector.record("rpc.backpressure.events", throttle_events);
+    collector.record("rpc.backpressure.inflight", inflight.get());
+    collector.record("rpc.backpressure.latency", latency / 1000);
+  }
+
+  /** Flips the state if a water mark was crossed. */
+  private void check() {
+    final int n = inflight.get();
+    if (!throttled) {
+      if (n >= high_inflight
+          || (high_latency > 0 && n > 0 && latency >= high_latency)) {
+        throttle(n);
+      }
+    } else if (canResume(n)) {
+      resume(n);
+    }
+  }
+
+  /** @return Whether or not both values are under their low water marks. */
+  private boolean canResume(final int n) {
+    return n <= low_inflight
+        && (high_latency == 0 || n == 0 || latency <= low_latency);
+  }
+
+  /** Suspends reads on all the writers. */
+  private synchronized void throttle(final int n) {
+    if (throttled) {
+      return;
+    }
+    throttled = true;
+    throttled_since = System.currentTimeMillis();
+    throttle_events.incrementAndGet();
+    LOG.warn("Suspending reads on " + writers.size() + " channels with " + n
+        + " puts in flight and a latency of " + latency / 1000 + "ms");
+    writers.setReadable(false);
+    // Puts completing after we read the in-flight count saw the old state and
+    // won't resume, and if they were the last ones nothing else will.
+    final int now = inflight.get();
+    if (canResume(now)) {
+      resume(now);
+    }
+  }
+
+  /** Resumes reads on all the writers. */
+  private synchronized void resume(final int n) {
+    if (!throttled) {
+      return;
+    }
+    throttled = false;
+    final long duration = System.currentTimeMillis() - throttled_since;
+    throttled_time.addAndGet(duration);
+    LOG.info("Resuming reads on " + writers.size() + " channels after "
+        + duration + "ms with " + n + " puts in flight");
+    writers.setReadable(true);
+  }
+
+  /** Records the completion of a put, whether it succeeded or not. */
+  private final class CompletionCB implements Callback<Object, Object> {
+    private final long start;
+
+    CompletionCB(final long start) {
+      this.start = start;
+    }
+
+    @Override
+    public Object call(final Object result) {
+      final long sample = (System.nanoTime() - start) / 1000;
+      final long current = latency;
+      latency = current + ((sample - current) >> LATENCY_SMOOTHING);
+      inflight.decrementAndGet();
+      check();
+      return result;
+    }
+
+    @Override
+    public String toString() {
+      return "put admission completion";
+    }
+  }
+}
@@ -13,30 +13,44 @@
 package net.opentsdb.tsd;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import net.opentsdb.core.Const;
 import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.FillPolicy;
 import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.QueryComputePool;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
@@ -65,6 +79,12 @@ import net.opentsdb.utils.JSON;
  * @since 2.0
  */
 class HttpJsonSerializer extends HttpSerializer {
+  private static final Logger LOG = 
+      LoggerFactory.getLogger(HttpJsonSerializer.class);
+  
+  /** Separates the streamed groups */
+  private static final byte[] COMMA = { ',' };
+  
 
   /** Type reference for incoming data points */
   private static TypeReference<ArrayList<IncomingDataPoint>> TR_INCOMING =
@@ -152,6 +172,31 @@ class HttpJsonSerializer extends HttpSerializer {
     }
   }
   
+  /**
+   * Parses one or more data points for storage without materializing the 
+   * whole list. The body is read straight from the request buffer and each
+   * data point is only deserialized when the caller asks for it.
+   * @return an iterator over the data points to process for storage
+   * @throws BadRequestException if the content was missing or could not be 
+   * parsed. Note that this may be thrown by the iterator as well.
+   * @since 2.3
+   */
+  @Override
+  public Iterator<IncomingDataPoint> parsePutV1Stream() {
+    if (!query.hasContent()) {
+      throw new BadRequestException("Missing request content");
+    }
+    try {
+      final Reader reader = new InputStreamReader(
+          new ChannelBufferInputStream(query.request().getContent().duplicate()), 
+          query.getCharset());
+      return new IncomingDataPointIterator(
+          JSON.getFactory().createParser(reader));
+    } catch (IOException e) {
+      throw new BadRequestException("Unable to parse the given JSON", e);
+    }
+  }
+  
   /**
    * Parses a suggestion query
    * @return a hash map of key/value pairs
@@ -592,9 +637,57 @@ class HttpJsonSerializer extends HttpSerializer {
    * @throws IOException if serialization failed
    * @since 2.2
    */
+  @SuppressWarnings("unchecked")
   public Deferred<ChannelBuffer> formatQueryAsyncV1(final TSQuery data_query, 
       final List<DataPoints[]> results, final List<Annotation> globals) 
           throws IOException {
+    return (Deferred<ChannelBuffer>) 
+        formatQueryAsync(data_query, results, globals, false);
+  }
+
+  /**
+   * Streams the results of a timeseries data query to the client in HTTP 
+   * chunks, one per group, as soon as each group is aggregated. At most 
+   * {@code tsd.query.compute.max_per_query} groups are serialized ahead of 
+   * the one being written and no group is started while the channel isn't
+   * writable, so the response never sits on the heap in full.
+   * <p>
+   * The reply starts with the first group. If a group fails before that, the
+   * deferred fails and the caller can reply with an error as usual. If a 
+   * group fails afterwards the status was already sent, so the response is 
+   * ended with an {@code {"error":{...}}} object as the last element of the
+   * array and the connection is closed.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred resolving to true if the whole response was sent, 
+   * false if it was ended early by an error or the client going away.
+   * @throws IOException if serialization failed
+   * @since 2.3
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public Deferred<Boolean> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+          throws IOException {
+    return (Deferred<Boolean>) 
+        formatQueryAsync(data_query, results, globals, true);
+  }
+
+  /**
+   * Serializes the results of a timeseries data query, either to a single
+   * buffer or streamed to the client.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @param stream Whether or not to stream the groups to the client
+   * @return A Deferred<ChannelBuffer> with the response or a 
+   * Deferred<Boolean> once streamed.
+   * @throws IOException if serialization failed
+   */
+  private Deferred<?> formatQueryAsync(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals,
+      final boolean stream) throws IOException {
     
     final long start = DateTime.currentTimeMillis();
     final boolean as_arrays = this.query.hasQueryStringParam("arrays");
@@ -615,15 +708,23 @@ class HttpJsonSerializer extends HttpSerializer {
     // start the JSON generator and write the opening array
     final JsonGenerator json = JSON.getFactory().createGenerator(output);
     json.writeStartArray();
+    
+    // the groups may be serialized in parallel, sort the shared list once
+    if (globals != null && !globals.isEmpty()) {
+      Collections.sort(globals);
+    }
+    final QueryComputePool pool = query.tsdb == null ? null 
+        : query.tsdb.getQueryComputePool();
+    final QueryComputePool.Batch batch = pool == null ? null 
+        : pool.newBatch();
  
     /**
      * Every individual data point set (the result of a query and possibly a
      * group by) will initiate an asynchronous metric/tag UID to name resolution
-     * and then print to the buffer.
-     * NOTE that because this is asynchronous, the order of results is
-     * indeterminate.
+     * and then aggregate and print to its own buffer on the query compute 
+     * pool. The buffers are concatenated in order once all are done.
      */
-    class DPsResolver implements Callback<Deferred<Object>, Object> {
+    class DPsResolver implements Callback<Deferred<ChannelBuffer>, Object> {
       /** Has to be final to be shared with the nested classes */
       final StringBuilder metric = new StringBuilder(256);
       /** Resolved tags */
@@ -667,9 +768,11 @@ class HttpJsonSerializer extends HttpSerializer {
       }
       
       /** After the metric and tags have been resolved, this will print the
-       * results to the output buffer in the proper format.
+       * results to a buffer of their own in the proper format.
        */
-      class WriteToBuffer implements Callback<Object, ArrayList<Object>> {
+      class WriteToBuffer implements 
+          Callback<Deferred<ChannelBuffer>, ArrayList<Object>>, 
+          Callable<ChannelBuffer> {
         final DataPoints dps;
         
         /**
@@ -681,14 +784,30 @@ class HttpJsonSerializer extends HttpSerializer {
         }
         
         /**
-         * Handles writing the data to the output buffer. The results of the
-         * deferreds don't matter as they will be stored in the class final
-         * variables.
+         * Hands the group to the compute pool. The results of the deferreds 
+         * don't matter as they will be stored in the class final variables.
          */
-        public Object call(final ArrayList<Object> deferreds) throws Exception {
+        public Deferred<ChannelBuffer> call(final ArrayList<Object> deferreds) 
+            throws Exception {
           data_query.getQueryStats().addStat(dps.getQueryIndex(), 
               QueryStat.UID_TO_STRING_TIME, (DateTime.nanoTime() - uid_start));
+          return batch == null ? Deferred.fromResult(call()) 
+              : batch.submit(this);
+        }
+        
+        /**
+         * Handles aggregating and writing the data to a new buffer.
+         * @return The buffer with the JSON object of this group
+         */
+        public ChannelBuffer call() throws Exception {
+          // don't serialize groups for a client that went away
+          data_query.getQueryStats().checkCancelled();
           final long local_serialization_start = DateTime.nanoTime();
+          final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+          final OutputStream group_output = 
+              new ChannelBufferOutputStream(buffer);
+          final JsonGenerator json = 
+              JSON.getFactory().createGenerator(group_output);
           final TSSubQuery orig_query = data_query.getQueries()
               .get(dps.getQueryIndex());
           
@@ -747,7 +866,6 @@ class HttpJsonSerializer extends HttpSerializer {
             }
             
             if (globals != null && !globals.isEmpty()) {
-              Collections.sort(globals);
               json.writeArrayFieldStart("globalAnnotations");
               for (Annotation note : globals) {
                 long ts = note.getStartTime();
@@ -855,15 +973,21 @@ class HttpJsonSerializer extends HttpSerializer {
 
           // close the results for this particular query
           json.writeEndObject();
-          return null;
+          json.close();
+          return buffer;
+        }
+        
+        @Override
+        public String toString() {
+          return "WriteToBuffer(" + dps.getQueryIndex() + ")";
         }
       }
       
       /**
        * When called, initiates a resolution of metric and tag UIDs to names, 
-       * then prints to the output buffer once they are completed.
+       * then prints to a buffer once they are completed.
        */
-      public Deferred<Object> call(final Object obj) throws Exception {
+      public Deferred<ChannelBuffer> call(final Object obj) throws Exception {
         this.uid_start = DateTime.nanoTime();
         
         resolve_deferreds.add(dps.metricNameAsync()
@@ -873,31 +997,32 @@ class HttpJsonSerializer extends HttpSerializer {
         resolve_deferreds.add(dps.getAggregatedTagsAsync()
             .addCallback(new AggTagResolver()));
         return Deferred.group(resolve_deferreds)
-            .addCallback(new WriteToBuffer(dps));
+            .addCallbackDeferring(new WriteToBuffer(dps));
       }
 
     }
     
-    // We want the serializer to execute serially so we need to create a callback
-    // chain so that when one DPsResolver is finished, it triggers the next to
-    // start serializing.
-    final Deferred<Object> cb_chain = new Deferred<Object>();
-
-    for (DataPoints[] separate_dps : results) {
-      for (DataPoints dps : separate_dps) {
-        try {
-          cb_chain.addCallback(new DPsResolver(dps));
-        } catch (Exception e) {
-          throw new RuntimeException("Unexpected error durring resolution", e);
-        }
-      }
-    }
-  
     /** Final callback to close out the JSON array and return our results */
-    class FinalCB implements Callback<ChannelBuffer, Object> {
-      public ChannelBuffer call(final Object obj)
+    class FinalCB implements Callback<ChannelBuffer, ArrayList<ChannelBuffer>> {
+      public ChannelBuffer call(final ArrayList<ChannelBuffer> buffers)
           throws Exception {
-        
+        // concatenate the groups in order after the opening bracket
+        json.flush();
+        for (int i = 0; i < buffers.size(); i++) {
+          if (i > 0) {
+            response.writeByte(',');
+          }
+          response.writeBytes(buffers.get(i));
+        }
+        return finish(!buffers.isEmpty());
+      }
+      
+      /**
+       * Writes the summary and closes the array.
+       * @param has_groups Whether or not groups were written before
+       * @return The response buffer
+       */
+      ChannelBuffer finish(final boolean has_groups) throws IOException {
         // Call this here so we rollup sub metrics into a summary. It's not
         // completely accurate, of course, because we still have to write the
         // summary and close the writer. But it's close.
@@ -907,6 +1032,9 @@ class HttpJsonSerializer extends HttpSerializer {
         // TODO - yeah, I've heard this sucks, we need to figure out a better way.
         if (data_query.getShowSummary()) {
           final QueryStats stats = data_query.getQueryStats();
+          if (has_groups) {
+            json.writeRaw(',');
+          }
           json.writeStartObject();
           json.writeFieldName("statsSummary");
           json.writeObject(stats.getStats(true, true));
@@ -924,9 +1052,317 @@ class HttpJsonSerializer extends HttpSerializer {
       }
     }
 
-    // trigger the callback chain here
-    cb_chain.callback(null);
-    return cb_chain.addCallback(new FinalCB());
+    /** Passes on the exception of the group that failed, as if serial */
+    class GroupErrback implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) throws Exception {
+        if (e instanceof DeferredGroupException 
+            && e.getCause() instanceof Exception) {
+          return (Exception) e.getCause();
+        }
+        return e;
+      }
+    }
+
+    final List<DataPoints> all_dps = new ArrayList<DataPoints>();
+    for (DataPoints[] separate_dps : results) {
+      for (DataPoints dps : separate_dps) {
+        all_dps.add(dps);
+      }
+    }
+    
+    /**
+     * Writes the groups to the client in order as they complete. Groups are
+     * started by {@link #pump} and written by {@link #drain}, each run by a
+     * single thread at a time. Channel writes happen outside of the lock as 
+     * their listeners may be called back from Netty's I/O thread.
+     */
+    final class Streamer {
+      final ChannelBuffer[] buffers = new ChannelBuffer[all_dps.size()];
+      final int window = pool == null ? 1 : pool.maxPerQuery();
+      final Deferred<Boolean> result = new Deferred<Boolean>();
+      /** Index of the next group to start */
+      int next_start;
+      /** Index of the next group to write */
+      int next_write;
+      /** Whether or not a thread is starting groups */
+      boolean pumping;
+      /** Whether or not a thread is writing groups */
+      boolean writing;
+      /** Whether or not we're waiting for the channel to become writable */
+      boolean paused;
+      /** Whether or not the reply was started */
+      boolean started;
+      /** Whether or not the reply was ended */
+      boolean ended;
+      /** The first error a group ran into */
+      Exception error;
+      
+      Deferred<Boolean> start() {
+        pump();
+        drain();
+        return result;
+      }
+      
+      /** Starts groups until the window is full or the channel is busy */
+      void pump() {
+        synchronized (this) {
+          if (pumping) {
+            return;
+          }
+          pumping = true;
+        }
+        while (true) {
+          final int index;
+          synchronized (this) {
+            if (error != null || paused || next_start >= buffers.length
+                || next_start >= next_write + window) {
+              pumping = false;
+              return;
+            }
+            index = next_start++;
+          }
+          try {
+            new DPsResolver(all_dps.get(index)).call(null)
+              .addCallbacks(new GroupCB(index), new GroupErrCB());
+          } catch (Exception e) {
+            failed(e);
+          }
+        }
+      }
+      
+      /** Writes the groups that are ready, in order, then ends the reply */
+      void drain() {
+        synchronized (this) {
+          if (writing || ended) {
+            return;
+          }
+          writing = true;
+        }
+        while (true) {
+          final int index;
+          final ChannelBuffer buffer;
+          final Exception failure;
+          synchronized (this) {
+            failure = error;
+            index = next_write;
+            if (failure != null || index >= buffers.length) {
+              buffer = null;
+            } else if (buffers[index] == null) {
+              writing = false;
+              return;
+            } else {
+              buffer = buffers[index];
+              buffers[next_write++] = null;
+            }
+          }
+          
+          try {
+            if (!started) {
+              if (failure != null) {
+                // nothing was sent yet
+                end(false, false);
+                return;
+              }
+              json.flush();
+              if (query.startChunkedReply(HttpResponseStatus.OK, 
+                  responseContentType()) == null) {
+                end(false, false);
+                return;
+              }
+              started = true;
+              query.sendChunk(response.copy());
+              response.clear();
+            }
+            if (!query.channel().isConnected()) {
+              LOG.warn("Client went away, dropping the rest of " + query);
+              end(false, true);
+              return;
+            } else if (failure != null) {
+              writeError(failure);
+              return;
+            } else if (buffer == null) {
+              // every group was written
+              final ChannelBuffer tail = new FinalCB().finish(index > 0);
+              query.sendChunk(tail);
+              end(true, false);
+              return;
+            }
+            
+            final ChannelFuture future = query.sendChunk(index == 0 ? buffer 
+                : ChannelBuffers.wrappedBuffer(
+                    ChannelBuffers.wrappedBuffer(COMMA), buffer));
+            if (!query.channel().isWritable()) {
+              synchronized (this) {
+                paused = true;
+              }
+              future.addListener(new ResumeCB());
+            } else {
+              pump();
+            }
+          } catch (Exception e) {
+            LOG.error("Failed to stream " + query, e);
+            synchronized (this) {
+              if (error == null) {
+                error = e;
+              }
+            }
+            if (!started || failure != null) {
+              end(false, true);
+              return;
+            }
+            try {
+              writeError(e);
+            } catch (Exception ex) {
+              end(false, true);
+            }
+            return;
+          }
+        }
+      }
+      
+      /** 
+       * Ends the array with the error of a group and closes the connection
+       * @param error The error to report
+       */
+      void writeError(final Exception error) throws IOException {
+        final ChannelBuffer tail = ChannelBuffers.dynamicBuffer();
+        final OutputStream tail_output = new ChannelBufferOutputStream(tail);
+        final JsonGenerator error_json = 
+            JSON.getFactory().createGenerator(tail_output);
+        if (next_write > 0) {
+          error_json.writeRaw(',');
+        }
+        error_json.writeStartObject();
+        error_json.writeObjectFieldStart("error");
+        error_json.writeNumberField("code", errorStatus(error).getCode());
+        error_json.writeStringField("message", error.getMessage() == null 
+            ? error.getClass().getSimpleName() : error.getMessage());
+        error_json.writeEndObject();
+        error_json.writeEndObject();
+        error_json.writeRaw(']');
+        if (jsonp != null && !jsonp.isEmpty()) {
+          error_json.writeRaw(')');
+        }
+        error_json.close();
+        query.sendChunk(tail);
+        end(false, true);
+      }
+      
+      /**
+       * Ends the reply if it was started and completes the deferred. Unless
+       * the error is handed to the caller, a reply that didn't send every
+       * group is marked as serialized here so the query leaves the running
+       * list.
+       * @param complete Whether or not every group was sent
+       * @param close Whether or not to close the connection
+       */
+      void end(final boolean complete, final boolean close) {
+        final Exception failure;
+        synchronized (this) {
+          ended = true;
+          writing = false;
+          failure = error;
+        }
+        if (started) {
+          query.endChunkedReply(close);
+          if (!complete) {
+            data_query.getQueryStats().markSerialized(failure == null ? 
+                QueryStats.CLIENT_CLOSED_REQUEST : errorStatus(failure), 
+                failure);
+          }
+          result.callback(complete);
+        } else if (failure != null) {
+          // nothing was sent, let the caller reply with the error
+          result.callback(failure);
+        } else {
+          // the client went away before we started
+          data_query.getQueryStats().markSerialized(
+              QueryStats.CLIENT_CLOSED_REQUEST, null);
+          result.callback(false);
+        }
+      }
+      
+      /** Records the first error and has it written */
+      void failed(final Exception e) {
+        synchronized (this) {
+          if (error != null) {
+            return;
+          }
+          error = e;
+        }
+        drain();
+      }
+      
+      /** Stores a serialized group and writes what's ready */
+      final class GroupCB implements Callback<Object, ChannelBuffer> {
+        final int index;
+        GroupCB(final int index) {
+          this.index = index;
+        }
+        public Object call(final ChannelBuffer buffer) {
+          synchronized (Streamer.this) {
+            buffers[index] = buffer;
+          }
+          drain();
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Streamer.GroupCB(" + index + ")";
+        }
+      }
+      
+      /** Stops the stream on the first error */
+      final class GroupErrCB implements Callback<Object, Exception> {
+        public Object call(final Exception e) {
+          failed(e);
+          return null;
+        }
+        @Override
+        public String toString() {
+          return "Streamer.GroupErrCB";
+        }
+      }
+      
+      /** Starts more groups once the channel took the last chunk */
+      final class ResumeCB implements ChannelFutureListener {
+        @Override
+        public void operationComplete(final ChannelFuture future) {
+          synchronized (Streamer.this) {
+            paused = false;
+          }
+          pump();
+        }
+      }
+    }
+    
+    if (stream) {
+      return new Streamer().start();
+    }
+    
+    // Each group is serialized to its own buffer, the batch bounds how many
+    // of them run at the same time.
+    final List<Deferred<ChannelBuffer>> groups = 
+        new ArrayList<Deferred<ChannelBuffer>>(all_dps.size());
+    for (final DataPoints dps : all_dps) {
+      try {
+        groups.add(new DPsResolver(dps).call(null));
+      } catch (Exception e) {
+        throw new RuntimeException("Unexpected error durring resolution", e);
+      }
+    }
+    return Deferred.groupInOrder(groups).addCallbacks(new FinalCB(), 
+        new GroupErrback());
+  }
+  
+  /** @return The status to report for an exception thrown by a query */
+  private static HttpResponseStatus errorStatus(final Exception e) {
+    if (e instanceof BadRequestException) {
+      return ((BadRequestException) e).getStatus();
+    } else if (e instanceof QueryException) {
+      return ((QueryException) e).getStatus();
+    }
+    return HttpResponseStatus.INTERNAL_SERVER_ERROR;
   }
   
   /**
@@ -1177,4 +1613,88 @@ class HttpJsonSerializer extends HttpSerializer {
     }
     return ChannelBuffers.wrappedBuffer(JSON.serializeToBytes(obj));
   }
+
+  /**
+   * Walks either a single data point object or an array of them, 
+   * deserializing one data point at a time.
+   */
+  private static final class IncomingDataPointIterator 
+    implements Iterator<IncomingDataPoint> {
+    private final JsonParser parser;
+    /** Whether the content is an array or a single object */
+    private final boolean array;
+    /** The next data point to return, null if not read yet */
+    private IncomingDataPoint next;
+    /** Set once we've reached the end of the content */
+    private boolean done;
+    
+    IncomingDataPointIterator(final JsonParser parser) throws IOException {
+      this.parser = parser;
+      final JsonToken token = parser.nextToken();
+      if (token == JsonToken.START_OBJECT) {
+        array = false;
+      } else if (token == JsonToken.START_ARRAY) {
+        array = true;
+      } else {
+        parser.close();
+        throw new BadRequestException("Unable to parse the given JSON");
+      }
+    }
+    
+    @Override
+    public boolean hasNext() {
+      if (next != null) {
+        return true;
+      }
+      if (done) {
+        return false;
+      }
+      try {
+        if (!array) {
+          // the parser is already sitting on the start of the object
+          next = parser.readValueAs(IncomingDataPoint.class);
+          close();
+          return true;
+        }
+        final JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+          close();
+          return false;
+        }
+        if (token != JsonToken.START_OBJECT) {
+          close();
+          throw new BadRequestException("Unable to parse the given JSON");
+        }
+        next = parser.readValueAs(IncomingDataPoint.class);
+        return true;
+      } catch (IOException e) {
+        close();
+        throw new BadRequestException("Unable to parse the given JSON", e);
+      }
+    }
+    
+    @Override
+    public IncomingDataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("No more data points");
+      }
+      final IncomingDataPoint dp = next;
+      next = null;
+      return dp;
+    }
+    
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("Not supported");
+    }
+    
+    private void close() {
+      done = true;
+      try {
+        parser.close();
+      } catch (IOException e) {
+        // nothing to clean up, the content is in memory
+      }
+    }
+  }
 }
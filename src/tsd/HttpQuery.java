@@ -684,6 +684,7 @@ final class HttpQuery extends AbstractHttpQuery {
    */
   @Override
   public void done() {
+    clearCancelOnDisconnect();
     final int processing_time = processingTimeMillis();
     httplatency.add(processing_time);
     logInfo("HTTP " + request().getUri() + " done in " + processing_time + "ms");
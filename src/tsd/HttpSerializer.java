@@ -14,6 +14,7 @@ package net.opentsdb.tsd;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,6 +27,7 @@ import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import ch.qos.logback.classic.spi.ThrowableProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import net.opentsdb.core.DataPoints;
@@ -174,6 +176,21 @@ public abstract class HttpSerializer {
         " has not implemented parsePutV1");
   }
   
+  /**
+   * Parses one or more data points for storage, handing them out one at a 
+   * time so that the whole batch doesn't have to be held in memory. Parsing 
+   * errors may be thrown while iterating, after some of the data points were
+   * returned. The default implementation simply iterates over the results 
+   * of {@link #parsePutV1()}.
+   * @return an iterator over the data points to process for storage
+   * @throws BadRequestException if the plugin has not implemented this method
+   * or the content could not be parsed
+   * @since 2.3
+   */
+  public Iterator<IncomingDataPoint> parsePutV1Stream() {
+    return parsePutV1().iterator();
+  }
+  
   /**
    * Parses a suggestion query
    * @return a hash map of key/value pairs
@@ -502,6 +519,32 @@ public abstract class HttpSerializer {
         " has not implemented formatQueryV1");
   }
   
+  /**
+   * Streams the results from a timeseries data query to the client as they
+   * are serialized. Serializers that can't stream send the whole response
+   * from {@link #formatQueryAsyncV1} once it is complete.
+   * @param data_query The TSQuery object used to fetch the results
+   * @param results The data fetched from storage
+   * @param globals An optional list of global annotation objects
+   * @return A deferred resolving to true if the whole response was sent, 
+   * false if it was ended early. Errors raised before anything was sent are
+   * returned through the deferred.
+   * @throws BadRequestException if the plugin has not implemented this method
+   * @since 2.3
+   */
+  public Deferred<Boolean> streamQueryAsyncV1(final TSQuery data_query, 
+      final List<DataPoints[]> results, final List<Annotation> globals) 
+      throws IOException {
+    class SendIt implements Callback<Boolean, ChannelBuffer> {
+      public Boolean call(final ChannelBuffer buffer) {
+        query.sendReply(buffer);
+        return true;
+      }
+    }
+    return formatQueryAsyncV1(data_query, results, globals)
+        .addCallback(new SendIt());
+  }
+  
   /**
    * Format a list of last data points
    * @param data_points The results of the query
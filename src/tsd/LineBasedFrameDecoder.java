@@ -24,6 +24,10 @@ import org.jboss.netty.handler.codec.frame.TooLongFrameException;
  * <p>
  * Both "\n" and "\r\n" are handled.
  * <p>
+ * Frames are slices of the cumulative buffer, not copies.  This is fine as
+ * long as the handlers downstream are done with them when they return, which
+ * is the case for {@link WordSplitter} and the telnet RPCs.
+ * <p>
  * This decoder is stateful and is thus <strong>NOT</strong> shareable.
  */
 final class LineBasedFrameDecoder extends FrameDecoder {
@@ -56,7 +60,7 @@ final class LineBasedFrameDecoder extends FrameDecoder {
         frame = null;
         buffer.skipBytes(length);
       } else {
-        frame = buffer.readBytes(length);
+        frame = buffer.readSlice(length);
       }
       final byte delim = buffer.readByte();
       if (delim == '\r') {
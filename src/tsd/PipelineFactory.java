@@ -27,6 +27,7 @@ import org.jboss.netty.handler.codec.http.HttpContentDecompressor;
 import org.jboss.netty.handler.codec.http.HttpContentCompressor;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.codec.protobuf.ProtobufVarint32LengthFieldPrepender;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.util.Timer;
 
@@ -44,6 +45,8 @@ public final class PipelineFactory implements ChannelPipelineFactory {
   // Those are entirely stateless and thus a single instance is needed.
   private static final StringEncoder ENCODER = new StringEncoder();
   private static final WordSplitter DECODER = new WordSplitter();
+  private static final ProtobufVarint32LengthFieldPrepender PROTOBUF_ENCODER =
+      new ProtobufVarint32LengthFieldPrepender();
 
   // Those are sharable but maintain some state, so a single instance per
   // PipelineFactory is needed.
@@ -154,6 +157,12 @@ public final class PipelineFactory implements ChannelPipelineFactory {
         pipeline.addLast("inflater", new HttpContentDecompressor());
         pipeline.addLast("encoder", new HttpResponseEncoder());
         pipeline.addLast("deflater", new HttpContentCompressor());
+      } else if (firstbyte == 0 
+          && tsdb.getConfig().getBoolean("tsd.network.protobuf.enable")) {
+        // An empty protobuf message, see PutBatchCodec.
+        pipeline.addLast("framer", new PutBatchCodec.Framer(
+            tsdb.getConfig().getInt("tsd.network.protobuf.max_batch_size")));
+        pipeline.addLast("encoder", PROTOBUF_ENCODER);
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
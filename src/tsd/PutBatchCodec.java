@@ -0,0 +1,387 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Decodes batches of data points sent as protocol buffers, either over HTTP
+ * with a {@code Content-Type} of {@link #CONTENT_TYPE} or over the telnet
+ * port as length-prefixed messages.
+ * <p>
+ * Metric names, tag keys and tag values are sent once per batch in a string
+ * table and referenced by index, and each series carries its timestamps and
+ * values as packed arrays:
+ * <pre>
+ * message PutBatch {
+ *   repeated string strings = 1;   // must come before the series
+ *   repeated Series series = 2;
+ * }
+ * message Series {
+ *   uint32 metric = 1;                            // index in strings
+ *   repeated uint32 tags = 2 [packed=true];       // tagk, tagv, tagk...
+ *   repeated sint64 timestamps = 3 [packed=true]; // deltas, first absolute
+ *   repeated sint64 long_values = 4 [packed=true];
+ *   repeated double double_values = 5 [packed=true];
+ * }
+ * message PutResult {
+ *   uint32 success = 1;
+ *   uint32 failed = 2;
+ *   string error = 3;
+ * }
+ * </pre>
+ * A series has either as many long values or as many double values as it
+ * has timestamps.  Timestamps are in seconds or milliseconds, as for other
+ * puts.
+ * <p>
+ * On the telnet port, when {@code tsd.network.protobuf.enable} is set, a
+ * connection that starts with a 0 byte, i.e. an empty message, switches to
+ * this protocol.  Every {@code PutBatch} is then prefixed by its length as a
+ * varint, and answered with a length-prefixed {@code PutResult} once all of
+ * its points were written.  Empty batches aren't answered.  Batches larger
+ * than {@code tsd.network.protobuf.max_batch_size} bytes and malformed ones
+ * close the connection, in the latter case after a {@code PutResult} with an
+ * error, and the points decoded before the error may have been written.
+ * <p>
+ * Nothing here creates {@code IncomingDataPoint}s: the decoded arrays are
+ * handed to a {@link Sink}, one series at a time.
+ * @since 2.3
+ */
+final class PutBatchCodec {
+
+  /** The HTTP content type of protobuf put requests. */
+  static final String CONTENT_TYPE = "application/x-protobuf";
+
+  private static final int STRINGS = 1;
+  private static final int SERIES = 2;
+
+  private static final int SERIES_METRIC = 1;
+  private static final int SERIES_TAGS = 2;
+  private static final int SERIES_TIMESTAMPS = 3;
+  private static final int SERIES_LONG_VALUES = 4;
+  private static final int SERIES_DOUBLE_VALUES = 5;
+
+  /** WireFormat's own accessor for the wire type isn't public. */
+  private static final int TAG_TYPE_MASK = 7;
+
+  private static final int RESULT_SUCCESS = 1;
+  private static final int RESULT_FAILED = 2;
+  private static final int RESULT_ERROR = 3;
+
+  /** Cannot be instantiated. */
+  private PutBatchCodec() {
+  }
+
+  /** Receives the series of a batch as they are decoded. */
+  interface Sink {
+    /**
+     * Called for each series of the batch.  The arrays are reused for the
+     * next series and must not be retained.
+     * @param metric The metric name.
+     * @param tags The tags of the series, shared by all its points.
+     * @param timestamps The absolute timestamps of the points.
+     * @param long_values The values of the points if they're integers,
+     * null otherwise.
+     * @param double_values The values of the points if they're floating
+     * point, null otherwise.
+     * @param count The number of points in the arrays.
+     */
+    void series(String metric, HashMap<String, String> tags,
+        long[] timestamps, long[] long_values, double[] double_values,
+        int count);
+
+    /**
+     * Called for a series that can't be written.
+     * @param message Why the series is invalid.
+     * @param count The number of points lost.
+     */
+    void invalid(String message, int count);
+  }
+
+  /** A batch received on the telnet port, see {@link Framer}. */
+  static final class Batch {
+    final ChannelBuffer buffer;
+
+    Batch(final ChannelBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Cuts length-prefixed batches out of the stream so that the
+   * {@link RpcHandler} can tell them apart from telnet lines.  Empty ones are
+   * dropped.
+   */
+  static final class Framer extends FrameDecoder {
+    private final int max_length;
+
+    /**
+     * Constructor.
+     * @param max_length The maximum size of a batch in bytes.
+     */
+    Framer(final int max_length) {
+      this.max_length = max_length;
+    }
+
+    @Override
+    protected Object decode(final ChannelHandlerContext ctx,
+        final Channel chan, final ChannelBuffer buffer) throws Exception {
+      final int start = buffer.readerIndex();
+      int length = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (!buffer.readable()) {
+          buffer.readerIndex(start);
+          return null;
+        }
+        if (shift > 28) {
+          throw new CorruptedFrameException("Malformed batch length");
+        }
+        final byte b = buffer.readByte();
+        length |= (b & 0x7F) << shift;
+        if (b >= 0) {
+          break;
+        }
+      }
+      if (length < 0 || length > max_length) {
+        throw new TooLongFrameException("Batch of " + (length & 0xFFFFFFFFL)
+            + " bytes is larger than " + max_length + " bytes");
+      }
+      if (buffer.readableBytes() < length) {
+        buffer.readerIndex(start);
+        return null;
+      }
+      if (length == 0) {
+        return null;  // we consumed the prefix, the decoder moves on
+      }
+      return new Batch(buffer.readBytes(length));
+    }
+  }
+
+  /**
+   * Decodes a batch.
+   * @param buffer The serialized {@code PutBatch}.
+   * @param sink Where to send the series.
+   * @return The number of points in the batch.
+   * @throws IOException if the message is malformed, in which case some
+   * series may have been handed to the sink already.
+   */
+  static int decode(final ChannelBuffer buffer, final Sink sink)
+      throws IOException {
+    final CodedInputStream in;
+    final int length = buffer.readableBytes();
+    if (buffer.hasArray()) {
+      in = CodedInputStream.newInstance(buffer.array(),
+          buffer.arrayOffset() + buffer.readerIndex(), length);
+    } else {
+      final byte[] bytes = new byte[length];
+      buffer.getBytes(buffer.readerIndex(), bytes);
+      in = CodedInputStream.newInstance(bytes);
+    }
+    in.setSizeLimit(Math.max(length, 64));
+
+    final ArrayList<String> strings = new ArrayList<String>();
+    final Buffers arrays = new Buffers();
+    int points = 0;
+    while (true) {
+      final int tag = in.readTag();
+      if (tag == 0) {
+        return points;
+      }
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case STRINGS:
+          strings.add(in.readString());
+          break;
+        case SERIES:
+          final int limit = in.pushLimit(in.readRawVarint32());
+          points += decodeSeries(in, strings, arrays, sink);
+          in.popLimit(limit);
+          break;
+        default:
+          in.skipField(tag);
+      }
+    }
+  }
+
+  /**
+   * Serializes the answer to a batch received on the telnet port.
+   * @param success The number of points written.
+   * @param failed The number of points that couldn't be written.
+   * @param error An error message, may be null.
+   * @return The serialized {@code PutResult}, without its length prefix.
+   */
+  static ChannelBuffer encodeResult(final int success, final int failed,
+      final String error) {
+    int size = CodedOutputStream.computeUInt32Size(RESULT_SUCCESS, success)
+        + CodedOutputStream.computeUInt32Size(RESULT_FAILED, failed);
+    if (error != null) {
+      size += CodedOutputStream.computeStringSize(RESULT_ERROR, error);
+    }
+    final byte[] bytes = new byte[size];
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    try {
+      out.writeUInt32(RESULT_SUCCESS, success);
+      out.writeUInt32(RESULT_FAILED, failed);
+      if (error != null) {
+        out.writeString(RESULT_ERROR, error);
+      }
+      out.checkNoSpaceLeft();
+    } catch (IOException e) {
+      throw new IllegalStateException("Should never happen", e);
+    }
+    return ChannelBuffers.wrappedBuffer(bytes);
+  }
+
+  /** Decodes one series, up to the current limit of the stream. */
+  private static int decodeSeries(final CodedInputStream in,
+      final ArrayList<String> strings, final Buffers arrays, final Sink sink)
+      throws IOException {
+    int metric = -1;
+    int ntags = 0;
+    int ntimestamps = 0;
+    int nlongs = 0;
+    int ndoubles = 0;
+    while (true) {
+      final int tag = in.readTag();
+      if (tag == 0) {
+        break;
+      }
+      final boolean packed = (tag & TAG_TYPE_MASK)
+          == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+      final int limit = packed ? in.pushLimit(in.readRawVarint32()) : -1;
+      // an unpacked field holds one value, a packed one may hold none
+      boolean more = !packed || !in.isAtEnd();
+      switch (WireFormat.getTagFieldNumber(tag)) {
+        case SERIES_METRIC:
+          metric = in.readUInt32();
+          break;
+        case SERIES_TAGS:
+          while (more) {
+            arrays.tags = grow(arrays.tags, ntags);
+            arrays.tags[ntags++] = in.readUInt32();
+            more = packed && !in.isAtEnd();
+          }
+          break;
+        case SERIES_TIMESTAMPS:
+          while (more) {
+            arrays.timestamps = grow(arrays.timestamps, ntimestamps);
+            final long delta = in.readSInt64();
+            arrays.timestamps[ntimestamps] = ntimestamps == 0 ? delta
+                : arrays.timestamps[ntimestamps - 1] + delta;
+            ntimestamps++;
+            more = packed && !in.isAtEnd();
+          }
+          break;
+        case SERIES_LONG_VALUES:
+          while (more) {
+            arrays.longs = grow(arrays.longs, nlongs);
+            arrays.longs[nlongs++] = in.readSInt64();
+            more = packed && !in.isAtEnd();
+          }
+          break;
+        case SERIES_DOUBLE_VALUES:
+          while (more) {
+            arrays.doubles = grow(arrays.doubles, ndoubles);
+            arrays.doubles[ndoubles++] = in.readDouble();
+            more = packed && !in.isAtEnd();
+          }
+          break;
+        default:
+          if (packed) {
+            in.skipRawBytes(in.getBytesUntilLimit());
+          } else {
+            in.skipField(tag);
+          }
+      }
+      if (packed) {
+        in.popLimit(limit);
+      }
+    }
+
+    if (metric < 0 || metric >= strings.size()) {
+      throw new InvalidProtocolBufferException("Invalid metric index "
+          + metric + " with " + strings.size() + " strings");
+    }
+    if (ntags % 2 != 0) {
+      throw new InvalidProtocolBufferException("Odd number of tag indexes: "
+          + ntags);
+    }
+    final HashMap<String, String> tags = new HashMap<String, String>(ntags);
+    for (int i = 0; i < ntags; i++) {
+      if (arrays.tags[i] < 0 || arrays.tags[i] >= strings.size()) {
+        throw new InvalidProtocolBufferException("Invalid tag index "
+            + arrays.tags[i] + " with " + strings.size() + " strings");
+      }
+    }
+    for (int i = 0; i < ntags; i += 2) {
+      tags.put(strings.get(arrays.tags[i]), strings.get(arrays.tags[i + 1]));
+    }
+
+    final String name = strings.get(metric);
+    if (ntimestamps == 0) {
+      return 0;
+    }
+    if (tags.isEmpty()) {
+      sink.invalid("Missing tags for " + name, ntimestamps);
+    } else if (nlongs == ntimestamps && ndoubles == 0) {
+      sink.series(name, tags, arrays.timestamps, arrays.longs, null,
+          ntimestamps);
+    } else if (ndoubles == ntimestamps && nlongs == 0) {
+      sink.series(name, tags, arrays.timestamps, null, arrays.doubles,
+          ntimestamps);
+    } else {
+      sink.invalid("Got " + ntimestamps + " timestamps but " + nlongs
+          + " long values and " + ndoubles + " double values for " + name,
+          ntimestamps);
+    }
+    return ntimestamps;
+  }
+
+  /** Arrays reused from one series to the next. */
+  private static final class Buffers {
+    int[] tags = new int[16];
+    long[] timestamps = new long[64];
+    long[] longs = new long[64];
+    double[] doubles = new double[64];
+  }
+
+  private static int[] grow(final int[] array, final int size) {
+    return size < array.length ? array : Arrays.copyOf(array,
+        array.length * 2);
+  }
+
+  private static long[] grow(final long[] array, final int size) {
+    return size < array.length ? array : Arrays.copyOf(array,
+        array.length * 2);
+  }
+
+  private static double[] grow(final double[] array, final int size) {
+    return size < array.length ? array : Arrays.copyOf(array,
+        array.length * 2);
+  }
+}
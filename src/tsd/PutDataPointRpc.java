@@ -13,8 +13,10 @@
 package net.opentsdb.tsd;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -24,7 +26,10 @@ import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.TimeoutException;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.util.Timeout;
@@ -51,16 +56,120 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
   private static final AtomicLong writes_blocked = new AtomicLong();
   private static final AtomicLong writes_timedout = new AtomicLong();
   
+  /** Optional backpressure on writers, may be null. */
+  private final AdmissionController admission;
+  
+  /** Default constructor, without backpressure. */
+  public PutDataPointRpc() {
+    this(null);
+  }
+  
+  /**
+   * Constructor.
+   * @param admission The admission controller tracking the puts we issue, 
+   * may be null.
+   * @since 2.3
+   */
+  PutDataPointRpc(final AdmissionController admission) {
+    this.admission = admission;
+  }
+  
   public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
                                   final String[] cmd) {
+    return executeTelnet(tsdb, chan, cmd, null);
+  }
+
+  /**
+   * Executes a telnet-style put directly from the line received, without
+   * splitting it into strings first. See {@link TelnetPutParser}.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the RPC was received.
+   * @param line The whole command line, starting with "put".
+   * @return A deferred result.
+   * @since 2.3
+   */
+  Deferred<Object> executeLine(final TSDB tsdb, final Channel chan,
+                               final ChannelBuffer line) {
+    return executeTelnet(tsdb, chan, null, line);
+  }
+
+  /**
+   * Executes a protobuf batch received on the telnet port and answers with a
+   * {@code PutResult} once all of its points were written.
+   * See {@link PutBatchCodec}.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the batch was received.
+   * @param batch The serialized batch, without its length prefix.
+   * @return A deferred result.
+   * @since 2.3
+   */
+  Deferred<Object> executeBatch(final TSDB tsdb, final Channel chan,
+                                final ChannelBuffer batch) {
+    requests.incrementAndGet();
+    final BatchWriter writer = new BatchWriter(tsdb, chan, null, true);
+    try {
+      PutBatchCodec.decode(batch, writer);
+    } catch (IOException e) {
+      LOG.warn("Invalid protobuf batch from " + chan + ": " + e.getMessage());
+      illegal_arguments.incrementAndGet();
+      if (chan.isConnected()) {
+        chan.write(PutBatchCodec.encodeResult(0, 0, 
+            "Invalid batch: " + e.getMessage()))
+          .addListener(ChannelFutureListener.CLOSE);
+      }
+      return Deferred.fromResult(null);
+    }
+
+    /** Acknowledges the batch once every point is written or failed */
+    class AckCB implements Callback<Object, ArrayList<Boolean>> {
+      @Override
+      public Object call(final ArrayList<Boolean> results) {
+        int good_writes = 0;
+        for (final boolean result : results) {
+          if (result) {
+            ++good_writes;
+          }
+        }
+        final int failed = writer.failures + results.size() - good_writes;
+        if (chan.isConnected()) {
+          if (chan.isWritable()) {
+            chan.write(PutBatchCodec.encodeResult(good_writes, failed, null));
+          } else {
+            writes_blocked.incrementAndGet();
+          }
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "protobuf batch ack";
+      }
+    }
+    return Deferred.group(writer.deferreds).addCallback(new AckCB());
+  }
+
+  /**
+   * Handles a telnet-style put given either as split words or as the raw line.
+   * @param tsdb The TSDB to use.
+   * @param chan The channel on which the RPC was received.
+   * @param cmd The split command or null if {@code line} is given.
+   * @param line The raw command line or null if {@code cmd} is given.
+   * @return A deferred result.
+   */
+  private Deferred<Object> executeTelnet(final TSDB tsdb, final Channel chan,
+                                         final String[] cmd,
+                                         final ChannelBuffer line) {
     requests.incrementAndGet();
     String errmsg = null;
     try {
+      final TelnetPutParser.Put put = 
+          cmd == null ? TelnetPutParser.parse(line) : null;
       final class PutErrback implements Callback<Exception, Exception> {
         public Exception call(final Exception arg) {
           // we handle the storage exceptions here so as to avoid creating yet
           // another callback object on every data point.
-          handleStorageException(tsdb, getDataPointFromString(cmd), arg);
+          handleStorageException(tsdb, put == null ? 
+              getDataPointFromString(cmd) : put.toDataPoint(), arg);
           if (chan.isConnected()) {
             if (chan.isWritable()) {
               chan.write("put: HBase error: " + arg.getMessage() + '\n');
@@ -75,7 +184,12 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           return "report error to channel";
         }
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
+      final Deferred<Object> result = put == null ? 
+          importDataPoint(tsdb, cmd) : importDataPoint(tsdb, put);
+      if (admission != null) {
+        admission.admit(chan, result);
+      }
+      return result.addErrback(new PutErrback());
     } catch (NumberFormatException x) {
       errmsg = "put: invalid value: " + x.getMessage() + '\n';
       invalid_values.incrementAndGet();
@@ -119,241 +233,468 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           "] is not permitted for this endpoint");
     }
     
-    final List<IncomingDataPoint> dps = query.serializer().parsePutV1();
-    if (dps.size() < 1) {
-      throw new BadRequestException("No datapoints found in content");
+    if (PutBatchCodec.CONTENT_TYPE.equals(contentType(query))) {
+      executeBatch(tsdb, query);
+      return;
     }
     
-    final HashMap<String, String> query_tags = new HashMap<String, String>();
-    final boolean show_details = query.hasQueryStringParam("details");
-    final boolean show_summary = query.hasQueryStringParam("summary");
-    final boolean synchronous = query.hasQueryStringParam("sync");
-    final int sync_timeout = query.hasQueryStringParam("sync_timeout") ? 
-        Integer.parseInt(query.getQueryStringParam("sync_timeout")) : 0;
-    // this is used to coordinate timeouts
-    final AtomicBoolean sending_response = new AtomicBoolean();
-    sending_response.set(false);
-        
-    final ArrayList<HashMap<String, Object>> details = show_details
-      ? new ArrayList<HashMap<String, Object>>() : null;
-    int queued = 0;
-    final List<Deferred<Boolean>> deferreds = synchronous ? 
-        new ArrayList<Deferred<Boolean>>(dps.size()) : null;
-        
-    if (tsdb.getConfig().enable_header_tag()) {
-      LOG.debug("Looking for tag header " + tsdb.getConfig().get_name_header_tag());
-      final String header_tag_value = query.getHeaderValue(tsdb.getConfig().get_name_header_tag()) ;
-      if (header_tag_value != null) {
-        LOG.debug(" header found with value:" + header_tag_value);
-        Tags.parse(query_tags, header_tag_value);
-      } else {
-        LOG.debug(" no such header in request");
-      }
+    // In streaming mode data points are parsed as we go so that we don't
+    // build a list of the whole batch. The body itself is already in memory
+    // so to bound the puts queued to storage we stop parsing once too many
+    // of them are outstanding and resume from the oldest put's callback.
+    final boolean streaming = 
+        tsdb.getConfig().getBoolean("tsd.http.put.streaming");
+    final Iterator<IncomingDataPoint> dps = streaming ? 
+            query.serializer().parsePutV1Stream() : 
+            query.serializer().parsePutV1().iterator();
+    if (!dps.hasNext()) {
+      throw new BadRequestException("No datapoints found in content");
     }
-        
-    for (final IncomingDataPoint dp : dps) {
-
-      /** Handles passing a data point to the storage exception handler if 
-       * we were unable to store it for any reason */
-      final class PutErrback implements Callback<Boolean, Exception> {
-        public Boolean call(final Exception arg) {
-          handleStorageException(tsdb, dp, arg);
-          hbase_errors.incrementAndGet();
-          
-          if (show_details) {
-            details.add(getHttpDetails("Storage exception: " 
-                + arg.getMessage(), dp));
-          }
-          return false;
-        }
-        public String toString() {
-          return "HTTP Put Exception CB";
-        }
-      }
+    new HttpPut(tsdb, query, dps, streaming ? 
+        tsdb.getConfig().getInt("tsd.http.put.streaming.max_outstanding") : 0)
+        .run();
+  }
+  
+  /**
+   * Writes the data points of a JSON put and responds once they are queued,
+   * or written when the caller asked for a synchronous put. When
+   * {@code max_outstanding} puts are waiting on storage the loop returns and
+   * is resumed from the callback of the oldest one so the I/O worker is 
+   * never blocked.
+   */
+  private final class HttpPut {
+    private final TSDB tsdb;
+    private final HttpQuery query;
+    private final Iterator<IncomingDataPoint> dps;
+    private final int max_outstanding;
+    private final ArrayDeque<Deferred<Object>> outstanding;
+    private final HashMap<String, String> query_tags = 
+        new HashMap<String, String>();
+    private final boolean show_details;
+    private final boolean show_summary;
+    private final boolean synchronous;
+    private final int sync_timeout;
+    /** This is used to coordinate timeouts */
+    private final AtomicBoolean sending_response = new AtomicBoolean();
+    private final ArrayList<HashMap<String, Object>> details;
+    private final List<Deferred<Boolean>> deferreds;
+    /** The data points matching the deferreds, for reporting timeouts */
+    private final List<IncomingDataPoint> sync_dps;
+    private int received;
+    private int queued;
+    
+    HttpPut(final TSDB tsdb, final HttpQuery query, 
+        final Iterator<IncomingDataPoint> dps, final int max_outstanding) {
+      this.tsdb = tsdb;
+      this.query = query;
+      this.dps = dps;
+      this.max_outstanding = max_outstanding;
+      outstanding = max_outstanding > 0 ? 
+          new ArrayDeque<Deferred<Object>>() : null;
+      show_details = query.hasQueryStringParam("details");
+      show_summary = query.hasQueryStringParam("summary");
+      synchronous = query.hasQueryStringParam("sync");
+      sync_timeout = query.hasQueryStringParam("sync_timeout") ? 
+          Integer.parseInt(query.getQueryStringParam("sync_timeout")) : 0;
+      details = show_details ? new ArrayList<HashMap<String, Object>>() : null;
+      deferreds = synchronous ? new ArrayList<Deferred<Boolean>>() : null;
+      sync_dps = synchronous ? new ArrayList<IncomingDataPoint>() : null;
       
-      /** Simply marks the put as successful */
-      final class SuccessCB implements Callback<Boolean, Object> {
-        @Override
-        public Boolean call(final Object obj) {
-          return true;
-        }
-        public String toString() {
-          return "HTTP Put success CB";
+      if (tsdb.getConfig().enable_header_tag()) {
+        LOG.debug("Looking for tag header " + tsdb.getConfig().get_name_header_tag());
+        final String header_tag_value = query.getHeaderValue(tsdb.getConfig().get_name_header_tag()) ;
+        if (header_tag_value != null) {
+          LOG.debug(" header found with value:" + header_tag_value);
+          Tags.parse(query_tags, header_tag_value);
+        } else {
+          LOG.debug(" no such header in request");
         }
       }
-      
-      try {
-        /** Add additionnal tags from HTTP header */
-        if ( (query_tags != null) && (query_tags.size() > 0) ) {
-          dp.addTags(query_tags);
+    }
+    
+    /**
+     * Queues the remaining data points and responds once they are all 
+     * queued. Returns early if it has to wait on an outstanding put.
+     * @throws BadRequestException if the body can't be parsed
+     */
+    void run() {
+      while (true) {
+        // check before hasNext() as it parses the next data point
+        if (outstanding != null && outstanding.size() >= max_outstanding && 
+            pause(outstanding.poll())) {
+          return;
+        }
+        if (!dps.hasNext()) {
+          break;
         }
+        final IncomingDataPoint dp = dps.next();
+        ++received;
         
-        if (dp.getMetric() == null || dp.getMetric().isEmpty()) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Metric name was empty", dp));
+        /** Handles passing a data point to the storage exception handler if 
+         * we were unable to store it for any reason */
+        final class PutErrback implements Callback<Boolean, Exception> {
+          public Boolean call(final Exception arg) {
+            handleStorageException(tsdb, dp, arg);
+            hbase_errors.incrementAndGet();
+            
+            if (show_details) {
+              details.add(getHttpDetails("Storage exception: " 
+                  + arg.getMessage(), dp));
+            }
+            return false;
+          }
+          public String toString() {
+            return "HTTP Put Exception CB";
           }
-          LOG.warn("Metric name was empty: " + dp);
-          illegal_arguments.incrementAndGet();
-          continue;
         }
-        if (dp.getTimestamp() <= 0) {
-          if (show_details) {
-            details.add(this.getHttpDetails("Invalid timestamp", dp));
+        
+        /** Simply marks the put as successful */
+        final class SuccessCB implements Callback<Boolean, Object> {
+          @Override
+          public Boolean call(final Object obj) {
+            return true;
+          }
+          public String toString() {
+            return "HTTP Put success CB";
           }
-          LOG.warn("Invalid timestamp: " + dp);
-          illegal_arguments.incrementAndGet();
-          continue;
         }
-        if (dp.getValue() == null || dp.getValue().isEmpty()) {
+        
+        try {
+          /** Add additionnal tags from HTTP header */
+          if ( (query_tags != null) && (query_tags.size() > 0) ) {
+            dp.addTags(query_tags);
+          }
+          
+          if (dp.getMetric() == null || dp.getMetric().isEmpty()) {
+            if (show_details) {
+              details.add(getHttpDetails("Metric name was empty", dp));
+            }
+            LOG.warn("Metric name was empty: " + dp);
+            illegal_arguments.incrementAndGet();
+            continue;
+          }
+          if (dp.getTimestamp() <= 0) {
+            if (show_details) {
+              details.add(getHttpDetails("Invalid timestamp", dp));
+            }
+            LOG.warn("Invalid timestamp: " + dp);
+            illegal_arguments.incrementAndGet();
+            continue;
+          }
+          if (dp.getValue() == null || dp.getValue().isEmpty()) {
+            if (show_details) {
+              details.add(getHttpDetails("Empty value", dp));
+            }
+            LOG.warn("Empty value: " + dp);
+            invalid_values.incrementAndGet();
+            continue;
+          }
+          if (dp.getTags() == null || dp.getTags().size() < 1) {
+            if (show_details) {
+              details.add(getHttpDetails("Missing tags", dp));
+            }
+            LOG.warn("Missing tags: " + dp);
+            illegal_arguments.incrementAndGet();
+            continue;
+          }
+          final Deferred<Object> deferred;
+          if (Tags.looksLikeInteger(dp.getValue())) {
+            deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
+                Tags.parseLong(dp.getValue()), dp.getTags());
+          } else {
+            deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
+                Float.parseFloat(dp.getValue()), dp.getTags());
+          }
+          if (admission != null) {
+            admission.admit(query.channel(), deferred);
+          }
+          if (synchronous) {
+            deferreds.add(deferred.addCallback(new SuccessCB()));
+            sync_dps.add(dp);
+          }
+          deferred.addErrback(new PutErrback());
+          ++queued;
+          if (outstanding != null) {
+            outstanding.add(deferred);
+          }
+        } catch (NumberFormatException x) {
           if (show_details) {
-            details.add(this.getHttpDetails("Empty value", dp));
+            details.add(getHttpDetails("Unable to parse value to a number", 
+                dp));
           }
-          LOG.warn("Empty value: " + dp);
+          LOG.warn("Unable to parse value to a number: " + dp);
           invalid_values.incrementAndGet();
-          continue;
-        }
-        if (dp.getTags() == null || dp.getTags().size() < 1) {
+        } catch (IllegalArgumentException iae) {
           if (show_details) {
-            details.add(this.getHttpDetails("Missing tags", dp));
+            details.add(getHttpDetails(iae.getMessage(), dp));
           }
-          LOG.warn("Missing tags: " + dp);
+          LOG.warn(iae.getMessage() + ": " + dp);
           illegal_arguments.incrementAndGet();
-          continue;
-        }
-        final Deferred<Object> deferred;
-        if (Tags.looksLikeInteger(dp.getValue())) {
-          deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Tags.parseLong(dp.getValue()), dp.getTags());
-        } else {
-          deferred = tsdb.addPoint(dp.getMetric(), dp.getTimestamp(), 
-              Float.parseFloat(dp.getValue()), dp.getTags());
-        }
-        if (synchronous) {
-          deferreds.add(deferred.addCallback(new SuccessCB()));
-        }
-        deferred.addErrback(new PutErrback());
-        ++queued;
-      } catch (NumberFormatException x) {
-        if (show_details) {
-          details.add(this.getHttpDetails("Unable to parse value to a number", 
-              dp));
+        } catch (NoSuchUniqueName nsu) {
+          if (show_details) {
+            details.add(getHttpDetails("Unknown metric", dp));
+          }
+          LOG.warn("Unknown metric: " + dp);
+          unknown_metrics.incrementAndGet();
         }
-        LOG.warn("Unable to parse value to a number: " + dp);
-        invalid_values.incrementAndGet();
-      } catch (IllegalArgumentException iae) {
-        if (show_details) {
-          details.add(this.getHttpDetails(iae.getMessage(), dp));
+      }
+      respond();
+    }
+    
+    /**
+     * Waits on a put without blocking. Whichever of the caller and the put's
+     * callback gets there last carries on parsing, so a put that already
+     * completed lets the loop continue instead of recursing.
+     * @param deferred The oldest outstanding put
+     * @return True if the loop must return and let the callback resume it,
+     * false if the put already completed.
+     */
+    private boolean pause(final Deferred<Object> deferred) {
+      final AtomicBoolean handoff = new AtomicBoolean();
+      
+      /** Resumes parsing once the put completed. Failures were already 
+       * counted by the put's errback. */
+      final class ResumeCB implements Callback<Object, Object> {
+        @Override
+        public Object call(final Object arg) {
+          if (!handoff.compareAndSet(false, true)) {
+            resume();
+          }
+          return arg;
         }
-        LOG.warn(iae.getMessage() + ": " + dp);
-        illegal_arguments.incrementAndGet();
-      } catch (NoSuchUniqueName nsu) {
-        if (show_details) {
-          details.add(this.getHttpDetails("Unknown metric", dp));
+        @Override
+        public String toString() {
+          return "HTTP Put resume CB";
         }
-        LOG.warn("Unknown metric: " + dp);
-        unknown_metrics.incrementAndGet();
       }
+      
+      deferred.addBoth(new ResumeCB());
+      return handoff.compareAndSet(false, true);
     }
     
-    /** A timer task that will respond to the user with the number of timeouts
-     * for synchronous writes. */
-    class PutTimeout implements TimerTask {
-      final int queued;
-      public PutTimeout(final int queued) {
-        this.queued = queued;
+    /** Runs the loop from a put's callback, reporting errors to the caller
+     * as the RPC handler would have. */
+    private void resume() {
+      try {
+        run();
+      } catch (BadRequestException e) {
+        query.badRequest(e);
+      } catch (Exception e) {
+        query.internalError(e);
       }
-      @Override
-      public void run(final Timeout timeout) throws Exception {
-        if (sending_response.get()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Put data point call " + query + 
-                " already responded successfully");
+    }
+    
+    /** Responds to the caller once every data point has been queued */
+    private void respond() {
+      final int total = received;
+      
+      /** A timer task that will respond to the user with the number of timeouts
+       * for synchronous writes. */
+      class PutTimeout implements TimerTask {
+        final int queued;
+        public PutTimeout(final int queued) {
+          this.queued = queued;
+        }
+        @Override
+        public void run(final Timeout timeout) throws Exception {
+          if (sending_response.get()) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Put data point call " + query + 
+                  " already responded successfully");
+            }
+            return;
+          } else {
+            sending_response.set(true);
+          }
+          
+          // figure out how many writes are outstanding
+          int good_writes = 0;
+          int failed_writes = 0;
+          int timeouts = 0;
+          for (int i = 0; i < deferreds.size(); i++) {
+            try {
+              if (deferreds.get(i).join(1)) {
+                ++good_writes;
+              } else {
+                ++failed_writes;
+              }
+            } catch (TimeoutException te) {
+              if (show_details) {
+                details.add(getHttpDetails("Write timedout", sync_dps.get(i)));
+              }
+              ++timeouts;
+            }
+          }
+          writes_timedout.addAndGet(timeouts);
+          final int failures = total - queued;
+          if (!show_summary && !show_details) {
+            throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+                "The put call has timedout with " + good_writes 
+                  + " successful writes, " + failed_writes + " failed writes and "
+                  + timeouts + " timed out writes.", 
+                "Please see the TSD logs or append \"details\" to the put request");
+          } else {
+            final HashMap<String, Object> summary = new HashMap<String, Object>();
+            summary.put("success", good_writes);
+            summary.put("failed", failures + failed_writes);
+            summary.put("timeouts", timeouts);
+            if (show_details) {
+              summary.put("errors", details);
+            }
+            
+            query.sendReply(HttpResponseStatus.BAD_REQUEST, 
+                query.serializer().formatPutV1(summary));
           }
-          return;
-        } else {
-          sending_response.set(true);
+        }
+      }
+      
+      // now after everything has been sent we can schedule a timeout if so
+      // the caller asked for a synchronous write.
+      final Timeout timeout = sync_timeout > 0 ? 
+          tsdb.getTimer().newTimeout(new PutTimeout(queued), sync_timeout, 
+              TimeUnit.MILLISECONDS) : null;
+      
+      /** Serializes the response to the client */
+      class GroupCB implements Callback<Object, ArrayList<Boolean>> {
+        final int queued;
+        public GroupCB(final int queued) {
+          this.queued = queued;
         }
         
-        // figure out how many writes are outstanding
-        int good_writes = 0;
-        int failed_writes = 0;
-        int timeouts = 0;
-        for (int i = 0; i < deferreds.size(); i++) {
-          try {
-            if (deferreds.get(i).join(1)) {
+        @Override
+        public Object call(final ArrayList<Boolean> results) {
+          if (sending_response.get()) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Put data point call " + query + " was marked as timedout");
+            }
+            return null;
+          } else {
+            sending_response.set(true);
+            if (timeout != null) {
+              timeout.cancel();
+            }
+          }
+          int good_writes = 0;
+          int failed_writes = 0;
+          for (final boolean result : results) {
+            if (result) {
               ++good_writes;
             } else {
               ++failed_writes;
             }
-          } catch (TimeoutException te) {
+          }
+          
+          final int failures = total - queued;
+          if (!show_summary && !show_details) {
+            if (failures + failed_writes > 0) {
+              query.sendReply(HttpResponseStatus.BAD_REQUEST, 
+                  query.serializer().formatErrorV1(
+                      new BadRequestException(HttpResponseStatus.BAD_REQUEST,
+                  "One or more data points had errors", 
+                  "Please see the TSD logs or append \"details\" to the put request")));
+            } else {
+              query.sendReply(HttpResponseStatus.NO_CONTENT, "".getBytes());
+            }
+          } else {
+            final HashMap<String, Object> summary = new HashMap<String, Object>();
+            if (sync_timeout > 0) {
+              summary.put("timeouts", 0);
+            }
+            summary.put("success", results.isEmpty() ? queued : good_writes);
+            summary.put("failed", failures + failed_writes);
             if (show_details) {
-              details.add(getHttpDetails("Write timedout", dps.get(i)));
+              summary.put("errors", details);
+            }
+            
+            if (failures > 0) {
+              query.sendReply(HttpResponseStatus.BAD_REQUEST, 
+                  query.serializer().formatPutV1(summary));
+            } else {
+              query.sendReply(query.serializer().formatPutV1(summary));
             }
-            ++timeouts;
           }
+          
+          return null;
         }
-        writes_timedout.addAndGet(timeouts);
-        final int failures = dps.size() - queued;
-        if (!show_summary && !show_details) {
-          throw new BadRequestException(HttpResponseStatus.BAD_REQUEST,
-              "The put call has timedout with " + good_writes 
-                + " successful writes, " + failed_writes + " failed writes and "
-                + timeouts + " timed out writes.", 
-              "Please see the TSD logs or append \"details\" to the put request");
-        } else {
-          final HashMap<String, Object> summary = new HashMap<String, Object>();
-          summary.put("success", good_writes);
-          summary.put("failed", failures + failed_writes);
-          summary.put("timeouts", timeouts);
-          if (show_details) {
-            summary.put("errors", details);
+        @Override
+        public String toString() {
+          return "put data point serialization callback";
+        }
+      }
+      
+      /** Catches any unexpected exceptions thrown in the callback chain */
+      class ErrCB implements Callback<Object, Exception> {
+        @Override
+        public Object call(final Exception e) throws Exception {
+          if (sending_response.get()) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("Put data point call " + query + " was marked as timedout");
+            }
+            return null;
+          } else {
+            sending_response.set(true);
+            if (timeout != null) {
+              timeout.cancel();
+            }
           }
-          
-          query.sendReply(HttpResponseStatus.BAD_REQUEST, 
-              query.serializer().formatPutV1(summary));
+          LOG.error("Unexpected exception", e);
+          throw new RuntimeException("Unexpected exception", e);
         }
+        @Override
+        public String toString() {
+          return "put data point error callback";
+        }
+      }
+      
+      if (synchronous) {
+        Deferred.groupInOrder(deferreds).addCallback(new GroupCB(queued))
+          .addErrback(new ErrCB());
+      } else {
+        new GroupCB(queued).call(EMPTY_DEFERREDS);
       }
     }
-    
-    // now after everything has been sent we can schedule a timeout if so
-    // the caller asked for a synchronous write.
-    final Timeout timeout = sync_timeout > 0 ? 
-        tsdb.getTimer().newTimeout(new PutTimeout(queued), sync_timeout, 
-            TimeUnit.MILLISECONDS) : null;
+  }
+  
+  /**
+   * Handles a protobuf batch posted to {@code /api/put}.  The {@code summary},
+   * {@code details} and {@code sync} parameters behave as for JSON puts but
+   * {@code sync_timeout} is not supported.
+   * @param tsdb The TSDB to which we belong
+   * @param query The HTTP query from the user
+   * @throws BadRequestException if the batch is malformed or empty
+   */
+  private void executeBatch(final TSDB tsdb, final HttpQuery query) {
+    final boolean show_details = query.hasQueryStringParam("details");
+    final boolean show_summary = query.hasQueryStringParam("summary");
+    final boolean synchronous = query.hasQueryStringParam("sync");
+    final BatchWriter writer = new BatchWriter(tsdb, query.channel(), 
+        show_details ? new ArrayList<HashMap<String, Object>>() : null, 
+        synchronous);
+    final int total;
+    try {
+      total = PutBatchCodec.decode(query.request().getContent(), writer);
+    } catch (IOException e) {
+      illegal_arguments.incrementAndGet();
+      throw new BadRequestException("Unable to parse the protobuf batch: " 
+          + e.getMessage(), e);
+    }
+    if (total < 1) {
+      throw new BadRequestException("No datapoints found in content");
+    }
     
     /** Serializes the response to the client */
-    class GroupCB implements Callback<Object, ArrayList<Boolean>> {
-      final int queued;
-      public GroupCB(final int queued) {
-        this.queued = queued;
-      }
-      
+    class BatchCB implements Callback<Object, ArrayList<Boolean>> {
       @Override
       public Object call(final ArrayList<Boolean> results) {
-        if (sending_response.get()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Put data point call " + query + " was marked as timedout");
-          }
-          return null;
-        } else {
-          sending_response.set(true);
-          if (timeout != null) {
-            timeout.cancel();
-          }
-        }
         int good_writes = 0;
-        int failed_writes = 0;
         for (final boolean result : results) {
           if (result) {
             ++good_writes;
-          } else {
-            ++failed_writes;
           }
         }
-        
-        final int failures = dps.size() - queued;
+        final int failed = writer.failures + results.size() - good_writes;
         if (!show_summary && !show_details) {
-          if (failures + failed_writes > 0) {
+          if (failed > 0) {
             query.sendReply(HttpResponseStatus.BAD_REQUEST, 
                 query.serializer().formatErrorV1(
                     new BadRequestException(HttpResponseStatus.BAD_REQUEST,
@@ -364,60 +705,199 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
           }
         } else {
           final HashMap<String, Object> summary = new HashMap<String, Object>();
-          if (sync_timeout > 0) {
-            summary.put("timeouts", 0);
-          }
-          summary.put("success", results.isEmpty() ? queued : good_writes);
-          summary.put("failed", failures + failed_writes);
+          summary.put("success", 
+              results.isEmpty() ? total - writer.failures : good_writes);
+          summary.put("failed", failed);
           if (show_details) {
-            summary.put("errors", details);
+            summary.put("errors", writer.details);
           }
-          
-          if (failures > 0) {
+          if (writer.failures > 0) {
             query.sendReply(HttpResponseStatus.BAD_REQUEST, 
                 query.serializer().formatPutV1(summary));
           } else {
             query.sendReply(query.serializer().formatPutV1(summary));
           }
         }
-        
         return null;
       }
       @Override
       public String toString() {
-        return "put data point serialization callback";
+        return "protobuf put serialization callback";
       }
     }
     
-    /** Catches any unexpected exceptions thrown in the callback chain */
-    class ErrCB implements Callback<Object, Exception> {
-      @Override
-      public Object call(final Exception e) throws Exception {
-        if (sending_response.get()) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("Put data point call " + query + " was marked as timedout");
+    if (synchronous) {
+      Deferred.group(writer.deferreds).addCallback(new BatchCB());
+    } else {
+      new BatchCB().call(EMPTY_DEFERREDS);
+    }
+  }
+  
+  /**
+   * Returns the media type of the request body, without any parameter.
+   * @param query The HTTP query from the user
+   * @return The content type, null if the header is missing
+   */
+  private static String contentType(final HttpQuery query) {
+    final String header = query.request().headers().get(
+        HttpHeaders.Names.CONTENT_TYPE);
+    if (header == null) {
+      return null;
+    }
+    final int semicolon = header.indexOf(';');
+    return (semicolon < 0 ? header : header.substring(0, semicolon))
+        .trim().toLowerCase();
+  }
+  
+  /**
+   * Writes the series of a protobuf batch straight to the TSDB, keeping
+   * track of the points that couldn't be written.
+   */
+  private final class BatchWriter implements PutBatchCodec.Sink {
+    private final TSDB tsdb;
+    private final Channel chan;
+    /** Error details for the HTTP response, null if not requested. */
+    final ArrayList<HashMap<String, Object>> details;
+    /** Deferreds of the points written, empty if not requested. */
+    final ArrayList<Deferred<Boolean>> deferreds = 
+        new ArrayList<Deferred<Boolean>>();
+    private final boolean track;
+    private final SuccessCB success = new SuccessCB();
+    /** Number of points we couldn't even try to write. */
+    int failures;
+    
+    BatchWriter(final TSDB tsdb, final Channel chan, 
+        final ArrayList<HashMap<String, Object>> details, final boolean track) {
+      this.tsdb = tsdb;
+      this.chan = chan;
+      this.details = details;
+      this.track = track;
+    }
+
+    @Override
+    public void series(final String metric, final HashMap<String, String> tags,
+        final long[] timestamps, final long[] long_values, 
+        final double[] double_values, final int count) {
+      for (int i = 0; i < count; i++) {
+        final long timestamp = timestamps[i];
+        try {
+          if (timestamp <= 0) {
+            throw new IllegalArgumentException("invalid timestamp: " 
+                + timestamp);
           }
-          return null;
-        } else {
-          sending_response.set(true);
-          if (timeout != null) {
-            timeout.cancel();
+          final Deferred<Object> deferred;
+          if (long_values != null) {
+            deferred = tsdb.addPoint(metric, timestamp, long_values[i], tags);
+          } else if ((float) double_values[i] == double_values[i]) {
+            deferred = tsdb.addPoint(metric, timestamp, 
+                (float) double_values[i], tags);
+          } else {
+            deferred = tsdb.addPoint(metric, timestamp, double_values[i], tags);
+          }
+          if (admission != null) {
+            admission.admit(chan, deferred);
           }
+          final Deferred<Boolean> result = deferred.addCallbacks(success, 
+              new ErrorCB(metric, tags, timestamp, long_values != null, 
+                  long_values != null ? long_values[i] : 0, 
+                  double_values != null ? double_values[i] : 0));
+          if (track) {
+            deferreds.add(result);
+          }
+        } catch (IllegalArgumentException e) {
+          illegal_arguments.incrementAndGet();
+          fail(e.getMessage(), metric, tags, timestamp, long_values, 
+              double_values, i);
+        } catch (NoSuchUniqueName e) {
+          // no need to try the other points of the series
+          unknown_metrics.addAndGet(count - i);
+          failures += count - i - 1;
+          fail("Unknown metric", metric, tags, timestamp, long_values, 
+              double_values, i);
+          return;
         }
-        LOG.error("Unexpected exception", e);
-        throw new RuntimeException("Unexpected exception", e);
+      }
+    }
+
+    @Override
+    public void invalid(final String message, final int count) {
+      LOG.warn(message);
+      illegal_arguments.addAndGet(count);
+      failures += count;
+      if (details != null) {
+        synchronized (details) {
+          details.add(getHttpDetails(message, null));
+        }
+      }
+    }
+
+    /** Records a point that couldn't be written. */
+    private void fail(final String message, final String metric, 
+        final HashMap<String, String> tags, final long timestamp, 
+        final long[] long_values, final double[] double_values, final int i) {
+      ++failures;
+      final IncomingDataPoint dp = new IncomingDataPoint(metric, timestamp, 
+          long_values != null ? Long.toString(long_values[i]) 
+              : Double.toString(double_values[i]), tags);
+      LOG.warn(message + ": " + dp);
+      if (details != null) {
+        synchronized (details) {
+          details.add(getHttpDetails(message, dp));
+        }
+      }
+    }
+
+    /** Simply marks the put as successful */
+    final class SuccessCB implements Callback<Boolean, Object> {
+      @Override
+      public Boolean call(final Object obj) {
+        return true;
       }
       @Override
       public String toString() {
-        return "put data point error callback";
+        return "protobuf put success CB";
       }
     }
-    
-    if (synchronous) {
-      Deferred.groupInOrder(deferreds).addCallback(new GroupCB(queued))
-        .addErrback(new ErrCB());
-    } else {
-      new GroupCB(queued).call(EMPTY_DEFERREDS);
+
+    /** Hands the point to the storage exception handler */
+    final class ErrorCB implements Callback<Boolean, Exception> {
+      private final String metric;
+      private final HashMap<String, String> tags;
+      private final long timestamp;
+      private final boolean integer;
+      private final long long_value;
+      private final double double_value;
+
+      ErrorCB(final String metric, final HashMap<String, String> tags, 
+          final long timestamp, final boolean integer, final long long_value, 
+          final double double_value) {
+        this.metric = metric;
+        this.tags = tags;
+        this.timestamp = timestamp;
+        this.integer = integer;
+        this.long_value = long_value;
+        this.double_value = double_value;
+      }
+
+      @Override
+      public Boolean call(final Exception e) {
+        final IncomingDataPoint dp = new IncomingDataPoint(metric, timestamp, 
+            integer ? Long.toString(long_value) : Double.toString(double_value), 
+            tags);
+        handleStorageException(tsdb, dp, e);
+        hbase_errors.incrementAndGet();
+        if (details != null) {
+          synchronized (details) {
+            details.add(getHttpDetails("Storage exception: " + e.getMessage(), 
+                dp));
+          }
+        }
+        return false;
+      }
+      @Override
+      public String toString() {
+        return "protobuf put error CB";
+      }
     }
   }
   
@@ -481,6 +961,22 @@ final class PutDataPointRpc implements TelnetRpc, HttpRpc {
     }
   }
 
+  /**
+   * Imports a single data point parsed by the {@link TelnetPutParser}.
+   * @param tsdb The TSDB to import the data point into.
+   * @param put The parsed command.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws IllegalArgumentException if any argument is invalid.
+   * @throws NoSuchUniqueName if the metric isn't registered.
+   */
+  private Deferred<Object> importDataPoint(final TSDB tsdb, 
+      final TelnetPutParser.Put put) {
+    if (put.integer) {
+      return tsdb.addPoint(put.metric, put.timestamp, put.long_value, put.tags);
+    } else {
+      return tsdb.addPoint(put.metric, put.timestamp, put.float_value, put.tags);
+    }
+  }
 
   /**
    * Converts the string array to an IncomingDataPoint. WARNING: This method
@@ -60,7 +60,6 @@ import net.opentsdb.query.pojo.Output;
 import net.opentsdb.query.pojo.Query;
 import net.opentsdb.query.pojo.Timespan;
 import net.opentsdb.stats.QueryStats;
-import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId.UniqueIdType;
 import net.opentsdb.utils.DateTime;
 import net.opentsdb.utils.JSON;
@@ -224,6 +223,7 @@ public class QueryExecutor {
     final QueryStats query_stats = 
         new QueryStats(query.getRemoteAddress(), ts_query, query.getHeaders());
     ts_query.setQueryStats(query_stats);
+    query.cancelOnDisconnect(query_stats);
     
     /**
      * Sends the serialized results to the caller. This should be the very
@@ -254,6 +254,7 @@ public class QueryExecutor {
     class QueriesCB implements Callback<Object, ArrayList<DataPoints[]>> {
       public Object call(final ArrayList<DataPoints[]> query_results) 
         throws Exception {
+        query_stats.checkCancelled();
         
         for (int i = 0; i < query_results.size(); i++) {
           final TSSubQuery sub = ts_query.getQueries().get(i);
@@ -461,11 +462,26 @@ public class QueryExecutor {
       }
     }
     
+    /** Hands back the memory of the query once it is done, every path ends
+     * here whether or not it marked the query serialized */
+    class ReleaseCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object arg) {
+        query_stats.releaseReservations();
+        return arg;
+      }
+      @Override
+      public String toString() {
+        return "Release query memory callback";
+      }
+    }
+    
     // TODO - only run the ones that will be involved in an output. Folks WILL
     // ask for stuff they don't need.... *sigh*
     ts_query.buildQueriesAsync(tsdb)
-      .addCallback(new BuildCB())
-      .addErrback(new ErrorCB());
+      .addCallbackDeferring(new BuildCB())
+      .addErrback(new ErrorCB())
+      .addBoth(new ReleaseCB());
   }
   
   /**
@@ -579,13 +595,36 @@ public class QueryExecutor {
     return cb_chain.addCallback(new FinalCB());
   }
   
+  /** Fails the completion deferred of a serializer so the error goes up the
+   * query's chain to its errback instead of leaving the chain waiting */
+  private static class FailCB implements Callback<Object, Exception> {
+    final Deferred<Object> completed;
+    FailCB(final Deferred<Object> completed) {
+      this.completed = completed;
+    }
+    @Override
+    public Object call(final Exception e) {
+      completed.callback(e);
+      return null;
+    }
+    @Override
+    public String toString() {
+      return "Serializer failure callback";
+    }
+  }
+  
   /** This has to be attached to callbacks or we may never respond to clients */
   class ErrorCB implements Callback<Object, Exception> {
     public Object call(final Exception e) throws Exception {
       QueryRpc.query_exceptions.incrementAndGet();
       Throwable ex = e;
       try {
-        LOG.error("Query exception: ", e);
+        if (ts_query.getQueryStats() != null 
+            && ts_query.getQueryStats().isCancelled()) {
+          LOG.info("Query cancelled: " + e.getMessage());
+        } else {
+          LOG.error("Query exception: ", e);
+        }
         if (e instanceof DeferredGroupException) {
           ex = e.getCause();
           while (ex != null && ex instanceof DeferredGroupException) {
@@ -595,22 +634,25 @@ public class QueryExecutor {
             LOG.error("The deferred group exception didn't have a cause???");
           }
         }
+        final BadRequestException response;
         if (ex instanceof RpcTimedOutException) {
-          QueryExecutor.this.http_query.badRequest(new BadRequestException(
-              HttpResponseStatus.REQUEST_TIMEOUT, ex.getMessage()));
+          response = new BadRequestException(
+              HttpResponseStatus.REQUEST_TIMEOUT, ex.getMessage());
         } else if (ex instanceof HBaseException) {
-          QueryExecutor.this.http_query.badRequest(new BadRequestException(
-              HttpResponseStatus.FAILED_DEPENDENCY, ex.getMessage()));
+          response = new BadRequestException(
+              HttpResponseStatus.FAILED_DEPENDENCY, ex.getMessage());
         } else if (ex instanceof QueryException) {
-          QueryExecutor.this.http_query.badRequest(new BadRequestException(
-              ((QueryException)ex).getStatus(), ex.getMessage()));
+          response = new BadRequestException(
+              ((QueryException)ex).getStatus(), ex.getMessage());
         } else if (ex instanceof BadRequestException) {
-          QueryExecutor.this.http_query.badRequest((BadRequestException)ex);
-        } else if (ex instanceof NoSuchUniqueName) {
-          QueryExecutor.this.http_query.badRequest(new BadRequestException(ex));
+          response = (BadRequestException)ex;
         } else {
-          QueryExecutor.this.http_query.badRequest(new BadRequestException(ex));
+          response = new BadRequestException(ex);
         }
+        if (ts_query.getQueryStats() != null) {
+          ts_query.getQueryStats().markSerialized(response.getStatus(), ex);
+        }
+        QueryExecutor.this.http_query.badRequest(response);
         
       } catch (RuntimeException ex2) {
         LOG.error("Exception thrown during exception handling", ex2);
@@ -666,6 +708,7 @@ public class QueryExecutor {
     
     @Override
     public Deferred<Object> call(final Object ignored) throws Exception {
+      query.getQueryStats().checkCancelled();
       //result set opening
       json.writeStartObject();
       
@@ -721,7 +764,7 @@ public class QueryExecutor {
         final MetaSerializer meta_serializer = 
             new MetaSerializer(tsdb, json, iterator.values());
         meta_serializer.call(null).addCallback(new MetaCB())
-          .addErrback(QueryExecutor.this.new ErrorCB());
+          .addErrback(new FailCB(completed));
       } else {
         // done, not dumping any more info
         json.writeEndObject();
@@ -766,6 +809,7 @@ public class QueryExecutor {
     
     @Override
     public Deferred<Object> call(final Object ignored) throws Exception {
+      ts_query.getQueryStats().checkCancelled();
       //result set opening
       json.writeStartObject();
       
@@ -817,7 +861,8 @@ public class QueryExecutor {
         }
         final MetaSerializer meta_serializer = 
             new MetaSerializer(tsdb, json, edps);
-        meta_serializer.call(null).addCallback(new MetaCB());
+        meta_serializer.call(null).addCallback(new MetaCB())
+          .addErrback(new FailCB(completed));
       } else {
         // done, not dumping any more info
         json.writeEndObject();
@@ -971,7 +1016,7 @@ public class QueryExecutor {
       }
       
       Deferred.groupInOrder(deferreds).addCallback(new MetaCB())
-        .addErrback(QueryExecutor.this.new ErrorCB());
+        .addErrback(new FailCB(completed));
       return completed;
     }
     
@@ -37,6 +37,7 @@ import com.stumbleupon.async.DeferredGroupException;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.IncomingDataPoint;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryCache;
 import net.opentsdb.core.QueryException;
 import net.opentsdb.core.RateOptions;
 import net.opentsdb.core.TSDB;
@@ -163,6 +164,7 @@ final class QueryRpc implements HttpRpc {
             query.getPrintableHeaders());
     data_query.setQueryStats(query_stats);
     query.setStats(query_stats);
+    query.cancelOnDisconnect(query_stats);
     
     final int nqueries = data_query.getQueries().size();
     final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>(nqueries);
@@ -173,7 +175,11 @@ final class QueryRpc implements HttpRpc {
       public Object call(final Exception e) throws Exception {
         Throwable ex = e;
         try {
-          LOG.error("Query exception: ", e);
+          if (query_stats.isCancelled()) {
+            LOG.info("Query cancelled: " + e.getMessage());
+          } else {
+            LOG.error("Query exception: ", e);
+          }
           if (ex instanceof DeferredGroupException) {
             ex = e.getCause();
             while (ex != null && ex instanceof DeferredGroupException) {
@@ -254,19 +260,37 @@ final class QueryRpc implements HttpRpc {
           }
         }
 
+        /** Counts the query once its response was streamed */
+        class StreamedCB implements Callback<Object, Boolean> {
+          public Object call(final Boolean complete) throws Exception {
+            if (complete) {
+              query_success.incrementAndGet();
+            } else {
+              query_exceptions.incrementAndGet();
+            }
+            return null;
+          }
+        }
+
         switch (query.apiVersion()) {
         case 0:
         case 1:
-            query.serializer().formatQueryAsyncV1(data_query, results, 
+          // returned so the last callback of the query waits on it
+          if (tsdb.getConfig().getBoolean("tsd.http.query.streaming") 
+              || query.hasQueryStringParam("stream")) {
+            return query.serializer().streamQueryAsyncV1(data_query, results, 
+                globals).addCallback(new StreamedCB())
+                .addErrback(new ErrorCB());
+          } else {
+            return query.serializer().formatQueryAsyncV1(data_query, results, 
                globals).addCallback(new SendIt()).addErrback(new ErrorCB());
-          break;
+          }
         default: 
           query_invalid.incrementAndGet();
           throw new BadRequestException(HttpResponseStatus.NOT_IMPLEMENTED, 
               "Requested API version not implemented", "Version " + 
               query.apiVersion() + " is not implemented");
         }
-        return null;
       }
     }
     
@@ -280,8 +304,10 @@ final class QueryRpc implements HttpRpc {
       public Deferred<Object> call(final Query[] queries) {
         final ArrayList<Deferred<DataPoints[]>> deferreds = 
             new ArrayList<Deferred<DataPoints[]>>(queries.length);
-        for (final Query query : queries) {
-          deferreds.add(query.runAsync());
+        final QueryCache cache = tsdb.getQueryCache();
+        for (int i = 0; i < queries.length; i++) {
+          deferreds.add(cache != null ? cache.run(data_query, i, queries[i])
+              : queries[i].runAsync());
         }
         return Deferred.groupInOrder(deferreds).addCallback(new QueriesCB());
       }
@@ -295,16 +321,31 @@ final class QueryRpc implements HttpRpc {
       }
     }
  
+    /** Hands back the memory of the query once it is done, every path ends
+     * here whether or not it marked the query serialized */
+    class ReleaseCB implements Callback<Object, Object> {
+      @Override
+      public Object call(final Object arg) {
+        query_stats.releaseReservations();
+        return arg;
+      }
+      @Override
+      public String toString() {
+        return "Release query memory callback";
+      }
+    }
+ 
     // if we the caller wants to search for global annotations, fire that off 
     // first then scan for the notes, then pass everything off to the formatter
     // when complete
     if (!data_query.getNoAnnotations() && data_query.getGlobalAnnotations()) {
       Annotation.getGlobalAnnotations(tsdb, 
         data_query.startTime() / 1000, data_query.endTime() / 1000)
-          .addCallback(new GlobalCB()).addErrback(new ErrorCB());
+          .addCallback(new GlobalCB()).addErrback(new ErrorCB())
+          .addBoth(new ReleaseCB());
     } else {
-      data_query.buildQueriesAsync(tsdb).addCallback(new BuildCB())
-        .addErrback(new ErrorCB());
+      data_query.buildQueriesAsync(tsdb).addCallbackDeferring(new BuildCB())
+        .addErrback(new ErrorCB()).addBoth(new ReleaseCB());
     }
   }
   
@@ -555,6 +596,10 @@ final class QueryRpc implements HttpRpc {
         data_query.setShowSummary(true);
     }
     
+    if (query.hasQueryStringParam("no_cache")) {
+      data_query.setNoCache(true);
+    }
+    
     // handle tsuid queries first
     if (query.hasQueryStringParam("tsuid")) {
       final List<String> tsuids = query.getQueryStringParams("tsuid");     
@@ -20,6 +20,7 @@ import com.google.common.base.Strings;
 import com.google.common.net.HttpHeaders;
 import com.stumbleupon.async.Deferred;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -130,6 +131,10 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
       final Object message = msgevent.getMessage();
       if (message instanceof String[]) {
         handleTelnetRpc(msgevent.getChannel(), (String[]) message);
+      } else if (message instanceof ChannelBuffer) {
+        handleTelnetPut(msgevent.getChannel(), (ChannelBuffer) message);
+      } else if (message instanceof PutBatchCodec.Batch) {
+        handlePutBatch(msgevent.getChannel(), (PutBatchCodec.Batch) message);
       } else if (message instanceof HttpRequest) {
         handleHttpQuery(tsdb, msgevent.getChannel(), (HttpRequest) message);
       } else {
@@ -141,6 +146,9 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
       Object pretty_message = msgevent.getMessage();
       if (pretty_message instanceof String[]) {
         pretty_message = Arrays.toString((String[]) pretty_message);
+      } else if (pretty_message instanceof ChannelBuffer) {
+        pretty_message = Arrays.toString(
+            TelnetPutParser.split((ChannelBuffer) pretty_message));
       }
       logError(msgevent.getChannel(), "Unexpected exception caught"
                + " while serving " + pretty_message, e);
@@ -162,6 +170,40 @@ final class RpcHandler extends IdleStateAwareChannelUpstreamHandler {
     rpc.execute(tsdb, chan, command);
   }
 
+  /**
+   * Executes a telnet-style put command that {@link WordSplitter} left
+   * unsplit.  If the built-in put RPC isn't registered, e.g. because the TSD
+   * is read-only, the line is split and goes through the regular lookup.
+   * @param chan The channel on which the RPC was received.
+   * @param line The put command line.
+   */
+  private void handleTelnetPut(final Channel chan, final ChannelBuffer line) {
+    final TelnetRpc rpc = rpc_manager.lookupTelnetRpc("put");
+    if (rpc instanceof PutDataPointRpc) {
+      telnet_rpcs_received.incrementAndGet();
+      ((PutDataPointRpc) rpc).executeLine(tsdb, chan, line);
+    } else {
+      handleTelnetRpc(chan, TelnetPutParser.split(line));
+    }
+  }
+
+  /**
+   * Hands a protobuf batch received on the telnet port to the put RPC.
+   * @param chan The channel on which the batch was received.
+   * @param batch The batch.
+   */
+  private void handlePutBatch(final Channel chan,
+                              final PutBatchCodec.Batch batch) {
+    final TelnetRpc rpc = rpc_manager.lookupTelnetRpc("put");
+    telnet_rpcs_received.incrementAndGet();
+    if (rpc instanceof PutDataPointRpc) {
+      ((PutDataPointRpc) rpc).executeBatch(tsdb, chan, batch.buffer);
+    } else {
+      logError(chan, "The put RPC is disabled, closing the connection");
+      chan.close();
+    }
+  }
+
   /**
    * Using the request URI, creates a query instance capable of handling 
    * the given request.
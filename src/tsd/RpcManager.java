@@ -108,6 +108,9 @@ public final class RpcManager {
   /** List of activated RPC plugins */
   private ImmutableList<RpcPlugin> rpc_plugins;
 
+  /** Backpressure on data point writers, null unless enabled. */
+  private AdmissionController admission;
+
   /** The TSDB that owns us. */
   private TSDB tsdb;
 
@@ -260,7 +263,10 @@ public final class RpcManager {
         enableUi, enableApi);
 
     if (mode.equals("rw") || mode.equals("wo")) {
-      final PutDataPointRpc put = new PutDataPointRpc();
+      if (tsdb.getConfig().getBoolean("tsd.network.backpressure.enable")) {
+        admission = new AdmissionController(tsdb.getConfig());
+      }
+      final PutDataPointRpc put = new PutDataPointRpc(admission);
       telnet.put("put", put);
       if (enableApi) {
         http.put("api/put", put);
@@ -465,6 +471,9 @@ public final class RpcManager {
   static void collectStats(final StatsCollector collector) {
     final RpcManager manager = INSTANCE.get();
     if (manager != null) {
+      if (manager.admission != null) {
+        manager.admission.collectStats(collector);
+      }
       if (manager.rpc_plugins != null) {
         try {
           collector.addExtraTag("plugin", "rpc");
@@ -0,0 +1,758 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
+import net.opentsdb.core.Const;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+/**
+ * Built-in storage exception handler that spools the data points we failed
+ * to write to local disk and writes them again once storage is back.
+ * <p>
+ * Points are appended to memory-mapped segment files of
+ * {@code tsd.core.storage_exception_handler.spool.segment_size} bytes in
+ * {@code tsd.core.storage_exception_handler.spool.directory}.  A segment is
+ * rotated when full and at most
+ * {@code tsd.core.storage_exception_handler.spool.max_segments} of them are
+ * kept, points are dropped (and counted) beyond that.
+ * <p>
+ * A background thread replays closed segments, oldest first, at no more than
+ * {@code tsd.core.storage_exception_handler.spool.replay_rate} points per
+ * second.  Points are sent in batches and a segment is only deleted once all
+ * of its points were either written or spooled again, so a crash may replay
+ * a few points twice, which is harmless.  Replay waits until no write, live
+ * or replayed, failed for
+ * {@code tsd.core.storage_exception_handler.spool.retry_interval} ms, then
+ * writes a single point to probe storage before sending a batch.  A batch
+ * that isn't done after
+ * {@code tsd.core.storage_exception_handler.spool.replay_timeout} ms counts
+ * as failed, its points are still written or spooled again whenever they
+ * complete.  The active segment is flushed to disk on the same thread every
+ * second.
+ * <p>
+ * Each segment starts with a magic number and a version byte, followed by
+ * records made of a 4 byte length, a 4 byte CRC32 and the payload:
+ * <pre>
+ * timestamp (8) | type (1) | value (8 or 4) | metric | tag count (2) | tags
+ * </pre>
+ * where strings are UTF-8 prefixed by their length on 2 bytes and the type is
+ * 0 for integers and 1 for floats.  A length of 0 marks the end of a segment.
+ * <p>
+ * To enable it, set {@code tsd.core.storage_exception_handler.plugin} to
+ * {@code net.opentsdb.tsd.SpoolingExceptionHandler}.
+ * @since 2.3
+ */
+public final class SpoolingExceptionHandler extends StorageExceptionHandler {
+  private static final Logger LOG =
+      LoggerFactory.getLogger(SpoolingExceptionHandler.class);
+
+  /** Prefix of the configuration properties of this handler. */
+  private static final String PREFIX =
+      "tsd.core.storage_exception_handler.spool.";
+
+  private static final int MAGIC = 0x54534450;  // "TSDP"
+  private static final byte VERSION = 1;
+  private static final int HEADER_SIZE = 5;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".spool";
+
+  private static final byte TYPE_LONG = 0;
+  private static final byte TYPE_FLOAT = 1;
+
+  /** How long the replay thread sleeps when there's nothing to do. */
+  private static final int IDLE_SLEEP = 1000;  // ms
+
+  private TSDB tsdb;
+  private File directory;
+  private int segment_size;
+  private int max_segments;
+  private int replay_rate;
+  private int retry_interval;
+  private int replay_timeout;
+
+  /** Closed segments waiting to be replayed, oldest first. Guarded by this. */
+  private final LinkedList<File> closed = new LinkedList<File>();
+
+  /** The segment we append to, null until needed. Guarded by this. */
+  private File active;
+  private MappedByteBuffer active_buf;
+  /** Number of records in the active segment. Guarded by this. */
+  private int active_records;
+  /** Sequence number of the next segment. Guarded by this. */
+  private long next_segment;
+
+  private final CRC32 crc = new CRC32();  // Guarded by this.
+
+  private ReplayThread replay;
+  private RateLimiter limiter;
+
+  /** Points waiting on disk, closed and active segments alike. */
+  private final AtomicLong depth = new AtomicLong();
+  /** Bytes used in the segments on disk. */
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+  private final AtomicLong replay_errors = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** When the last write failed, in ms. Replay waits for storage to heal. */
+  private volatile long last_failure;
+
+  @Override
+  public void initialize(final TSDB tsdb) {
+    open(tsdb);
+    replay = new ReplayThread();
+    replay.setDaemon(true);
+    replay.start();
+  }
+
+  /**
+   * Loads the config and scans the spool directory, without starting the
+   * replay thread.
+   * @param tsdb The TSDB to replay data points into.
+   * @throws IllegalArgumentException if the config is invalid.
+   */
+  void open(final TSDB tsdb) {
+    this.tsdb = tsdb;
+    final Config config = tsdb.getConfig();
+    final String path = config.getDirectoryName(PREFIX + "directory");
+    if (path == null) {
+      throw new IllegalArgumentException("Missing " + PREFIX + "directory");
+    }
+    directory = new File(path);
+    segment_size = config.getInt(PREFIX + "segment_size");
+    max_segments = config.getInt(PREFIX + "max_segments");
+    replay_rate = config.getInt(PREFIX + "replay_rate");
+    retry_interval = config.getInt(PREFIX + "retry_interval");
+    replay_timeout = config.getInt(PREFIX + "replay_timeout");
+    if (segment_size < 1024) {
+      throw new IllegalArgumentException(PREFIX
+          + "segment_size must be at least 1024 bytes");
+    }
+    if (max_segments < 1) {
+      throw new IllegalArgumentException(PREFIX
+          + "max_segments must be greater than 0");
+    }
+    if (replay_rate < 1) {
+      throw new IllegalArgumentException(PREFIX
+          + "replay_rate must be greater than 0");
+    }
+    if (replay_timeout < 1) {
+      throw new IllegalArgumentException(PREFIX
+          + "replay_timeout must be greater than 0");
+    }
+    limiter = RateLimiter.create(replay_rate);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalArgumentException("Unable to create the spool "
+          + "directory " + directory);
+    }
+    if (!directory.canWrite()) {
+      throw new IllegalArgumentException("Unable to write to the spool "
+          + "directory " + directory);
+    }
+
+    // Pick up whatever a previous run left behind.
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files);  // names are zero padded sequence numbers
+    for (final File file : files) {
+      final String name = file.getName();
+      try {
+        final long seq = Long.parseLong(
+            name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        next_segment = Math.max(next_segment, seq + 1);
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file in the spool directory: " + file);
+        continue;
+      }
+      try {
+        final SegmentReader reader = new SegmentReader(file);
+        try {
+          int records = 0;
+          while (reader.next() != null) {
+            records++;
+          }
+          depth.addAndGet(records);
+          bytes.addAndGet(reader.position());
+          closed.add(file);
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        LOG.error("Ignoring unreadable spool segment " + file, e);
+      }
+    }
+    LOG.info("Initialized the spool in " + directory + " with "
+        + closed.size() + " segments and " + depth.get()
+        + " data points to replay");
+  }
+
+  @Override
+  public Deferred<Object> shutdown() {
+    if (replay != null) {
+      replay.interrupt();
+      try {
+        replay.join(10000);
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for the replay thread");
+        Thread.currentThread().interrupt();
+      }
+    }
+    synchronized (this) {
+      if (active_buf != null) {
+        active_buf.force();
+      }
+    }
+    return Deferred.fromResult(null);
+  }
+
+  @Override
+  public String version() {
+    return "2.3.0";
+  }
+
+  /** @return The number of data points waiting on disk. */
+  long depth() {
+    return depth.get();
+  }
+
+  @Override
+  public void collectStats(final StatsCollector collector) {
+    final int segments;
+    synchronized (this) {
+      segments = closed.size() + (active != null ? 1 : 0);
+    }
+    collector.record("spool.depth", depth.get());
+    collector.record("spool.bytes", bytes.get());
+    collector.record("spool.segments", segments);
+    collector.record("spool.points", spooled, "type=spooled");
+    collector.record("spool.points", replayed, "type=replayed");
+    collector.record("spool.points", dropped, "type=dropped");
+    collector.record("spool.replay.errors", replay_errors);
+  }
+
+  @Override
+  public void handleError(final IncomingDataPoint dp,
+      final Exception exception) {
+    last_failure = System.currentTimeMillis();
+    final byte[] record;
+    try {
+      record = encode(dp);
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Unable to spool data point " + dp + ": " + e.getMessage());
+      dropped.incrementAndGet();
+      return;
+    }
+    try {
+      if (append(record)) {
+        spooled.incrementAndGet();
+        depth.incrementAndGet();
+        bytes.addAndGet(record.length);
+      } else {
+        dropped.incrementAndGet();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to spool data point " + dp, e);
+      dropped.incrementAndGet();
+    }
+  }
+
+  /**
+   * Appends a record to the active segment, rotating it if needed.
+   * @param record The encoded record, including its header.
+   * @return False if the spool is full.
+   * @throws IOException if a new segment couldn't be created.
+   */
+  private synchronized boolean append(final byte[] record) throws IOException {
+    // keep room for the end marker
+    if (record.length + 4 > segment_size - HEADER_SIZE) {
+      throw new IOException("Record of " + record.length
+          + " bytes doesn't fit in a segment");
+    }
+    if (active_buf != null && active_buf.remaining() < record.length + 4) {
+      rotate();
+    }
+    if (active_buf == null) {
+      if (closed.size() >= max_segments) {
+        return false;
+      }
+      openSegment();
+    }
+    // write the length last so that a torn record reads as the end
+    final int start = active_buf.position();
+    active_buf.position(start + 4);
+    active_buf.put(record, 4, record.length - 4);
+    active_buf.putInt(start, record.length - RECORD_HEADER_SIZE);
+    active_records++;
+    return true;
+  }
+
+  /** Creates and maps a new active segment. Must hold the lock. */
+  private void openSegment() throws IOException {
+    final File file = new File(directory,
+        String.format("%020d", next_segment++) + SEGMENT_SUFFIX);
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(segment_size);
+      active_buf = raf.getChannel().map(MapMode.READ_WRITE, 0, segment_size);
+    } finally {
+      raf.close();
+    }
+    active_buf.putInt(MAGIC);
+    active_buf.put(VERSION);
+    bytes.addAndGet(HEADER_SIZE);
+    active = file;
+    active_records = 0;
+    LOG.info("Opened spool segment " + file);
+  }
+
+  /** Closes the active segment and queues it for replay. Must hold the lock. */
+  private void rotate() {
+    if (active_buf == null) {
+      return;
+    }
+    active_buf.force();
+    unmap(active_buf);
+    closed.add(active);
+    active = null;
+    active_buf = null;
+    active_records = 0;
+  }
+
+  /**
+   * Closes the active segment if it has anything to replay.
+   * @return The oldest closed segment, null if there's nothing to replay.
+   */
+  synchronized File nextSegment() {
+    if (closed.isEmpty() && active_records > 0) {
+      rotate();
+    }
+    return closed.peek();
+  }
+
+  /** Forces the active segment to disk. */
+  synchronized void sync() {
+    if (active_buf != null) {
+      active_buf.force();
+    }
+  }
+
+  /**
+   * Deletes a segment that was fully replayed.
+   * @param file The segment, which must be the head of the closed list.
+   * @param reader The reader of the segment, closed before deleting it.
+   */
+  private void release(final File file, final SegmentReader reader) {
+    synchronized (this) {
+      closed.remove(file);
+    }
+    bytes.addAndGet(-reader.position());
+    reader.close();
+    if (!file.delete()) {
+      LOG.error("Unable to delete replayed spool segment " + file);
+    }
+  }
+
+  /**
+   * Serializes a data point into a record, header included.
+   * @throws IllegalArgumentException if the data point is invalid.
+   */
+  byte[] encode(final IncomingDataPoint dp) {
+    if (dp == null || dp.getMetric() == null || dp.getValue() == null) {
+      throw new IllegalArgumentException("Incomplete data point");
+    }
+    final Map<String, String> tags = dp.getTags() == null ?
+        new HashMap<String, String>(0) : dp.getTags();
+    final boolean integer = Tags.looksLikeInteger(dp.getValue());
+    final long long_value = integer ? Tags.parseLong(dp.getValue()) : 0;
+    final float float_value = integer ? 0 : Float.parseFloat(dp.getValue());
+
+    final byte[] metric = toBytes(dp.getMetric());
+    final List<byte[]> strings = new ArrayList<byte[]>(tags.size() * 2);
+    int size = RECORD_HEADER_SIZE + 8 + 1 + (integer ? 8 : 4)
+        + 2 + metric.length + 2;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      final byte[] tagk = toBytes(tag.getKey());
+      final byte[] tagv = toBytes(tag.getValue());
+      strings.add(tagk);
+      strings.add(tagv);
+      size += 4 + tagk.length + tagv.length;
+    }
+    final ByteBuffer buf = ByteBuffer.allocate(size);
+    buf.position(RECORD_HEADER_SIZE);
+    buf.putLong(dp.getTimestamp());
+    if (integer) {
+      buf.put(TYPE_LONG);
+      buf.putLong(long_value);
+    } else {
+      buf.put(TYPE_FLOAT);
+      buf.putFloat(float_value);
+    }
+    buf.putShort((short) metric.length);
+    buf.put(metric);
+    buf.putShort((short) tags.size());
+    for (final byte[] s : strings) {
+      buf.putShort((short) s.length);
+      buf.put(s);
+    }
+    final byte[] record = buf.array();
+    synchronized (crc) {
+      crc.reset();
+      crc.update(record, RECORD_HEADER_SIZE, size - RECORD_HEADER_SIZE);
+      buf.putInt(4, (int) crc.getValue());
+    }
+    return record;
+  }
+
+  /**
+   * Unmaps a segment right away instead of whenever the buffer is collected,
+   * so the space of a deleted segment is freed. The buffer must not be used
+   * afterwards.
+   */
+  static void unmap(final MappedByteBuffer buf) {
+    try {
+      final Method cleaner_method = buf.getClass().getMethod("cleaner");
+      cleaner_method.setAccessible(true);
+      final Object cleaner = cleaner_method.invoke(buf);
+      if (cleaner != null) {
+        cleaner.getClass().getMethod("clean").invoke(cleaner);
+      }
+    } catch (Exception e) {
+      // not a JVM we know how to unmap on, the GC will get to it
+      LOG.debug("Unable to unmap a spool segment", e);
+    }
+  }
+
+  /** @return The UTF-8 encoding of a string, at most 65535 bytes long. */
+  private static byte[] toBytes(final String s) {
+    if (s == null) {
+      throw new IllegalArgumentException("Null string");
+    }
+    final byte[] bytes = s.getBytes(Const.UTF8_CHARSET);
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalArgumentException("String too long: " + s);
+    }
+    return bytes;
+  }
+
+  /** A data point read back from a segment. */
+  static final class SpooledPoint {
+    String metric;
+    long timestamp;
+    boolean integer;
+    long long_value;
+    float float_value;
+    HashMap<String, String> tags;
+
+    /** @return The data point, e.g. to spool it again. */
+    IncomingDataPoint toDataPoint() {
+      return new IncomingDataPoint(metric, timestamp,
+          integer ? Long.toString(long_value) : Float.toString(float_value),
+          tags);
+    }
+  }
+
+  /**
+   * Reads the records of a segment in order, stopping at the end marker or
+   * at the first corrupted record.
+   */
+  static final class SegmentReader {
+    private final File file;
+    private final MappedByteBuffer buf;
+    private final CRC32 crc = new CRC32();
+    private boolean closed;
+
+    SegmentReader(final File file) throws IOException {
+      this.file = file;
+      final RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        final FileChannel channel = raf.getChannel();
+        buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        raf.close();
+      }
+      if (buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC) {
+        throw new IOException("Not a spool segment: " + file);
+      }
+      final byte version = buf.get();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version
+            + " for spool segment: " + file);
+      }
+    }
+
+    /** @return The next point or null once the end is reached or closed. */
+    SpooledPoint next() {
+      if (closed || buf.remaining() < RECORD_HEADER_SIZE) {
+        return null;
+      }
+      final int start = buf.position();
+      final int length = buf.getInt();
+      final int checksum = buf.getInt();
+      if (length <= 0 || length > buf.remaining()) {
+        buf.position(start);
+        return null;
+      }
+      final int payload = buf.position();
+      crc.reset();
+      for (int i = payload; i < payload + length; i++) {
+        crc.update(buf.get(i));
+      }
+      if ((int) crc.getValue() != checksum) {
+        LOG.error("Corrupted record at offset " + start + " of " + file
+            + ", skipping the rest of the segment");
+        buf.position(start);
+        return null;
+      }
+      try {
+        final SpooledPoint point = new SpooledPoint();
+        point.timestamp = buf.getLong();
+        point.integer = buf.get() == TYPE_LONG;
+        if (point.integer) {
+          point.long_value = buf.getLong();
+        } else {
+          point.float_value = buf.getFloat();
+        }
+        point.metric = readString();
+        final int ntags = buf.getShort() & 0xFFFF;
+        point.tags = new HashMap<String, String>(ntags);
+        for (int i = 0; i < ntags; i++) {
+          point.tags.put(readString(), readString());
+        }
+        buf.position(payload + length);
+        return point;
+      } catch (BufferUnderflowException e) {
+        LOG.error("Truncated record at offset " + start + " of " + file);
+        buf.position(start);
+        return null;
+      }
+    }
+
+    /** @return The offset right after the last record read. */
+    int position() {
+      return buf.position();
+    }
+
+    /** Unmaps the segment. Safe to call more than once. */
+    void close() {
+      if (!closed) {
+        closed = true;
+        unmap(buf);
+      }
+    }
+
+    private String readString() {
+      final byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+      buf.get(bytes);
+      return new String(bytes, Const.UTF8_CHARSET);
+    }
+  }
+
+  /**
+   * Flushes the active segment and replays the oldest segment, if any.
+   * @return False if there was nothing to replay.
+   * @throws Exception if the segment couldn't be read or we were interrupted.
+   */
+  boolean replayNext() throws Exception {
+    sync();
+    final File segment = nextSegment();
+    if (segment == null) {
+      return false;
+    }
+    replaySegment(segment);
+    return true;
+  }
+
+  /** Replays a whole segment then deletes it. */
+  private void replaySegment(final File segment) throws Exception {
+    LOG.info("Replaying spool segment " + segment);
+    final SegmentReader reader = new SegmentReader(segment);
+    try {
+      // Batches of up to 1/10th of a second worth of points
+      final int batch_size = Math.max(1, replay_rate / 10);
+      final List<SpooledPoint> batch = new ArrayList<SpooledPoint>(batch_size);
+      SpooledPoint point = reader.next();
+      while (point != null) {
+        awaitStorage();
+        // a single point first so we don't throw a batch at a dead cluster
+        batch.add(point);
+        final boolean healthy = send(batch);
+        point = reader.next();
+        if (!healthy) {
+          continue;
+        }
+        while (point != null && batch.size() < batch_size) {
+          batch.add(point);
+          point = reader.next();
+        }
+        if (!batch.isEmpty()) {
+          send(batch);
+        }
+      }
+      release(segment, reader);
+    } finally {
+      reader.close();
+    }
+    LOG.info("Finished replaying spool segment " + segment);
+  }
+
+  /** Sleeps until no write failed for the retry interval. */
+  private void awaitStorage() throws InterruptedException {
+    long wait;
+    while ((wait = last_failure + retry_interval 
+        - System.currentTimeMillis()) > 0) {
+      Thread.sleep(wait);
+    }
+  }
+
+  /**
+   * Writes the points and waits for them, then clears the list.
+   * @return False if any point failed or they took too long.
+   */
+  private boolean send(final List<SpooledPoint> batch) throws Exception {
+    final List<Deferred<Boolean>> deferreds =
+        new ArrayList<Deferred<Boolean>>(batch.size());
+    for (final SpooledPoint p : batch) {
+      limiter.acquire();
+      deferreds.add(write(p));
+    }
+    final int count = batch.size();
+    batch.clear();
+    int failures = 0;
+    try {
+      for (final boolean ok : Deferred.group(deferreds).join(replay_timeout)) {
+        if (!ok) {
+          failures++;
+        }
+      }
+    } catch (TimeoutException e) {
+      // the points are written or spooled again whenever they complete
+      LOG.warn("Timed out after " + replay_timeout + "ms waiting on " + count
+          + " replayed data points");
+      last_failure = System.currentTimeMillis();
+      failures = count;
+    }
+    depth.addAndGet(-count);
+    if (failures > 0) {
+      LOG.warn(failures + " spooled data points failed to replay, "
+          + "backing off for " + retry_interval + "ms");
+    }
+    return failures == 0;
+  }
+
+  /** Writes a spooled point, spooling it again if that fails. */
+  private Deferred<Boolean> write(final SpooledPoint point) {
+    class SuccessCB implements Callback<Boolean, Object> {
+      @Override
+      public Boolean call(final Object ignored) {
+        replayed.incrementAndGet();
+        return true;
+      }
+      @Override
+      public String toString() {
+        return "spool replay success";
+      }
+    }
+    class ErrorCB implements Callback<Boolean, Exception> {
+      @Override
+      public Boolean call(final Exception e) {
+        replay_errors.incrementAndGet();
+        handleError(point.toDataPoint(), e);
+        return false;
+      }
+      @Override
+      public String toString() {
+        return "spool replay error";
+      }
+    }
+    try {
+      final Deferred<Object> d = point.integer
+          ? tsdb.addPoint(point.metric, point.timestamp, point.long_value,
+              point.tags)
+          : tsdb.addPoint(point.metric, point.timestamp, point.float_value,
+              point.tags);
+      return d.addCallbacks(new SuccessCB(), new ErrorCB());
+    } catch (RuntimeException e) {
+      // e.g. a UID that can no longer be resolved, retrying won't help
+      LOG.warn("Dropping spooled data point " + point.toDataPoint()
+          + ": " + e.getMessage());
+      dropped.incrementAndGet();
+      return Deferred.fromResult(true);
+    }
+  }
+
+  /**
+   * Replays the closed segments, oldest first.
+   */
+  final class ReplayThread extends Thread {
+    ReplayThread() {
+      super("SpoolReplayThread");
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        try {
+          if (!replayNext()) {
+            Thread.sleep(IDLE_SLEEP);
+          }
+        } catch (InterruptedException e) {
+          LOG.info("Spool replay thread interrupted, stopping");
+          return;
+        } catch (Exception e) {
+          LOG.error("Uncaught exception in the spool replay thread", e);
+          try {
+            Thread.sleep(retry_interval);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }
+  }
+}
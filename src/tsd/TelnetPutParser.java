@@ -0,0 +1,322 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+
+/**
+ * Parses telnet-style {@code put} commands straight out of the frame handed
+ * to us by the {@link LineBasedFrameDecoder}.
+ * <p>
+ * The generic telnet path turns every line into a {@code String} and splits
+ * it into a {@code String[]} before {@link PutDataPointRpc} parses numbers and
+ * tags out of those.  Here the words are located by scanning the bytes, the
+ * timestamp and integer values are decoded in place and the metric and tag
+ * strings are handed out from a small interning table, so a steady stream of
+ * puts for the same series doesn't create any new strings.
+ * <p>
+ * The accepted syntax, the order in which things are validated and the
+ * error messages are the same as those of
+ * {@code PutDataPointRpc.importDataPoint}.  Anything out of the ordinary
+ * (signs, very long numbers, invalid characters...) is handed to
+ * {@link Tags#parseLong} so that the exact same exception is thrown.
+ * @since 2.3
+ */
+final class TelnetPutParser {
+
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  /** Number of slots in the interning table, must be a power of 2. */
+  private static final int INTERNED_SLOTS = 8192;
+
+  /**
+   * Strings we recently handed out.  Races are benign: slots are only ever
+   * replaced by other immutable strings and a miss simply allocates.
+   */
+  private static final String[] interned = new String[INTERNED_SLOTS];
+
+  /** Cannot be instantiated. */
+  private TelnetPutParser() {
+  }
+
+  /**
+   * Tells whether the given line is a {@code put} command.
+   * @param buf The line, without its end of line delimiter.
+   * @return True if the first word of the line is {@code put}.
+   */
+  static boolean isPut(final ChannelBuffer buf) {
+    final int start = buf.readerIndex();
+    final int length = buf.readableBytes();
+    return length >= 3
+        && buf.getByte(start) == 'p'
+        && buf.getByte(start + 1) == 'u'
+        && buf.getByte(start + 2) == 't'
+        && (length == 3 || buf.getByte(start + 3) == ' ');
+  }
+
+  /**
+   * Parses a {@code put} line.  The reader index of the buffer is left
+   * untouched.
+   * @param buf The line, without its end of line delimiter.
+   * @return The parsed data point.
+   * @throws NumberFormatException if the timestamp or value is invalid.
+   * @throws IllegalArgumentException if any other argument is invalid.
+   */
+  static Put parse(final ChannelBuffer buf) {
+    final int start = buf.readerIndex();
+    final int end = buf.writerIndex();
+
+    // Words are separated by exactly one space, just like Tags.splitString.
+    int nwords = 1;
+    for (int i = start; i < end; i++) {
+      if (buf.getByte(i) == ' ') {
+        nwords++;
+      }
+    }
+    if (nwords < 5) {  // Need at least: put metric timestamp value tag
+      throw new IllegalArgumentException("not enough arguments"
+          + " (need least 4, got " + (nwords - 1) + ')');
+    }
+
+    int pos = nextWord(buf, start, end);  // Skip the "put".
+    int word_end = endOfWord(buf, pos, end);
+    if (word_end == pos) {
+      throw new IllegalArgumentException("empty metric name");
+    }
+    final Put put = new Put();
+    put.metric = intern(buf, pos, word_end);
+
+    pos = nextWord(buf, word_end, end);
+    word_end = endOfWord(buf, pos, end);
+    put.timestamp = parseTimestamp(buf, pos, word_end);
+    if (put.timestamp <= 0) {
+      throw new IllegalArgumentException("invalid timestamp: " + put.timestamp);
+    }
+
+    pos = nextWord(buf, word_end, end);
+    word_end = endOfWord(buf, pos, end);
+    if (word_end == pos) {
+      throw new IllegalArgumentException("empty value");
+    }
+    final int value_start = pos;
+    final int value_end = word_end;
+
+    put.tags = new HashMap<String, String>();
+    while (word_end < end) {
+      pos = nextWord(buf, word_end, end);
+      word_end = endOfWord(buf, pos, end);
+      if (word_end > pos) {
+        parseTag(put.tags, buf, pos, word_end);
+      }
+    }
+
+    // Like the String path, the value is only checked after the tags.
+    put.integer = looksLikeInteger(buf, value_start, value_end);
+    if (put.integer) {
+      put.long_value = parseLong(buf, value_start, value_end);
+    } else {
+      put.float_value = Float.parseFloat(
+          buf.toString(value_start, value_end - value_start, CHARSET));
+    }
+    return put;
+  }
+
+  /**
+   * Splits a line the way {@link WordSplitter} does.
+   * @param buf The line to split.
+   * @return The words of the line.
+   */
+  static String[] split(final ChannelBuffer buf) {
+    return Tags.splitString(buf.toString(CHARSET), ' ');
+  }
+
+  /** A {@code put} command decoded from a telnet line. */
+  static final class Put {
+    String metric;
+    long timestamp;
+    boolean integer;
+    long long_value;
+    float float_value;
+    HashMap<String, String> tags;
+
+    /**
+     * Converts the command to an {@link IncomingDataPoint}, e.g. to hand it
+     * to the storage exception handler.  The value is re-encoded from the
+     * parsed number so its formatting may differ from the original line.
+     * @return A new data point.
+     */
+    IncomingDataPoint toDataPoint() {
+      final IncomingDataPoint dp = new IncomingDataPoint();
+      dp.setMetric(metric);
+      dp.setTimestamp(timestamp);
+      dp.setValue(integer ? Long.toString(long_value)
+          : Float.toString(float_value));
+      dp.setTags(tags);
+      return dp;
+    }
+  }
+
+  /** @return The index of the first byte after the next space. */
+  private static int nextWord(final ChannelBuffer buf, final int from,
+                              final int end) {
+    final int space = endOfWord(buf, from, end);
+    return space < end ? space + 1 : end;
+  }
+
+  /** @return The index of the next space or {@code end} if there's none. */
+  private static int endOfWord(final ChannelBuffer buf, final int from,
+                               final int end) {
+    for (int i = from; i < end; i++) {
+      if (buf.getByte(i) == ' ') {
+        return i;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Parses a timestamp, ignoring any dot it contains as the String path does
+   * for millisecond timestamps such as {@code 1356998400.500}.
+   */
+  private static long parseTimestamp(final ChannelBuffer buf, final int start,
+                                     final int end) {
+    int digits = 0;
+    long v = 0;
+    for (int i = start; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b == '.') {
+        continue;
+      }
+      if (b < '0' || b > '9' || ++digits > 18) {
+        return slowParseLong(buf, start, end, true);
+      }
+      v = v * 10 + (b - '0');
+    }
+    if (digits == 0) {
+      return slowParseLong(buf, start, end, true);
+    }
+    return v;
+  }
+
+  /** Parses an integer without allocating in the common case. */
+  private static long parseLong(final ChannelBuffer buf, final int start,
+                                final int end) {
+    // 18 digits can't overflow a long, leave longer ones to Tags.parseLong.
+    if (end - start > 18) {
+      return slowParseLong(buf, start, end, false);
+    }
+    long v = 0;
+    for (int i = start; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b < '0' || b > '9') {
+        return slowParseLong(buf, start, end, false);
+      }
+      v = v * 10 + (b - '0');
+    }
+    return v;
+  }
+
+  /**
+   * Delegates to {@link Tags#parseLong} for signs, errors and overflows.
+   * @param strip_dots Whether or not to remove dots beforehand.
+   */
+  private static long slowParseLong(final ChannelBuffer buf, final int start,
+                                    final int end, final boolean strip_dots) {
+    final String s = buf.toString(start, end - start, CHARSET);
+    return Tags.parseLong(strip_dots ? s.replace(".", "") : s);
+  }
+
+  /** Same as {@link Tags#looksLikeInteger} on a region of the buffer. */
+  private static boolean looksLikeInteger(final ChannelBuffer buf,
+                                          final int start, final int end) {
+    for (int i = start; i < end; i++) {
+      final byte b = buf.getByte(i);
+      if (b == '.' || b == 'e' || b == 'E') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Same as {@link Tags#parse(HashMap, String)} on a region of the buffer. */
+  private static void parseTag(final HashMap<String, String> tags,
+                               final ChannelBuffer buf, final int start,
+                               final int end) {
+    int equal = -1;
+    for (int i = start; i < end; i++) {
+      if (buf.getByte(i) == '=') {
+        if (equal != -1) {  // More than one '='.
+          equal = -1;
+          break;
+        }
+        equal = i;
+      }
+    }
+    if (equal <= start || equal == end - 1) {
+      throw new IllegalArgumentException("invalid tag: "
+          + buf.toString(start, end - start, CHARSET));
+    }
+    final String tagk = intern(buf, start, equal);
+    final String tagv = intern(buf, equal + 1, end);
+    final String previous = tags.get(tagk);
+    if (tagv.equals(previous)) {
+      return;
+    }
+    if (previous != null) {
+      throw new IllegalArgumentException("duplicate tag: "
+          + buf.toString(start, end - start, CHARSET) + ", tags=" + tags);
+    }
+    tags.put(tagk, tagv);
+  }
+
+  /**
+   * Returns a string for the given region of the buffer, reusing the one we
+   * handed out last time we saw the same bytes if it's still in the table.
+   */
+  static String intern(final ChannelBuffer buf, final int start,
+                       final int end) {
+    int hash = 1;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + buf.getByte(i);
+    }
+    final int slot = (hash ^ (hash >>> 16)) & (INTERNED_SLOTS - 1);
+    final String cached = interned[slot];
+    if (cached != null && matches(cached, buf, start, end)) {
+      return cached;
+    }
+    final String s = buf.toString(start, end - start, CHARSET);
+    interned[slot] = s;
+    return s;
+  }
+
+  /** @return Whether the string is made of exactly the given bytes. */
+  private static boolean matches(final String s, final ChannelBuffer buf,
+                                 final int start, final int end) {
+    if (s.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i - start) != (char) (buf.getByte(i) & 0xFF)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -23,6 +23,10 @@ import net.opentsdb.core.Tags;
 
 /**
  * Splits a ChannelBuffer in multiple space separated words.
+ * <p>
+ * {@code put} commands are passed through untouched so that they can be
+ * parsed without creating any intermediate strings, see
+ * {@link TelnetPutParser}.
  */
 final class WordSplitter extends OneToOneDecoder {
 
@@ -36,7 +40,11 @@ final class WordSplitter extends OneToOneDecoder {
   protected Object decode(final ChannelHandlerContext ctx,
                           final Channel channel,
                           final Object msg) throws Exception {
-    return Tags.splitString(((ChannelBuffer) msg).toString(CHARSET), ' ');
+    final ChannelBuffer buf = (ChannelBuffer) msg;
+    if (TelnetPutParser.isPut(buf)) {
+      return buf;
+    }
+    return Tags.splitString(buf.toString(CHARSET), ' ');
   }
 
 }
@@ -25,6 +25,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.bind.DatatypeConverter;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
@@ -45,6 +47,7 @@ import net.opentsdb.core.Const;
 import net.opentsdb.core.Internal;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.UIDMeta;
+import net.opentsdb.stats.Histogram;
 
 /**
  * Represents a table of Unique IDs, manages the lookup and creation of IDs.
@@ -76,6 +79,11 @@ public final class UniqueId implements UniqueIdInterface {
   private static final short MAX_ATTEMPTS_PUT = 6;
   /** How many time do we try to assign a random ID before giving up. */
   private static final short MAX_ATTEMPTS_ASSIGN_RANDOM_ID = 10;
+  /** How many random IDs to screen with the filter per attempt. */
+  private static final short MAX_RANDOM_ID_SCREENS = 100;
+  /** Only one in this many screened IDs is looked up to count the filter's
+   * false positives, the others don't cost a round trip. */
+  private static final short RANDOM_ID_FALSE_POSITIVE_SAMPLING = 100;
   /** Initial delay in ms for exponential backoff to retry failed RPCs. */
   private static final short INITIAL_EXP_BACKOFF_DELAY = 800;
   /** Maximum number of results to return in suggest(). */
@@ -117,6 +125,37 @@ public final class UniqueId implements UniqueIdInterface {
   private volatile int random_id_collisions;
   /** How many times assignments have been rejected by the UID filter */
   private volatile int rejected_assignments;
+
+  /** How many IDs to lease from {@link #MAXID_ROW} with a single increment.
+   * 1 means every assignment increments the counter. Ignored for random IDs. */
+  private volatile int id_block_size = 1;
+  /** Guards the leased ID block and the allocators waiting on it. */
+  private final Object id_block_lock = new Object();
+  /** The next ID to hand out from the leased block. */
+  private long id_block_next = 1;
+  /** The last ID of the leased block, the block is empty once next passes it */
+  private long id_block_end = 0;
+  /** Whether or not an increment for a new block is in flight. */
+  private boolean id_block_leasing;
+  /** Allocators waiting for an ID from the block being leased. */
+  private final ArrayList<Deferred<Long>> id_block_waiters =
+    new ArrayList<Deferred<Long>>();
+  /** Number of IDs leased in blocks. */
+  private volatile long ids_leased;
+  /** Number of IDs handed out from leased blocks. */
+  private volatile long ids_from_blocks;
+  /** Filter of the IDs known to be assigned, used to screen random IDs
+   * before trying to claim them. Null when disabled. */
+  private volatile BloomFilter<Long> id_filter;
+  /** Number of random IDs skipped because the filter had them. */
+  private volatile long random_ids_screened;
+  /** Number of skipped random IDs looked up to count false positives. */
+  private volatile long random_id_false_positive_checks;
+  /** Number of the looked up IDs that turned out not to be assigned. */
+  private volatile long random_id_false_positives;
+  /** Time in milliseconds to assign new UIDs. */
+  private final Histogram assignment_latency = 
+    new Histogram(16000, (short) 2, 100);
   
   /** TSDB object used for filtering and/or meta generation. */
   private TSDB tsdb;
@@ -238,6 +277,201 @@ public final class UniqueId implements UniqueIdInterface {
   public int rejectedAssignments() {
     return rejected_assignments;
   }
+
+  /**
+   * Sets how many IDs to lease from the max ID counter at once. Leased IDs
+   * are handed out locally so a burst of new names only increments the
+   * counter once per block. IDs left in the block when the TSD stops are
+   * never assigned. Ignored when IDs are randomized.
+   * @param id_block_size The block size, 1 to increment for every ID
+   * @throws IllegalArgumentException if the size is less than 1
+   * @since 2.3
+   */
+  public void setIdBlockSize(final int id_block_size) {
+    if (id_block_size < 1) {
+      throw new IllegalArgumentException("ID block size must be at least 1: " 
+          + id_block_size);
+    }
+    this.id_block_size = id_block_size;
+  }
+
+  /** Returns the number of IDs leased in blocks @since 2.3 */
+  public long idsLeased() {
+    return ids_leased;
+  }
+
+  /** Returns the number of IDs handed out from leased blocks @since 2.3 */
+  public long idsFromBlocks() {
+    return ids_from_blocks;
+  }
+
+  /**
+   * Screens new random IDs against a bloom filter of the IDs already assigned
+   * so that most collisions are avoided without a round trip to the UID
+   * table. The filter is seeded with a scan of the reverse mappings, in the
+   * background, and updated with every ID this instance assigns or resolves.
+   * The filter is only a hint, assignments are still claimed with a CAS so
+   * IDs assigned by other TSDs are caught as before.
+   * @param expected_ids The number of IDs the filter is sized for
+   * @param fpp The desired false positive probability at that size
+   * @return A deferred resolving to the number of IDs loaded by the scan
+   * @throws IllegalStateException if IDs are not randomized
+   * @throws IllegalArgumentException if the size or probability is invalid
+   * @since 2.3
+   */
+  public Deferred<Long> enableRandomIdFilter(final int expected_ids,
+                                             final double fpp) {
+    if (!randomize_id) {
+      throw new IllegalStateException("IDs are not randomized for kind='" 
+          + kind() + "'");
+    }
+    final BloomFilter<Long> filter = 
+        BloomFilter.create(Funnels.longFunnel(), expected_ids, fpp);
+    id_filter = filter;
+    
+    final Scanner scanner = client.newScanner(table);
+    scanner.setFamily(NAME_FAMILY);
+    scanner.setQualifier(kind);
+    scanner.setMaxNumRows(4096);
+    final Deferred<Long> result = new Deferred<Long>();
+    
+    final class ErrBack implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) throws Exception {
+        LOG.error("Failed to seed the random ID filter for kind='" + kind() 
+            + "'", e);
+        scanner.close();
+        result.callback(e);
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Random ID filter seed errback";
+      }
+    }
+    
+    final class ScannerCB implements Callback<Object, 
+        ArrayList<ArrayList<KeyValue>>> {
+      long loaded;
+      Object scan() {
+        return scanner.nextRows().addCallback(this).addErrback(new ErrBack());
+      }
+      @Override
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          LOG.info("Seeded the random ID filter for kind='" + kind() 
+              + "' with " + loaded + " IDs");
+          result.callback(loaded);
+          return null;
+        }
+        synchronized (filter) {
+          for (final ArrayList<KeyValue> row : rows) {
+            final byte[] key = row.get(0).key();
+            if (key.length == id_width) {
+              filter.put(uidToLong(key, id_width));
+              loaded++;
+            }
+          }
+        }
+        return scan();
+      }
+      @Override
+      public String toString() {
+        return "Random ID filter seed scanner";
+      }
+    }
+    
+    new ScannerCB().scan();
+    return result;
+  }
+
+  /** Returns the number of random IDs skipped by the filter @since 2.3 */
+  public long randomIdsScreened() {
+    return random_ids_screened;
+  }
+
+  /** Returns the number of random IDs skipped by the filter that were looked
+   * up, a sample of the screened IDs @since 2.3 */
+  public long randomIdFalsePositiveChecks() {
+    return random_id_false_positive_checks;
+  }
+
+  /** Returns the number of the looked up random IDs skipped by the filter 
+   * that were not actually assigned @since 2.3 */
+  public long randomIdFalsePositives() {
+    return random_id_false_positives;
+  }
+
+  /** Records an assigned ID in the random ID filter, if enabled. */
+  private void addToIdFilter(final byte[] id) {
+    final BloomFilter<Long> filter = id_filter;
+    if (filter != null && id.length == id_width) {
+      synchronized (filter) {
+        filter.put(uidToLong(id, id_width));
+      }
+    }
+  }
+
+  /**
+   * Picks a random ID, skipping those the filter says may already be
+   * assigned. A sample of the skipped IDs unknown to the cache is looked up
+   * in the background to count the false positives. If every candidate is
+   * screened out the last one is returned and left to the CAS.
+   * @return A random ID
+   */
+  private long nextRandomId() {
+    long id = RandomUniqueId.getRandomUID();
+    final BloomFilter<Long> filter = id_filter;
+    if (filter == null) {
+      return id;
+    }
+    for (int i = 0; i < MAX_RANDOM_ID_SCREENS; i++) {
+      synchronized (filter) {
+        if (!filter.mightContain(id)) {
+          return id;
+        }
+      }
+      if (random_ids_screened++ % RANDOM_ID_FALSE_POSITIVE_SAMPLING == 0) {
+        checkFalsePositive(id);
+      }
+      id = RandomUniqueId.getRandomUID();
+    }
+    return id;
+  }
+
+  /**
+   * Looks up an ID skipped by the filter in the background and counts it as
+   * a false positive if it isn't assigned. IDs in the cache are assigned.
+   * @param id The screened ID
+   */
+  private void checkFalsePositive(final long id) {
+    final byte[] row = Arrays.copyOfRange(Bytes.fromLong(id), 
+        8 - id_width, 8);
+    if (getNameFromCache(row) != null) {
+      return;
+    }
+    random_id_false_positive_checks++;
+    
+    class FalsePositiveCB implements Callback<Object, byte[]> {
+      @Override
+      public Object call(final byte[] name) {
+        if (name == null) {
+          random_id_false_positives++;
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "Random ID filter false positive check";
+      }
+    }
+    hbaseGet(row, NAME_FAMILY).addCallback(new FalsePositiveCB());
+  }
+
+  /** Returns the latency of successful UID assignments in ms @since 2.3 */
+  public Histogram assignmentLatency() {
+    return assignment_latency;
+  }
   
   public String kind() {
     return fromBytes(kind);
@@ -438,6 +672,7 @@ public final class UniqueId implements UniqueIdInterface {
 
     private long id = -1;  // The ID we'll grab with an atomic increment.
     private byte row[];    // The same ID, as a byte array.
+    private final long start_time = System.nanoTime();
 
     private static final byte ALLOCATE_UID = 0;
     private static final byte CREATE_REVERSE_MAPPING = 1;
@@ -528,7 +763,9 @@ public final class UniqueId implements UniqueIdInterface {
 
       state = CREATE_REVERSE_MAPPING;
       if (randomize_id) {
-        return Deferred.fromResult(RandomUniqueId.getRandomUID());
+        return Deferred.fromResult(nextRandomId());
+      } else if (id_block_size > 1) {
+        return nextIdFromBlock();
       } else {
         return client.atomicIncrement(new AtomicIncrementRequest(table, 
                                       MAXID_ROW, ID_FAMILY, kind));
@@ -598,6 +835,7 @@ public final class UniqueId implements UniqueIdInterface {
           LOG.warn("Detected random id collision and retrying kind='" + 
               kind() + "' name='" + name + "'");
           random_id_collisions++;
+          addToIdFilter(row);
         } else {
           // something is really messed up then
           LOG.error("WTF!  Failed to CAS reverse mapping: " + reverseMapping()
@@ -650,6 +888,8 @@ public final class UniqueId implements UniqueIdInterface {
       }
 
       cacheMapping(name, row);
+      assignment_latency.add(
+          (int) ((System.nanoTime() - start_time) / 1000000));
       
       if (tsdb != null && tsdb.getConfig().enable_realtime_uid()) {
         final UIDMeta meta = new UIDMeta(type, row, name);
@@ -669,10 +909,101 @@ public final class UniqueId implements UniqueIdInterface {
 
   }
 
+  /**
+   * Hands out the next ID of the leased block, leasing a new block with a
+   * single increment of {@link #id_block_size} when it's empty. Allocators
+   * that arrive while a lease is in flight wait for it instead of sending
+   * their own increment.
+   * @return A deferred resolving to the ID or an exception if the lease
+   * failed.
+   */
+  private Deferred<Long> nextIdFromBlock() {
+    final Deferred<Long> waiter;
+    synchronized (id_block_lock) {
+      if (id_block_next <= id_block_end) {
+        ids_from_blocks++;
+        return Deferred.fromResult(id_block_next++);
+      }
+      waiter = new Deferred<Long>();
+      id_block_waiters.add(waiter);
+      if (id_block_leasing) {
+        return waiter;
+      }
+      id_block_leasing = true;
+    }
+    leaseIdBlock();
+    return waiter;
+  }
+
+  /** Increments the max ID counter by a block and serves the waiters. */
+  private void leaseIdBlock() {
+    final long size = id_block_size;
+
+    class LeaseCB implements Callback<Object, Long> {
+      @Override
+      public Object call(final Long max_id) {
+        final List<Deferred<Long>> ready = new ArrayList<Deferred<Long>>();
+        final List<Long> ids = new ArrayList<Long>();
+        final boolean lease_again;
+        synchronized (id_block_lock) {
+          id_block_next = max_id - size + 1;
+          id_block_end = max_id;
+          ids_leased += size;
+          LOG.info("Leased IDs " + id_block_next + " to " + id_block_end 
+              + " for kind='" + kind() + "'");
+          while (!id_block_waiters.isEmpty() && id_block_next <= id_block_end) {
+            ready.add(id_block_waiters.remove(0));
+            ids.add(id_block_next++);
+            ids_from_blocks++;
+          }
+          lease_again = !id_block_waiters.isEmpty();
+          id_block_leasing = lease_again;
+        }
+        for (int i = 0; i < ready.size(); i++) {
+          ready.get(i).callback(ids.get(i));
+        }
+        if (lease_again) {
+          leaseIdBlock();
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "ID block lease callback";
+      }
+    }
+
+    class LeaseErrBack implements Callback<Object, Exception> {
+      @Override
+      public Object call(final Exception e) {
+        final List<Deferred<Long>> failed;
+        synchronized (id_block_lock) {
+          failed = new ArrayList<Deferred<Long>>(id_block_waiters);
+          id_block_waiters.clear();
+          id_block_leasing = false;
+        }
+        LOG.error("Failed to lease an ID block for kind='" + kind() + "'", e);
+        for (final Deferred<Long> waiter : failed) {
+          waiter.callback(e);
+        }
+        return null;
+      }
+      @Override
+      public String toString() {
+        return "ID block lease errback";
+      }
+    }
+
+    client.atomicIncrement(new AtomicIncrementRequest(table, MAXID_ROW, 
+        ID_FAMILY, kind, size))
+      .addCallbacks(new LeaseCB(), new LeaseErrBack());
+  }
+
   /** Adds the bidirectional mapping in the cache. */
   private void cacheMapping(final String name, final byte[] id) {
     addIdToCache(name, id);
     addNameToCache(id, name);
+    addToIdFilter(id);
   } 
   
   /**
@@ -79,6 +79,9 @@ public class Config {
   /** tsd.storage.repair_appends */
   private boolean repair_appends = false;
   
+  /** tsd.storage.compaction.compress */
+  private boolean compress_compactions = false;
+  
   /** tsd.core.meta.enable_realtime_ts */
   private boolean enable_realtime_ts = false;
   
@@ -206,6 +209,12 @@ public class Config {
     return repair_appends;
   }
   
+  /** @return whether or not to write compacted columns in the compressed
+   * format. */
+  public boolean compress_compactions() {
+    return compress_compactions;
+  }
+  
   /** @return whether or not to record new TSMeta objects in real time */
   public boolean enable_realtime_ts() { 
     return enable_realtime_ts;
@@ -496,6 +505,13 @@ public class Config {
     default_map.put("tsd.network.async_io", "true");
     default_map.put("tsd.network.tcp_no_delay", "true");
     default_map.put("tsd.network.keep_alive", "true");
+    default_map.put("tsd.network.backpressure.enable", "false");
+    default_map.put("tsd.network.backpressure.high_inflight", "50000");
+    default_map.put("tsd.network.backpressure.low_inflight", "25000");
+    default_map.put("tsd.network.backpressure.high_latency_ms", "0");
+    default_map.put("tsd.network.backpressure.low_latency_ms", "0");
+    default_map.put("tsd.network.protobuf.enable", "false");
+    default_map.put("tsd.network.protobuf.max_batch_size", "16777216");
     default_map.put("tsd.network.reuse_address", "true");
     default_map.put("tsd.core.auto_create_metrics", "false");
     default_map.put("tsd.core.auto_create_tagks", "true");
@@ -508,17 +524,53 @@ public class Config {
     default_map.put("tsd.core.meta.enable_tsuid_incrementing", "false");
     default_map.put("tsd.core.meta.enable_tsuid_tracking", "false");
     default_map.put("tsd.core.meta.cache.enable", "false");
+    default_map.put("tsd.core.meta.cache.stripes", "16");
+    default_map.put("tsd.core.meta.cache.flush_interval", "60000");
+    default_map.put("tsd.core.meta.cache.max_idle_flushes", "60");
     default_map.put("tsd.core.plugin_path", "");
     default_map.put("tsd.core.socket.timeout", "0");
     default_map.put("tsd.core.tree.enable_processing", "false");
     default_map.put("tsd.core.preload_uid_cache", "false");
     default_map.put("tsd.core.preload_uid_cache.max_entries", "300000");
     default_map.put("tsd.core.storage_exception_handler.enable", "false");
+    default_map.put("tsd.core.storage_exception_handler.spool.segment_size",
+        "67108864");
+    default_map.put("tsd.core.storage_exception_handler.spool.max_segments",
+        "64");
+    default_map.put("tsd.core.storage_exception_handler.spool.replay_rate",
+        "10000");
+    default_map.put("tsd.core.storage_exception_handler.spool.retry_interval",
+        "5000");
+    default_map.put("tsd.core.storage_exception_handler.spool.replay_timeout",
+        "60000");
     default_map.put("tsd.core.uid.random_metrics", "false");
+    default_map.put("tsd.core.uid.id_block_size", "1");
+    default_map.put("tsd.core.uid.random_id_filter.enable", "false");
+    default_map.put("tsd.core.uid.random_id_filter.expected_ids", "1000000");
+    default_map.put("tsd.core.uid.random_id_filter.fpp", "0.01");
+    default_map.put("tsd.core.series_key_cache.enable", "false");
+    default_map.put("tsd.core.series_key_cache.max_size", "1000000");
+    default_map.put("tsd.core.last_value_cache.enable", "false");
+    default_map.put("tsd.core.last_value_cache.max_memory", "268435456");
+    default_map.put("tsd.core.last_value_cache.warmup_hours", "24");
+    default_map.put("tsd.core.last_value_cache.warmup_concurrency", "128");
     default_map.put("tsd.query.filter.expansion_limit", "4096");
     default_map.put("tsd.query.skip_unresolved_tagvs", "false");
     default_map.put("tsd.query.allow_simultaneous_duplicates", "true");
     default_map.put("tsd.query.enable_fuzzy_filter", "true");
+    default_map.put("tsd.query.cache.enable", "false");
+    default_map.put("tsd.query.cache.max_memory", "67108864");
+    default_map.put("tsd.query.cache.block_size", "3600");
+    default_map.put("tsd.query.cache.mutable_window", "300");
+    default_map.put("tsd.query.compute.threads", "0");
+    default_map.put("tsd.query.compute.max_per_query", "4");
+    default_map.put("tsd.query.limits.bytes.per_query", "0");
+    default_map.put("tsd.query.limits.bytes.global", "0");
+    default_map.put("tsd.rollups.enable", "false");
+    default_map.put("tsd.rollups.intervals", "1h,1d");
+    default_map.put("tsd.rollups.table_prefix", "tsdb-rollup");
+    default_map.put("tsd.rollups.intervals_per_row", "168");
+    default_map.put("tsd.rollups.refresh_interval", "60000");
     default_map.put("tsd.rtpublisher.enable", "false");
     default_map.put("tsd.rtpublisher.plugin", "");
     default_map.put("tsd.search.enable", "false");
@@ -543,6 +595,13 @@ public class Config {
     default_map.put("tsd.storage.compaction.min_flush_threshold", "100");
     default_map.put("tsd.storage.compaction.max_concurrent_flushes", "10000");
     default_map.put("tsd.storage.compaction.flush_speed", "2");
+    default_map.put("tsd.storage.compaction.workers", "2");
+    default_map.put("tsd.storage.compaction.compress", "false");
+    default_map.put("tsd.storage.compaction.buffer.enable", "false");
+    default_map.put("tsd.storage.compaction.buffer.max_memory", "268435456");
+    default_map.put("tsd.storage.coalesce.enable", "false");
+    default_map.put("tsd.storage.coalesce.window_ms", "50");
+    default_map.put("tsd.storage.coalesce.max_points", "256");
     default_map.put("tsd.timeseriesfilter.enable", "false");
     default_map.put("tsd.uidfilter.enable", "false");
     default_map.put("tsd.core.stats_with_port", "false");    
@@ -550,6 +609,9 @@ public class Config {
     default_map.put("tsd.http.query.allow_delete", "false");
     default_map.put("tsd.http.header_tag", "");
     default_map.put("tsd.http.request.enable_chunked", "false");
+    default_map.put("tsd.http.put.streaming", "false");
+    default_map.put("tsd.http.put.streaming.max_outstanding", "10000");
+    default_map.put("tsd.http.query.streaming", "false");
     default_map.put("tsd.http.request.max_chunk", "4096");
     default_map.put("tsd.http.request.cors_domains", "");
     default_map.put("tsd.http.request.cors_headers", "Authorization, "
@@ -656,6 +718,7 @@ public class Config {
     enable_compactions = this.getBoolean("tsd.storage.enable_compaction");
     enable_appends = this.getBoolean("tsd.storage.enable_appends");
     repair_appends = this.getBoolean("tsd.storage.repair_appends");
+    compress_compactions = this.getBoolean("tsd.storage.compaction.compress");
     enable_chunked_requests = this.getBoolean("tsd.http.request.enable_chunked");
     enable_realtime_ts = this.getBoolean("tsd.core.meta.enable_realtime_ts");
     enable_realtime_uid = this.getBoolean("tsd.core.meta.enable_realtime_uid");
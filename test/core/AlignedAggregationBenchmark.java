@@ -0,0 +1,92 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+
+/**
+ * Compares the {@link AggregationIterator} with the
+ * {@link AlignedAggregationIterator} over a group of downsampled series that
+ * line up. Not a unit test, run it with:
+ * <pre>java -cp ... net.opentsdb.core.AlignedAggregationBenchmark [series] [points]</pre>
+ * For a few aggregators it prints how many points per second each iterator
+ * aggregates, counting every point of every series.
+ */
+public final class AlignedAggregationBenchmark {
+  private static final long BASE_TIME = 1356998400000L;
+  private static final long INTERVAL = 60000;
+
+  private AlignedAggregationBenchmark() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int series = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    final int points = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    final double[] starts = new double[series];
+    final Random random = new Random(42);
+    for (int i = 0; i < series; i++) {
+      starts[i] = random.nextDouble() * 100;
+    }
+
+    final String[] names = { "sum", "avg", "max", "count" };
+    // warm both paths up for every aggregator before timing any of them
+    for (int i = 0; i < 5; i++) {
+      for (final String name : names) {
+        aggregate(starts, points, Aggregators.get(name), false);
+        aggregate(starts, points, Aggregators.get(name), true);
+      }
+    }
+
+    System.out.println(String.format("%-8s %14s %14s %8s", "agg",
+        "points/s lerp", "points/s vect", "speedup"));
+    for (final String name : names) {
+      final Aggregator aggregator = Aggregators.get(name);
+      final double lerp = measure(starts, points, aggregator, false);
+      final double aligned = measure(starts, points, aggregator, true);
+      System.out.println(String.format("%-8s %14.0f %14.0f %7.1fx", name,
+          lerp, aligned, aligned / lerp));
+    }
+  }
+
+  /** @return the points aggregated per second */
+  private static double measure(final double[] starts, final int points,
+      final Aggregator aggregator, final boolean aligned) {
+    aggregate(starts, points, aggregator, aligned);  // warm up
+    aggregate(starts, points, aggregator, aligned);
+    final long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      aggregate(starts, points, aggregator, aligned);
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    return 5.0 * starts.length * points / seconds;
+  }
+
+  private static double aggregate(final double[] starts, final int points,
+      final Aggregator aggregator, final boolean aligned) {
+    final SeekableView[] views = new SeekableView[starts.length];
+    for (int i = 0; i < starts.length; i++) {
+      views[i] = SeekableViewsForTest.generator(BASE_TIME, INTERVAL, points,
+          false, starts[i], 1);
+    }
+    final long end = BASE_TIME + points * INTERVAL;
+    final SeekableView it = aligned
+        ? AlignedAggregationIterator.create(views, BASE_TIME, end, aggregator)
+        : new AggregationIterator(views, BASE_TIME, end, aggregator,
+            aggregator.interpolationMethod(), false);
+    double total = 0;
+    while (it.hasNext()) {
+      total += it.next().doubleValue();
+    }
+    return total;
+  }
+}
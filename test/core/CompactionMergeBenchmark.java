@@ -0,0 +1,180 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.powermock.reflect.Whitebox;
+
+import net.opentsdb.meta.Annotation;
+import net.opentsdb.utils.Config;
+
+/**
+ * Compares the sorted merge of {@link CompactionQueue} with the general heap
+ * merge over common row shapes. Not a unit test, run it with:
+ * <pre>java -cp ... net.opentsdb.core.CompactionMergeBenchmark [rows]</pre>
+ * For each shape it prints how many rows per second each merge compacts and,
+ * on JVMs that can tell, how many bytes each merge allocates per row.
+ * Compactions are disabled so nothing is written to storage.
+ */
+public final class CompactionMergeBenchmark {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  private CompactionMergeBenchmark() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final Config config = new Config(false);
+    config.disableCompactions();
+    final TSDB tsdb = new TSDB(config);
+    final CompactionQueue queue =
+        (CompactionQueue) Whitebox.getInternalState(tsdb, "compactionq");
+    final Random random = new Random(42);
+
+    System.out.println(String.format("%-34s %12s %12s %10s %10s",
+        "shape", "rows/s heap", "rows/s sort", "B/row heap", "B/row sort"));
+    run("60 cells, seconds", queue, rows, random, 0);
+    run("60 cells, milliseconds", queue, rows, random, 1);
+    run("compacted 360 + 6 later cells", queue, rows, random, 2);
+    run("compacted 360, re-read", queue, rows, random, 3);
+    run("2 cells, seconds", queue, rows, random, 4);
+    run("compacted 360 + older cell", queue, rows, random, 5);
+    tsdb.shutdown().joinUninterruptibly();
+  }
+
+  /** Builds and compacts the rows of one shape with both merges. */
+  private static void run(final String name, final CompactionQueue queue,
+      final int count, final Random random, final int shape) {
+    final ArrayList<ArrayList<KeyValue>> rows =
+        new ArrayList<ArrayList<KeyValue>>(count);
+    for (int i = 0; i < count; i++) {
+      rows.add(buildRow(random, shape));
+    }
+    final double[] heap = measure(queue, rows, false);
+    final double[] sorted = measure(queue, rows, true);
+    System.out.println(String.format("%-34s %12.0f %12.0f %10s %10s",
+        name, heap[0], sorted[0], bytes(heap[1]), bytes(sorted[1])));
+  }
+
+  /** @return the rows per second and the bytes allocated per row */
+  private static double[] measure(final CompactionQueue queue,
+      final ArrayList<ArrayList<KeyValue>> rows, final boolean sorted_merge) {
+    compactAll(queue, rows, sorted_merge);  // warm up
+    final long allocated = allocatedBytes();
+    final long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      compactAll(queue, rows, sorted_merge);
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    final long total_rows = rows.size() * 5L;
+    final double per_row = allocated < 0 ? -1
+        : (double) (allocatedBytes() - allocated) / total_rows;
+    return new double[] { total_rows / seconds, per_row };
+  }
+
+  private static void compactAll(final CompactionQueue queue,
+      final ArrayList<ArrayList<KeyValue>> rows, final boolean sorted_merge) {
+    for (final ArrayList<KeyValue> row : rows) {
+      final KeyValue compacted = sorted_merge
+          ? queue.compact(row, new ArrayList<Annotation>(0))
+          : queue.heapCompact(row, new ArrayList<Annotation>(0));
+      if (compacted == null) {
+        throw new IllegalStateException("Nothing compacted");
+      }
+    }
+  }
+
+  /** @return the bytes allocated by this thread or -1 if unknown */
+  private static long allocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  private static String bytes(final double per_row) {
+    return per_row < 0 ? "n/a" : String.format("%.0f", per_row);
+  }
+
+  /** @return a row of the given shape */
+  private static ArrayList<KeyValue> buildRow(final Random random,
+      final int shape) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    long counter = random.nextInt(1000000);
+    switch (shape) {
+      case 0:
+        for (int i = 0; i < 60; i++) {
+          row.add(cell(second(i * 60), Bytes.fromLong(counter += 10)));
+        }
+        break;
+      case 1:
+        for (int i = 0; i < 60; i++) {
+          row.add(cell(milli(i * 60000L + random.nextInt(1000)),
+              Bytes.fromLong(counter += 10)));
+        }
+        break;
+      case 2:
+        row.add(compacted(360, counter));
+        for (int i = 0; i < 6; i++) {
+          row.add(cell(second(3590 + i), Bytes.fromLong(counter + i)));
+        }
+        break;
+      case 3:
+        row.add(compacted(360, counter));
+        break;
+      case 4:
+        row.add(cell(second(0), Bytes.fromLong(counter)));
+        row.add(cell(second(10), Bytes.fromLong(counter + 1)));
+        break;
+      default:
+        // a late write that lands before the end of the compacted column
+        row.add(compacted(360, counter));
+        row.add(cell(second(5), Bytes.fromLong(counter)));
+    }
+    return row;
+  }
+
+  /** @return a compacted column with points every 9 seconds */
+  private static KeyValue compacted(final int points, final long counter) {
+    final byte[] qualifiers = new byte[points * 2];
+    final byte[] values = new byte[points * 8 + 1];
+    for (int i = 0; i < points; i++) {
+      System.arraycopy(second(i * 9), 0, qualifiers, i * 2, 2);
+      Bytes.setLong(values, counter + i, i * 8);
+    }
+    return cell(qualifiers, values);
+  }
+
+  private static byte[] second(final int offset) {
+    return Bytes.fromShort((short) ((offset << Const.FLAG_BITS) | 7));
+  }
+
+  private static byte[] milli(final long offset) {
+    return Bytes.fromInt((int) ((offset << Const.MS_FLAG_BITS) | 7
+        | Const.MS_FLAG));
+  }
+
+  private static KeyValue cell(final byte[] qualifier, final byte[] value) {
+    return new KeyValue(KEY, FAMILY, qualifier, value);
+  }
+}
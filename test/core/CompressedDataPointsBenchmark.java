@@ -0,0 +1,163 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+/**
+ * Compares the size and decoding speed of regular compacted columns with
+ * {@link CompressedDataPoints}. Not a unit test, run it with:
+ * <pre>java -cp ... net.opentsdb.core.CompressedDataPointsBenchmark [rows]</pre>
+ * For each workload it prints the bytes per data point, including the
+ * qualifier, of both formats and how many data points per second
+ * {@link Internal#extractDataPoints(ArrayList, int)} breaks them down into.
+ */
+public final class CompressedDataPointsBenchmark {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  private CompressedDataPointsBenchmark() {
+  }
+
+  public static void main(final String[] args) {
+    final int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    final Random random = new Random(42);
+    System.out.println(String.format("%-28s %10s %10s %14s %14s",
+        "workload", "B/dp", "B/dp comp", "dps/s", "dps/s comp"));
+    run("10s counter (long)", rows, random, 10, 0);
+    run("10s gauge (int)", rows, random, 10, 1);
+    run("10s gauge (double)", rows, random, 10, 2);
+    run("10s random (float)", rows, random, 10, 3);
+    run("60s constant (double)", rows, random, 60, 4);
+    run("jittered 1s ms (long)", rows, random, 1, 5);
+  }
+
+  /** Builds, measures and decodes the rows for one workload. */
+  private static void run(final String name, final int rows,
+      final Random random, final int interval, final int workload) {
+    final ArrayList<ArrayList<KeyValue>> regular =
+        new ArrayList<ArrayList<KeyValue>>(rows);
+    final ArrayList<ArrayList<KeyValue>> compressed =
+        new ArrayList<ArrayList<KeyValue>>(rows);
+    long regular_bytes = 0;
+    long compressed_bytes = 0;
+    long dps = 0;
+    for (int i = 0; i < rows; i++) {
+      final byte[][] column = buildColumn(random, interval, workload);
+      final byte[] value = CompressedDataPoints.encode(column[0], column[1]);
+      if (value == null) {
+        throw new IllegalStateException("Failed to encode " + name);
+      }
+      regular.add(row(column[0], column[1]));
+      compressed.add(row(CompressedDataPoints.QUALIFIER, value));
+      regular_bytes += column[0].length + column[1].length;
+      compressed_bytes += CompressedDataPoints.QUALIFIER.length + value.length;
+      dps += CompressedDataPoints.pointCount(value);
+    }
+
+    // warm up then time
+    decode(regular);
+    decode(compressed);
+    final double regular_rate = dps / seconds(regular);
+    final double compressed_rate = dps / seconds(compressed);
+
+    System.out.println(String.format("%-28s %10.2f %10.2f %14.0f %14.0f",
+        name, (double) regular_bytes / dps, (double) compressed_bytes / dps,
+        regular_rate, compressed_rate));
+  }
+
+  private static double seconds(final ArrayList<ArrayList<KeyValue>> rows) {
+    final long start = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      decode(rows);
+    }
+    return (System.nanoTime() - start) / 5 / 1e9;
+  }
+
+  private static long decode(final ArrayList<ArrayList<KeyValue>> rows) {
+    long cells = 0;
+    for (final ArrayList<KeyValue> row : rows) {
+      cells += Internal.extractDataPoints(row, 360).size();
+    }
+    return cells;
+  }
+
+  private static ArrayList<KeyValue> row(final byte[] qualifier,
+      final byte[] value) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(KEY, FAMILY, qualifier, value));
+    return row;
+  }
+
+  /** @return the qualifiers and values of a compacted row */
+  private static byte[][] buildColumn(final Random random, final int interval,
+      final int workload) {
+    final int count = 3600 / interval;
+    final boolean ms = workload == 5;
+    final byte[] qualifiers = new byte[count * (ms ? 4 : 2)];
+    final byte[] values = new byte[count * 8 + 1];
+    int q_idx = 0;
+    int v_idx = 0;
+    long counter = random.nextInt(1000000);
+    double gauge = random.nextDouble() * 100;
+    for (int i = 0; i < count; i++) {
+      final short flags;
+      switch (workload) {
+        case 0:
+        case 5:
+          counter += random.nextInt(100);
+          flags = 7;
+          Bytes.setLong(values, counter, v_idx);
+          break;
+        case 1:
+          flags = 3;
+          Bytes.setInt(values, 500 + random.nextInt(20), v_idx);
+          break;
+        case 2:
+          gauge += random.nextGaussian();
+          flags = Const.FLAG_FLOAT | 7;
+          Bytes.setLong(values, Double.doubleToRawLongBits(
+              Math.round(gauge * 100) / 100.0), v_idx);
+          break;
+        case 3:
+          flags = Const.FLAG_FLOAT | 3;
+          Bytes.setInt(values, Float.floatToRawIntBits(random.nextFloat()),
+              v_idx);
+          break;
+        default:
+          flags = Const.FLAG_FLOAT | 7;
+          Bytes.setLong(values, Double.doubleToRawLongBits(1.0), v_idx);
+      }
+      v_idx += (flags & Const.LENGTH_MASK) + 1;
+      if (ms) {
+        final long offset = i * 1000L + random.nextInt(5);
+        Bytes.setInt(qualifiers,
+            (int) ((offset << Const.MS_FLAG_BITS) | flags | Const.MS_FLAG),
+            q_idx);
+        q_idx += 4;
+      } else {
+        Bytes.setShort(qualifiers,
+            (short) ((i * interval << Const.FLAG_BITS) | flags), q_idx);
+        q_idx += 2;
+      }
+    }
+    final byte[] value = new byte[v_idx + 1];
+    System.arraycopy(values, 0, value, 0, v_idx);
+    return new byte[][] { qualifiers, value };
+  }
+}
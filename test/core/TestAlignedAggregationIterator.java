@@ -0,0 +1,191 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public final class TestAlignedAggregationIterator {
+  private static final long BASE_TIME = 1356998400000L;
+  private static final long START = BASE_TIME + 10000;
+  private static final long END = BASE_TIME + 80000;
+
+  /** Three series downsampled to 10 seconds, with a few NaNs */
+  private static final double[][] ALIGNED = {
+    { 1, 2, Double.NaN, 4, 5, 6, 7, 8, 9, 10 },
+    { -3, 0.5, 2, Double.NaN, 7.25, 1, 1, 1, 1, 1 },
+    { 42, 1.5, Double.NaN, Double.NaN, -1, 3, 2, 1, 0, -1 },
+  };
+
+  @Test
+  public void sameResultsAsInterpolating() throws Exception {
+    int supported = 0;
+    for (final String name : Aggregators.set()) {
+      final Aggregator aggregator = Aggregators.get(name);
+      if (!AlignedAggregationIterator.supports(aggregator)) {
+        continue;
+      }
+      supported++;
+      final SeekableView it = AlignedAggregationIterator.create(
+          views(ALIGNED, 10000), START, END, aggregator);
+      assertNotNull(name, it);
+      assertSameResults(name, AggregationIterator.createForTesting(
+          views(ALIGNED, 10000), START, END, aggregator,
+          aggregator.interpolationMethod(), false), it);
+    }
+    // sum, zimsum, avg, count, min, mimmin, max, mimmax, mult, first, last
+    assertEquals(11, supported);
+  }
+
+  @Test
+  public void singleSeries() throws Exception {
+    final double[][] one = { ALIGNED[1] };
+    final SeekableView it = AlignedAggregationIterator.create(
+        views(one, 10000), START, END, Aggregators.MIN);
+    assertSameResults("min", AggregationIterator.createForTesting(
+        views(one, 10000), START, END, Aggregators.MIN,
+        Aggregators.MIN.interpolationMethod(), false), it);
+  }
+
+  @Test
+  public void supports() throws Exception {
+    assertTrue(AlignedAggregationIterator.supports(Aggregators.ZIMSUM));
+    assertFalse(AlignedAggregationIterator.supports(Aggregators.NONE));
+    assertFalse(AlignedAggregationIterator.supports(Aggregators.DEV));
+    assertFalse(AlignedAggregationIterator.supports(Aggregators.p99));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void unsupported() throws Exception {
+    AlignedAggregationIterator.create(views(ALIGNED, 10000), START, END,
+        Aggregators.DEV);
+  }
+
+  @Test
+  public void range() throws Exception {
+    final SeekableView it = AlignedAggregationIterator.create(
+        views(ALIGNED, 10000), START, END, Aggregators.SUM);
+    int count = 0;
+    while (it.hasNext()) {
+      final DataPoint dp = it.next();
+      assertEquals(START + count * 10000, dp.timestamp());
+      assertFalse(dp.isInteger());
+      count++;
+    }
+    assertEquals(8, count);
+  }
+
+  @Test
+  public void emptySeries() throws Exception {
+    final SeekableView[] views = new SeekableView[] {
+        view(ALIGNED[0], 10000),
+        SeekableViewsForTest.fromArray(new DataPoint[0]),
+        view(ALIGNED[2], 10000)
+    };
+    final SeekableView it = AlignedAggregationIterator.create(views, START,
+        END, Aggregators.AVG);
+    assertTrue(it instanceof AlignedAggregationIterator);
+    final DataPoint dp = it.next();
+    assertEquals(START, dp.timestamp());
+    assertEquals(1.75, dp.doubleValue(), 0.0001);
+  }
+
+  @Test
+  public void notAligned() throws Exception {
+    final SeekableView[] views = new SeekableView[] {
+        view(ALIGNED[0], 10000),
+        view(ALIGNED[1], 20000)
+    };
+    assertNull(AlignedAggregationIterator.create(views, START, END,
+        Aggregators.SUM));
+  }
+
+  @Test
+  public void notAlignedShorter() throws Exception {
+    final SeekableView[] views = new SeekableView[] {
+        view(ALIGNED[0], 10000),
+        view(Arrays.copyOf(ALIGNED[1], 5), 10000)
+    };
+    assertNull(AlignedAggregationIterator.create(views, START, END,
+        Aggregators.AVG));
+  }
+
+  @Test
+  public void notAlignedLonger() throws Exception {
+    final SeekableView[] views = new SeekableView[] {
+        view(Arrays.copyOf(ALIGNED[0], 5), 10000),
+        view(ALIGNED[1], 10000)
+    };
+    assertNull(AlignedAggregationIterator.create(views, START, END,
+        Aggregators.MAX));
+  }
+
+  @Test
+  public void seek() throws Exception {
+    final SeekableView it = AlignedAggregationIterator.create(
+        views(ALIGNED, 10000), START, END, Aggregators.MAX);
+    it.seek(BASE_TIME + 45000);
+    DataPoint dp = it.next();
+    assertEquals(BASE_TIME + 50000, dp.timestamp());
+    assertEquals(6, dp.doubleValue(), 0.0001);
+    it.seek(START);
+    dp = it.next();
+    assertEquals(START, dp.timestamp());
+    assertEquals(2, dp.doubleValue(), 0.0001);
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValue() throws Exception {
+    AlignedAggregationIterator.create(views(ALIGNED, 10000), START, END,
+        Aggregators.SUM).next().longValue();
+  }
+
+  private static SeekableView[] views(final double[][] series,
+      final long interval) {
+    final SeekableView[] views = new SeekableView[series.length];
+    for (int i = 0; i < series.length; i++) {
+      views[i] = view(series[i], interval);
+    }
+    return views;
+  }
+
+  private static SeekableView view(final double[] values,
+      final long interval) {
+    final DataPoint[] dps = new DataPoint[values.length];
+    for (int i = 0; i < values.length; i++) {
+      dps[i] = MutableDataPoint.ofDoubleValue(BASE_TIME + i * interval,
+          values[i]);
+    }
+    return SeekableViewsForTest.fromArray(dps);
+  }
+
+  private static void assertSameResults(final String name,
+      final SeekableView expected, final SeekableView actual) {
+    while (expected.hasNext()) {
+      assertTrue(name, actual.hasNext());
+      final DataPoint e = expected.next();
+      final DataPoint a = actual.next();
+      assertEquals(name, e.timestamp(), a.timestamp());
+      assertEquals(name, e.isInteger(), a.isInteger());
+      assertEquals(name, e.doubleValue(), a.doubleValue(), 0.0000001);
+    }
+    assertFalse(name, actual.hasNext());
+  }
+}
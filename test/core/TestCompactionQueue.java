@@ -15,6 +15,8 @@ package net.opentsdb.core;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -23,11 +25,16 @@ import com.stumbleupon.async.Deferred;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.Set;
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 
 import net.opentsdb.meta.Annotation;
+import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.utils.Config;
@@ -36,6 +43,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -62,7 +70,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
 @PrepareForTest({ CompactionQueue.class, CompactionQueue.Thrd.class,
-                  TSDB.class, UniqueId.class, Config.class })
+                  CompactionQueue.Worker.class, TSDB.class, UniqueId.class, Config.class })
 public final class TestCompactionQueue {
 
   private TSDB tsdb = mock(TSDB.class);
@@ -92,6 +100,8 @@ public final class TestCompactionQueue {
     // Stub out the compaction thread, so it doesn't even start.
     PowerMockito.whenNew(CompactionQueue.Thrd.class).withNoArguments()
       .thenReturn(mock(CompactionQueue.Thrd.class));
+    PowerMockito.whenNew(CompactionQueue.Worker.class).withNoArguments()
+      .thenReturn(mock(CompactionQueue.Worker.class));
     PowerMockito.when(config.enable_compactions()).thenReturn(true);
     PowerMockito.when(config.fix_duplicates()).thenReturn(true);
     compactionq = new CompactionQueue(tsdb);
@@ -1498,10 +1508,393 @@ public final class TestCompactionQueue {
     verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
   }
   
+  @Test
+  public void flushFromBuffer() throws Exception {
+    compactionq = newBufferedQueue();
+    final long base_time = System.currentTimeMillis() / 1000;
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    compactionq.add(KEY, base_time, qual1, val1);
+    compactionq.add(KEY, base_time, qual2, val2);
+    
+    flushAll();
+    // the row was compacted from memory
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(KEY, MockBase.concatByteArrays(qual1, qual2),
+                               MockBase.concatByteArrays(val1, val2, ZERO));
+    final ArgumentCaptor<byte[][]> deleted = 
+        ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb, times(1)).delete(eq(KEY), deleted.capture());
+    assertEquals(2, deleted.getValue().length);
+    assertArrayEquals(qual1, deleted.getValue()[0]);
+    assertArrayEquals(qual2, deleted.getValue()[1]);
+    assertEquals(0, compactionq.size());
+  }
+  
+  @Test
+  public void flushFromBufferOverwritten() throws Exception {
+    compactionq = newBufferedQueue();
+    final long base_time = System.currentTimeMillis() / 1000;
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    compactionq.add(KEY, base_time, qual1, Bytes.fromLong(3L));
+    compactionq.add(KEY, base_time, qual2, val2);
+    // the point is written again, the cell in storage now holds the new value
+    compactionq.add(KEY, base_time, qual1, val1);
+    
+    flushAll();
+    verify(tsdb, never()).get(anyBytes());
+    verify(tsdb, times(1)).put(KEY, MockBase.concatByteArrays(qual1, qual2),
+                               MockBase.concatByteArrays(val1, val2, ZERO));
+    final ArgumentCaptor<byte[][]> deleted = 
+        ArgumentCaptor.forClass(byte[][].class);
+    verify(tsdb, times(1)).delete(eq(KEY), deleted.capture());
+    assertEquals(2, deleted.getValue().length);
+  }
+  
+  @Test
+  public void flushFromBufferReadBack() throws Exception {
+    compactionq = newBufferedQueue();
+    final long base_time = System.currentTimeMillis() / 1000;
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    compactionq.add(KEY, base_time, qual1, val1);
+    // written without telling the buffer what
+    compactionq.add(KEY);
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    kvs.add(makekv(qual1, val1));
+    kvs.add(makekv(qual2, val2));
+    when(tsdb.get(KEY)).thenReturn(Deferred.fromResult(kvs));
+    
+    flushAll();
+    verify(tsdb, times(1)).get(KEY);
+    verify(tsdb, times(1)).put(KEY, MockBase.concatByteArrays(qual1, qual2),
+                               MockBase.concatByteArrays(val1, val2, ZERO));
+  }
+  
+  @Test
+  public void twoCellRowCompressed() throws Exception {
+    when(config.compress_compactions()).thenReturn(true);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    // callers still get the regular format
+    assertArrayEquals(MockBase.concatByteArrays(qual1, qual2), kv.qualifier());
+    assertArrayEquals(MockBase.concatByteArrays(val1, val2, ZERO), kv.value());
+
+    final byte[] compressed = CompressedDataPoints.encode(
+        MockBase.concatByteArrays(qual1, qual2), 
+        MockBase.concatByteArrays(val1, val2, ZERO));
+    verify(tsdb, times(1)).put(KEY, CompressedDataPoints.QUALIFIER, compressed);
+    verify(tsdb, times(1)).delete(eq(KEY), eqAnyOrder(new byte[][] { qual1, qual2 }));
+  }
+
+  @Test
+  public void compressedColumnAlreadyCompacted() throws Exception {
+    when(config.compress_compactions()).thenReturn(true);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), ZERO);
+    kvs.add(makekv(CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(qual, val)));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+  }
+
+  @Test
+  public void compressedColumnAndCell() throws Exception {
+    when(config.compress_compactions()).thenReturn(true);
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), ZERO);
+    kvs.add(makekv(CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(qual, val)));
+    final byte[] qual3 = { 0x00, 0x27 };
+    final byte[] val3 = Bytes.fromLong(6L);
+    kvs.add(makekv(qual3, val3));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    final byte[] cq = MockBase.concatByteArrays(qual, qual3);
+    final byte[] cv = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), val3, ZERO);
+    assertArrayEquals(cq, kv.qualifier());
+    assertArrayEquals(cv, kv.value());
+    // the compressed column is overwritten, only the cell is deleted
+    verify(tsdb, times(1)).put(KEY, CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(cq, cv));
+    verify(tsdb, times(1)).delete(eq(KEY), eqAnyOrder(new byte[][] { qual3 }));
+  }
+
+  @Test
+  public void compressedColumnDisabled() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), ZERO);
+    kvs.add(makekv(CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(qual, val)));
+
+    final KeyValue kv = compactionq.compact(kvs, annotations);
+    assertArrayEquals(qual, kv.qualifier());
+    assertArrayEquals(val, kv.value());
+    // re-written in the regular format
+    verify(tsdb, times(1)).put(KEY, qual, val);
+    verify(tsdb, times(1)).delete(eq(KEY), 
+        eqAnyOrder(new byte[][] { CompressedDataPoints.QUALIFIER }));
+  }
+
+  @Test
+  public void shardByBaseTime() throws Exception {
+    compactionq = newShardedQueue();
+    final long base_time = 1356998400;
+    compactionq.add(makeRow(base_time, 1));
+    compactionq.add(makeRow(base_time, 2));
+    compactionq.add(makeRow(base_time, 2));
+    compactionq.add(makeRow(base_time + 3600, 1));
+    assertEquals(3, compactionq.size());
+
+    final List<String> stats = collectStats();
+    assertTrue(stats.contains("tsd.compaction.queue.shards 2"));
+    assertTrue(stats.contains("tsd.compaction.queue.shard.size 2 salt=0 " 
+        + "hour=1356998400"));
+    assertTrue(stats.contains("tsd.compaction.queue.shard.size 1 salt=0 " 
+        + "hour=1357002000"));
+  }
+
+  @Test
+  public void flushOnlyOldShards() throws Exception {
+    compactionq = newShardedQueue();
+    final long base_time = 1356998400;
+    final byte[] old_row = makeRow(base_time, 1);
+    final byte[] new_row = makeRow(base_time + 3600, 1);
+    compactionq.add(old_row);
+    compactionq.add(new_row);
+    stubGet();
+
+    for (int i = 0; i < 100 && compactionq.size() > 1; i++) {
+      Whitebox.invokeMethod(compactionq, "flush", base_time + 3599, 
+          Integer.MAX_VALUE);
+    }
+    assertEquals(1, compactionq.size());
+    verify(tsdb, times(1)).get(old_row);
+    verify(tsdb, never()).get(new_row);
+  }
+
+  @Test
+  public void scheduleAndDrain() throws Exception {
+    compactionq = newShardedQueue();
+    final long base_time = 1356998400;
+    final byte[] row1 = makeRow(base_time, 1);
+    final byte[] row2 = makeRow(base_time, 2);
+    final byte[] new_row = makeRow(base_time + 3600, 1);
+    compactionq.add(row1);
+    compactionq.add(row2);
+    compactionq.add(new_row);
+    stubGet();
+
+    assertEquals(1, (int) (Integer) Whitebox.invokeMethod(compactionq, 
+        "schedule", base_time + 3599, 100));
+    final LinkedBlockingQueue<?> due = 
+        Whitebox.getInternalState(compactionq, "due_shards");
+    final Object shard = due.poll();
+    assertTrue(due.isEmpty());
+    // still queued so it isn't handed out twice
+    assertEquals(0, (int) (Integer) Whitebox.invokeMethod(compactionq, 
+        "schedule", base_time + 3599, 100));
+
+    for (int i = 0; i < 100 && compactionq.size() > 1; i++) {
+      Whitebox.invokeMethod(compactionq, "drain", shard);
+    }
+    assertEquals(1, compactionq.size());
+    verify(tsdb, times(1)).get(row1);
+    verify(tsdb, times(1)).get(row2);
+    verify(tsdb, never()).get(new_row);
+    // every compaction completed so the permits are back
+    assertEquals(10, ((Semaphore) Whitebox
+        .getInternalState(compactionq, "inflight")).availablePermits());
+
+    // the empty shard is retired, later rows go to a new shard
+    assertEquals(0, (int) (Integer) Whitebox.invokeMethod(compactionq, 
+        "schedule", base_time + 3599, 100));
+    assertTrue(collectStats().contains("tsd.compaction.queue.shards 1"));
+    compactionq.add(row1);
+    assertEquals(2, compactionq.size());
+    assertTrue(collectStats().contains("tsd.compaction.queue.shards 2"));
+  }
+
+  @Test
+  public void scheduleSplitsQuota() throws Exception {
+    compactionq = newShardedQueue();
+    final long base_time = 1356998400;
+    for (int i = 0; i < 30; i++) {
+      compactionq.add(makeRow(base_time, i));
+    }
+    for (int i = 0; i < 10; i++) {
+      compactionq.add(makeRow(base_time - 3600, i));
+    }
+    assertEquals(2, (int) (Integer) Whitebox.invokeMethod(compactionq, 
+        "schedule", base_time + 3599, 20));
+    final LinkedBlockingQueue<?> due = 
+        Whitebox.getInternalState(compactionq, "due_shards");
+    // oldest first
+    assertEquals(5, (int) (Integer) Whitebox.getInternalState(due.poll(), 
+        "quota"));
+    assertEquals(15, (int) (Integer) Whitebox.getInternalState(due.poll(), 
+        "quota"));
+  }
+
+  @Test
+  public void workersFromConfig() throws Exception {
+    when(config.getInt("tsd.storage.compaction.workers")).thenReturn(4);
+    compactionq = new CompactionQueue(tsdb);
+    PowerMockito.verifyNew(CompactionQueue.Worker.class, times(5))
+      .withNoArguments();
+  }
+
+  @Test
+  public void sortedCompactedColumnReused() throws Exception {
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    ArrayList<Annotation> annotations = new ArrayList<Annotation>(0);
+    final byte[] qual = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x17 });
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(4L), 
+        Bytes.fromLong(5L), ZERO);
+    final KeyValue column = makekv(qual, val);
+    kvs.add(column);
+
+    // already in the right format so there's nothing to copy
+    assertSame(column, compactionq.compact(kvs, annotations));
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+  }
+
+  @Test
+  public void sortedMergeSameAsHeap() throws Exception {
+    final Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>();
+      int offset = random.nextInt(10);
+      final int columns = 1 + random.nextInt(5);
+      for (int c = 0; c < columns; c++) {
+        final int points = 1 + random.nextInt(4);
+        final byte[][] quals = new byte[points][];
+        final byte[][] vals = new byte[points + 1][];
+        for (int p = 0; p < points; p++) {
+          // mostly increasing, sometimes going back or repeating
+          offset += random.nextInt(10) < 8 ? 1 + random.nextInt(30) 
+              : -random.nextInt(20);
+          offset = Math.max(0, Math.min(3599, offset));
+          if (random.nextBoolean()) {
+            quals[p] = Bytes.fromInt((int) (0xF0000000L 
+                | ((offset * 1000L + random.nextInt(1000)) 
+                    << Const.MS_FLAG_BITS) | 7));
+          } else {
+            quals[p] = Bytes.fromShort((short) ((offset << Const.FLAG_BITS) | 7));
+          }
+          vals[p] = Bytes.fromLong(random.nextInt(3));
+        }
+        vals[points] = points > 1 ? ZERO : new byte[0];
+        kvs.add(makekv(MockBase.concatByteArrays(quals), 
+            MockBase.concatByteArrays(vals)));
+      }
+
+      final KeyValue expected = compactionq.heapCompact(kvs, 
+          new ArrayList<Annotation>(0));
+      final KeyValue actual = compactionq.compact(kvs, 
+          new ArrayList<Annotation>(0));
+      assertArrayEquals(expected.qualifier(), actual.qualifier());
+      assertArrayEquals(expected.value(), actual.value());
+    }
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
 
+  /** @return a queue with 3 byte metrics so the base time can be read */
+  private CompactionQueue newShardedQueue() {
+    when(tsdb.metrics.width()).thenReturn((short) 3);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10);
+    return new CompactionQueue(tsdb);
+  }
+
+  /** @return a row key for the base time and tag value ID */
+  private static byte[] makeRow(final long base_time, final int tagv) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0 };
+    Bytes.setInt(row, (int) base_time, 3);
+    row[12] = (byte) tagv;
+    return row;
+  }
+
+  /** Stubs reads to return empty rows */
+  private void stubGet() {
+    when(tsdb.get(anyBytes())).thenAnswer(new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) {
+        return Deferred.fromResult(new ArrayList<KeyValue>(0));
+      }
+    });
+  }
+
+  /** @return the stats of the queue without their timestamps */
+  private List<String> collectStats() {
+    final List<String> stats = new ArrayList<String>();
+    compactionq.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        final String[] parts = line.trim().split(" ", 3);
+        stats.add(parts[0] + " " + parts[2]);
+      }
+    });
+    return stats;
+  }
+
+  /** Flushes every row, retrying as the queue skips some rows at random */
+  private void flushAll() throws Exception {
+    for (int i = 0; i < 100 && compactionq.size() > 0; i++) {
+      Whitebox.invokeMethod(compactionq, "flush", Long.MAX_VALUE, 
+          Integer.MAX_VALUE);
+    }
+  }
+
+  /** @return a queue with the row write buffer enabled */
+  private CompactionQueue newBufferedQueue() {
+    when(config.getBoolean("tsd.storage.compaction.buffer.enable"))
+      .thenReturn(true);
+    when(config.getLong("tsd.storage.compaction.buffer.max_memory"))
+      .thenReturn(1024L * 1024);
+    when(config.getInt("tsd.storage.compaction.max_concurrent_flushes"))
+      .thenReturn(10);
+    return new CompactionQueue(tsdb);
+  }
+
   // fake timestamp is derived from the sequence number of new makekv calls
   private static long kvCount = 0;
 
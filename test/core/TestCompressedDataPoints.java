@@ -0,0 +1,263 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Test;
+
+public final class TestCompressedDataPoints {
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] FAMILY = { 't' };
+
+  @Test
+  public void isCompressedDataPoints() throws Exception {
+    assertTrue(CompressedDataPoints.isCompressedDataPoints(
+        CompressedDataPoints.QUALIFIER));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(
+        AppendDataPoints.APPEND_COLUMN_QUALIFIER));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(
+        new byte[] { 0x07, 0 }));
+    assertFalse(CompressedDataPoints.isCompressedDataPoints(null));
+  }
+
+  @Test
+  public void roundTripIntegers() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    for (int i = 0; i < 360; i++) {
+      column.addLong(i * 10, 1000 + (i % 7) * 3);
+    }
+    column.addLong(3598, Long.MIN_VALUE);
+    column.addLong(3599, Long.MAX_VALUE);
+    assertRoundTrip(column.build());
+  }
+
+  @Test
+  public void roundTripIntegerWidths() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    column.add(Bytes.fromShort((short) (0 << Const.FLAG_BITS)),
+        new byte[] { -42 });
+    column.add(Bytes.fromShort((short) ((1 << Const.FLAG_BITS) | 1)),
+        Bytes.fromShort((short) 512));
+    column.add(Bytes.fromShort((short) ((2 << Const.FLAG_BITS) | 3)),
+        Bytes.fromInt(-70000));
+    column.addLong(3, 1L << 40);
+    assertRoundTrip(column.build());
+  }
+
+  @Test
+  public void roundTripFloats() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    final Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      column.addFloat(i * 15, i % 10 == 0 ? 0.5F : random.nextFloat() * 100);
+    }
+    assertRoundTrip(column.build());
+  }
+
+  @Test
+  public void roundTripDoubles() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    for (int i = 0; i < 100; i++) {
+      column.addDouble(i * 30, i < 50 ? 42.5 : Math.sin(i) * 1000);
+    }
+    column.addDouble(3599, Double.NaN);
+    assertRoundTrip(column.build());
+  }
+
+  @Test
+  public void roundTripMixed() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    column.addLong(0, 1);
+    column.addDouble(1, 1.5);
+    column.addFloat(2, 2.5F);
+    column.addLong(3, -4);
+    column.addDouble(4, -1.5);
+    column.addFloat(5, 2.5F);
+    assertRoundTrip(column.build());
+  }
+
+  @Test
+  public void roundTripMilliseconds() throws Exception {
+    final byte[] qual = MockBase.concatByteArrays(
+        Bytes.fromShort((short) 0x0007),
+        Bytes.fromInt((int) (0xF0000000L | (1250L << Const.MS_FLAG_BITS) | 7)),
+        Bytes.fromInt((int) (0xF0000000L | (3599999L << Const.MS_FLAG_BITS)
+            | 0xB)));
+    final byte[] val = MockBase.concatByteArrays(Bytes.fromLong(1),
+        Bytes.fromLong(2), Bytes.fromInt(Float.floatToRawIntBits(3.5F)),
+        new byte[] { Const.MS_MIXED_COMPACT });
+    assertRoundTrip(new byte[][] { qual, val });
+  }
+
+  @Test
+  public void roundTripSingleValue() throws Exception {
+    final byte[] qual = { 0x01, 0x07 };
+    final byte[] val = Bytes.fromLong(42);
+    final byte[] compressed = CompressedDataPoints.encode(qual, val);
+    assertEquals(1, CompressedDataPoints.pointCount(compressed));
+    final byte[][] decoded = CompressedDataPoints.decode(compressed);
+    assertArrayEquals(qual, decoded[0]);
+    assertArrayEquals(val, decoded[1]);
+  }
+
+  @Test
+  public void regularSeriesIsSmaller() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    for (int i = 0; i < 360; i++) {
+      column.addLong(i * 10, 42);
+    }
+    final byte[][] regular = column.build();
+    final byte[] compressed =
+        CompressedDataPoints.encode(regular[0], regular[1]);
+    // one bit each for the timestamp, flags and value
+    assertTrue(compressed.length < 360 / 2);
+    assertTrue(compressed.length * 10 < regular[0].length + regular[1].length);
+  }
+
+  @Test
+  public void encodeBadValueLength() throws Exception {
+    // 3 byte integer
+    assertNull(CompressedDataPoints.encode(
+        MockBase.concatByteArrays(Bytes.fromShort((short) 0x0002),
+            Bytes.fromShort((short) 0x0017)),
+        MockBase.concatByteArrays(new byte[3], Bytes.fromLong(1),
+            new byte[] { 0 })));
+    // values don't match the qualifiers
+    assertNull(CompressedDataPoints.encode(
+        MockBase.concatByteArrays(Bytes.fromShort((short) 0x0007),
+            Bytes.fromShort((short) 0x0017)),
+        Bytes.fromLong(1)));
+  }
+
+  @Test
+  public void encodeOutOfOrder() throws Exception {
+    assertNull(CompressedDataPoints.encode(
+        MockBase.concatByteArrays(Bytes.fromShort((short) 0x0017),
+            Bytes.fromShort((short) 0x0007)),
+        MockBase.concatByteArrays(Bytes.fromLong(1), Bytes.fromLong(2),
+            new byte[] { 0 })));
+  }
+
+  @Test
+  public void decodeKeyValue() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    column.addLong(0, 1);
+    column.addLong(10, 2);
+    final byte[][] regular = column.build();
+    final KeyValue kv = new KeyValue(KEY, FAMILY,
+        CompressedDataPoints.QUALIFIER, 42,
+        CompressedDataPoints.encode(regular[0], regular[1]));
+    final KeyValue decoded = CompressedDataPoints.decode(kv);
+    assertArrayEquals(KEY, decoded.key());
+    assertEquals(42, decoded.timestamp());
+    assertArrayEquals(regular[0], decoded.qualifier());
+    assertArrayEquals(regular[1], decoded.value());
+  }
+
+  @Test
+  public void extractDataPoints() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    column.addLong(0, 1);
+    column.addDouble(10, 2.5);
+    final byte[][] regular = column.build();
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(KEY, FAMILY, CompressedDataPoints.QUALIFIER,
+        CompressedDataPoints.encode(regular[0], regular[1])));
+    final ArrayList<Cell> cells = Internal.extractDataPoints(row, 2);
+    assertEquals(2, cells.size());
+    assertEquals(1L, cells.get(0).parseValue());
+    assertEquals(2.5, cells.get(1).parseValue());
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeNotCompressed() throws Exception {
+    CompressedDataPoints.decode(new KeyValue(KEY, FAMILY,
+        new byte[] { 0, 7 }, Bytes.fromLong(1)));
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeUnknownVersion() throws Exception {
+    CompressedDataPoints.decode(new byte[] { 0x0F, 1, 0 });
+  }
+
+  @Test (expected = IllegalDataException.class)
+  public void decodeTruncated() throws Exception {
+    final ColumnBuilder column = new ColumnBuilder();
+    for (int i = 0; i < 10; i++) {
+      column.addDouble(i, Math.sqrt(i));
+    }
+    final byte[][] regular = column.build();
+    final byte[] compressed =
+        CompressedDataPoints.encode(regular[0], regular[1]);
+    CompressedDataPoints.decode(
+        Arrays.copyOf(compressed, compressed.length / 2));
+  }
+
+  /** Encodes and decodes the column, expecting the exact same bytes back */
+  private static void assertRoundTrip(final byte[][] column) {
+    final byte[] compressed = CompressedDataPoints.encode(column[0], column[1]);
+    final byte[][] decoded = CompressedDataPoints.decode(compressed);
+    assertArrayEquals(column[0], decoded[0]);
+    assertArrayEquals(column[1], decoded[1]);
+  }
+
+  /** Builds a compacted column with second qualifiers. */
+  private static final class ColumnBuilder {
+    private final ArrayList<byte[]> qualifiers = new ArrayList<byte[]>();
+    private final ArrayList<byte[]> values = new ArrayList<byte[]>();
+
+    void add(final byte[] qualifier, final byte[] value) {
+      qualifiers.add(qualifier);
+      values.add(value);
+    }
+
+    void addLong(final int offset, final long value) {
+      add(Bytes.fromShort((short) ((offset << Const.FLAG_BITS) | 7)),
+          Bytes.fromLong(value));
+    }
+
+    void addFloat(final int offset, final float value) {
+      add(Bytes.fromShort((short) ((offset << Const.FLAG_BITS) | 0xB)),
+          Bytes.fromInt(Float.floatToRawIntBits(value)));
+    }
+
+    void addDouble(final int offset, final double value) {
+      add(Bytes.fromShort((short) ((offset << Const.FLAG_BITS) | 0xF)),
+          Bytes.fromLong(Double.doubleToRawLongBits(value)));
+    }
+
+    byte[][] build() {
+      values.add(new byte[] { 0 });
+      final byte[][] column = new byte[][] {
+          MockBase.concatByteArrays(qualifiers.toArray(new byte[0][])),
+          MockBase.concatByteArrays(values.toArray(new byte[0][])) };
+      values.remove(values.size() - 1);
+      return column;
+    }
+  }
+}
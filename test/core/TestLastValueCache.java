@@ -0,0 +1,168 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.meta.TSMeta;
+import net.opentsdb.meta.TSUIDQuery;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.DateTime;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.Whitebox;
+
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  HashedWheelTimer.class, Scanner.class, Const.class, GetRequest.class,
+  PutRequest.class, KeyValue.class, DateTime.class })
+public class TestLastValueCache extends BaseTsdbTest {
+  private static final byte[] META_TABLE =
+      "tsdb-meta".getBytes(MockBase.ASCII());
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+
+  private LastValueCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    cache = new LastValueCache(tsdb);
+    Whitebox.setInternalState(tsdb, "last_values", cache);
+  }
+
+  @Test
+  public void addPointCaches() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    final IncomingDataPoint dp = cache.get(TSUID);
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals("000001000001000001", dp.getTSUID());
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void addPointFloat() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400500L, 42.5F, tags)
+      .joinUninterruptibly();
+    final IncomingDataPoint dp = cache.get(TSUID);
+    assertEquals(1356998400500L, dp.getTimestamp());
+    assertEquals("42.5", dp.getValue());
+  }
+
+  @Test
+  public void addPointOlderIgnored() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998460, 2, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998400, 1, tags).joinUninterruptibly();
+    assertEquals("2", cache.get(TSUID).getValue());
+    // same timestamp, the last write wins as it does in storage
+    tsdb.addPoint(METRIC_STRING, 1356998460, 3, tags).joinUninterruptibly();
+    assertEquals("3", cache.get(TSUID).getValue());
+  }
+
+  @Test
+  public void getMiss() throws Exception {
+    assertNull(cache.get(TSUID));
+  }
+
+  @Test
+  public void memoryAccounting() throws Exception {
+    cache.put(TSUID, 1356998400, new byte[] { 1 }, (short) 0);
+    cache.put(TSUID, 1356998460, new byte[] { 2 }, (short) 0);
+    assertEquals(LastValueCache.ENTRY_OVERHEAD + TSUID.length * 2,
+        cache.memoryUsage());
+  }
+
+  @Test
+  public void evictsWhenFull() throws Exception {
+    config.overrideConfig("tsd.core.last_value_cache.max_memory",
+        Integer.toString((LastValueCache.ENTRY_OVERHEAD + 18) * 4));
+    cache = new LastValueCache(tsdb);
+    for (int i = 0; i < 100; i++) {
+      final byte[] tsuid = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, (byte) i };
+      cache.put(tsuid, 1356998400, new byte[] { 1 }, (short) 0);
+    }
+    assertTrue(cache.size() <= 4);
+    assertEquals(cache.size() * (LastValueCache.ENTRY_OVERHEAD + 18),
+        cache.memoryUsage());
+  }
+
+  @Test
+  public void getLastPointFromCache() throws Exception {
+    // nothing in storage, so the answer has to come from the cache
+    cache.put(TSUID, 1356998400, new byte[] { 42 }, (short) 0);
+    final IncomingDataPoint dp =
+        new TSUIDQuery(tsdb, TSUID).getLastPoint(false, 0).join();
+    assertEquals(1356998400000L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+  }
+
+  @Test
+  public void getLastPointCachedOutsideBackScan() throws Exception {
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357099200000L);
+    cache.put(TSUID, 1356998400, new byte[] { 42 }, (short) 0);
+    assertNull(new TSUIDQuery(tsdb, TSUID).getLastPoint(false, 1).join());
+    assertEquals("42", new TSUIDQuery(tsdb, TSUID).getLastPoint(false, 30)
+        .join().getValue());
+  }
+
+  @Test
+  public void warmUp() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_tracking", true);
+    PowerMockito.mockStatic(DateTime.class);
+    PowerMockito.when(DateTime.currentTimeMillis()).thenReturn(1357000000000L);
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add(TSMeta.FAMILY());
+    storage.addTable(META_TABLE, families);
+    final byte[] old_tsuid = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+    storage.addColumn(META_TABLE, TSUID, TSMeta.FAMILY(),
+        TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1), 1356998400000L);
+    storage.addColumn(META_TABLE, old_tsuid, TSMeta.FAMILY(),
+        TSMeta.COUNTER_QUALIFIER(), Bytes.fromLong(1), 1356000000000L);
+    storage.addColumn(MockBase.stringToBytes("00000150E22700000001000001"),
+        new byte[] { 0, 0 }, new byte[] { 42 });
+    storage.addColumn(MockBase.stringToBytes("00000150E22700000001000002"),
+        new byte[] { 0, 0 }, new byte[] { 24 });
+
+    assertEquals(1, (long) cache.warmUp().join());
+    assertEquals("42", cache.get(TSUID).getValue());
+    assertNull(cache.get(old_tsuid));
+  }
+
+  @Test
+  public void warmUpDisabledWithoutTracking() throws Exception {
+    assertEquals(0, (long) cache.warmUp().join());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMemory() throws Exception {
+    config.overrideConfig("tsd.core.last_value_cache.max_memory", "0");
+    new LastValueCache(tsdb);
+  }
+}
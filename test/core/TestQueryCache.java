@@ -0,0 +1,273 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class })
+public final class TestQueryCache extends BaseTsdbTest {
+  /** First and last timestamps of the stored series */
+  private static final String START = "1356998400";
+  private static final String END = "1357007400";
+
+  private QueryCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    cache = new QueryCache(tsdb);
+  }
+
+  @Test
+  public void missThenHit() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    assertSameResults(runPlain(query), runCached(query));
+    // two whole settled hours, the last half hour isn't a whole block
+    assertEquals(2, cache.size());
+
+    final DataPoints[] results = runCached(query);
+    assertSameResults(runPlain(query), results);
+    assertEquals(2, results.length);
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void headAndTail() throws Exception {
+    // starts a quarter past so only the second hour is a whole block
+    final TSQuery query = newQuery("1356999300", "zimsum", "1m-avg", true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(1, cache.size());
+    assertSameResults(runPlain(query), runCached(query));
+  }
+
+  @Test
+  public void noGroupBy() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", false);
+    runCached(query);
+    final DataPoints[] results = runCached(query);
+    assertSameResults(runPlain(query), results);
+    assertEquals(1, results.length);
+    assertEquals(TAGK_STRING, results[0].getAggregatedTags().get(0));
+  }
+
+  @Test
+  public void fillPolicyWithInterpolation() throws Exception {
+    final TSQuery query = newQuery(START, "sum", "1m-avg-zero", true);
+    runCached(query);
+    assertEquals(2, cache.size());
+    assertSameResults(runPlain(query), runCached(query));
+  }
+
+  @Test
+  public void overlappingQueries() throws Exception {
+    runCached(newQuery(START, "zimsum", "1m-avg", true));
+    final TSQuery query = newQuery("1357002000", "zimsum", "1m-avg", true);
+    assertSameResults(runPlain(query), runCached(query));
+  }
+
+  @Test
+  public void differentDownsampler() throws Exception {
+    runCached(newQuery(START, "zimsum", "1m-avg", true));
+    final TSQuery query = newQuery(START, "zimsum", "1m-max", true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(4, cache.size());
+  }
+
+  @Test
+  public void noCache() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    query.setNoCache(true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void uncacheableInterpolation() throws Exception {
+    final TSQuery query = newQuery(START, "sum", "1m-avg", true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void uncacheableRate() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    query.getQueries().get(0).setRate(true);
+    query.validateAndSetQuery();
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void uncacheableNoDownsampler() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", null, true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void mutableWindow() throws Exception {
+    config.overrideConfig("tsd.query.cache.mutable_window",
+        Long.toString(System.currentTimeMillis() / 1000));
+    cache = new QueryCache(tsdb);
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    assertSameResults(runPlain(query), runCached(query));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evictOverMaxMemory() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_memory", "1");
+    cache = new QueryCache(tsdb);
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    runCached(query);
+    assertEquals(0, cache.size());
+    assertSameResults(runPlain(query), runCached(query));
+  }
+
+  @Test
+  public void queryStats() throws Exception {
+    final TSQuery query = newQuery(START, "zimsum", "1m-avg", true);
+    runCached(query);
+    final QueryStats stats = mock(QueryStats.class);
+    query.setQueryStats(stats);
+    runCached(query);
+    verify(stats).addStat(0, QueryStat.CACHE_HITS, 2);
+    verify(stats).addStat(0, QueryStat.CACHE_MISSES, 0);
+  }
+
+  @Test
+  public void cacheable() throws Exception {
+    assertTrue(QueryCache.cacheable(
+        newQuery(START, "zimsum", "1m-avg", true), subQuery("zimsum", "1m-avg")));
+    assertTrue(QueryCache.cacheable(
+        newQuery(START, "sum", "1m-avg-nan", true), subQuery("sum", "1m-avg-nan")));
+    assertFalse(QueryCache.cacheable(
+        newQuery(START, "sum", "1m-avg", true), subQuery("sum", "1m-avg")));
+    assertFalse(QueryCache.cacheable(
+        newQuery(START, "none", "1m-avg", true), subQuery("none", "1m-avg")));
+    assertFalse(QueryCache.cacheable(
+        newQuery(START, "zimsum", "0all-sum", true), subQuery("zimsum", "0all-sum")));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMemory() throws Exception {
+    config.overrideConfig("tsd.query.cache.max_memory", "0");
+    new QueryCache(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadBlockSize() throws Exception {
+    config.overrideConfig("tsd.query.cache.block_size", "0");
+    new QueryCache(tsdb);
+  }
+
+  private TSQuery newQuery(final String start, final String aggregator,
+      final String downsample, final boolean group_by) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(aggregator);
+    sub.setDownsample(downsample);
+    if (group_by) {
+      final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "*");
+      filter.setGroupBy(true);
+      final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+      filters.add(filter);
+      sub.setFilters(filters);
+    }
+    final ArrayList<TSSubQuery> subs = new ArrayList<TSSubQuery>(1);
+    subs.add(sub);
+    final TSQuery query = new TSQuery();
+    query.setStart(start);
+    query.setEnd(END);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private static TSSubQuery subQuery(final String aggregator,
+      final String downsample) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(aggregator);
+    sub.setDownsample(downsample);
+    sub.validateAndSetQuery();
+    return sub;
+  }
+
+  private DataPoints[] runPlain(final TSQuery query) throws Exception {
+    return query.buildQueries(tsdb)[0].run();
+  }
+
+  private DataPoints[] runCached(final TSQuery query) throws Exception {
+    return cache.run(query, 0, query.buildQueries(tsdb)[0])
+        .joinUninterruptibly();
+  }
+
+  /** Checks the results hold the same groups with the same points */
+  private static void assertSameResults(final DataPoints[] expected,
+      final DataPoints[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (final DataPoints exp : expected) {
+      DataPoints act = null;
+      for (final DataPoints candidate : actual) {
+        if (candidate.getTags().equals(exp.getTags())) {
+          act = candidate;
+        }
+      }
+      if (act == null) {
+        fail("Missing group " + exp.getTags());
+      }
+      assertEquals(exp.metricName(), act.metricName());
+      assertEquals(new HashSet<String>(exp.getAggregatedTags()),
+          new HashSet<String>(act.getAggregatedTags()));
+      assertEquals(exp.getQueryIndex(), act.getQueryIndex());
+      final SeekableView exp_it = exp.iterator();
+      final SeekableView act_it = act.iterator();
+      while (exp_it.hasNext()) {
+        assertTrue(act_it.hasNext());
+        final DataPoint e = exp_it.next();
+        final DataPoint a = act_it.next();
+        assertEquals(e.timestamp(), a.timestamp());
+        assertEquals(e.isInteger(), a.isInteger());
+        if (e.isInteger()) {
+          assertEquals(e.longValue(), a.longValue());
+        } else {
+          assertEquals(e.doubleValue(), a.doubleValue(), 0.0001);
+        }
+      }
+      assertFalse(act_it.hasNext());
+    }
+  }
+}
@@ -0,0 +1,244 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.opentsdb.utils.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.stumbleupon.async.Deferred;
+
+public final class TestQueryComputePool {
+  private Config config;
+  private QueryComputePool pool;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.query.compute.threads", "4");
+    config.overrideConfig("tsd.query.compute.max_per_query", "2");
+  }
+
+  @After
+  public void after() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void inline() throws Exception {
+    config.overrideConfig("tsd.query.compute.max_per_query", "1");
+    pool = new QueryComputePool(config);
+    assertFalse(pool.isParallel());
+    final Thread caller = Thread.currentThread();
+    final Deferred<Thread> thread = pool.newBatch().submit(
+        new Callable<Thread>() {
+          @Override
+          public Thread call() {
+            return Thread.currentThread();
+          }
+        });
+    assertSame(caller, thread.join(1000));
+  }
+
+  @Test
+  public void parallel() throws Exception {
+    pool = new QueryComputePool(config);
+    assertTrue(pool.isParallel());
+    final Thread caller = Thread.currentThread();
+    final Deferred<Thread> thread = pool.newBatch().submit(
+        new Callable<Thread>() {
+          @Override
+          public Thread call() {
+            return Thread.currentThread();
+          }
+        });
+    final Thread worker = thread.join(1000);
+    assertNotSame(caller, worker);
+    assertTrue(worker.isDaemon());
+  }
+
+  @Test
+  public void limitPerQuery() throws Exception {
+    pool = new QueryComputePool(config);
+    final QueryComputePool.Batch batch = pool.newBatch();
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger max_running = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final List<Deferred<Integer>> results = new ArrayList<Deferred<Integer>>();
+    for (int i = 0; i < 10; i++) {
+      final int index = i;
+      results.add(batch.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() throws Exception {
+          final int now = running.incrementAndGet();
+          synchronized (max_running) {
+            if (now > max_running.get()) {
+              max_running.set(now);
+            }
+          }
+          release.await(5, TimeUnit.SECONDS);
+          running.decrementAndGet();
+          return index;
+        }
+      }));
+    }
+    // give the pool a chance to start more than it should
+    Thread.sleep(100);
+    assertEquals(2, running.get());
+    release.countDown();
+    final ArrayList<Integer> values =
+        Deferred.groupInOrder(results).join(5000);
+    for (int i = 0; i < 10; i++) {
+      assertEquals(i, (int) values.get(i));
+    }
+    assertEquals(2, max_running.get());
+  }
+
+  @Test
+  public void batchesDontWaitOnEachOther() throws Exception {
+    pool = new QueryComputePool(config);
+    final CountDownLatch release = new CountDownLatch(1);
+    final QueryComputePool.Batch large = pool.newBatch();
+    for (int i = 0; i < 10; i++) {
+      large.submit(new Callable<Object>() {
+        @Override
+        public Object call() throws Exception {
+          release.await(5, TimeUnit.SECONDS);
+          return null;
+        }
+      });
+    }
+    final Deferred<String> small = pool.newBatch().submit(
+        new Callable<String>() {
+          @Override
+          public String call() {
+            return "done";
+          }
+        });
+    assertEquals("done", small.join(1000));
+    release.countDown();
+  }
+
+  @Test
+  public void exception() throws Exception {
+    pool = new QueryComputePool(config);
+    final Deferred<Object> result = pool.newBatch().submit(
+        new Callable<Object>() {
+          @Override
+          public Object call() {
+            throw new IllegalStateException("Boo!");
+          }
+        });
+    try {
+      result.join(1000);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertEquals("Boo!", e.getMessage());
+    }
+  }
+
+  @Test
+  public void error() throws Exception {
+    pool = new QueryComputePool(config);
+    final QueryComputePool.Batch batch = pool.newBatch();
+    final List<Deferred<Object>> errors = new ArrayList<Deferred<Object>>();
+    for (int i = 0; i < 2; i++) {
+      errors.add(batch.submit(new Callable<Object>() {
+        @Override
+        public Object call() {
+          throw new OutOfMemoryError("Boo!");
+        }
+      }));
+    }
+    for (final Deferred<Object> error : errors) {
+      try {
+        error.join(1000);
+        fail("Expected a RuntimeException");
+      } catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof OutOfMemoryError);
+      }
+    }
+    // the errors freed their slots
+    final Deferred<String> next = batch.submit(new Callable<String>() {
+      @Override
+      public String call() {
+        return "done";
+      }
+    });
+    assertEquals("done", next.join(1000));
+  }
+
+  @Test
+  public void errorInline() throws Exception {
+    config.overrideConfig("tsd.query.compute.max_per_query", "1");
+    pool = new QueryComputePool(config);
+    final Deferred<Object> result = pool.newBatch().submit(
+        new Callable<Object>() {
+          @Override
+          public Object call() {
+            throw new StackOverflowError("Boo!");
+          }
+        });
+    try {
+      result.join(1000);
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof StackOverflowError);
+    }
+  }
+
+  @Test
+  public void afterShutdown() throws Exception {
+    pool = new QueryComputePool(config);
+    pool.shutdown();
+    final Thread caller = Thread.currentThread();
+    final Deferred<Thread> thread = pool.newBatch().submit(
+        new Callable<Thread>() {
+          @Override
+          public Thread call() {
+            return Thread.currentThread();
+          }
+        });
+    assertSame(caller, thread.join(1000));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeThreads() throws Exception {
+    config.overrideConfig("tsd.query.compute.threads", "-1");
+    new QueryComputePool(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void zeroPerQuery() throws Exception {
+    config.overrideConfig("tsd.query.compute.max_per_query", "0");
+    new QueryComputePool(config);
+  }
+}
@@ -0,0 +1,164 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.KeyValue;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestQueryMemoryBudget {
+  private Config config;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+  }
+
+  @Test
+  public void unlimited() throws Exception {
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    reservation.reserve(Long.MAX_VALUE / 2);
+    assertEquals(Long.MAX_VALUE / 2, reservation.held());
+    assertEquals(Long.MAX_VALUE / 2, budget.used());
+    reservation.release();
+    assertEquals(0, budget.used());
+    assertEquals(Long.MAX_VALUE / 2, reservation.max());
+  }
+
+  @Test
+  public void perQuery() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "100");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    reservation.reserve(60);
+    reservation.reserve(40);
+    try {
+      reservation.reserve(1);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertEquals(100, reservation.held());
+    assertEquals(100, budget.used());
+    // other queries have their own limit
+    budget.newReservation().reserve(100);
+    assertEquals(200, budget.used());
+  }
+
+  @Test
+  public void global() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.global", "100");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation first = budget.newReservation();
+    final QueryMemoryBudget.Reservation second = budget.newReservation();
+    first.reserve(80);
+    try {
+      second.reserve(30);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertEquals(0, second.held());
+    assertEquals(80, budget.used());
+    // the first query can still use what's left
+    first.reserve(20);
+    first.release();
+    assertEquals(0, budget.used());
+  }
+
+  @Test
+  public void rejectionSticks() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "100");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    QueryException rejection = null;
+    try {
+      reservation.reserve(101);
+    } catch (QueryException e) {
+      rejection = e;
+    }
+    // the other scanners of the query fail on their next row
+    try {
+      reservation.reserve(1);
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertSame(rejection, e);
+    }
+    assertEquals(0, budget.used());
+  }
+
+  @Test
+  public void releaseTwice() throws Exception {
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    reservation.reserve(10);
+    reservation.release();
+    reservation.release();
+    assertEquals(0, budget.used());
+    // late rows of a released query aren't counted
+    reservation.reserve(10);
+    assertEquals(0, budget.used());
+  }
+
+  @Test
+  public void sizeOf() throws Exception {
+    final KeyValue kv = new KeyValue(new byte[13], new byte[] { 't' }, 
+        new byte[4], 0, new byte[8]);
+    assertEquals(25 + QueryMemoryBudget.KEYVALUE_OVERHEAD, 
+        QueryMemoryBudget.sizeOf(kv));
+  }
+
+  @Test
+  public void collectStats() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "100");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation first = budget.newReservation();
+    final QueryMemoryBudget.Reservation second = budget.newReservation();
+    first.reserve(50);
+    second.reserve(70);
+    first.release();
+    try {
+      second.reserve(40);
+    } catch (QueryException e) { }
+    final StatsCollector collector = mock(StatsCollector.class);
+    budget.collectStats(collector);
+    verify(collector).record("query.memory.used", 70L, null);
+    verify(collector).record("query.memory.high_water", 120L, null);
+    verify(collector).record("query.memory.query_high_water", 70L, null);
+    verify(collector).record("query.memory.rejected", 1L, "type=query");
+    verify(collector).record("query.memory.rejected", 0L, "type=global");
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativePerQuery() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "-1");
+    new QueryMemoryBudget(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void negativeGlobal() throws Exception {
+    config.overrideConfig("tsd.query.limits.bytes.global", "-1");
+    new QueryMemoryBudget(config);
+  }
+}
@@ -0,0 +1,387 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.Internal.Cell;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class })
+public final class TestRollupQuery {
+  /** 2013-01-01 00:00, the start of a day long row of 1h intervals */
+  private static final long DAY = 1356998400L;
+  private static final byte[] KEY =
+      MockBase.stringToBytes("00000150E22700000001000001");
+
+  private final HBaseClient client = mock(HBaseClient.class);
+  private Config config;
+  private RollupConfig rollups;
+  private RollupInterval hourly;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.rollups.intervals", "1d, 10m,1h");
+    config.overrideConfig("tsd.rollups.intervals_per_row", "24");
+    rollups = new RollupConfig(config);
+    hourly = rollups.getInterval("1h");
+    markers(DAY - 86400, DAY + 2 * 86400);
+  }
+
+  @Test
+  public void ctor() throws Exception {
+    assertEquals(3, rollups.getIntervals().size());
+    assertEquals(600, rollups.getIntervals().get(0).getInterval());
+    assertEquals(3600, rollups.getIntervals().get(1).getInterval());
+    assertEquals(86400, rollups.getIntervals().get(2).getInterval());
+    assertEquals(86400, hourly.getRowSpan());
+    assertArrayEquals("tsdb-rollup-1h".getBytes(Const.ASCII_CHARSET),
+        hourly.getTable());
+    assertNull(rollups.getInterval("1w"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoIntervals() throws Exception {
+    config.overrideConfig("tsd.rollups.intervals", " ");
+    new RollupConfig(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorSubSecondInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.intervals", "1500ms");
+    new RollupConfig(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorTooManyIntervalsPerRow() throws Exception {
+    config.overrideConfig("tsd.rollups.intervals_per_row", "4097");
+    new RollupConfig(config);
+  }
+
+  @Test
+  public void qualifier() throws Exception {
+    final byte[] qualifier = hourly.qualifier(RollupInterval.MAX,
+        DAY + 7200, false);
+    assertArrayEquals(new byte[] { 4, 0, 0x2F }, qualifier);
+    assertEquals(DAY + 7200, hourly.timestamp(DAY, qualifier));
+    assertFalse(RollupInterval.isInteger(qualifier));
+    assertTrue(RollupInterval.isInteger(
+        hourly.qualifier(RollupInterval.SUM, DAY, true)));
+  }
+
+  @Test
+  public void planCoarsest() throws Exception {
+    assertSame(rollups.getInterval("1d"), plan("2d-sum").getInterval());
+    assertSame(hourly, plan("2h-sum").getInterval());
+    assertSame(rollups.getInterval("10m"), plan("30m-sum").getInterval());
+    assertNull(plan("5m-sum"));
+  }
+
+  @Test
+  public void planFunctions() throws Exception {
+    assertEquals(RollupInterval.SUM, plan("1h-zimsum").getAggregate());
+    assertEquals(RollupInterval.COUNT, plan("1h-count").getAggregate());
+    assertEquals(RollupInterval.MIN, plan("1h-mimmin").getAggregate());
+    assertEquals(RollupInterval.MAX, plan("1h-max").getAggregate());
+    assertEquals(RollupQuery.AVG, plan("1h-avg").getAggregate());
+    assertNull(plan("1h-dev"));
+    assertNull(plan("1h-p99"));
+    assertNull(plan("1h-last"));
+  }
+
+  @Test
+  public void planAvgNeedsWholeBuckets() throws Exception {
+    // a 5 hour bucket would span two day long rows of hourly rollups
+    assertNull(plan("5h-avg"));
+    assertSame(hourly, plan("5h-sum").getInterval());
+    assertSame(hourly, plan("6h-avg").getInterval());
+  }
+
+  @Test
+  public void planRawData() throws Exception {
+    assertNull(rollups.plan(null, false, false, DAY));
+    assertNull(rollups.plan(new DownsamplingSpecification("1h-sum"),
+        true, false, DAY));
+    assertNull(rollups.plan(new DownsamplingSpecification("1h-sum"),
+        false, true, DAY));
+    assertNull(rollups.plan(new DownsamplingSpecification("1dc-sum"),
+        false, false, DAY));
+  }
+
+  @Test
+  public void downsampler() throws Exception {
+    assertSame(Aggregators.SUM, plan("1h-count").downsampler().getFunction());
+    assertSame(Aggregators.AVG, plan("1h-avg").downsampler().getFunction());
+    assertSame(Aggregators.MIN, plan("1h-min").downsampler().getFunction());
+    final DownsamplingSpecification ds = plan("2h-max-zero").downsampler();
+    assertSame(Aggregators.MAX, ds.getFunction());
+    assertEquals(7200000, ds.getInterval());
+    assertEquals(FillPolicy.ZERO, ds.getFillPolicy());
+  }
+
+  @Test
+  public void scanRange() throws Exception {
+    final RollupQuery query = plan("1h-sum");
+    assertEquals(DAY, query.scanStart(DAY + 3600));
+    assertEquals(DAY + 86400, query.scanEnd(DAY + 86400));
+    assertEquals(DAY + 2 * 86400, query.scanEnd(DAY + 86401));
+  }
+
+  @Test
+  public void toDataRows() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(cell(RollupInterval.SUM, DAY, 10L));
+    row.add(cell(RollupInterval.SUM, DAY + 3600, 1.5));
+    row.add(cell(RollupInterval.SUM, DAY + 7200, 12L));
+    row.add(cell(RollupInterval.COUNT, DAY, 2L));
+
+    final List<KeyValue> rows = plan("1h-sum").toDataRows(row, DAY,
+        DAY + 86400);
+    assertEquals(3, rows.size());
+    assertEquals(DAY, Internal.baseTime(null, rows.get(0).key()));
+    assertEquals(DAY + 7200, Internal.baseTime(null, rows.get(2).key()));
+    final List<Cell> cells = Internal.extractDataPoints(rows.get(0));
+    assertEquals(1, cells.size());
+    assertEquals(10L, cells.get(0).parseValue());
+    assertEquals(DAY * 1000, cells.get(0).timestamp(DAY));
+    assertEquals(1.5,
+        Internal.extractDataPoints(rows.get(1)).get(0).parseValue());
+  }
+
+  @Test
+  public void toDataRowsSameHour() throws Exception {
+    config.overrideConfig("tsd.rollups.intervals", "10m");
+    rollups = new RollupConfig(config);
+    markers(DAY, DAY + 86400);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(cell(rollups.getInterval("10m"), RollupInterval.MIN, DAY, 3L));
+    row.add(cell(rollups.getInterval("10m"), RollupInterval.MIN, DAY + 600,
+        4L));
+    final List<KeyValue> rows = plan("1h-min").toDataRows(row, DAY,
+        DAY + 86400);
+    assertEquals(1, rows.size());
+    final List<Cell> cells = Internal.extractDataPoints(rows.get(0));
+    assertEquals(2, cells.size());
+    assertEquals(3L, cells.get(0).parseValue());
+    assertEquals((DAY + 600) * 1000, cells.get(1).timestamp(DAY));
+    assertEquals(4L, cells.get(1).parseValue());
+  }
+
+  @Test
+  public void toDataRowsRange() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(cell(RollupInterval.MAX, DAY, 1L));
+    row.add(cell(RollupInterval.MAX, DAY + 3600, 2L));
+    row.add(cell(RollupInterval.MAX, DAY + 7200, 3L));
+    final List<KeyValue> rows = plan("1h-max").toDataRows(row, DAY + 3600,
+        DAY + 7200);
+    assertEquals(1, rows.size());
+    assertEquals(2L,
+        Internal.extractDataPoints(rows.get(0)).get(0).parseValue());
+  }
+
+  @Test
+  public void toDataRowsAvg() throws Exception {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>();
+    row.add(cell(RollupInterval.SUM, DAY, 10L));
+    row.add(cell(RollupInterval.SUM, DAY + 3600, 5L));
+    row.add(cell(RollupInterval.SUM, DAY + 7200, 3.0));
+    row.add(cell(RollupInterval.COUNT, DAY, 2L));
+    row.add(cell(RollupInterval.COUNT, DAY + 3600, 2L));
+    row.add(cell(RollupInterval.COUNT, DAY + 7200, 2L));
+
+    final List<KeyValue> rows = plan("2h-avg").toDataRows(row, DAY,
+        DAY + 86400);
+    assertEquals(2, rows.size());
+    assertEquals(3.75,
+        Internal.extractDataPoints(rows.get(0)).get(0).parseValue());
+    assertEquals(1.5,
+        Internal.extractDataPoints(rows.get(1)).get(0).parseValue());
+  }
+
+  @Test
+  public void watermark() throws Exception {
+    markers(DAY, DAY + 9000);
+    // aligned on the raw rows
+    assertEquals(DAY + 7200, plan("1h-sum").getWatermark());
+    // and on the buckets, 3 hours for 90 minutes
+    markers(DAY, DAY + 4 * 10800 + 9000);
+    assertEquals(DAY + 4 * 10800, plan("90m-sum").getWatermark());
+  }
+
+  @Test
+  public void planWithinCompletedRange() throws Exception {
+    // the range starts after the query
+    markers(DAY + 3600, DAY + 86400);
+    assertNull(plan("1h-sum"));
+    // nothing complete past the first aligned watermark
+    markers(DAY, DAY + 9000);
+    assertNull(plan("90m-sum"));
+    // or no marker at all
+    markers(new ArrayList<KeyValue>());
+    assertNull(rollups.getCompleted(hourly));
+    assertNull(plan("1h-sum"));
+  }
+
+  @Test
+  public void planFinerCompletedInterval() throws Exception {
+    // the daily table was never filled
+    final RollupInterval daily = rollups.getInterval("1d");
+    when(client.get(any(GetRequest.class))).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        final GetRequest get = (GetRequest) invocation.getArguments()[0];
+        return Deferred.fromResult(
+            Bytes.equals(daily.getTable(), get.table())
+            ? new ArrayList<KeyValue>() : marker(DAY, DAY + 3 * 86400));
+      }
+    });
+    rollups.loadMarkers(client).joinUninterruptibly();
+    assertSame(hourly, plan("2d-sum").getInterval());
+    assertEquals(DAY + 2 * 86400, plan("2d-sum").getWatermark());
+  }
+
+  @Test
+  public void loadMarkersKeepsRangeOnError() throws Exception {
+    when(client.get(any(GetRequest.class))).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        return Deferred.fromError(new RuntimeException("Boo!"));
+      }
+    });
+    rollups.loadMarkers(client).joinUninterruptibly();
+    assertArrayEquals(new long[] { DAY - 86400, DAY + 2 * 86400 },
+        rollups.getCompleted(hourly));
+  }
+
+  @Test
+  public void loadMarkersInvalid() throws Exception {
+    markers(DAY, DAY);
+    assertNull(rollups.getCompleted(hourly));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadRefreshInterval() throws Exception {
+    config.overrideConfig("tsd.rollups.refresh_interval", "0");
+    new RollupConfig(config);
+  }
+
+  @Test
+  public void rawRowCount() throws Exception {
+    final byte[] qualifier = MockBase.concatByteArrays(
+        Internal.buildQualifier(DAY, (short) 7),
+        Internal.buildQualifier(DAY * 1000 + 10500, 
+            (short) (Const.FLAG_FLOAT | 3)),
+        Internal.buildQualifier(DAY + 20, (short) 0));
+    final byte[] value = MockBase.concatByteArrays(Bytes.fromLong(42),
+        Bytes.fromInt(Float.floatToRawIntBits(1.5f)), new byte[] { 5 },
+        new byte[] { Const.MS_MIXED_COMPACT });
+    final KeyValue row = new KeyValue(KEY, TSDB.FAMILY(), qualifier, 0, value);
+
+    final KeyValue counted = plan("1h-count").rawRow(row);
+    final ArrayList<Cell> cells = Internal.extractDataPoints(counted);
+    assertEquals(3, cells.size());
+    assertEquals(DAY, cells.get(0).absoluteTimestamp(DAY));
+    assertEquals(DAY * 1000 + 10500, cells.get(1).absoluteTimestamp(DAY));
+    assertEquals(DAY + 20, cells.get(2).absoluteTimestamp(DAY));
+    for (final Cell cell : cells) {
+      assertEquals(1L, cell.parseValue());
+    }
+    // other aggregates keep the raw values
+    assertSame(row, plan("1h-sum").rawRow(row));
+  }
+
+  private RollupQuery plan(final String downsampler) {
+    return rollups.plan(new DownsamplingSpecification(downsampler), false,
+        false, DAY);
+  }
+
+  /** Loads the same completed range for every interval */
+  private void markers(final long start, final long end) throws Exception {
+    markers(marker(start, end));
+  }
+
+  /** Loads the same marker row for every interval */
+  private void markers(final ArrayList<KeyValue> row) throws Exception {
+    when(client.get(any(GetRequest.class))).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+      @Override
+      public Deferred<ArrayList<KeyValue>> answer(
+          final InvocationOnMock invocation) throws Throwable {
+        return Deferred.fromResult(row);
+      }
+    });
+    rollups.loadMarkers(client).joinUninterruptibly();
+  }
+
+  /** @return A marker row with the given completed range */
+  private static ArrayList<KeyValue> marker(final long start, final long end) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(2);
+    row.add(new KeyValue(RollupInterval.MARKER_KEY, TSDB.FAMILY(),
+        RollupInterval.MARKER_START, Bytes.fromLong(start)));
+    row.add(new KeyValue(RollupInterval.MARKER_KEY, TSDB.FAMILY(),
+        RollupInterval.MARKER_END, Bytes.fromLong(end)));
+    return row;
+  }
+
+  private KeyValue cell(final byte aggregate, final long timestamp,
+      final Number value) {
+    return cell(hourly, aggregate, timestamp, value);
+  }
+
+  private static KeyValue cell(final RollupInterval interval,
+      final byte aggregate, final long timestamp, final Number value) {
+    final boolean is_integer = value instanceof Long;
+    final byte[] key = KEY.clone();
+    Internal.setBaseTime(key, (int) interval.rowBaseTime(timestamp));
+    return new KeyValue(key, TSDB.FAMILY(), interval.qualifier(aggregate,
+        timestamp, is_integer), 0, Bytes.fromLong(is_integer
+        ? value.longValue() : Double.doubleToRawLongBits(value.doubleValue())));
+  }
+}
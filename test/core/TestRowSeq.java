@@ -103,6 +103,48 @@ public final class TestRowSeq {
     assertEquals(2, rs.size());
   }
   
+  @Test
+  public void setRowCompressed() throws Exception {
+    final byte[] qual12 = MockBase.concatByteArrays(new byte[] { 0x00, 0x07 }, 
+        new byte[] { 0x00, 0x27 });
+    final KeyValue kv = makekv(KEY, CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(qual12, MockBase.concatByteArrays(
+            Bytes.fromLong(4L), Bytes.fromLong(5L), ZERO)));
+    
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(kv);
+    assertEquals(2, rs.size());
+    assertEquals(1356998400000L, rs.timestamp(0));
+    assertEquals(4, rs.longValue(0));
+    assertEquals(1356998402000L, rs.timestamp(1));
+    assertEquals(5, rs.longValue(1));
+  }
+  
+  @Test
+  public void addRowCompressed() throws Exception {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+    final RowSeq rs = new RowSeq(tsdb);
+    rs.setRow(makekv(KEY, qual12, MockBase.concatByteArrays(val1, val2, ZERO)));
+    
+    final byte[] qual34 = MockBase.concatByteArrays(new byte[] { 0x00, 0x17 }, 
+        new byte[] { 0x00, 0x37 });
+    rs.addRow(makekv(KEY, CompressedDataPoints.QUALIFIER, 
+        CompressedDataPoints.encode(qual34, MockBase.concatByteArrays(
+            Bytes.fromLong(6L), Bytes.fromLong(7L), ZERO))));
+    
+    assertEquals(4, rs.size());
+    assertEquals(4, rs.longValue(0));
+    assertEquals(1356998401000L, rs.timestamp(1));
+    assertEquals(6, rs.longValue(1));
+    assertEquals(5, rs.longValue(2));
+    assertEquals(1356998403000L, rs.timestamp(3));
+    assertEquals(7, rs.longValue(3));
+  }
+  
   @Test (expected = IllegalStateException.class)
   public void setRowAlreadySet() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
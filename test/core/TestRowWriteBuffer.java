@@ -0,0 +1,154 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TestRowWriteBuffer {
+  private static final byte[] QUAL1 = { 0x00, 0x07 };
+  private static final byte[] QUAL2 = { 0x00, 0x17 };
+
+  private long base_time;
+  private byte[] row;
+  private RowWriteBuffer buffer;
+
+  @Before
+  public void before() throws Exception {
+    final long now = System.currentTimeMillis() / 1000;
+    // the next hour so the row is never older than the buffer
+    base_time = now - (now % Const.MAX_TIMESPAN) + Const.MAX_TIMESPAN;
+    row = makeRow(base_time);
+    buffer = new RowWriteBuffer(1024 * 1024);
+  }
+
+  @Test
+  public void addRemove() throws Exception {
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    buffer.add(row, base_time, QUAL2, new byte[] { 2 });
+    assertEquals(1, buffer.size());
+    assertEquals(
+        RowWriteBuffer.ROW_OVERHEAD + row.length + (2 + 2 + 8) + (2 + 2 + 1),
+        buffer.memoryUsage());
+
+    final ArrayList<KeyValue> kvs = buffer.remove(row);
+    assertEquals(2, kvs.size());
+    assertArrayEquals(row, kvs.get(0).key());
+    assertArrayEquals(TSDB.FAMILY(), kvs.get(0).family());
+    assertArrayEquals(QUAL1, kvs.get(0).qualifier());
+    assertArrayEquals(Bytes.fromLong(1), kvs.get(0).value());
+    assertArrayEquals(QUAL2, kvs.get(1).qualifier());
+    assertArrayEquals(new byte[] { 2 }, kvs.get(1).value());
+    // later writes must win on duplicates
+    assertEquals(0, kvs.get(0).timestamp());
+    assertEquals(1, kvs.get(1).timestamp());
+    assertEquals(0, buffer.size());
+    assertEquals(0, buffer.memoryUsage());
+  }
+
+  @Test
+  public void addOverwrite() throws Exception {
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    buffer.add(row, base_time, QUAL2, new byte[] { 2 });
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(3));
+    assertEquals(
+        RowWriteBuffer.ROW_OVERHEAD + row.length + (2 + 2 + 1) + (2 + 2 + 8),
+        buffer.memoryUsage());
+
+    final ArrayList<KeyValue> kvs = buffer.remove(row);
+    assertEquals(2, kvs.size());
+    assertArrayEquals(QUAL2, kvs.get(0).qualifier());
+    assertArrayEquals(new byte[] { 2 }, kvs.get(0).value());
+    assertArrayEquals(QUAL1, kvs.get(1).qualifier());
+    assertArrayEquals(Bytes.fromLong(3), kvs.get(1).value());
+    assertEquals(0, buffer.memoryUsage());
+  }
+
+  @Test
+  public void removeMissing() throws Exception {
+    assertNull(buffer.remove(row));
+  }
+
+  @Test
+  public void removeTwice() throws Exception {
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    assertEquals(1, buffer.remove(row).size());
+    assertNull(buffer.remove(row));
+  }
+
+  @Test
+  public void rowOlderThanBuffer() throws Exception {
+    final long old_time = base_time - 2 * Const.MAX_TIMESPAN;
+    final byte[] old_row = makeRow(old_time);
+    buffer.add(old_row, old_time, QUAL1, Bytes.fromLong(1));
+    assertEquals(1, buffer.size());
+    assertEquals(RowWriteBuffer.ROW_OVERHEAD + old_row.length,
+        buffer.memoryUsage());
+    assertNull(buffer.remove(old_row));
+    assertEquals(0, buffer.memoryUsage());
+  }
+
+  @Test
+  public void invalidate() throws Exception {
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    buffer.invalidate(row);
+    // later cells aren't kept either
+    buffer.add(row, base_time, QUAL2, Bytes.fromLong(2));
+    assertEquals(RowWriteBuffer.ROW_OVERHEAD + row.length,
+        buffer.memoryUsage());
+    assertNull(buffer.remove(row));
+  }
+
+  @Test
+  public void invalidateNewRow() throws Exception {
+    buffer.invalidate(row);
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    assertNull(buffer.remove(row));
+  }
+
+  @Test
+  public void evictWhenFull() throws Exception {
+    buffer = new RowWriteBuffer(RowWriteBuffer.ROW_OVERHEAD * 2 + 64);
+    final byte[] row2 = makeRow(base_time);
+    row2[row2.length - 1] = 2;
+    buffer.add(row, base_time, QUAL1, Bytes.fromLong(1));
+    buffer.add(row2, base_time, QUAL1, Bytes.fromLong(1));
+    for (int i = 0; i < 10; i++) {
+      buffer.add(row2, base_time, new byte[] { 0, (byte) ((i + 2) << 4 | 7) },
+          Bytes.fromLong(i));
+    }
+    // the row that didn't fit is read back, the other one isn't affected
+    assertNull(buffer.remove(row2));
+    assertEquals(1, buffer.remove(row).size());
+    assertEquals(0, buffer.memoryUsage());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadMemory() throws Exception {
+    new RowWriteBuffer(0);
+  }
+
+  private static byte[] makeRow(final long base_time) {
+    final byte[] row = { 0, 0, 1, 0, 0, 0, 0, 0, 0, 1, 0, 0, 1 };
+    Bytes.setInt(row, (int) base_time, 3);
+    return row;
+  }
+}
@@ -31,10 +31,13 @@ import java.util.List;
 import java.util.TreeMap;
 
 import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
 import net.opentsdb.uid.UniqueId;
 
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -370,6 +373,63 @@ public class TestSaltScanner extends BaseTsdbTest {
     }
   }
   
+  @Test
+  public void scanWithinBudget() throws Exception {
+    setupMockScanners(false);
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    scanner.setReservation(reservation);
+    assertTrue(spans == scanner.scan().joinUninterruptibly());
+    assertEquals(3, spans.size());
+    assertTrue(reservation.held() > 0);
+    assertEquals(reservation.held(), budget.used());
+  }
+  
+  @Test
+  public void scanOverBudget() throws Exception {
+    setupMockScanners(false);
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "128");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters);
+    scanner.setReservation(reservation);
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertTrue(spans.isEmpty());
+    assertTrue(reservation.held() <= 128);
+    verify(scanner_a, atLeast(1)).close();
+    verify(scanner_b, atLeast(1)).close();
+  }
+  
+  @Test
+  public void scanCancelled() throws Exception {
+    setupMockScanners(false);
+    final QueryStats query_stats = mock(QueryStats.class);
+    when(query_stats.isCancelled()).thenReturn(true);
+    doThrow(new QueryException(QueryStats.CLIENT_CLOSED_REQUEST, "Cancelled"))
+      .when(query_stats).checkCancelled();
+    final SaltScanner scanner = new SaltScanner(tsdb, METRIC_BYTES, scanners, 
+        spans, filters, false, query_stats, 0);
+    try {
+      scanner.scan().joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, e.getStatus());
+    }
+    assertTrue(spans.isEmpty());
+    verify(scanner_a).close();
+    verify(scanner_b).close();
+    verify(query_stats).addScannerStat(0, 0, QueryStat.CANCELLED_SCAN, 1);
+    verify(query_stats).addScannerStat(0, 1, QueryStat.CANCELLED_SCAN, 1);
+  }
+  
   @Test (expected = IllegalDataException.class)
   public void scanBadRowKey() throws Exception {
     setupMockScanners(false);
@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import net.opentsdb.uid.NoSuchUniqueName;
+
+import com.stumbleupon.async.Deferred;
+
+public class TestSeriesKeyCache extends BaseTsdbTest {
+  private static final byte[] ROW = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2,
+      0x27, 0, 0, 0, 1, 0, 0, 1};
+
+  private SeriesKeyCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    cache = new SeriesKeyCache(tsdb);
+    Whitebox.setInternalState(tsdb, "series_cache", cache);
+  }
+
+  @Test
+  public void rowKeyTemplateCached() throws Exception {
+    final byte[] first = cache.rowKeyTemplate(METRIC_STRING, tags);
+    final byte[] second = cache.rowKeyTemplate(METRIC_STRING, tags);
+    assertArrayEquals(first, second);
+    assertNotSame(first, second);
+    assertEquals(1, cache.size());
+    verify(metrics, times(1)).getOrCreateId(METRIC_STRING);
+  }
+
+  @Test
+  public void rowKeyTemplateCopyNotShared() throws Exception {
+    final byte[] first = cache.rowKeyTemplate(METRIC_STRING, tags);
+    first[first.length - 1] = 42;
+    final byte[] second = cache.rowKeyTemplate(METRIC_STRING, tags);
+    assertEquals(1, second[second.length - 1]);
+  }
+
+  @Test
+  public void rowKeyTemplateNSUNNotCached() throws Exception {
+    config.setAutoMetric(false);
+    try {
+      cache.rowKeyTemplate(NSUN_METRIC, tags);
+      fail("Expected a NoSuchUniqueName");
+    } catch (NoSuchUniqueName e) { }
+    assertEquals(0, cache.size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void rowKeyTemplateInvalidMetric() throws Exception {
+    cache.rowKeyTemplate("bad metric!", tags);
+  }
+
+  @Test
+  public void addPointWithCache() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags).joinUninterruptibly();
+    tsdb.addPoint(METRIC_STRING, 1356998430, 24, tags).joinUninterruptibly();
+    // next hour
+    tsdb.addPoint(METRIC_STRING, 1357002000, 1, tags).joinUninterruptibly();
+    assertEquals(42, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(ROW, new byte[] { 1, -32 })[0]);
+    assertEquals(1, storage.getColumn(new byte[] { 0, 0, 1, 0x50, (byte) 0xE2,
+        0x35, 0x10, 0, 0, 1, 0, 0, 1}, new byte[] { 0, 0 })[0]);
+    verify(metrics, times(1)).getOrCreateId(METRIC_STRING);
+  }
+
+  @Test
+  public void invalidateAll() throws Exception {
+    cache.rowKeyTemplate(METRIC_STRING, tags);
+    tsdb.dropCaches();
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void rowKeyTemplateCallerMapChanged() throws Exception {
+    final Map<String, String> reused = new HashMap<String, String>(tags);
+    final byte[] first = cache.rowKeyTemplate(METRIC_STRING, reused);
+    reused.put("host", "web02");
+    // the cached series still has the old tags
+    assertArrayEquals(first, cache.rowKeyTemplate(METRIC_STRING, tags));
+    verify(tag_values, times(1)).getOrCreateId("web01");
+  }
+
+  @Test
+  public void deleteUidInvalidatesOnCompletion() throws Exception {
+    final Deferred<Object> delete = new Deferred<Object>();
+    when(metrics.deleteAsync(METRIC_STRING)).thenReturn(delete);
+    cache.rowKeyTemplate(METRIC_STRING, tags);
+    final Deferred<Object> result = tsdb.deleteUidAsync("metric", 
+        METRIC_STRING);
+    // a put racing with the delete could cache the UID again
+    assertEquals(1, cache.size());
+    delete.callback(null);
+    assertNull(result.join());
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void keyTagOrder() throws Exception {
+    final Map<String, String> a = new LinkedHashMap<String, String>();
+    a.put("host", "web01");
+    a.put("dc", "lga");
+    a.put("owner", "ops");
+    final Map<String, String> b = new LinkedHashMap<String, String>();
+    b.put("owner", "ops");
+    b.put("host", "web01");
+    b.put("dc", "lga");
+    assertEquals(new SeriesKeyCache.SeriesKey(METRIC_STRING, a),
+        new SeriesKeyCache.SeriesKey(METRIC_STRING, b));
+    assertEquals(new SeriesKeyCache.SeriesKey(METRIC_STRING, a).hashCode(),
+        new SeriesKeyCache.SeriesKey(METRIC_STRING, b).hashCode());
+  }
+
+  @Test
+  public void keyNoCollisions() throws Exception {
+    final Map<String, String> a = new HashMap<String, String>();
+    a.put("ab", "c");
+    final Map<String, String> b = new HashMap<String, String>();
+    b.put("a", "bc");
+    assertFalse(new SeriesKeyCache.SeriesKey("m", a).equals(
+        new SeriesKeyCache.SeriesKey("m", b)));
+    assertFalse(new SeriesKeyCache.SeriesKey("m1", b).equals(
+        new SeriesKeyCache.SeriesKey("m", a)));
+    assertFalse(new SeriesKeyCache.SeriesKey(null, a).equals(
+        new SeriesKeyCache.SeriesKey("m", a)));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadSize() throws Exception {
+    config.overrideConfig("tsd.core.series_key_cache.max_size", "0");
+    new SeriesKeyCache(tsdb);
+  }
+}
@@ -124,6 +124,50 @@ public void failme() {
     final Span span = new Span(tsdb);
     span.addRow(null);
   }
+
+  @Test
+  public void addSpan() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    final Span later = new Span(tsdb);
+    later.addRow(new KeyValue(HOUR2, FAMILY, qual1, val1));
+    span.addSpan(later);
+    span.addSpan(new Span(tsdb));
+
+    assertEquals(3, span.size());
+    assertEquals(1356998400000L, span.timestamp(0));
+    assertEquals(1356998402000L, span.timestamp(1));
+    assertEquals(1357002000000L, span.timestamp(2));
+    assertEquals(4, span.longValue(2));
+    assertEquals(1, later.size());
+
+    // an empty span takes the other's points and key
+    final Span empty = new Span(tsdb);
+    empty.addSpan(span);
+    assertEquals(3, empty.size());
+    assertEquals(1357002000000L, empty.timestamp(2));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void addSpanOtherSeries() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] other = HOUR1.clone();
+    other[other.length - 1] = 9;
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual1, val1));
+    final Span other_span = new Span(tsdb);
+    other_span.addRow(new KeyValue(other, FAMILY, qual1, val1));
+    span.addSpan(other_span);
+  }
   
   @Test (expected = IllegalArgumentException.class)
   public void addRowBadKeyLength() {
@@ -222,6 +266,111 @@ public void failme() {
     assertEquals(5, span.longValue(3));
   }
 
+  @Test
+  public void addRowOverlapping() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] qual3 = { 0x00, 0x47 };
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY,
+        MockBase.concatByteArrays(qual1, qual3), MockBase.concatByteArrays(
+            Bytes.fromLong(1L), Bytes.fromLong(3L), ZERO)));
+    span.addRow(new KeyValue(HOUR1, FAMILY,
+        MockBase.concatByteArrays(qual2, qual3), MockBase.concatByteArrays(
+            Bytes.fromLong(2L), Bytes.fromLong(42L), ZERO)));
+
+    // the duplicate of the row added first wins
+    assertEquals(3, span.size());
+    assertEquals(1356998402000L, span.timestamp(1));
+    assertEquals(2, span.longValue(1));
+    assertEquals(1356998404000L, span.timestamp(2));
+    assertEquals(3, span.longValue(2));
+  }
+
+  @Test
+  public void mixedTypes() {
+    final Span span = new Span(tsdb);
+    // more points than a word of the float bitmap, every third a float
+    final byte[] qualifiers = new byte[100 * 2];
+    final byte[] values = new byte[100 * 8 + 1];
+    for (int i = 0; i < 100; i++) {
+      final boolean is_float = i % 3 == 0;
+      System.arraycopy(Internal.buildQualifier(1356998400L + i,
+          (short) (is_float ? Const.FLAG_FLOAT | 0x7 : 0x7)), 0,
+          qualifiers, i * 2, 2);
+      Bytes.setLong(values, is_float
+          ? Double.doubleToRawLongBits(i + 0.5) : i, i * 8);
+    }
+    span.addRow(new KeyValue(HOUR1, FAMILY, qualifiers, values));
+
+    assertEquals(100, span.size());
+    final SeekableView it = span.iterator();
+    for (int i = 0; i < 100; i++) {
+      final DataPoint dp = it.next();
+      assertEquals((1356998400L + i) * 1000, dp.timestamp());
+      if (i % 3 == 0) {
+        assertFalse(dp.isInteger());
+        assertEquals(i + 0.5, dp.doubleValue(), 0.0001);
+        assertEquals(i + 0.5, span.doubleValue(i), 0.0001);
+      } else {
+        assertTrue(dp.isInteger());
+        assertEquals(i, dp.longValue());
+        assertEquals(i, span.longValue(i));
+      }
+    }
+    assertFalse(it.hasNext());
+  }
+
+  @Test (expected = ClassCastException.class)
+  public void longValueOfFloat() {
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, new byte[] { 0x00, 0x0F },
+        Bytes.fromLong(Double.doubleToRawLongBits(4.5))));
+    span.longValue(0);
+  }
+
+  @Test (expected = IndexOutOfBoundsException.class)
+  public void timestampOutOfBounds() {
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, new byte[] { 0x00, 0x07 },
+        Bytes.fromLong(4L)));
+    span.timestamp(1);
+  }
+
+  @Test
+  public void seek() {
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    final byte[] qual2 = { 0x00, 0x27 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    final byte[] qual12 = MockBase.concatByteArrays(qual1, qual2);
+
+    final Span span = new Span(tsdb);
+    span.addRow(new KeyValue(HOUR1, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+    span.addRow(new KeyValue(HOUR2, FAMILY, qual12,
+        MockBase.concatByteArrays(val1, val2, ZERO)));
+
+    final SeekableView it = span.iterator();
+    it.seek(1356998401000L);
+    assertEquals(1356998402000L, it.next().timestamp());
+    it.seek(1357002000000L);
+    assertEquals(1357002000000L, it.next().timestamp());
+    // seeking backwards rewinds
+    it.seek(1356998400000L);
+    assertEquals(1356998400000L, it.next().timestamp());
+    it.seek(1357002003000L);
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void emptySpan() {
+    final Span span = new Span(tsdb);
+    assertEquals(0, span.size());
+    assertFalse(span.iterator().hasNext());
+  }
+
   @Test
   public void timestampNormalized() throws Exception {
     final byte[] qual1 = { 0x00, 0x07 };
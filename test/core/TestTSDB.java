@@ -67,6 +67,18 @@ public final class TestTSDB extends BaseTsdbTest {
     new TSDB(client, null);
   }
   
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorZeroIdBlockSize() throws Exception {
+    config.overrideConfig("tsd.core.uid.id_block_size", "0");
+    new TSDB(client, config);
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNegativeIdBlockSize() throws Exception {
+    config.overrideConfig("tsd.core.uid.id_block_size", "-1");
+    new TSDB(client, config);
+  }
+  
   @Test
   public void ctorOverrideUIDWidths() throws Exception {
     // assert defaults
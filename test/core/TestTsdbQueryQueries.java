@@ -29,6 +29,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.storage.MockBase;
 import net.opentsdb.storage.MockBase.MockScanner;
 import net.opentsdb.uid.NoSuchUniqueId;
@@ -37,6 +38,7 @@ import net.opentsdb.utils.Config;
 import org.hbase.async.Bytes;
 import org.hbase.async.FilterList;
 import org.hbase.async.Scanner;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -119,6 +121,69 @@ public class TestTsdbQueryQueries extends BaseTsdbTest {
     assertEquals(0, dps.length);
   }
   
+  @Test
+  public void runLongSingleTSWithinBudget() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    when(tsdb.getQueryMemoryBudget()).thenReturn(budget);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(300, dps[0].aggregatedSize());
+    // the rows are handed back once the query completed
+    assertEquals(0, budget.used());
+  }
+  
+  @Test
+  public void runLongSingleTSHeldUntilReleased() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    when(tsdb.getQueryMemoryBudget()).thenReturn(budget);
+    final TSQuery ts_query = new TSQuery();
+    ts_query.setStart("1356998400");
+    final QueryStats stats = 
+        new QueryStats("192.168.1.1:4242", ts_query, null);
+    final Field query_stats = TsdbQuery.class.getDeclaredField("query_stats");
+    query_stats.setAccessible(true);
+    query_stats.set(query, stats);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    final DataPoints[] dps = query.run();
+    assertEquals(300, dps[0].aggregatedSize());
+    // the spans are referenced until the last callback of the query
+    assertTrue(budget.used() > 0);
+    stats.markSerializationSuccessful();
+    assertTrue(budget.used() > 0);
+    stats.releaseReservations();
+    assertEquals(0, budget.used());
+  }
+  
+  @Test
+  public void runLongSingleTSOverBudget() throws Exception {
+    storeLongTimeSeriesSeconds(true, false);
+    config.overrideConfig("tsd.query.limits.bytes.per_query", "1024");
+    final QueryMemoryBudget budget = new QueryMemoryBudget(config);
+    when(tsdb.getQueryMemoryBudget()).thenReturn(budget);
+
+    query.setStartTime(1356998400);
+    query.setEndTime(1357041600);
+    query.setTimeSeries(METRIC_STRING, tags, Aggregators.SUM, false);
+
+    try {
+      query.run();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE, e.getStatus());
+    }
+    assertEquals(0, budget.used());
+  }
+  
   @Test
   public void runLongTwoAggSum() throws Exception {
     storeLongTimeSeriesSeconds(true, false);
@@ -0,0 +1,136 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.HashMap;
+
+import org.hbase.async.PutRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+public class TestWriteCoalescer extends BaseTsdbTest {
+  private static final byte[] ROW = new byte[] { 0, 0, 1, 0x50, (byte) 0xE2,
+      0x27, 0, 0, 0, 1, 0, 0, 1};
+
+  private WriteCoalescer coalescer;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    coalescer = new WriteCoalescer(tsdb);
+    Whitebox.setInternalState(tsdb, "coalescer", coalescer);
+  }
+
+  @Test
+  public void addPointsSameRow() throws Exception {
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    final Deferred<Object> d2 = tsdb.addPoint(METRIC_STRING, 1356998430, 24, tags);
+    assertEquals(0, storage.numRows());
+
+    coalescer.flush().joinUninterruptibly();
+    assertNull(d1.joinUninterruptibly());
+    assertNull(d2.joinUninterruptibly());
+
+    assertEquals(42, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+    assertEquals(24, storage.getColumn(ROW, new byte[] { 1, -32 })[0]);
+    verify(client, times(1)).put((PutRequest) any());
+  }
+
+  @Test
+  public void addPointsDifferentRows() throws Exception {
+    final HashMap<String, String> tags_b = new HashMap<String, String>(1);
+    tags_b.put(TAGK_STRING, TAGV_B_STRING);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 24, tags_b);
+
+    coalescer.flush().joinUninterruptibly();
+    assertEquals(2, storage.numRows());
+    verify(client, times(2)).put((PutRequest) any());
+  }
+
+  @Test
+  public void addPointDuplicateQualifierKeepsNewest() throws Exception {
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998400, 24, tags);
+
+    coalescer.flush().joinUninterruptibly();
+    assertEquals(1, storage.numColumns(ROW));
+    assertEquals(24, storage.getColumn(ROW, new byte[] { 0, 0 })[0]);
+  }
+
+  @Test
+  public void addPointMaxPointsFlushes() throws Exception {
+    config.overrideConfig("tsd.storage.coalesce.max_points", "2");
+    coalescer = new WriteCoalescer(tsdb);
+    Whitebox.setInternalState(tsdb, "coalescer", coalescer);
+
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    assertEquals(0, storage.numRows());
+    tsdb.addPoint(METRIC_STRING, 1356998430, 24, tags);
+    assertNull(d1.joinUninterruptibly());
+    assertNotNull(storage.getColumn(ROW, new byte[] { 1, -32 }));
+  }
+
+  @Test
+  public void addPointAppend() throws Exception {
+    Whitebox.setInternalState(config, "enable_appends", true);
+
+    tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998430, 24, tags);
+    tsdb.addPoint(METRIC_STRING, 1356998460, 1, tags);
+    coalescer.flush().joinUninterruptibly();
+
+    final byte[] value = storage.getColumn(ROW,
+        AppendDataPoints.APPEND_COLUMN_QUALIFIER);
+    assertArrayEquals(new byte[] { 0, 0, 42, 1, -32, 24, 3, -64, 1 }, value);
+  }
+
+  @Test
+  public void addPointErrorPropagates() throws Exception {
+    final RuntimeException ex = new RuntimeException("Boo!");
+    storage.throwException(ROW, ex, true);
+    final Deferred<Object> d1 = tsdb.addPoint(METRIC_STRING, 1356998400, 42, tags);
+
+    coalescer.flush();
+    try {
+      d1.joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(e == ex);
+    }
+  }
+
+  @Test
+  public void flushEmpty() throws Exception {
+    assertEquals(0, coalescer.flush().joinUninterruptibly().size());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadWindow() throws Exception {
+    config.overrideConfig("tsd.storage.coalesce.window_ms", "0");
+    new WriteCoalescer(tsdb);
+  }
+}
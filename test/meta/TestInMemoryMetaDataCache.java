@@ -0,0 +1,199 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.meta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.Whitebox;
+
+import com.stumbleupon.async.Deferred;
+
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  HashedWheelTimer.class, Scanner.class, Const.class, GetRequest.class,
+  PutRequest.class, KeyValue.class, AtomicIncrementRequest.class,
+  TSMeta.class })
+public class TestInMemoryMetaDataCache extends BaseTsdbTest {
+  private static final byte[] META_TABLE =
+      "tsdb-meta".getBytes(MockBase.ASCII());
+  private static final byte[] TSUID = new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] TSUID_B =
+      new byte[] { 0, 0, 1, 0, 0, 1, 0, 0, 2 };
+
+  private InMemoryMetaDataCache cache;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    setDataPointStorage();
+    final List<byte[]> families = new ArrayList<byte[]>();
+    families.add(TSMeta.FAMILY());
+    storage.addTable(META_TABLE, families);
+    Whitebox.setInternalState(config, "enable_tsuid_tracking", true);
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", true);
+    cache = new InMemoryMetaDataCache();
+    cache.open(tsdb);
+  }
+
+  @Test
+  public void flushIncrementsByDelta() throws Exception {
+    cache.increment(TSUID);
+    cache.increment(TSUID);
+    cache.increment(TSUID);
+    cache.increment(TSUID_B);
+    assertNull(counter(TSUID));
+    cache.flush().join();
+    assertEquals(3, (long) counter(TSUID));
+    assertEquals(1, (long) counter(TSUID_B));
+
+    // nothing new, nothing written
+    cache.flush().join();
+    assertEquals(3, (long) counter(TSUID));
+    cache.increment(TSUID);
+    cache.flush().join();
+    assertEquals(4, (long) counter(TSUID));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void flushManySeries() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      final byte[] tsuid = new byte[] { 0, 0, 1, 0, 0, 1, 0, 
+          (byte) (i >> 8), (byte) i };
+      cache.increment(tsuid);
+      cache.increment(tsuid);
+    }
+    assertEquals(2000, cache.size());
+    cache.flush().join();
+    for (int i = 0; i < 2000; i++) {
+      assertEquals(2, (long) counter(new byte[] { 0, 0, 1, 0, 0, 1, 0, 
+          (byte) (i >> 8), (byte) i }));
+    }
+  }
+
+  @Test
+  public void flushTrackingOnly() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", false);
+    cache = new InMemoryMetaDataCache();
+    cache.open(tsdb);
+    cache.increment(TSUID);
+    cache.increment(TSUID);
+    cache.flush().join();
+    assertEquals(1, (long) counter(TSUID));
+  }
+
+  @Test
+  public void trackingDisabled() throws Exception {
+    Whitebox.setInternalState(config, "enable_tsuid_tracking", false);
+    cache = new InMemoryMetaDataCache();
+    cache.open(tsdb);
+    cache.increment(TSUID);
+    assertEquals(0, cache.size());
+    cache.flush().join();
+    assertNull(counter(TSUID));
+  }
+
+  @Test
+  public void flushCreatesMetaOnce() throws Exception {
+    Whitebox.setInternalState(config, "enable_realtime_ts", true);
+    cache = new InMemoryMetaDataCache();
+    cache.open(tsdb);
+    PowerMockito.spy(TSMeta.class);
+    PowerMockito.doReturn(Deferred.fromResult(true))
+      .when(TSMeta.class, "storeIfNecessary", tsdb, TSUID);
+    cache.increment(TSUID);
+    cache.flush().join();
+    cache.increment(TSUID);
+    cache.flush().join();
+    PowerMockito.verifyStatic(times(1));
+    TSMeta.storeIfNecessary(tsdb, TSUID);
+    assertEquals(2, (long) counter(TSUID));
+  }
+
+  @Test
+  public void flushFailureRetried() throws Exception {
+    storage.throwException(TSUID, new RuntimeException("Boo!"));
+    cache.increment(TSUID);
+    cache.increment(TSUID);
+    cache.flush().join();
+    storage.clearExceptions();
+    assertNull(counter(TSUID));
+    cache.increment(TSUID);
+    cache.flush().join();
+    assertEquals(3, (long) counter(TSUID));
+  }
+
+  @Test
+  public void idleSeriesExpire() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.max_idle_flushes", "1");
+    // overriding reloads the flags
+    Whitebox.setInternalState(config, "enable_tsuid_tracking", true);
+    Whitebox.setInternalState(config, "enable_tsuid_incrementing", true);
+    cache = new InMemoryMetaDataCache();
+    cache.open(tsdb);
+    cache.increment(TSUID);
+    cache.increment(TSUID_B);
+    cache.flush().join();
+    cache.increment(TSUID_B);
+    cache.flush().join();
+    assertEquals(2, cache.size());
+    cache.flush().join();
+    // TSUID was idle for two flushes
+    assertEquals(1, cache.size());
+    cache.increment(TSUID);
+    cache.flush().join();
+    assertEquals(2, (long) counter(TSUID));
+    assertEquals(2, (long) counter(TSUID_B));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void openBadStripes() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.stripes", "0");
+    new InMemoryMetaDataCache().open(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void openBadFlushInterval() throws Exception {
+    config.overrideConfig("tsd.core.meta.cache.flush_interval", "0");
+    new InMemoryMetaDataCache().open(tsdb);
+  }
+
+  /** @return The counter stored for the TSUID or null if missing. */
+  private Long counter(final byte[] tsuid) {
+    final byte[] value = storage.getColumn(META_TABLE, tsuid,
+        TSMeta.FAMILY(), TSMeta.COUNTER_QUALIFIER());
+    return value == null ? null : Bytes.getLong(value);
+  }
+}
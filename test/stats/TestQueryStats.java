@@ -30,8 +30,10 @@ import java.util.concurrent.ConcurrentHashMap;
 import com.google.common.cache.CacheBuilder;
 
 import net.opentsdb.core.QueryException;
+import net.opentsdb.core.QueryMemoryBudget;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
@@ -301,4 +303,76 @@ public final class TestQueryStats {
     assertEquals(1000.0, stats.getTimeStat(QueryStat.PROCESSING_PRE_WRITE_TIME), 0.001);
     assertEquals(Double.NaN, stats.getTimeStat(QueryStat.AVG_AGGREGATION_TIME), 0.001);
   }
+  
+  @Test
+  public void cancel() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    assertFalse(stats.isCancelled());
+    stats.checkCancelled();
+    
+    stats.cancel();
+    assertTrue(stats.isCancelled());
+    assertEquals(1, stats.getStat(QueryStat.CANCELLED));
+    try {
+      stats.checkCancelled();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, e.getStatus());
+    }
+  }
+  
+  @Test
+  public void cancelAfterSerialized() throws Exception {
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    stats.markSerializationSuccessful();
+    // the connection closing after the response was written isn't a cancel
+    stats.cancel();
+    assertFalse(stats.isCancelled());
+    stats.checkCancelled();
+  }
+  
+  @Test
+  public void reservationReleased() throws Exception {
+    final QueryMemoryBudget budget = new QueryMemoryBudget(new Config(false));
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    reservation.reserve(1024);
+    stats.addReservation(reservation);
+    assertEquals(1024, budget.used());
+    
+    stats.releaseReservations();
+    assertEquals(0, budget.used());
+    stats.releaseReservations();
+    assertEquals(0, budget.used());
+    
+    // a late sub query is released right away
+    final QueryMemoryBudget.Reservation late = budget.newReservation();
+    late.reserve(512);
+    stats.addReservation(late);
+    assertEquals(0, budget.used());
+  }
+  
+  @Test
+  public void reservationHeldUntilReleased() throws Exception {
+    final QueryMemoryBudget budget = new QueryMemoryBudget(new Config(false));
+    final TSQuery query = new TSQuery();
+    query.setStart("1h-ago");
+    final QueryStats stats = new QueryStats(remote, query, headers);
+    final QueryMemoryBudget.Reservation reservation = budget.newReservation();
+    reservation.reserve(1024);
+    stats.addReservation(reservation);
+    
+    // the query's last callback releases it, not marking it serialized
+    stats.markSerialized(HttpResponseStatus.INTERNAL_SERVER_ERROR, 
+        new RuntimeException("Boo!"));
+    assertEquals(1024, budget.used());
+    stats.releaseReservations();
+    assertEquals(0, budget.used());
+  }
 }
@@ -26,6 +26,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
+import net.opentsdb.core.CompressedDataPoints;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
@@ -1497,6 +1498,42 @@ storage.dumpToSystemOut();
     assertEquals(-1, storage.numColumns(ROW));
   }
   
+  @Test
+  public void compressedOK() throws Exception {
+    final byte[] qual12 = MockBase.concatByteArrays(new byte[] { 0x0, 0x07 }, 
+        new byte[] { 0x0, 0x27 });
+    final byte[] compressed = CompressedDataPoints.encode(qual12, 
+        MockBase.concatByteArrays(Bytes.fromLong(4L), Bytes.fromLong(5L), 
+            new byte[] {0}));
+    storage.addColumn(ROW, CompressedDataPoints.QUALIFIER, compressed);
+    
+    final Fsck fsck = new Fsck(tsdb, options);
+    fsck.runFullTable();
+    assertEquals(1, fsck.kvs_processed.get());
+    assertEquals(1, fsck.compressed_columns.get());
+    assertEquals(2, fsck.valid_datapoints.get());
+    assertEquals(0, fsck.bad_compacted_columns.get());
+    assertEquals(0, fsck.future.get());
+    assertEquals(0, fsck.totalErrors());
+    assertArrayEquals(compressed, 
+        storage.getColumn(ROW, CompressedDataPoints.QUALIFIER));
+  }
+  
+  @Test
+  public void compressedCorruptFix() throws Exception {
+    when(options.fix()).thenReturn(true);
+    when(options.deleteBadCompacts()).thenReturn(true);
+    storage.addColumn(ROW, CompressedDataPoints.QUALIFIER, 
+        new byte[] { 0x01, 0x05, 0x00 });
+    
+    final Fsck fsck = new Fsck(tsdb, options);
+    fsck.runFullTable();
+    assertEquals(1, fsck.kvs_processed.get());
+    assertEquals(1, fsck.bad_compacted_columns.get());
+    assertEquals(1, fsck.bad_compacted_columns_deleted.get());
+    assertEquals(-1, storage.numColumns(ROW));
+  }
+  
   @Test
   public void appendOK() throws Exception {
     final byte[] qual1 = { 0x0, 0x07 };
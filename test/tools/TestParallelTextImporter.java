@@ -0,0 +1,217 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({TSDB.class, Config.class, UniqueId.class, HBaseClient.class,
+  GetRequest.class, PutRequest.class, KeyValue.class, Scanner.class})
+public final class TestParallelTextImporter {
+  private static final byte[] ROW_WEB01 = new byte[] { 0, 0, 1, 0x50,
+    (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 1 };
+  private static final byte[] ROW_WEB02 = new byte[] { 0, 0, 1, 0x50,
+    (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0, 2 };
+
+  private TSDB tsdb;
+  private HBaseClient client = mock(HBaseClient.class);
+  private UniqueId metrics = mock(UniqueId.class);
+  private UniqueId tag_names = mock(UniqueId.class);
+  private UniqueId tag_values = mock(UniqueId.class);
+  private MockBase storage;
+  private final List<File> files = new ArrayList<File>();
+
+  @Before
+  public void before() throws Exception {
+    tsdb = new TSDB(client, new Config(false));
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.setFamily("t".getBytes(MockBase.ASCII()));
+
+    Field met = tsdb.getClass().getDeclaredField("metrics");
+    met.setAccessible(true);
+    met.set(tsdb, metrics);
+    Field tagk = tsdb.getClass().getDeclaredField("tag_names");
+    tagk.setAccessible(true);
+    tagk.set(tsdb, tag_names);
+    Field tagv = tsdb.getClass().getDeclaredField("tag_values");
+    tagv.setAccessible(true);
+    tagv.set(tsdb, tag_values);
+
+    when(metrics.getId("sys.cpu.user")).thenReturn(new byte[] { 0, 0, 1 });
+    when(metrics.getId("sys.cpu.system"))
+      .thenThrow(new NoSuchUniqueName("sys.cpu.system", "metric"));
+    when(tag_names.getOrCreateId("host")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web01")).thenReturn(new byte[] { 0, 0, 1 });
+    when(tag_values.getOrCreateId("web02")).thenReturn(new byte[] { 0, 0, 2 });
+    when(metrics.width()).thenReturn((short)3);
+    when(tag_names.width()).thenReturn((short)3);
+    when(tag_values.width()).thenReturn((short)3);
+  }
+
+  @After
+  public void after() {
+    for (final File file : files) {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void importSortsAndCompacts() throws Exception {
+    final ParallelTextImporter importer =
+        new ParallelTextImporter(tsdb, 2, 1000, false);
+    final long points = importer.run(Arrays.asList(
+        write("sys.cpu.user 1356998460 2 host=web01\n" +
+              "sys.cpu.user 1356998400 1 host=web02\n", false),
+        write("sys.cpu.user 1356998400 1 host=web01\n" +
+              "sys.cpu.user 1356998460 2.5 host=web02\n", true)));
+    assertEquals(4, points);
+    assertEquals(4, importer.pointsWritten());
+    assertEquals(0, importer.buffered());
+
+    // one compacted column per row, in timestamp order
+    assertEquals(1, storage.numColumns(ROW_WEB01));
+    assertArrayEquals(new byte[] { 1, 2 },
+        storage.getColumn(ROW_WEB01, new byte[] { 0, 0, 3, (byte) 0xC0 }));
+    assertEquals(1, storage.numColumns(ROW_WEB02));
+    final byte[] value = storage.getColumn(ROW_WEB02,
+        new byte[] { 0, 0, 3, (byte) 0xCB });
+    assertEquals(1, value[0]);
+    assertEquals(2.5f, Float.intBitsToFloat(Bytes.getInt(value, 1)), 0.0001);
+  }
+
+  @Test
+  public void importLastDuplicateWins() throws Exception {
+    final ParallelTextImporter importer =
+        new ParallelTextImporter(tsdb, 1, 1000, false);
+    importer.run(Arrays.asList(write(
+        "sys.cpu.user 1356998400 1 host=web01\n" +
+        "sys.cpu.user 1356998400000 2 host=web01\n" +
+        "sys.cpu.user 1356998400 3 host=web01\n", false)));
+    assertEquals(2, importer.duplicates());
+    assertEquals(1, importer.pointsWritten());
+    assertArrayEquals(new byte[] { 3 },
+        storage.getColumn(ROW_WEB01, new byte[] { 0, 0 }));
+  }
+
+  @Test
+  public void importDuplicateTagOrder() throws Exception {
+    when(tag_names.getOrCreateId("dc")).thenReturn(new byte[] { 0, 0, 2 });
+    when(tag_values.getOrCreateId("lga")).thenReturn(new byte[] { 0, 0, 3 });
+    final ParallelTextImporter importer =
+        new ParallelTextImporter(tsdb, 1, 1000, false);
+    importer.run(Arrays.asList(write(
+        "sys.cpu.user 1356998400 1 host=web01 dc=lga\n" +
+        "sys.cpu.user 1356998400 2 dc=lga host=web01\n", false)));
+    assertEquals(1, importer.duplicates());
+    assertEquals(1, importer.pointsWritten());
+  }
+
+  @Test
+  public void importFlushesWhenFull() throws Exception {
+    final ParallelTextImporter importer =
+        new ParallelTextImporter(tsdb, 1, 2, false);
+    importer.run(Arrays.asList(write(
+        "sys.cpu.user 1356998400 1 host=web01\n" +
+        "sys.cpu.user 1356998460 2 host=web01\n" +
+        "sys.cpu.user 1356998520 3 host=web01\n", false)));
+    // the row was split across two flushes
+    assertEquals(2, storage.numColumns(ROW_WEB01));
+    assertArrayEquals(new byte[] { 1, 2 },
+        storage.getColumn(ROW_WEB01, new byte[] { 0, 0, 3, (byte) 0xC0 }));
+    assertArrayEquals(new byte[] { 3 },
+        storage.getColumn(ROW_WEB01, new byte[] { 7, (byte) 0x80 }));
+  }
+
+  @Test
+  public void importSkipErrors() throws Exception {
+    final ParallelTextImporter importer =
+        new ParallelTextImporter(tsdb, 1, 1000, true);
+    final long points = importer.run(Arrays.asList(write(
+        "sys.cpu.user 1356998400 1 host=web01\n" +
+        "sys.cpu.system 1356998400 1 host=web01\n" +
+        "sys.cpu.user -1 1 host=web01\n" +
+        "sys.cpu.user 1356998460 NaN host=web01\n" +
+        "sys.cpu.user 1356998460 2 host=web01\n", false)));
+    assertEquals(2, points);
+    assertArrayEquals(new byte[] { 1, 2 },
+        storage.getColumn(ROW_WEB01, new byte[] { 0, 0, 3, (byte) 0xC0 }));
+  }
+
+  @Test (expected = NoSuchUniqueName.class)
+  public void importFailsOnError() throws Exception {
+    try {
+      new ParallelTextImporter(tsdb, 1, 1000, false).run(Arrays.asList(write(
+          "sys.cpu.system 1356998400 1 host=web01\n", false)));
+    } catch (RuntimeException e) {
+      throw (Exception) e.getCause();
+    }
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoThreads() throws Exception {
+    new ParallelTextImporter(tsdb, 0, 1000, false);
+  }
+
+  /** Writes the data to a temp file, gzip'ed if asked to. */
+  private String write(final String data, final boolean gzip)
+      throws Exception {
+    final File file = File.createTempFile("import", gzip ? ".gz" : ".txt");
+    files.add(file);
+    OutputStream out = new FileOutputStream(file);
+    if (gzip) {
+      out = new GZIPOutputStream(out);
+    }
+    try {
+      out.write(data.getBytes(Charset.forName("UTF-8")));
+    } finally {
+      out.close();
+    }
+    return file.getPath();
+  }
+}
@@ -0,0 +1,272 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest.FakeTaskTimer;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.storage.MockBase;
+import net.opentsdb.utils.Config;
+import net.opentsdb.utils.Threads;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+  "ch.qos.*", "org.slf4j.*",
+  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, Config.class, HBaseClient.class,
+  GetRequest.class, PutRequest.class, KeyValue.class, Scanner.class,
+  HashedWheelTimer.class, Threads.class })
+public final class TestRecompact {
+  private static final long START = 0x50E22700L;
+  private static final long END = START + 3600;
+  private static final byte[] EARLY =
+      MockBase.stringToBytes("00000150E218F0000001000001");
+  private static final byte[] ROW =
+      MockBase.stringToBytes("00000150E22700000001000001");
+  private static final byte[] ROW2 =
+      MockBase.stringToBytes("00000150E23510000001000001");
+  private static final byte[] LATE =
+      MockBase.stringToBytes("00000150E24320000001000001");
+  private static final byte[] OTHER_METRIC =
+      MockBase.stringToBytes("00000250E22700000001000001");
+  private static final byte[] QUAL1 = { 0x00, 0x07 };
+  private static final byte[] QUAL2 = { 0x00, 0x27 };
+
+  private TSDB tsdb;
+  private HBaseClient client;
+  private MockBase storage;
+  private File checkpoint;
+
+  @Before
+  public void before() throws Exception {
+    client = mock(HBaseClient.class);
+    final FakeTaskTimer timer = new FakeTaskTimer();
+    PowerMockito.mockStatic(Threads.class);
+    PowerMockito.when(Threads.newTimer(anyString())).thenReturn(timer);
+    PowerMockito.when(Threads.newTimer(anyInt(), anyString())).thenReturn(timer);
+    PowerMockito.whenNew(HashedWheelTimer.class).withNoArguments()
+      .thenReturn(timer);
+    PowerMockito.whenNew(HBaseClient.class).withAnyArguments()
+      .thenReturn(client);
+
+    tsdb = new TSDB(client, new Config(false));
+    when(client.flush()).thenReturn(Deferred.fromResult(null));
+    storage = new MockBase(tsdb, client, true, true, true, true);
+    storage.setFamily("t".getBytes(MockBase.ASCII()));
+
+    for (final byte[] key : new byte[][] { EARLY, ROW, ROW2, LATE,
+        OTHER_METRIC }) {
+      storage.addColumn(key, QUAL1, Bytes.fromLong(4L));
+      storage.addColumn(key, QUAL2, Bytes.fromLong(5L));
+    }
+    checkpoint = File.createTempFile("recompact", ".checkpoint");
+    checkpoint.delete();
+  }
+
+  @After
+  public void after() throws Exception {
+    checkpoint.delete();
+  }
+
+  @Test
+  public void compactRowsInRange() throws Exception {
+    final Recompact recompact = newRecompact(false, null);
+    recompact.run(recompact.split());
+
+    assertCompacted(ROW);
+    assertCompacted(ROW2);
+    assertCompacted(OTHER_METRIC);
+    assertEquals(2, storage.numColumns(EARLY));
+    assertEquals(2, storage.numColumns(LATE));
+    assertEquals(3, recompact.rows_scanned.get());
+    assertEquals(3, recompact.rows_compacted.get());
+    assertEquals(6, recompact.cells_compacted.get());
+    assertEquals(0, recompact.failures.get());
+    // skipped the early row of metric 1 then the late one
+    assertEquals(2, recompact.seeks.get());
+  }
+
+  @Test
+  public void skipSingleColumnRows() throws Exception {
+    storage.flushRow(ROW);
+    storage.addColumn(ROW, QUAL1, Bytes.fromLong(4L));
+    final Recompact recompact = newRecompact(false, null);
+    recompact.run(recompact.split());
+
+    assertEquals(1, storage.numColumns(ROW));
+    assertArrayEquals(QUAL1, storage.getColumnFamily(ROW,
+        "t".getBytes(MockBase.ASCII())).keySet().iterator().next());
+    assertEquals(3, recompact.rows_scanned.get());
+    assertEquals(2, recompact.rows_compacted.get());
+  }
+
+  @Test
+  public void dryRun() throws Exception {
+    final Recompact recompact = newRecompact(true, null);
+    recompact.run(recompact.split());
+
+    assertEquals(2, storage.numColumns(ROW));
+    assertEquals(2, storage.numColumns(ROW2));
+    assertEquals(2, storage.numColumns(OTHER_METRIC));
+    assertEquals(3, recompact.rows_compacted.get());
+  }
+
+  @Test
+  public void splitByMetricRange() throws Exception {
+    storage.addColumn(tsdb.uidTable(), new byte[] { 0 },
+        "id".getBytes(MockBase.ASCII()), "metrics".getBytes(MockBase.ASCII()),
+        Bytes.fromLong(8));
+    final Recompact recompact = new Recompact(tsdb, START, END, 4, 0, false,
+        null);
+    final List<Recompact.Split> splits = recompact.split();
+    assertEquals(4, splits.size());
+    assertArrayEquals(new byte[] { 0, 0, 0 }, splits.get(0).start);
+    assertArrayEquals(new byte[] { 0, 0, 2 }, splits.get(0).stop);
+    assertArrayEquals(new byte[] { 0, 0, 2 }, splits.get(1).start);
+    assertArrayEquals(new byte[] { 0, 0, 6 }, splits.get(3).start);
+    assertArrayEquals(HBaseClient.EMPTY_ARRAY, splits.get(3).stop);
+
+    recompact.run(splits);
+    assertCompacted(ROW);
+    assertCompacted(ROW2);
+    assertCompacted(OTHER_METRIC);
+    assertEquals(2, storage.numColumns(EARLY));
+    assertEquals(2, storage.numColumns(LATE));
+  }
+
+  @Test
+  public void checkpointRoundTrip() throws Exception {
+    final Recompact recompact = newRecompact(false, checkpoint);
+    assertNull(recompact.readCheckpoint());
+    final List<Recompact.Split> splits = recompact.split();
+    splits.get(0).resume = ROW2;
+    recompact.writeCheckpoint(splits);
+
+    final List<Recompact.Split> read = recompact.readCheckpoint();
+    assertEquals(1, read.size());
+    assertArrayEquals(splits.get(0).start, read.get(0).start);
+    assertArrayEquals(HBaseClient.EMPTY_ARRAY, read.get(0).stop);
+    assertArrayEquals(ROW2, read.get(0).resume);
+    assertFalse(read.get(0).done);
+  }
+
+  @Test
+  public void resumeFromCheckpoint() throws Exception {
+    final Recompact recompact = newRecompact(false, checkpoint);
+    final List<Recompact.Split> splits = recompact.split();
+    splits.get(0).resume = ROW2;
+    recompact.writeCheckpoint(splits);
+
+    recompact.run(recompact.readCheckpoint());
+    assertEquals(2, storage.numColumns(ROW));
+    assertCompacted(ROW2);
+    assertCompacted(OTHER_METRIC);
+
+    final List<Recompact.Split> done = recompact.readCheckpoint();
+    assertTrue(done.get(0).done);
+  }
+
+  @Test
+  public void skipDoneSplits() throws Exception {
+    final Recompact recompact = newRecompact(false, null);
+    final List<Recompact.Split> splits = recompact.split();
+    splits.get(0).done = true;
+    recompact.run(splits);
+    assertEquals(2, storage.numColumns(ROW));
+    assertEquals(0, recompact.rows_scanned.get());
+  }
+
+  @Test
+  public void checkpointKeepsItsRange() throws Exception {
+    final Recompact recompact = newRecompact(false, checkpoint);
+    recompact.writeCheckpoint(recompact.split());
+    // e.g. a default END-DATE that moved on since the first run
+    final Recompact resumed = new Recompact(tsdb, START, END + 3600, 1, 0, 
+        false, checkpoint);
+    resumed.run(resumed.readCheckpoint());
+    assertCompacted(ROW);
+    assertCompacted(ROW2);
+    assertEquals(2, storage.numColumns(LATE));
+  }
+  
+  @Test (expected = IllegalArgumentException.class)
+  public void checkpointBadRange() throws Exception {
+    final FileWriter writer = new FileWriter(checkpoint);
+    writer.write(Recompact.CHECKPOINT_HEADER + "\nrange " + START + "\n");
+    writer.close();
+    newRecompact(false, checkpoint).readCheckpoint();
+  }
+
+  @Test
+  public void rateLimited() throws Exception {
+    final Recompact recompact = new Recompact(tsdb, START, END, 1, 1000,
+        false, null);
+    recompact.run(recompact.split());
+    assertEquals(3, recompact.rows_compacted.get());
+    assertCompacted(ROW);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEndBeforeStart() throws Exception {
+    new Recompact(tsdb, END, START, 1, 0, false, null);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoThreads() throws Exception {
+    new Recompact(tsdb, START, END, 0, 0, false, null);
+  }
+
+  private Recompact newRecompact(final boolean dry_run, final File checkpoint) {
+    return new Recompact(tsdb, START, END, 1, 0, dry_run, checkpoint);
+  }
+
+  /** Checks the row only holds the column compacted from both cells */
+  private void assertCompacted(final byte[] key) {
+    assertEquals(1, storage.numColumns(key));
+    assertArrayEquals(MockBase.concatByteArrays(Bytes.fromLong(4L),
+        Bytes.fromLong(5L), new byte[] { 0 }),
+        storage.getColumn(key, MockBase.concatByteArrays(QUAL1, QUAL2)));
+  }
+}
@@ -0,0 +1,380 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.opentsdb.core.BaseTsdbTest;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.RollupConfig;
+import net.opentsdb.core.RollupInterval;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.core.TSQuery;
+import net.opentsdb.core.TSSubQuery;
+import net.opentsdb.query.filter.TagVFilter;
+import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.stats.QueryStats;
+import net.opentsdb.stats.QueryStats.QueryStat;
+import net.opentsdb.storage.MockBase;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.Scanner;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Scanner.class, Const.class })
+public final class TestRollup extends BaseTsdbTest {
+  /** The stored series span from START to half past the third hour */
+  private static final long START = 1356998400L;
+  private static final long END = START + 3 * 3600;
+  private static final String QUERY_END = "1357007400";
+  private static final byte[] WEB01 =
+      MockBase.stringToBytes("00000150E22700000001000001");
+  private static final byte[] WEB02 =
+      MockBase.stringToBytes("00000150E22700000001000002");
+  private static final byte[] TSDB_FAMILY = "t".getBytes(MockBase.ASCII());
+
+  /** Queries the rollups can answer, aggregator then downsampler */
+  private static final String[][] QUERIES = {
+      { "zimsum", "1h-sum" },
+      { "sum", "1h-count" },
+      { "min", "1h-min" },
+      { "max", "1h-max" },
+      { "zimsum", "1h-avg" },
+      { "max", "2h-avg" },
+      { "zimsum", "10m-avg" },
+      { "sum", "30m-max-zero" },
+  };
+
+  private RollupConfig rollups;
+
+  @Before
+  public void beforeLocal() throws Exception {
+    config.overrideConfig("tsd.rollups.intervals", "10m,1h");
+    config.overrideConfig("tsd.rollups.intervals_per_row", "24");
+    rollups = new RollupConfig(config);
+  }
+
+  @Test
+  public void rollupCells() throws Exception {
+    storeData();
+    final Rollup rollup = new Rollup(tsdb, rollups, START, END, 1);
+    rollup.run();
+    assertEquals(600, rollup.points_read.get());
+    assertEquals(0, rollup.failures.get());
+    // 3 hours and 16 ten minute intervals per series, 4 aggregates each
+    assertEquals(2 * 4 * (3 + 16), rollup.cells_written.get());
+
+    // the first hour of web01 holds the values 1 to 119
+    final RollupInterval hourly = rollups.getInterval("1h");
+    assertEquals(7140, cell(hourly, RollupInterval.SUM, START));
+    assertEquals(119, cell(hourly, RollupInterval.COUNT, START));
+    assertEquals(1, cell(hourly, RollupInterval.MIN, START));
+    assertEquals(119, cell(hourly, RollupInterval.MAX, START));
+    assertEquals(300, cell(hourly, RollupInterval.MAX, START + 7200));
+    // the first ten minutes hold the values 1 to 19
+    assertEquals(190,
+        cell(rollups.getInterval("10m"), RollupInterval.SUM, START));
+  }
+
+  @Test
+  public void onlyCompleteIntervals() throws Exception {
+    storeData();
+    final Rollup rollup = new Rollup(tsdb, rollups, START + 1800,
+        START + 5400, 1);
+    rollup.run();
+    // moved back to the first hour, the second isn't complete
+    final RollupInterval hourly = rollups.getInterval("1h");
+    assertEquals(7140, cell(hourly, RollupInterval.SUM, START));
+    assertNull(storage.getColumn(hourly.getTable(), WEB01, TSDB_FAMILY,
+        hourly.qualifier(RollupInterval.SUM, START + 3600, true)));
+    // ten minute intervals up to an hour and a half
+    assertEquals(2 * 4 * (1 + 9), rollup.cells_written.get());
+  }
+
+  @Test
+  public void queriesMatchRawData() throws Exception {
+    assertQueriesMatchRawData();
+  }
+
+  @Test
+  public void queriesMatchRawDataSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+    assertQueriesMatchRawData();
+  }
+
+  /**
+   * Runs queries the rollups can answer over the raw data, then over the
+   * rollups once the raw data is gone, and compares them.
+   */
+  private void assertQueriesMatchRawData() throws Exception {
+    storeData();
+    final ArrayList<DataPoints[]> raw = runQueries();
+
+    // complete past the last 2 hour bucket so no query reads raw data
+    new Rollup(tsdb, rollups, START, END + 3600, 1).run();
+    storage.flushStorage(tsdb.dataTable());
+    rollups.loadMarkers(client).joinUninterruptibly();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollups);
+
+    assertSameResults(raw, runQueries());
+  }
+
+  @Test
+  public void queriesStitchRawData() throws Exception {
+    assertQueriesStitchRawData();
+  }
+
+  @Test
+  public void queriesStitchRawDataSalted() throws Exception {
+    PowerMockito.mockStatic(Const.class);
+    PowerMockito.when(Const.SALT_WIDTH()).thenReturn(1);
+    PowerMockito.when(Const.SALT_BUCKETS()).thenReturn(2);
+    PowerMockito.when(Const.MAX_NUM_TAGS()).thenReturn((short) 8);
+    assertQueriesStitchRawData();
+  }
+
+  /**
+   * Rolls up part of the data and drops its raw rows, then checks queries
+   * read the rest from the raw table and return what the raw data did.
+   */
+  private void assertQueriesStitchRawData() throws Exception {
+    storeData();
+    final ArrayList<DataPoints[]> raw = runQueries();
+
+    // only the first two hours were rolled up and their raw rows are gone,
+    // the rest of the range has to come from the raw table
+    new Rollup(tsdb, rollups, START, START + 7200, 1).run();
+    for (final byte[] series : new byte[][] { WEB01, WEB02 }) {
+      for (long base_time = START; base_time < START + 7200; 
+          base_time += 3600) {
+        final byte[] key = new byte[Const.SALT_WIDTH() + series.length];
+        System.arraycopy(series, 0, key, Const.SALT_WIDTH(), series.length);
+        Internal.setBaseTime(key, (int) base_time);
+        RowKey.prefixKeyWithSalt(key);
+        storage.flushRow(tsdb.dataTable(), key);
+      }
+    }
+    rollups.loadMarkers(client).joinUninterruptibly();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollups);
+
+    assertSameResults(raw, runQueries());
+  }
+
+  @Test
+  public void rawDataWithoutPlan() throws Exception {
+    storeData();
+    new Rollup(tsdb, rollups, START, END, 1).run();
+    rollups.loadMarkers(client).joinUninterruptibly();
+    Whitebox.setInternalState(tsdb, "rollup_config", rollups);
+    final TSQuery query = newQuery("zimsum", "1h-dev", true);
+    final QueryStats stats = mock(QueryStats.class);
+    query.setQueryStats(stats);
+    assertEquals(2, run(query).length);
+    verify(stats).addStat(0, QueryStat.ROLLUP_INTERVAL, 0);
+
+    // the raw data is gone so the query is answered from the rollups
+    storage.flushStorage(tsdb.dataTable());
+    final TSQuery rollup_query = newQuery("zimsum", "1h-sum", true);
+    rollup_query.setQueryStats(stats);
+    assertEquals(2, run(rollup_query).length);
+    verify(stats).addStat(0, QueryStat.ROLLUP_INTERVAL, 3600);
+    assertEquals(0, run(newQuery("zimsum", "1h-dev", true)).length);
+  }
+
+  @Test
+  public void markerRecorded() throws Exception {
+    storeData();
+    new Rollup(tsdb, rollups, START + 1800, END + 1200, 1).run();
+    // moved back to the first hour, the last one isn't complete
+    assertArrayEquals(new long[] { START, END }, marker("1h"));
+    assertArrayEquals(new long[] { START, END + 1200 }, marker("10m"));
+    rollups.loadMarkers(client).joinUninterruptibly();
+    assertArrayEquals(new long[] { START, END },
+        rollups.getCompleted(rollups.getInterval("1h")));
+  }
+
+  @Test
+  public void markerExtended() throws Exception {
+    storeData();
+    new Rollup(tsdb, rollups, START + 3600, START + 7200, 1).run();
+    new Rollup(tsdb, rollups, START, START + 3600, 1).run();
+    assertArrayEquals(new long[] { START, START + 7200 }, marker("1h"));
+    new Rollup(tsdb, rollups, START + 3600, END, 1).run();
+    assertArrayEquals(new long[] { START, END }, marker("1h"));
+  }
+
+  @Test
+  public void markerNotExtendedOverGap() throws Exception {
+    storeData();
+    new Rollup(tsdb, rollups, START, START + 3600, 1).run();
+    final Rollup rollup = new Rollup(tsdb, rollups, START + 7200, END, 1);
+    rollup.run();
+    assertEquals(0, rollup.failures.get());
+    assertArrayEquals(new long[] { START, START + 3600 }, marker("1h"));
+  }
+
+  @Test
+  public void markerNotRecordedOnFailure() throws Exception {
+    storeData();
+    final byte[] key = WEB01.clone();
+    Internal.setBaseTime(key, (int) START);
+    storage.throwException(key, new RuntimeException("Boo!"));
+    final Rollup rollup = new Rollup(tsdb, rollups, START, END, 1);
+    rollup.run();
+    assertTrue(rollup.failures.get() > 0);
+    assertNull(marker("1h"));
+    assertNull(marker("10m"));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorEndBeforeStart() throws Exception {
+    new Rollup(tsdb, rollups, END, START, 1);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorNoThreads() throws Exception {
+    new Rollup(tsdb, rollups, START, END, 0);
+  }
+
+  /** Stores the raw series and creates the rollup tables */
+  private void storeData() throws Exception {
+    storeLongTimeSeriesSeconds(false, false);
+    for (final RollupInterval interval : rollups.getIntervals()) {
+      storage.addTable(interval.getTable(),
+          Collections.singletonList(TSDB_FAMILY));
+    }
+  }
+
+  /** @return The completed range recorded for an interval, may be null */
+  private long[] marker(final String interval) throws Exception {
+    return RollupConfig.readMarker(client, rollups.getInterval(interval))
+        .joinUninterruptibly();
+  }
+
+  /** @return The integer value of a cell of the web01 series */
+  private long cell(final RollupInterval interval, final byte aggregate,
+      final long timestamp) {
+    final byte[] key = WEB01.clone();
+    Internal.setBaseTime(key, (int) interval.rowBaseTime(timestamp));
+    final byte[] value = storage.getColumn(interval.getTable(), key,
+        TSDB_FAMILY, interval.qualifier(aggregate, timestamp, true));
+    if (value == null) {
+      fail("Missing cell " + aggregate + " at " + timestamp);
+    }
+    return Bytes.getLong(value);
+  }
+
+  private TSQuery newQuery(final String aggregator, final String downsample,
+      final boolean group_by) {
+    final TSSubQuery sub = new TSSubQuery();
+    sub.setMetric(METRIC_STRING);
+    sub.setAggregator(aggregator);
+    sub.setDownsample(downsample);
+    if (group_by) {
+      final TagVFilter filter = new TagVWildcardFilter(TAGK_STRING, "*");
+      filter.setGroupBy(true);
+      final List<TagVFilter> filters = new ArrayList<TagVFilter>(1);
+      filters.add(filter);
+      sub.setFilters(filters);
+    }
+    final ArrayList<TSSubQuery> subs = new ArrayList<TSSubQuery>(1);
+    subs.add(sub);
+    final TSQuery query = new TSQuery();
+    query.setStart(Long.toString(START));
+    query.setEnd(QUERY_END);
+    query.setQueries(subs);
+    query.validateAndSetQuery();
+    return query;
+  }
+
+  private DataPoints[] run(final TSQuery query) throws Exception {
+    return query.buildQueries(tsdb)[0].run();
+  }
+
+  /** @return The results of the {@link #QUERIES}, grouped then not */
+  private ArrayList<DataPoints[]> runQueries() throws Exception {
+    final ArrayList<DataPoints[]> results = new ArrayList<DataPoints[]>();
+    for (final String[] query : QUERIES) {
+      results.add(run(newQuery(query[0], query[1], true)));
+      results.add(run(newQuery(query[0], query[1], false)));
+    }
+    return results;
+  }
+
+  /** Checks each query returned the same results */
+  private static void assertSameResults(final ArrayList<DataPoints[]> expected,
+      final ArrayList<DataPoints[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertSameResults(expected.get(i), actual.get(i));
+    }
+  }
+
+  /** Checks the results hold the same groups with the same points */
+  private static void assertSameResults(final DataPoints[] expected,
+      final DataPoints[] actual) {
+    assertEquals(expected.length, actual.length);
+    assertTrue(expected.length > 0);
+    for (final DataPoints exp : expected) {
+      DataPoints act = null;
+      for (final DataPoints candidate : actual) {
+        if (candidate.getTags().equals(exp.getTags())) {
+          act = candidate;
+        }
+      }
+      if (act == null) {
+        fail("Missing group " + exp.getTags());
+      }
+      final SeekableView exp_it = exp.iterator();
+      final SeekableView act_it = act.iterator();
+      while (exp_it.hasNext()) {
+        assertTrue(act_it.hasNext());
+        final DataPoint e = exp_it.next();
+        final DataPoint a = act_it.next();
+        assertEquals(e.timestamp(), a.timestamp());
+        assertEquals(e.isInteger(), a.isInteger());
+        if (e.isInteger()) {
+          assertEquals(e.longValue(), a.longValue());
+        } else {
+          assertEquals(e.doubleValue(), a.doubleValue(), 0.0001);
+        }
+      }
+      assertFalse(act_it.hasNext());
+    }
+  }
+}
@@ -69,6 +69,8 @@ public final class NettyMocks {
     when(chan.toString()).thenReturn("[fake channel]");
     when(chan.isConnected()).thenReturn(true);
     when(chan.isWritable()).thenReturn(true);
+    final ChannelFuture close_future = new DefaultChannelFuture(chan, false);
+    when(chan.getCloseFuture()).thenReturn(close_future);
     
     final SocketAddress socket = mock(SocketAddress.class);
     when(socket.toString()).thenReturn("192.168.1.1:4243");
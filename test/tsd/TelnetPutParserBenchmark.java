@@ -0,0 +1,75 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import net.opentsdb.core.Tags;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Compares {@link TelnetPutParser} with splitting the line into Strings and
+ * parsing those, as the generic telnet path does. Not a unit test, run it
+ * with:
+ * <pre>java -cp ... net.opentsdb.tsd.TelnetPutParserBenchmark [lines]</pre>
+ */
+public final class TelnetPutParserBenchmark {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  private TelnetPutParserBenchmark() {
+  }
+
+  public static void main(final String[] args) {
+    final int nlines = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    final ChannelBuffer[] lines = new ChannelBuffer[nlines];
+    for (int i = 0; i < nlines; i++) {
+      lines[i] = ChannelBuffers.wrappedBuffer(("put sys.cpu.user " 
+          + (1356998400 + i) + " " + i + " host=web" + (i % 100) 
+          + " dc=lga owner=ops").getBytes(CHARSET));
+    }
+
+    long checksum_split = 0;
+    long checksum_bytes = 0;
+    double split_secs = 0;
+    double bytes_secs = 0;
+    for (int round = 0; round < 5; round++) {  // first rounds warm the JIT up
+      long start = System.nanoTime();
+      for (final ChannelBuffer line : lines) {
+        final String[] words = Tags.splitString(line.toString(CHARSET), ' ');
+        final HashMap<String, String> tags = new HashMap<String, String>();
+        for (int i = 4; i < words.length; i++) {
+          Tags.parse(tags, words[i]);
+        }
+        checksum_split += Tags.parseLong(words[2]) + Tags.parseLong(words[3])
+            + tags.size();
+      }
+      split_secs = (System.nanoTime() - start) / 1000000000.0;
+
+      start = System.nanoTime();
+      for (final ChannelBuffer line : lines) {
+        final TelnetPutParser.Put put = TelnetPutParser.parse(line);
+        checksum_bytes += put.timestamp + put.long_value + put.tags.size();
+      }
+      bytes_secs = (System.nanoTime() - start) / 1000000000.0;
+    }
+    if (checksum_split != checksum_bytes) {
+      throw new IllegalStateException("Parsers disagree: " + checksum_split 
+          + " != " + checksum_bytes);
+    }
+    System.out.println(String.format("Parsed %d put lines: split %f seconds, "
+        + "bytes %f seconds", nlines, split_secs, bytes_secs));
+  }
+}
@@ -0,0 +1,217 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+             "ch.qos.*", "org.slf4j.*",
+             "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, Config.class })
+public final class TestAdmissionController {
+  private Config config;
+  private Channel chan;
+
+  @Before
+  public void before() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.network.backpressure.high_inflight", "3");
+    config.overrideConfig("tsd.network.backpressure.low_inflight", "1");
+    chan = NettyMocks.fakeChannel();
+    when(chan.getId()).thenReturn(42);
+    when(chan.getCloseFuture())
+      .thenReturn(new DefaultChannelFuture(chan, false));
+    when(chan.setReadable(Mockito.anyBoolean()))
+      .thenReturn(new DefaultChannelFuture(chan, false));
+  }
+
+  @Test
+  public void throttleAndResumeOnInflight() throws Exception {
+    final AdmissionController admission = new AdmissionController(config);
+    final List<Deferred<Object>> puts = admit(admission, 2);
+    assertFalse(admission.isThrottled());
+    verify(chan, never()).setReadable(false);
+
+    puts.addAll(admit(admission, 1));
+    assertTrue(admission.isThrottled());
+    verify(chan, times(1)).setReadable(false);
+
+    // above the low water mark we stay throttled
+    puts.get(0).callback(null);
+    assertTrue(admission.isThrottled());
+
+    puts.get(1).callback(null);
+    assertFalse(admission.isThrottled());
+    assertEquals(1, admission.inflight());
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void resumeWhenLastPutCompletesWhileThrottling() throws Exception {
+    config.overrideConfig("tsd.network.backpressure.high_inflight", "1");
+    config.overrideConfig("tsd.network.backpressure.low_inflight", "0");
+    final AdmissionController admission = new AdmissionController(config);
+    final Deferred<Object> put = new Deferred<Object>();
+    final Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        admission.admit(chan, put);
+      }
+    });
+
+    synchronized (admission) {
+      // the writer saw one put in flight and waits to throttle
+      writer.start();
+      while (writer.getState() != Thread.State.BLOCKED) {
+        Thread.sleep(1);
+      }
+      // the put completes before the flag is set so it doesn't resume
+      put.callback(null);
+      assertEquals(0, admission.inflight());
+      assertFalse(admission.isThrottled());
+    }
+    writer.join();
+
+    assertFalse(admission.isThrottled());
+    verify(chan, times(1)).setReadable(false);
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void throttleNewChannel() throws Exception {
+    final AdmissionController admission = new AdmissionController(config);
+    admit(admission, 3);
+    assertTrue(admission.isThrottled());
+
+    final Channel other = NettyMocks.fakeChannel();
+    when(other.getId()).thenReturn(43);
+    when(other.getCloseFuture())
+      .thenReturn(new DefaultChannelFuture(other, false));
+    when(other.setReadable(Mockito.anyBoolean()))
+      .thenReturn(new DefaultChannelFuture(other, false));
+    admission.admit(other, new Deferred<Object>());
+    verify(other, times(1)).setReadable(false);
+  }
+
+  @Test
+  public void errorsCompletePuts() throws Exception {
+    final AdmissionController admission = new AdmissionController(config);
+    final List<Deferred<Object>> puts = admit(admission, 3);
+    final RuntimeException ex = new RuntimeException("Boo!");
+    for (final Deferred<Object> put : puts) {
+      put.callback(ex);
+    }
+    assertFalse(admission.isThrottled());
+    assertEquals(0, admission.inflight());
+    // the result is passed through untouched
+    try {
+      puts.get(0).joinUninterruptibly();
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(e == ex);
+    }
+  }
+
+  @Test
+  public void throttleOnLatency() throws Exception {
+    config.overrideConfig("tsd.network.backpressure.high_inflight", "1000");
+    config.overrideConfig("tsd.network.backpressure.high_latency_ms", "1");
+    final AdmissionController admission = new AdmissionController(config);
+    final Deferred<Object> slow = new Deferred<Object>();
+    admission.admit(chan, slow);
+    final Deferred<Object> pending = new Deferred<Object>();
+    admission.admit(chan, pending);
+    // enough to push the moving average above 1ms
+    Thread.sleep(50);
+    slow.callback(null);
+    admission.admit(chan, new Deferred<Object>());
+    assertTrue(admission.isThrottled());
+  }
+
+  @Test
+  public void nullChannel() throws Exception {
+    final AdmissionController admission = new AdmissionController(config);
+    final Deferred<Object> put = new Deferred<Object>();
+    admission.admit(null, put);
+    assertEquals(1, admission.inflight());
+    put.callback(null);
+    assertEquals(0, admission.inflight());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorLowAboveHigh() throws Exception {
+    config.overrideConfig("tsd.network.backpressure.low_inflight", "4");
+    new AdmissionController(config);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void ctorBadLatency() throws Exception {
+    config.overrideConfig("tsd.network.backpressure.high_latency_ms", "10");
+    config.overrideConfig("tsd.network.backpressure.low_latency_ms", "20");
+    new AdmissionController(config);
+  }
+
+  @Test
+  public void putRpcAdmits() throws Exception {
+    final TSDB tsdb = NettyMocks.getMockedHTTPTSDB();
+    final Deferred<Object> deferred = new Deferred<Object>();
+    when(tsdb.addPoint(Mockito.eq("sys.cpu.user"), Mockito.anyLong(),
+        Mockito.anyLong(), Mockito.<Map<String, String>>any()))
+      .thenReturn(deferred);
+    final AdmissionController admission = new AdmissionController(config);
+    final PutDataPointRpc put = new PutDataPointRpc(admission);
+    put.execute(tsdb, chan, new String[] { "put", "sys.cpu.user",
+        "1365465600", "42", "host=web01" });
+    assertEquals(1, admission.inflight());
+    deferred.callback(null);
+    assertEquals(0, admission.inflight());
+  }
+
+  private List<Deferred<Object>> admit(final AdmissionController admission,
+                                       final int count) {
+    final List<Deferred<Object>> puts = new ArrayList<Deferred<Object>>();
+    for (int i = 0; i < count; i++) {
+      final Deferred<Object> put = new Deferred<Object>();
+      admission.admit(chan, put);
+      puts.add(put);
+    }
+    return puts;
+  }
+}
@@ -16,6 +16,8 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 
@@ -25,11 +27,15 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.QueryComputePool;
+import net.opentsdb.core.QueryException;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -39,8 +45,16 @@ import net.opentsdb.storage.MockDataPoints;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
+import net.opentsdb.utils.JSON;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -50,6 +64,7 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.cache.CacheBuilder;
 import com.stumbleupon.async.Deferred;
 import com.stumbleupon.async.DeferredGroupException;
@@ -107,6 +122,60 @@ public final class TestHttpJsonSerializer {
     assertNotNull(new HttpJsonSerializer().shutdown());
   }
   
+  @Test
+  public void parsePutV1Stream() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465601,\"value\":24,\"tags\":"
+        + "{\"host\":\"web02\"}}]");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<IncomingDataPoint> it = serdes.parsePutV1Stream();
+    assertTrue(it.hasNext());
+    IncomingDataPoint dp = it.next();
+    assertEquals("sys.cpu.nice", dp.getMetric());
+    assertEquals("42", dp.getValue());
+    dp = it.next();
+    assertEquals("sys.cpu.system", dp.getMetric());
+    assertEquals(1365465601, dp.getTimestamp());
+    assertEquals("web02", dp.getTags().get("host"));
+    assertFalse(it.hasNext());
+    // the content is left untouched for anyone else
+    assertTrue(query.getContent().startsWith("[{"));
+  }
+  
+  @Test
+  public void parsePutV1StreamSingle() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}}");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final Iterator<IncomingDataPoint> it = serdes.parsePutV1Stream();
+    assertEquals("sys.cpu.nice", it.next().getMetric());
+    assertFalse(it.hasNext());
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1StreamNotJSON() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "not json");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutV1Stream();
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1StreamNoContent() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutV1Stream();
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void parsePutV1StreamNotAnObject() throws Exception {
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "[42]");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    serdes.parsePutV1Stream().hasNext();
+  }
+  
   @Test
   public void version() {
     assertEquals("2.0.0", new HttpJsonSerializer().version());
@@ -296,6 +365,246 @@ public final class TestHttpJsonSerializer {
     assertFalse(json.contains("\"query\":"));
   }
 
+  @Test
+  public void formatQueryAsyncV1Parallel() throws Exception {
+    setupFormatQuery();
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.query.compute.threads", "4");
+    config.overrideConfig("tsd.query.compute.max_per_query", "2");
+    final QueryComputePool pool = new QueryComputePool(config);
+    when(tsdb.getQueryComputePool()).thenReturn(pool);
+    HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false, true);
+    validateTestQuery(data_query);
+    final DataPoints[] groups = new DataPoints[20];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = new MockDataPoints().getMock();
+      final Map<String, String> tags = new HashMap<String, String>(1);
+      tags.put("group", Integer.toString(i));
+      when(groups[i].getTags()).thenReturn(tags);
+      when(groups[i].getTagsAsync()).thenReturn(Deferred.fromResult(tags));
+    }
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(groups);
+
+    try {
+      ChannelBuffer cb = serdes.formatQueryAsyncV1(data_query, results, 
+          Collections.<Annotation> emptyList()).joinUninterruptibly();
+      final List<Map<String, Object>> json = JSON.parseToObject(
+          cb.toString(Charset.forName("UTF-8")), 
+          new TypeReference<List<Map<String, Object>>>() { });
+      assertEquals(groups.length + 1, json.size());
+      for (int i = 0; i < groups.length; i++) {
+        assertEquals(Integer.toString(i), 
+            ((Map<?, ?>) json.get(i).get("tags")).get("group"));
+        assertEquals(401, ((Map<?, ?>) json.get(i).get("dps")).size());
+      }
+      assertTrue(json.get(groups.length).containsKey("statsSummary"));
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void streamQueryAsyncV1() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false, true);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock(), new MockDataPoints().getMock() });
+
+    assertTrue(serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    assertTrue(writes.get(0) instanceof HttpResponse);
+    assertEquals(HttpResponseStatus.OK, 
+        ((HttpResponse) writes.get(0)).getStatus());
+    assertTrue(HttpHeaders.isTransferEncodingChunked(
+        (HttpResponse) writes.get(0)));
+    // header, 3 groups, summary then the last chunk
+    assertEquals(7, writes.size());
+    assertTrue(((HttpChunk) writes.get(6)).isLast());
+    final List<Map<String, Object>> json = streamed(writes);
+    assertEquals(4, json.size());
+    assertEquals("system.cpu.user", json.get(2).get("metric"));
+    assertTrue(json.get(3).containsKey("statsSummary"));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Empty() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+
+    assertTrue(serdes.streamQueryAsyncV1(data_query, 
+        new ArrayList<DataPoints[]>(), Collections.<Annotation> emptyList())
+        .joinUninterruptibly());
+    assertEquals(0, streamed(writes).size());
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Parallel() throws Exception {
+    setupFormatQuery();
+    final Config config = new Config(false);
+    config.overrideConfig("tsd.query.compute.threads", "4");
+    config.overrideConfig("tsd.query.compute.max_per_query", "2");
+    final QueryComputePool pool = new QueryComputePool(config);
+    when(tsdb.getQueryComputePool()).thenReturn(pool);
+    final List<Object> writes = new ArrayList<Object>();
+    // not writable so every group waits for the previous one to be sent
+    final HttpQuery query = streamingQuery(writes, false);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final DataPoints[] groups = new DataPoints[20];
+    for (int i = 0; i < groups.length; i++) {
+      groups[i] = new MockDataPoints().getMock();
+      final Map<String, String> tags = new HashMap<String, String>(1);
+      tags.put("group", Integer.toString(i));
+      when(groups[i].getTags()).thenReturn(tags);
+      when(groups[i].getTagsAsync()).thenReturn(Deferred.fromResult(tags));
+    }
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(groups);
+
+    try {
+      assertTrue(serdes.streamQueryAsyncV1(data_query, results, 
+          Collections.<Annotation> emptyList()).join(5000));
+      final List<Map<String, Object>> json = streamed(writes);
+      assertEquals(groups.length, json.size());
+      for (int i = 0; i < groups.length; i++) {
+        assertEquals(Integer.toString(i), 
+            ((Map<?, ?>) json.get(i).get("tags")).get("group"));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+  
+  @Test
+  public void streamQueryAsyncV1ErrorBeforeStart() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final DataPoints dps = new MockDataPoints().getMock();
+    when(dps.metricNameAsync())
+      .thenReturn(Deferred.<String>fromError(
+          new NoSuchUniqueId("No such metric", new byte[] { 0, 0, 1 })));
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { dps, new MockDataPoints().getMock() });
+
+    try {
+      serdes.streamQueryAsyncV1(data_query, results, 
+          Collections.<Annotation> emptyList()).joinUninterruptibly();
+      fail("Expected a DeferredGroupException");
+    } catch (DeferredGroupException e) { }
+    // nothing was sent so the caller can reply with the error
+    assertTrue(writes.isEmpty());
+  }
+  
+  @Test
+  public void streamQueryAsyncV1ErrorMidStream() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final DataPoints dps = new MockDataPoints().getMock();
+    when(dps.iterator()).thenThrow(new IllegalStateException("Boo!"));
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), dps, 
+        new MockDataPoints().getMock() });
+
+    assertFalse(serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    assertEquals(HttpResponseStatus.OK, 
+        ((HttpResponse) writes.get(0)).getStatus());
+    assertTrue(((HttpChunk) writes.get(writes.size() - 1)).isLast());
+    final List<Map<String, Object>> json = streamed(writes);
+    assertEquals(2, json.size());
+    assertEquals("system.cpu.user", json.get(0).get("metric"));
+    final Map<?, ?> error = (Map<?, ?>) json.get(1).get("error");
+    assertEquals(500, error.get("code"));
+    assertEquals("Boo!", error.get("message"));
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Cancelled() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    data_query.getQueryStats().cancel();
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    try {
+      serdes.streamQueryAsyncV1(data_query, results, 
+          Collections.<Annotation> emptyList()).joinUninterruptibly();
+      fail("Expected a QueryException");
+    } catch (QueryException e) {
+      assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, e.getStatus());
+    }
+    // nothing is serialized for a client that went away
+    assertTrue(writes.isEmpty());
+  }
+  
+  @Test
+  public void streamQueryAsyncV1Disconnected() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    // the client goes away after the first group was sent
+    when(query.channel().isConnected()).thenReturn(true, false);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    assertEquals(1, data_query.getQueryStats().getNumRunningQueries());
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock(), 
+        new MockDataPoints().getMock(), new MockDataPoints().getMock() });
+
+    assertFalse(serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    assertEquals(0, data_query.getQueryStats().getNumRunningQueries());
+    assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, 
+        data_query.getQueryStats().getHttpResponse());
+  }
+  
+  @Test
+  public void streamQueryAsyncV1NotStarted() throws Exception {
+    setupFormatQuery();
+    final List<Object> writes = new ArrayList<Object>();
+    final HttpQuery query = streamingQuery(writes, true);
+    // gone before the reply started
+    when(query.channel().isConnected()).thenReturn(false);
+    HttpJsonSerializer serdes = new HttpJsonSerializer(query);
+    final TSQuery data_query = getTestQuery(false);
+    validateTestQuery(data_query);
+    final List<DataPoints[]> results = new ArrayList<DataPoints[]>(1);
+    results.add(new DataPoints[] { new MockDataPoints().getMock() });
+
+    assertFalse(serdes.streamQueryAsyncV1(data_query, results, 
+        Collections.<Annotation> emptyList()).joinUninterruptibly());
+    assertEquals(0, data_query.getQueryStats().getNumRunningQueries());
+    assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, 
+        data_query.getQueryStats().getHttpResponse());
+    assertTrue(writes.isEmpty());
+  }
+  
   @Test
   public void formatQueryAsyncV1wQuery() throws Exception {
     setupFormatQuery();
@@ -606,6 +915,41 @@ public final class TestHttpJsonSerializer {
     completed_queries.set(null, CacheBuilder.newBuilder().maximumSize(2).build());
   }
   
+  /**
+   * Returns a query whose channel records what's written to it
+   * @param writes The list to store the writes in
+   * @param writable What the channel's isWritable returns
+   */
+  private HttpQuery streamingQuery(final List<Object> writes, 
+      final boolean writable) {
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "");
+    final Channel channel = query.channel();
+    when(channel.isWritable()).thenReturn(writable);
+    when(channel.write(any())).thenAnswer(new Answer<ChannelFuture>() {
+      @Override
+      public ChannelFuture answer(final InvocationOnMock invocation) {
+        synchronized (writes) {
+          writes.add(invocation.getArguments()[0]);
+        }
+        return Channels.succeededFuture(channel);
+      }
+    });
+    return query;
+  }
+  
+  /** @return The JSON array sent in the chunks of a streamed reply */
+  private List<Map<String, Object>> streamed(final List<Object> writes) {
+    final StringBuilder buf = new StringBuilder();
+    for (final Object write : writes) {
+      if (write instanceof HttpChunk) {
+        buf.append(((HttpChunk) write).getContent().toString(
+            Charset.forName("UTF-8")));
+      }
+    }
+    return JSON.parseToObject(buf.toString(), 
+        new TypeReference<List<Map<String, Object>>>() { });
+  }
+  
   /** @return Returns a test TSQuery object to pass on to the serializer */
   private TSQuery getTestQuery(final boolean show_stats) {
     return getTestQuery(show_stats, false);
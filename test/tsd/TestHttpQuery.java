@@ -20,6 +20,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
@@ -28,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 
 import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.PluginLoader;
 
@@ -1135,6 +1139,27 @@ public final class TestHttpQuery {
         query.response().getContent().toString(Charset.forName("UTF-8")));
   }
   
+  @Test
+  public void cancelOnDisconnect() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    final QueryStats stats = mock(QueryStats.class);
+    query.cancelOnDisconnect(stats);
+    query.channel().getCloseFuture().setSuccess();
+    verify(stats).cancel();
+  }
+  
+  @Test
+  public void cancelOnDisconnectAfterReply() throws Exception {
+    final HttpQuery query = NettyMocks.getQuery(tsdb, "/");
+    final QueryStats stats = mock(QueryStats.class);
+    query.cancelOnDisconnect(stats);
+    query.sendReply(HttpResponseStatus.OK, ChannelBuffers.copiedBuffer(
+        "Hello World", Charset.forName("UTF-8")));
+    // keep-alive connections close long after the reply was sent
+    query.channel().getCloseFuture().setSuccess();
+    verify(stats, never()).cancel();
+  }
+  
   @Test (expected = NullPointerException.class)
   public void sendReplyStatusCBNullStatus() throws Exception {
     HttpQuery query = NettyMocks.getQuery(tsdb, "/");
@@ -0,0 +1,412 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.CodecEmbedderException;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+public final class TestPutBatchCodec {
+  private static final String[] STRINGS = new String[] {
+    "sys.cpu.user", "host", "web01", "dc", "lga", "sys.cpu.nice" };
+
+  @Test
+  public void decodeLongs() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(3, PutBatchCodec.decode(batch(STRINGS, 0,
+        new int[] { 1, 2, 3, 4 },
+        new long[] { 1356998400, 1356998460, 1356998400 },
+        new long[] { 42, -1, Long.MAX_VALUE }, null), sink));
+    assertEquals(1, sink.series.size());
+    final Series series = sink.series.get(0);
+    assertEquals("sys.cpu.user", series.metric);
+    assertEquals(2, series.tags.size());
+    assertEquals("web01", series.tags.get("host"));
+    assertEquals("lga", series.tags.get("dc"));
+    assertArrayEquals(new long[] { 1356998400, 1356998460, 1356998400 },
+        series.timestamps);
+    assertArrayEquals(new long[] { 42, -1, Long.MAX_VALUE },
+        series.long_values);
+    assertNull(series.double_values);
+  }
+
+  @Test
+  public void decodeDoubles() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(2, PutBatchCodec.decode(batch(STRINGS, 5, new int[] { 1, 2 },
+        new long[] { 1356998400000L, 1356998400500L }, null,
+        new double[] { 4.5, Double.MAX_VALUE }), sink));
+    final Series series = sink.series.get(0);
+    assertEquals("sys.cpu.nice", series.metric);
+    assertArrayEquals(new long[] { 1356998400000L, 1356998400500L },
+        series.timestamps);
+    assertNull(series.long_values);
+    assertEquals(4.5, series.double_values[0], 0.0001);
+    assertEquals(Double.MAX_VALUE, series.double_values[1], 0.0001);
+  }
+
+  @Test
+  public void decodeManySeries() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    for (final String s : STRINGS) {
+      out.writeString(1, s);
+    }
+    final int npoints = 1000;
+    final long[] timestamps = new long[npoints];
+    final long[] values = new long[npoints];
+    for (int i = 0; i < npoints; i++) {
+      timestamps[i] = 1356998400 + i;
+      values[i] = i;
+    }
+    writeSeries(out, 0, new int[] { 1, 2 }, timestamps, values, null);
+    writeSeries(out, 5, new int[] { 1, 2 }, timestamps, values, null);
+    out.flush();
+
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(2 * npoints, PutBatchCodec.decode(
+        ChannelBuffers.wrappedBuffer(bytes.toByteArray()), sink));
+    assertEquals(2, sink.series.size());
+    assertEquals("sys.cpu.nice", sink.series.get(1).metric);
+    assertArrayEquals(timestamps, sink.series.get(1).timestamps);
+    assertArrayEquals(values, sink.series.get(1).long_values);
+  }
+
+  @Test
+  public void decodeUnpacked() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(1, "sys.cpu.user");
+    out.writeString(1, "host");
+    out.writeString(1, "web01");
+    final ByteArrayOutputStream series_bytes = new ByteArrayOutputStream();
+    final CodedOutputStream series = CodedOutputStream.newInstance(
+        series_bytes);
+    series.writeUInt32(1, 0);
+    series.writeUInt32(2, 1);
+    series.writeUInt32(2, 2);
+    series.writeSInt64(3, 1356998400);
+    series.writeSInt64(3, 60);
+    series.writeSInt64(4, 1);
+    series.writeSInt64(4, 2);
+    series.writeString(42, "unknown field");
+    series.flush();
+    out.writeBytes(2, ByteString.copyFrom(
+        series_bytes.toByteArray()));
+    out.flush();
+
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(2, PutBatchCodec.decode(
+        ChannelBuffers.wrappedBuffer(bytes.toByteArray()), sink));
+    assertArrayEquals(new long[] { 1356998400, 1356998460 },
+        sink.series.get(0).timestamps);
+    assertArrayEquals(new long[] { 1, 2 }, sink.series.get(0).long_values);
+  }
+
+  @Test
+  public void decodeEmptyPacked() throws Exception {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(1, "sys.cpu.user");
+    out.writeString(1, "host");
+    out.writeString(1, "web01");
+    final ByteArrayOutputStream series_bytes = new ByteArrayOutputStream();
+    final CodedOutputStream series = CodedOutputStream.newInstance(
+        series_bytes);
+    series.writeUInt32(1, 0);
+    for (int field = 2; field <= 5; field++) {
+      series.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      series.writeRawVarint32(0);
+    }
+    series.writeUInt32(2, 1);
+    series.writeUInt32(2, 2);
+    series.writeSInt64(3, 1356998400);
+    series.writeSInt64(4, 42);
+    series.flush();
+    out.writeBytes(2, ByteString.copyFrom(
+        series_bytes.toByteArray()));
+    out.flush();
+
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(1, PutBatchCodec.decode(
+        ChannelBuffers.wrappedBuffer(bytes.toByteArray()), sink));
+    assertEquals(0, sink.invalid);
+    assertEquals("web01", sink.series.get(0).tags.get("host"));
+    assertArrayEquals(new long[] { 1356998400 },
+        sink.series.get(0).timestamps);
+    assertArrayEquals(new long[] { 42 }, sink.series.get(0).long_values);
+    assertNull(sink.series.get(0).double_values);
+  }
+
+  @Test
+  public void decodeReaderIndex() throws Exception {
+    final ChannelBuffer batch = batch(STRINGS, 0, new int[] { 1, 2 },
+        new long[] { 1356998400 }, new long[] { 42 }, null);
+    final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+    buffer.writeBytes(new byte[] { 1, 2, 3 });
+    buffer.writeBytes(batch);
+    buffer.skipBytes(3);
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(1, PutBatchCodec.decode(buffer, sink));
+    assertEquals("sys.cpu.user", sink.series.get(0).metric);
+  }
+
+  @Test
+  public void decodeEmpty() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(0, PutBatchCodec.decode(ChannelBuffers.EMPTY_BUFFER, sink));
+    assertTrue(sink.series.isEmpty());
+  }
+
+  @Test
+  public void decodeMissingTags() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(1, PutBatchCodec.decode(batch(STRINGS, 0, new int[0],
+        new long[] { 1356998400 }, new long[] { 42 }, null), sink));
+    assertTrue(sink.series.isEmpty());
+    assertEquals(1, sink.invalid);
+  }
+
+  @Test
+  public void decodeValueCountMismatch() throws Exception {
+    final RecordingSink sink = new RecordingSink();
+    assertEquals(2, PutBatchCodec.decode(batch(STRINGS, 0, new int[] { 1, 2 },
+        new long[] { 1356998400, 1356998460 }, new long[] { 42 }, null),
+        sink));
+    assertTrue(sink.series.isEmpty());
+    assertEquals(2, sink.invalid);
+  }
+
+  @Test (expected = InvalidProtocolBufferException.class)
+  public void decodeBadMetricIndex() throws Exception {
+    PutBatchCodec.decode(batch(STRINGS, 6, new int[] { 1, 2 },
+        new long[] { 1356998400 }, new long[] { 42 }, null),
+        new RecordingSink());
+  }
+
+  @Test (expected = InvalidProtocolBufferException.class)
+  public void decodeBadTagIndex() throws Exception {
+    PutBatchCodec.decode(batch(STRINGS, 0, new int[] { 1, 42 },
+        new long[] { 1356998400 }, new long[] { 42 }, null),
+        new RecordingSink());
+  }
+
+  @Test (expected = InvalidProtocolBufferException.class)
+  public void decodeOddTags() throws Exception {
+    PutBatchCodec.decode(batch(STRINGS, 0, new int[] { 1 },
+        new long[] { 1356998400 }, new long[] { 42 }, null),
+        new RecordingSink());
+  }
+
+  @Test (expected = InvalidProtocolBufferException.class)
+  public void decodeTruncated() throws Exception {
+    final ChannelBuffer batch = batch(STRINGS, 0, new int[] { 1, 2 },
+        new long[] { 1356998400 }, new long[] { 42 }, null);
+    PutBatchCodec.decode(batch.slice(0, batch.readableBytes() - 2),
+        new RecordingSink());
+  }
+
+  @Test
+  public void encodeResult() throws Exception {
+    final ChannelBuffer buffer = PutBatchCodec.encodeResult(3, 1, "Boo!");
+    final byte[] bytes = new byte[buffer.readableBytes()];
+    buffer.readBytes(bytes);
+    final CodedInputStream in = CodedInputStream.newInstance(bytes);
+    assertEquals(1 << 3 | WireFormat.WIRETYPE_VARINT,
+        in.readTag());
+    assertEquals(3, in.readUInt32());
+    assertEquals(2 << 3 | WireFormat.WIRETYPE_VARINT,
+        in.readTag());
+    assertEquals(1, in.readUInt32());
+    assertEquals(3 << 3 | WireFormat.WIRETYPE_LENGTH_DELIMITED,
+        in.readTag());
+    assertEquals("Boo!", in.readString());
+    assertTrue(in.isAtEnd());
+  }
+
+  @Test
+  public void framer() throws Exception {
+    final DecoderEmbedder<PutBatchCodec.Batch> embedder =
+        new DecoderEmbedder<PutBatchCodec.Batch>(new PutBatchCodec.Framer(1024));
+    final ChannelBuffer batch = batch(STRINGS, 0, new int[] { 1, 2 },
+        new long[] { 1356998400 }, new long[] { 42 }, null);
+    final ChannelBuffer stream = ChannelBuffers.dynamicBuffer();
+    stream.writeByte(0);  // the empty preamble
+    stream.writeByte(batch.readableBytes());
+    stream.writeBytes(batch.duplicate());
+    stream.writeByte(0);
+    stream.writeByte(batch.readableBytes());
+    stream.writeBytes(batch.duplicate());
+
+    // feed it a byte at a time to exercise partial frames
+    while (stream.readable()) {
+      embedder.offer(stream.readBytes(1));
+    }
+    embedder.finish();
+    assertEquals(batch, embedder.poll().buffer);
+    assertEquals(batch, embedder.poll().buffer);
+    assertNull(embedder.poll());
+  }
+
+  @Test
+  public void framerTooLong() throws Exception {
+    final DecoderEmbedder<PutBatchCodec.Batch> embedder =
+        new DecoderEmbedder<PutBatchCodec.Batch>(new PutBatchCodec.Framer(16));
+    try {
+      // 300 as a varint
+      embedder.offer(ChannelBuffers.wrappedBuffer(new byte[] {
+          (byte) 0xAC, 0x02 }));
+      fail("Expected a TooLongFrameException");
+    } catch (CodecEmbedderException e) {
+      assertTrue(e.getCause() instanceof TooLongFrameException);
+    }
+  }
+
+  /**
+   * Serializes a batch with a single series.
+   * @param strings The string table.
+   * @param metric The index of the metric name.
+   * @param tags The indexes of the tag keys and values.
+   * @param timestamps The absolute timestamps.
+   * @param long_values Integer values, may be null.
+   * @param double_values Floating point values, may be null.
+   * @return The serialized batch, without length prefix.
+   */
+  static ChannelBuffer batch(final String[] strings, final int metric,
+      final int[] tags, final long[] timestamps, final long[] long_values,
+      final double[] double_values) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    for (final String s : strings) {
+      out.writeString(1, s);
+    }
+    writeSeries(out, metric, tags, timestamps, long_values, double_values);
+    out.flush();
+    return ChannelBuffers.wrappedBuffer(bytes.toByteArray());
+  }
+
+  /** Writes a series with packed arrays and delta encoded timestamps. */
+  private static void writeSeries(final CodedOutputStream batch,
+      final int metric, final int[] tags, final long[] timestamps,
+      final long[] long_values, final double[] double_values)
+      throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt32(1, metric);
+
+    ByteArrayOutputStream packed = new ByteArrayOutputStream();
+    CodedOutputStream p = CodedOutputStream.newInstance(packed);
+    for (final int tag : tags) {
+      p.writeUInt32NoTag(tag);
+    }
+    writePacked(out, 2, p, packed);
+
+    packed = new ByteArrayOutputStream();
+    p = CodedOutputStream.newInstance(packed);
+    long previous = 0;
+    for (final long timestamp : timestamps) {
+      p.writeSInt64NoTag(timestamp - previous);
+      previous = timestamp;
+    }
+    writePacked(out, 3, p, packed);
+
+    if (long_values != null) {
+      packed = new ByteArrayOutputStream();
+      p = CodedOutputStream.newInstance(packed);
+      for (final long value : long_values) {
+        p.writeSInt64NoTag(value);
+      }
+      writePacked(out, 4, p, packed);
+    }
+    if (double_values != null) {
+      packed = new ByteArrayOutputStream();
+      p = CodedOutputStream.newInstance(packed);
+      for (final double value : double_values) {
+        p.writeDoubleNoTag(value);
+      }
+      writePacked(out, 5, p, packed);
+    }
+    out.flush();
+    batch.writeTag(2, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    batch.writeRawVarint32(bytes.size());
+    batch.writeRawBytes(bytes.toByteArray());
+  }
+
+  private static void writePacked(final CodedOutputStream out,
+      final int field, final CodedOutputStream packed,
+      final ByteArrayOutputStream bytes) throws IOException {
+    packed.flush();
+    if (bytes.size() == 0) {
+      return;
+    }
+    out.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    out.writeRawVarint32(bytes.size());
+    out.writeRawBytes(bytes.toByteArray());
+  }
+
+  /** A series handed to the sink, copied since the arrays are reused. */
+  private static final class Series {
+    String metric;
+    HashMap<String, String> tags;
+    long[] timestamps;
+    long[] long_values;
+    double[] double_values;
+  }
+
+  private static final class RecordingSink implements PutBatchCodec.Sink {
+    final List<Series> series = new ArrayList<Series>();
+    int invalid;
+
+    @Override
+    public void series(final String metric, final HashMap<String, String> tags,
+        final long[] timestamps, final long[] long_values,
+        final double[] double_values, final int count) {
+      final Series s = new Series();
+      s.metric = metric;
+      s.tags = tags;
+      s.timestamps = Arrays.copyOf(timestamps, count);
+      s.long_values = long_values == null ? null
+          : Arrays.copyOf(long_values, count);
+      s.double_values = double_values == null ? null
+          : Arrays.copyOf(double_values, count);
+      series.add(s);
+    }
+
+    @Override
+    public void invalid(final String message, final int count) {
+      invalid += count;
+    }
+  }
+}
@@ -14,6 +14,7 @@ package net.opentsdb.tsd;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -25,6 +26,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.nio.charset.Charset;
 import java.util.HashMap;
@@ -37,7 +39,11 @@ import net.opentsdb.core.TSDB;
 import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.utils.Config;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
@@ -59,6 +65,8 @@ import com.stumbleupon.async.Deferred;
   StorageExceptionHandler.class })
 public final class TestPutRpc {
   private static final Map<String, String> TAGS = new HashMap<String, String>(1);
+  private static final String[] BATCH_STRINGS = new String[] {
+    "sys.cpu.nice", "sys.cpu.system", "host", "web01", "doesnotexist" };
   static {
     TAGS.put("host", "web01");
   }
@@ -330,6 +338,82 @@ public final class TestPutRpc {
     verify(tsdb, never()).getStorageExceptionHandler();
   }
   
+  @Test
+  public void executeLine() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNotNull(put.executeLine(tsdb, chan, 
+        line("put sys.cpu.nice 1365465600 42 host=web01"))
+        .joinUninterruptibly());
+    assertEquals(1, requests.get());
+    assertEquals(0, invalid_values.get());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+    verify(chan, never()).write(any());
+  }
+  
+  @Test
+  public void executeLineFloat() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNotNull(put.executeLine(tsdb, chan, 
+        line("put sys.cpu.nice 1365465600 42.2 host=web01"))
+        .joinUninterruptibly());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42.2f, TAGS);
+  }
+  
+  @Test
+  public void executeLineBadValue() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNull(put.executeLine(tsdb, chan, 
+        line("put sys.cpu.nice 1365465600 notanum host=web01"))
+        .joinUninterruptibly());
+    assertEquals(1, requests.get());
+    assertEquals(1, invalid_values.get());
+    verify(chan, times(1)).write(any());
+    verify(tsdb, never()).getStorageExceptionHandler();
+  }
+  
+  @Test
+  public void executeLineShort() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNull(put.executeLine(tsdb, chan, 
+        line("put sys.cpu.nice 1365465600 42")).joinUninterruptibly());
+    assertEquals(1, illegal_arguments.get());
+    verify(chan, times(1)).write(any());
+  }
+  
+  @Test
+  public void executeLineUnknownMetric() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNull(put.executeLine(tsdb, chan, 
+        line("put doesnotexist 1365465600 42 host=web01"))
+        .joinUninterruptibly());
+    assertEquals(1, unknown_metrics.get());
+    verify(chan, times(1)).write(any());
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Test
+  public void executeLineHBaseErrorHandler() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(), 
+        (HashMap<String, String>)any()))
+        .thenReturn(Deferred.fromError(new RuntimeException("Wotcher!")));
+    
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    assertNull(put.executeLine(tsdb, chan, 
+        line("put sys.cpu.nice 1365465600 42 host=web01"))
+        .joinUninterruptibly());
+
+    assertEquals(1, hbase_errors.get());
+    verify(chan, times(1)).write(any());
+    verify(handler, times(1)).handleError((IncomingDataPoint)any(), 
+        (Exception)any());
+  }
+  
   // HTTP RPC Tests --------------------------------------
   
   @Test
@@ -360,6 +444,136 @@ public final class TestPutRpc {
     verify(tsdb, never()).getStorageExceptionHandler();
   }
   
+  @Test
+  public void putStreaming() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    assertEquals(1, requests.get());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+    verify(tsdb, times(1)).addPoint("sys.cpu.system", 1365465600, 24, TAGS);
+  }
+  
+  @Test
+  public void putStreamingSingle() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        +":42,\"tags\":{\"host\":\"web01\"}}");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+  }
+  
+  @Test
+  public void putStreamingSummaryWithError() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?details", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+      query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":1"));
+    assertTrue(response.contains("Metric name was empty"));
+    assertEquals(1, illegal_arguments.get());
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void putStreamingEmptyArray() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", "[]");
+    PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+  }
+  
+  @Test
+  public void putStreamingBadJSON() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put", 
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\"");
+    PutDataPointRpc put = new PutDataPointRpc();
+    try {
+      put.execute(tsdb, query);
+      fail("Expected a BadRequestException");
+    } catch (BadRequestException e) { }
+    // points parsed before the error have already been written
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+  }
+
+  @Test
+  public void putStreamingResumesFromOutstanding() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    when(tsdb.getConfig().getInt("tsd.http.put.streaming.max_outstanding"))
+      .thenReturn(1);
+    final Deferred<Object> first = new Deferred<Object>();
+    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 42, TAGS))
+      .thenReturn(first);
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put",
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    final PutDataPointRpc put = new PutDataPointRpc();
+    // parsing is paused until the first put completes, without blocking
+    put.execute(tsdb, query);
+    verify(tsdb, never()).addPoint("sys.cpu.system", 1365465600, 24, TAGS);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+
+    first.callback(null);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    verify(tsdb, times(1)).addPoint("sys.cpu.system", 1365465600, 24, TAGS);
+  }
+  
+  @Test
+  public void putStreamingResumesBadJSON() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    when(tsdb.getConfig().getInt("tsd.http.put.streaming.max_outstanding"))
+      .thenReturn(1);
+    final Deferred<Object> first = new Deferred<Object>();
+    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 42, TAGS))
+      .thenReturn(first);
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put",
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\"");
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    // the parse error surfaces once the loop resumes from the callback
+    first.callback(null);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+  }
+
+  @Test
+  public void putStreamingCompletedPutDoesNotPause() throws Exception {
+    when(tsdb.getConfig().getBoolean("tsd.http.put.streaming")).thenReturn(true);
+    when(tsdb.getConfig().getInt("tsd.http.put.streaming.max_outstanding"))
+      .thenReturn(1);
+    final HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put",
+        "[{\"metric\":\"sys.cpu.nice\",\"timestamp\":1365465600,\"value\""
+        + ":42,\"tags\":{\"host\":\"web01\"}},{\"metric\":\"sys.cpu.system\","
+        + "\"timestamp\":1365465600,\"value\":24,\"tags\":"
+        + "{\"host\":\"web01\"}}]");
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    verify(tsdb, times(1)).addPoint("sys.cpu.system", 1365465600, 24, TAGS);
+  }
+
   @Test
   public void putSingleSummary() throws Exception {
     HttpQuery query = NettyMocks.postQuery(tsdb, "/api/put?summary", 
@@ -1454,4 +1668,140 @@ public final class TestPutRpc {
     verify(tsdb, times(1)).getStorageExceptionHandler();
     verify(timer.timeout, never()).cancel();
   }
+
+  @Test
+  public void executeBatch() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executeBatch(tsdb, chan, TestPutBatchCodec.batch(BATCH_STRINGS, 0, 
+        new int[] { 2, 3 }, new long[] { 1365465600, 1365465600 }, 
+        new long[] { 42, -42 }, null)).joinUninterruptibly();
+    assertEquals(1, requests.get());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, -42, TAGS);
+    verify(chan, times(1)).write(PutBatchCodec.encodeResult(2, 0, null));
+    verify(tsdb, never()).getStorageExceptionHandler();
+  }
+  
+  @Test
+  public void executeBatchDoubles() throws Exception {
+    when(tsdb.addPoint("sys.cpu.nice", 1365465600, 42.2, TAGS))
+      .thenReturn(Deferred.fromResult(new Object()));
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executeBatch(tsdb, chan, TestPutBatchCodec.batch(BATCH_STRINGS, 0, 
+        new int[] { 2, 3 }, new long[] { 1365465600, 1365465600 }, null, 
+        new double[] { 4220.0, 42.2 })).joinUninterruptibly();
+    // stored as a float when that's lossless
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 4220.0f, TAGS);
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42.2, TAGS);
+    verify(chan, times(1)).write(PutBatchCodec.encodeResult(2, 0, null));
+  }
+  
+  @Test
+  public void executeBatchErrors() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    put.executeBatch(tsdb, chan, TestPutBatchCodec.batch(BATCH_STRINGS, 1, 
+        new int[] { 2, 3 }, new long[] { 1365465600, 1365465600, 0 }, 
+        new long[] { 24, 1, 24 }, null)).joinUninterruptibly();
+    put.executeBatch(tsdb, chan, TestPutBatchCodec.batch(BATCH_STRINGS, 4, 
+        new int[] { 2, 3 }, new long[] { 1365465600, 1365465660 }, 
+        new long[] { 42, 42 }, null)).joinUninterruptibly();
+    verify(chan, times(1)).write(PutBatchCodec.encodeResult(1, 2, null));
+    verify(chan, times(1)).write(PutBatchCodec.encodeResult(0, 2, null));
+    assertEquals(2, requests.get());
+    assertEquals(1, hbase_errors.get());
+    assertEquals(1, illegal_arguments.get());
+    assertEquals(2, unknown_metrics.get());
+    verify(handler, times(1)).handleError(any(IncomingDataPoint.class), 
+        any(Exception.class));
+  }
+  
+  @Test
+  public void executeBatchMalformed() throws Exception {
+    final PutDataPointRpc put = new PutDataPointRpc();
+    final Channel chan = NettyMocks.fakeChannel();
+    final ChannelFuture future = mock(ChannelFuture.class);
+    when(chan.write(any(ChannelBuffer.class))).thenReturn(future);
+    put.executeBatch(tsdb, chan, TestPutBatchCodec.batch(BATCH_STRINGS, 42, 
+        new int[] { 2, 3 }, new long[] { 1365465600 }, new long[] { 42 }, 
+        null)).joinUninterruptibly();
+    verify(tsdb, never()).addPoint(anyString(), anyLong(), anyLong(), 
+        anyMapOf(String.class, String.class));
+    verify(future, times(1)).addListener(ChannelFutureListener.CLOSE);
+    assertEquals(1, illegal_arguments.get());
+  }
+  
+  @Test
+  public void putProtobuf() throws Exception {
+    final HttpQuery query = protobufQuery("/api/put", 
+        TestPutBatchCodec.batch(BATCH_STRINGS, 0, new int[] { 2, 3 }, 
+            new long[] { 1365465600 }, new long[] { 42 }, null));
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.NO_CONTENT, query.response().getStatus());
+    assertEquals(1, requests.get());
+    verify(tsdb, times(1)).addPoint("sys.cpu.nice", 1365465600, 42, TAGS);
+    verify(tsdb, never()).getStorageExceptionHandler();
+  }
+  
+  @Test
+  public void putProtobufSyncDetails() throws Exception {
+    final HttpQuery query = protobufQuery("/api/put?sync&details", 
+        TestPutBatchCodec.batch(BATCH_STRINGS, 1, new int[] { 2, 3 }, 
+            new long[] { 1365465600, 1365465600 }, new long[] { 24, 1 }, 
+            null));
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.OK, query.response().getStatus());
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":1"));
+    assertTrue(response.contains("Wotcher!"));
+    assertEquals(1, hbase_errors.get());
+  }
+  
+  @Test
+  public void putProtobufUnknownMetric() throws Exception {
+    final HttpQuery query = protobufQuery("/api/put?summary", 
+        TestPutBatchCodec.batch(BATCH_STRINGS, 4, new int[] { 2, 3 }, 
+            new long[] { 1365465600 }, new long[] { 42 }, null));
+    final PutDataPointRpc put = new PutDataPointRpc();
+    put.execute(tsdb, query);
+    assertEquals(HttpResponseStatus.BAD_REQUEST, query.response().getStatus());
+    final String response = 
+        query.response().getContent().toString(Charset.forName("UTF-8"));
+    assertTrue(response.contains("\"failed\":1"));
+    assertTrue(response.contains("\"success\":0"));
+    assertEquals(1, unknown_metrics.get());
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void putProtobufMalformed() throws Exception {
+    final HttpQuery query = protobufQuery("/api/put", 
+        ChannelBuffers.wrappedBuffer(new byte[] { 0x0A, 0x7F }));
+    new PutDataPointRpc().execute(tsdb, query);
+  }
+  
+  @Test (expected = BadRequestException.class)
+  public void putProtobufEmpty() throws Exception {
+    final HttpQuery query = protobufQuery("/api/put", 
+        ChannelBuffers.EMPTY_BUFFER);
+    new PutDataPointRpc().execute(tsdb, query);
+  }
+
+  private HttpQuery protobufQuery(final String uri, 
+      final ChannelBuffer content) {
+    final HttpQuery query = NettyMocks.postQuery(tsdb, uri, null, 
+        PutBatchCodec.CONTENT_TYPE);
+    query.request().setContent(content);
+    return query;
+  }
+
+  private static ChannelBuffer line(final String line) {
+    return ChannelBuffers.wrappedBuffer(
+        line.getBytes(Charset.forName("ISO-8859-1")));
+  }
 }
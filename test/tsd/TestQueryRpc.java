@@ -24,9 +24,11 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 import java.lang.reflect.Method;
 import java.nio.charset.Charset;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
+import net.opentsdb.core.QueryMemoryBudget;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.TSQuery;
 import net.opentsdb.core.TSSubQuery;
@@ -34,16 +36,22 @@ import net.opentsdb.query.expression.ExpressionTree;
 import net.opentsdb.query.filter.TagVLiteralOrFilter;
 import net.opentsdb.query.filter.TagVRegexFilter;
 import net.opentsdb.query.filter.TagVWildcardFilter;
+import net.opentsdb.stats.QueryStats;
 import net.opentsdb.storage.MockDataPoints;
 import net.opentsdb.utils.Config;
 import net.opentsdb.utils.DateTime;
 
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
 
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -542,6 +550,48 @@ public final class TestQueryRpc {
     assertTrue(json.contains("\"metric\":\"system.cpu.user\""));
   }
   
+  @Test
+  public void executeStreamedClientGone() throws Exception {
+    Whitebox.setInternalState(QueryStats.class, "running_queries", 
+        new ConcurrentHashMap<Integer, QueryStats>());
+    final QueryMemoryBudget budget = new QueryMemoryBudget(new Config(false));
+    final TSQuery[] ts_query = new TSQuery[1];
+    when(query_result.configureFromQuery((TSQuery)any(), anyInt()))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        @Override
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          ts_query[0] = (TSQuery) invocation.getArguments()[0];
+          return Deferred.fromResult(null);
+        }
+      });
+    when(query_result.runAsync()).thenAnswer(
+        new Answer<Deferred<DataPoints[]>>() {
+        @Override
+        public Deferred<DataPoints[]> answer(final InvocationOnMock invocation) {
+          final QueryMemoryBudget.Reservation reservation = 
+              budget.newReservation();
+          reservation.reserve(1024);
+          ts_query[0].getQueryStats().addReservation(reservation);
+          return Deferred.fromResult(new DataPoints[] { 
+              new MockDataPoints().getMock(), new MockDataPoints().getMock(),
+              new MockDataPoints().getMock() });
+        }
+      });
+    
+    final HttpQuery query = NettyMocks.getQuery(tsdb, 
+        "/api/query?start=1h-ago&m=sum:sys.cpu.user&stream");
+    final Channel channel = query.channel();
+    when(channel.write(any())).thenReturn(Channels.succeededFuture(channel));
+    // the client drops the connection after the first series
+    when(channel.isConnected()).thenReturn(true, false);
+    rpc.execute(tsdb, query);
+    
+    assertEquals(QueryStats.CLIENT_CLOSED_REQUEST, 
+        ts_query[0].getQueryStats().getHttpResponse());
+    assertEquals(0, ts_query[0].getQueryStats().getNumRunningQueries());
+    assertEquals(0, budget.used());
+  }
+  
   @Test
   public void executeNSU() throws Exception {
     final DeferredGroupException dge = mock(DeferredGroupException.class);
@@ -0,0 +1,335 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyFloat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import com.stumbleupon.async.Deferred;
+
+@RunWith(PowerMockRunner.class)
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+             "ch.qos.*", "org.slf4j.*",
+             "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, Config.class })
+public final class TestSpoolingExceptionHandler {
+  private static final String PREFIX =
+      "tsd.core.storage_exception_handler.spool.";
+
+  private TSDB tsdb;
+  private Config config;
+  private File directory;
+
+  @Before
+  public void before() throws Exception {
+    directory = File.createTempFile("spool", "");
+    assertTrue(directory.delete());
+    tsdb = PowerMockito.mock(TSDB.class);
+    config = new Config(false);
+    config.overrideConfig(PREFIX + "directory", directory.getPath());
+    config.overrideConfig(PREFIX + "segment_size", "1024");
+    config.overrideConfig(PREFIX + "retry_interval", "1");
+    when(tsdb.getConfig()).thenReturn(config);
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(null));
+    when(tsdb.addPoint(anyString(), anyLong(), anyFloat(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @After
+  public void after() {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void open() throws Exception {
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    assertTrue(directory.isDirectory());
+    assertEquals(0, spool.depth());
+    assertEquals(0, segments().length);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void openMissingDirectory() throws Exception {
+    config.overrideConfig(PREFIX + "directory", "");
+    new SpoolingExceptionHandler().open(tsdb);
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void openSegmentTooSmall() throws Exception {
+    config.overrideConfig(PREFIX + "segment_size", "16");
+    new SpoolingExceptionHandler().open(tsdb);
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    spool.handleError(dp("sys.cpu.user", "42"), new RuntimeException());
+    spool.handleError(dp("sys.cpu.nice", "-4.5"), new RuntimeException());
+    assertEquals(2, spool.depth());
+
+    final File segment = spool.nextSegment();
+    final SpoolingExceptionHandler.SegmentReader reader =
+        new SpoolingExceptionHandler.SegmentReader(segment);
+    SpoolingExceptionHandler.SpooledPoint point = reader.next();
+    assertEquals("sys.cpu.user", point.metric);
+    assertEquals(1356998400L, point.timestamp);
+    assertTrue(point.integer);
+    assertEquals(42, point.long_value);
+    assertEquals("web01", point.tags.get("host"));
+    assertEquals("lga", point.tags.get("dc"));
+    point = reader.next();
+    assertEquals("sys.cpu.nice", point.metric);
+    assertFalse(point.integer);
+    assertEquals(-4.5f, point.float_value, 0.0001);
+    assertNull(reader.next());
+  }
+
+  @Test
+  public void rotate() throws Exception {
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    for (int i = 0; i < 100; i++) {
+      spool.handleError(dp("sys.cpu.user", Integer.toString(i)),
+          new RuntimeException());
+    }
+    assertEquals(100, spool.depth());
+    assertTrue(segments().length > 1);
+  }
+
+  @Test
+  public void dropWhenFull() throws Exception {
+    config.overrideConfig(PREFIX + "max_segments", "1");
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    for (int i = 0; i < 100; i++) {
+      spool.handleError(dp("sys.cpu.user", Integer.toString(i)),
+          new RuntimeException());
+    }
+    assertEquals(1, segments().length);
+    assertTrue(spool.depth() > 0);
+    assertTrue(spool.depth() < 100);
+  }
+
+  @Test
+  public void dropInvalid() throws Exception {
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    spool.handleError(dp("sys.cpu.user", "notanumber"), new RuntimeException());
+    spool.handleError(new IncomingDataPoint(), new RuntimeException());
+    assertEquals(0, spool.depth());
+  }
+
+  @Test
+  public void replay() throws Exception {
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    for (int i = 0; i < 100; i++) {
+      spool.handleError(dp("sys.cpu.user", Integer.toString(i)),
+          new RuntimeException());
+    }
+    spool.handleError(dp("sys.cpu.user", "1.5"), new RuntimeException());
+    while (spool.replayNext()) {
+    }
+    assertEquals(0, spool.depth());
+    assertEquals(0, segments().length);
+    verify(tsdb, times(100)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class));
+    verify(tsdb, times(1)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        Mockito.eq(1.5f), anyMapOf(String.class, String.class));
+  }
+
+  @Test
+  public void replayFailureRespools() throws Exception {
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("Boo!")))
+      .thenReturn(Deferred.fromResult(null));
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    spool.handleError(dp("sys.cpu.user", "42"), new RuntimeException());
+
+    assertTrue(spool.replayNext());
+    assertEquals(1, spool.depth());
+    assertTrue(spool.replayNext());
+    assertEquals(0, spool.depth());
+    assertFalse(spool.replayNext());
+    verify(tsdb, times(2)).addPoint(Mockito.eq("sys.cpu.user"),
+        Mockito.eq(1356998400L), Mockito.eq(42L),
+        anyMapOf(String.class, String.class));
+  }
+
+  @Test
+  public void replayWaitsForStorage() throws Exception {
+    config.overrideConfig(PREFIX + "retry_interval", "300");
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    final long start = System.currentTimeMillis();
+    spool.handleError(dp("sys.cpu.user", "42"), new RuntimeException());
+
+    // the write just failed so storage gets some time to recover first
+    assertTrue(spool.replayNext());
+    assertTrue(System.currentTimeMillis() - start >= 300);
+    assertEquals(0, spool.depth());
+  }
+
+  @Test
+  public void replayProbesBeforeBatch() throws Exception {
+    final Deferred<Object> probe = new Deferred<Object>();
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(probe)
+      .thenReturn(Deferred.fromResult(null));
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    for (int i = 0; i < 10; i++) {
+      spool.handleError(dp("sys.cpu.user", Integer.toString(i)),
+          new RuntimeException());
+    }
+    final Thread replay = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          spool.replayNext();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    replay.start();
+
+    // nothing else is sent until the probe made it
+    Thread.sleep(200);
+    verify(tsdb, times(1)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class));
+    probe.callback(null);
+    replay.join();
+    assertEquals(0, spool.depth());
+    verify(tsdb, times(10)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class));
+  }
+
+  @Test
+  public void replayTimeout() throws Exception {
+    config.overrideConfig(PREFIX + "replay_timeout", "10");
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(),
+        anyMapOf(String.class, String.class)))
+      .thenReturn(new Deferred<Object>());
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    spool.handleError(dp("sys.cpu.user", "1"), new RuntimeException());
+    spool.handleError(dp("sys.cpu.user", "2"), new RuntimeException());
+
+    // storage hangs, each probe gives up and the segment is done
+    assertTrue(spool.replayNext());
+    assertEquals(0, segments().length);
+    verify(tsdb, times(2)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void openBadReplayTimeout() throws Exception {
+    config.overrideConfig(PREFIX + "replay_timeout", "0");
+    new SpoolingExceptionHandler().open(tsdb);
+  }
+
+  @Test
+  public void reopen() throws Exception {
+    SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    for (int i = 0; i < 100; i++) {
+      spool.handleError(dp("sys.cpu.user", Integer.toString(i)),
+          new RuntimeException());
+    }
+    spool.shutdown().joinUninterruptibly();
+
+    spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    assertEquals(100, spool.depth());
+    while (spool.replayNext()) {
+    }
+    assertEquals(0, spool.depth());
+    verify(tsdb, times(100)).addPoint(Mockito.eq("sys.cpu.user"), anyLong(),
+        anyLong(), anyMapOf(String.class, String.class));
+  }
+
+  @Test
+  public void reopenIgnoresGarbage() throws Exception {
+    directory.mkdirs();
+    final File garbage = new File(directory, String.format("%020d", 7)
+        + ".spool");
+    assertTrue(garbage.createNewFile());
+    final SpoolingExceptionHandler spool = new SpoolingExceptionHandler();
+    spool.open(tsdb);
+    assertEquals(0, spool.depth());
+    spool.handleError(dp("sys.cpu.user", "42"), new RuntimeException());
+    // new segments are numbered after any existing one
+    final File[] segments = segments();
+    assertEquals(2, segments.length);
+    assertEquals(String.format("%020d", 8) + ".spool", segments[1].getName());
+  }
+
+  private File[] segments() throws IOException {
+    final File[] files = directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files);
+    return files;
+  }
+
+  private static IncomingDataPoint dp(final String metric, final String value) {
+    final HashMap<String, String> tags = new HashMap<String, String>(2);
+    tags.put("host", "web01");
+    tags.put("dc", "lga");
+    return new IncomingDataPoint(metric, 1356998400L, value, tags);
+  }
+}
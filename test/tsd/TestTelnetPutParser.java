@@ -0,0 +1,215 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2016  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Tags;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+public final class TestTelnetPutParser {
+  private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+  @Test
+  public void isPut() throws Exception {
+    assertTrue(TelnetPutParser.isPut(buf("put sys.cpu.user 1 1 a=b")));
+    assertTrue(TelnetPutParser.isPut(buf("put")));
+    assertFalse(TelnetPutParser.isPut(buf("putter")));
+    assertFalse(TelnetPutParser.isPut(buf("pu")));
+    assertFalse(TelnetPutParser.isPut(buf("version")));
+    assertFalse(TelnetPutParser.isPut(buf("")));
+  }
+
+  @Test
+  public void isPutReaderIndex() throws Exception {
+    final ChannelBuffer buf = buf("xxput sys.cpu.user 1 1 a=b");
+    buf.skipBytes(2);
+    assertTrue(TelnetPutParser.isPut(buf));
+  }
+
+  @Test
+  public void parseInteger() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 42 host=web01 dc=lga"));
+    assertEquals("sys.cpu.user", put.metric);
+    assertEquals(1356998400L, put.timestamp);
+    assertTrue(put.integer);
+    assertEquals(42, put.long_value);
+    assertEquals(2, put.tags.size());
+    assertEquals("web01", put.tags.get("host"));
+    assertEquals("lga", put.tags.get("dc"));
+  }
+
+  @Test
+  public void parseNegativeInteger() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 -42 host=web01"));
+    assertTrue(put.integer);
+    assertEquals(-42, put.long_value);
+  }
+
+  @Test
+  public void parseMaxLong() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 9223372036854775807 host=web01"));
+    assertEquals(Long.MAX_VALUE, put.long_value);
+  }
+
+  @Test (expected = NumberFormatException.class)
+  public void parseOverflow() throws Exception {
+    TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 9223372036854775808 host=web01"));
+  }
+
+  @Test
+  public void parseFloat() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 42.5 host=web01"));
+    assertFalse(put.integer);
+    assertEquals(42.5f, put.float_value, 0.0001);
+  }
+
+  @Test
+  public void parseScientific() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 4.2E3 host=web01"));
+    assertFalse(put.integer);
+    assertEquals(4200f, put.float_value, 0.0001);
+  }
+
+  @Test
+  public void parseMilliseconds() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400.500 42 host=web01"));
+    assertEquals(1356998400500L, put.timestamp);
+  }
+
+  @Test
+  public void parseExtraSpaces() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 42 host=web01  dc=lga "));
+    assertEquals(2, put.tags.size());
+  }
+
+  @Test
+  public void parseDuplicateTagSameValue() throws Exception {
+    final TelnetPutParser.Put put = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 42 host=web01 host=web01"));
+    assertEquals(1, put.tags.size());
+  }
+
+  @Test
+  public void parseInterned() throws Exception {
+    final TelnetPutParser.Put first = TelnetPutParser.parse(
+        buf("put sys.cpu.interned 1356998400 42 hostinterned=web42"));
+    final TelnetPutParser.Put second = TelnetPutParser.parse(
+        buf("put sys.cpu.interned 1356998430 24 hostinterned=web42"));
+    assertSame(first.metric, second.metric);
+    assertSame(first.tags.keySet().iterator().next(),
+        second.tags.keySet().iterator().next());
+  }
+
+  @Test
+  public void parseErrorsMatchStringPath() throws Exception {
+    final String[] lines = new String[] {
+      "put",
+      "put sys.cpu.user 1356998400 42",
+      "put  1356998400 42 host=web01",
+      "put sys.cpu.user  42 host=web01",
+      "put sys.cpu.user 0 42 host=web01",
+      "put sys.cpu.user -1356998400 42 host=web01",
+      "put sys.cpu.user 13569a8400 42 host=web01",
+      "put sys.cpu.user 1356998400  host=web01",
+      "put sys.cpu.user 1356998400 4a2 host=web01",
+      "put sys.cpu.user 1356998400 4.a2 host=web01",
+      "put sys.cpu.user 1356998400 42 host",
+      "put sys.cpu.user 1356998400 42 host=",
+      "put sys.cpu.user 1356998400 42 =web01",
+      "put sys.cpu.user 1356998400 42 host=web01=web02",
+      "put sys.cpu.user 1356998400 42 host=web01 host=web02",
+      "put sys.cpu.user 1356998400 42 bad_value host=web01",
+    };
+    for (final String line : lines) {
+      final String expected = stringPathError(line);
+      try {
+        TelnetPutParser.parse(buf(line));
+        fail("Expected an exception for: " + line);
+      } catch (IllegalArgumentException e) {
+        assertEquals(line, expected,
+            e.getClass().getName() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  @Test
+  public void toDataPoint() throws Exception {
+    final IncomingDataPoint dp = TelnetPutParser.parse(
+        buf("put sys.cpu.user 1356998400 42 host=web01")).toDataPoint();
+    assertEquals("sys.cpu.user", dp.getMetric());
+    assertEquals(1356998400L, dp.getTimestamp());
+    assertEquals("42", dp.getValue());
+    assertEquals("web01", dp.getTags().get("host"));
+  }
+
+  /** @return The exception the String based path throws for this line. */
+  private static String stringPathError(final String line) {
+    final String[] words = Tags.splitString(line, ' ');
+    try {
+      if (words.length < 5) {
+        throw new IllegalArgumentException("not enough arguments"
+            + " (need least 4, got " + (words.length - 1) + ')');
+      }
+      if (words[1].length() <= 0) {
+        throw new IllegalArgumentException("empty metric name");
+      }
+      final long timestamp = words[2].contains(".")
+          ? Tags.parseLong(words[2].replace(".", ""))
+          : Tags.parseLong(words[2]);
+      if (timestamp <= 0) {
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      if (words[3].length() <= 0) {
+        throw new IllegalArgumentException("empty value");
+      }
+      final HashMap<String, String> tags = new HashMap<String, String>();
+      for (int i = 4; i < words.length; i++) {
+        if (!words[i].isEmpty()) {
+          Tags.parse(tags, words[i]);
+        }
+      }
+      if (Tags.looksLikeInteger(words[3])) {
+        Tags.parseLong(words[3]);
+      } else {
+        Float.parseFloat(words[3]);
+      }
+    } catch (IllegalArgumentException e) {
+      return e.getClass().getName() + ": " + e.getMessage();
+    }
+    return null;
+  }
+
+  private static ChannelBuffer buf(final String line) {
+    return ChannelBuffers.wrappedBuffer(line.getBytes(CHARSET));
+  }
+}
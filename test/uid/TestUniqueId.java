@@ -671,6 +671,98 @@ public final class TestUniqueId {
     verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
   }
 
+  @Test
+  public void getOrCreateIdFromBlock() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setIdBlockSize(10);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(10L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 3 }, uid.getOrCreateId("baz"));
+    // a single increment for the whole block
+    verify(client, times(1)).atomicIncrement(incrementForRow(MAXID));
+    verify(client, times(6)).compareAndSet(anyPut(), emptyArray());
+    assertEquals(10, uid.idsLeased());
+    assertEquals(3, uid.idsFromBlocks());
+  }
+
+  @Test
+  public void getOrCreateIdFromBlockLeasesAgain() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setIdBlockSize(2);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(2L))
+      .thenReturn(Deferred.fromResult(6L));  // another TSD leased 3 and 4
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 2 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 5 }, uid.getOrCreateId("baz"));
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(4, uid.idsLeased());
+  }
+
+  @Test
+  public void getOrCreateIdFromBlockWaitsOnLease() throws Exception {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setIdBlockSize(10);
+    final Deferred<Long> lease = new Deferred<Long>();
+    // each lookup needs its own deferred as they wait on the lease
+    when(client.get(anyGet())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          @Override
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) throws Throwable {
+            return Deferred.<ArrayList<KeyValue>>fromResult(null);
+          }
+        });
+    when(client.atomicIncrement(incrementForRow(MAXID))).thenReturn(lease);
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    final Deferred<byte[]> foo = uid.getOrCreateIdAsync("foo");
+    final Deferred<byte[]> bar = uid.getOrCreateIdAsync("bar");
+    // the same name is de-duplicated by the pending assignments
+    final Deferred<byte[]> foo_again = uid.getOrCreateIdAsync("foo");
+    lease.callback(20L);
+    assertArrayEquals(new byte[] { 0, 0, 11 }, foo.join());
+    assertArrayEquals(new byte[] { 0, 0, 12 }, bar.join());
+    assertArrayEquals(new byte[] { 0, 0, 11 }, foo_again.join());
+    verify(client, times(1)).atomicIncrement(incrementForRow(MAXID));
+  }
+
+  @Test
+  public void getOrCreateIdFromBlockLeaseFailure() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setIdBlockSize(10);
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    final HBaseException hbe = fakeHBaseException();
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.<Long>fromError(hbe))
+      .thenReturn(Deferred.fromResult(10L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void setIdBlockSizeZero() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.setIdBlockSize(0);
+  }
+
   @Test  // Test that the reverse mapping is created before the forward one.
   public void getOrCreateIdPutsReverseMappingFirst() {
     uid = new UniqueId(client, table, METRIC, 3);
@@ -827,6 +919,132 @@ public final class TestUniqueId {
     verify(client, times(2)).get(any(GetRequest.class));
   }
   
+  @Test
+  public void getOrCreateIdRandomFilterScreens() throws Exception {
+    PowerMockito.mockStatic(RandomUniqueId.class);
+    uid = new UniqueId(client, table, METRIC, 3, true);
+    final ArrayList<ArrayList<KeyValue>> rows = 
+        new ArrayList<ArrayList<KeyValue>>(1);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(new byte[] { 0, 0, 24 }, NAME, METRIC_ARRAY, 
+        new byte[] { 'f', 'o', 'o' }));
+    rows.add(row);
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    assertEquals(1L, (long) uid.enableRandomIdFilter(1000, 0.01).join());
+
+    when(RandomUniqueId.getRandomUID()).thenReturn(24L).thenReturn(42L);
+    when(client.get(anyGet())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          @Override
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) throws Throwable {
+            return Deferred.<ArrayList<KeyValue>>fromResult(null);
+          }
+        });
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 42 }, uid.getOrCreateId("bar"));
+    assertEquals(1, uid.randomIdsScreened());
+    assertEquals(0, uid.randomIdCollisions());
+    // only the mappings for 42 were written
+    verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
+    // the name lookup plus the check of the screened ID, which the mock says
+    // is free so it counts as a false positive
+    verify(client, times(2)).get(anyGet());
+    assertEquals(1, uid.randomIdFalsePositives());
+  }
+
+  @Test
+  public void getOrCreateIdRandomFilterSamplesChecks() throws Exception {
+    PowerMockito.mockStatic(RandomUniqueId.class);
+    uid = new UniqueId(client, table, METRIC, 3, true);
+    final ArrayList<ArrayList<KeyValue>> rows = 
+        new ArrayList<ArrayList<KeyValue>>(1);
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(new byte[] { 0, 0, 24 }, NAME, METRIC_ARRAY, 
+        new byte[] { 'f', 'o', 'o' }));
+    rows.add(row);
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    assertEquals(1L, (long) uid.enableRandomIdFilter(1000, 0.01).join());
+
+    // 24 is drawn 60 times for each of two names
+    final Long[] draws = new Long[121];
+    Arrays.fill(draws, 24L);
+    draws[59] = 42L;
+    draws[120] = 43L;
+    when(RandomUniqueId.getRandomUID()).thenReturn(24L, draws);
+    when(client.get(anyGet())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          @Override
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) throws Throwable {
+            return Deferred.<ArrayList<KeyValue>>fromResult(null);
+          }
+        });
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenAnswer(answerTrue());
+
+    assertArrayEquals(new byte[] { 0, 0, 42 }, uid.getOrCreateId("bar"));
+    assertArrayEquals(new byte[] { 0, 0, 43 }, uid.getOrCreateId("baz"));
+    assertEquals(120, uid.randomIdsScreened());
+    // only the 1st and 101st screened IDs were looked up
+    assertEquals(2, uid.randomIdFalsePositiveChecks());
+    assertEquals(2, uid.randomIdFalsePositives());
+    // plus the two name lookups
+    verify(client, times(4)).get(anyGet());
+  }
+
+  @Test
+  public void getOrCreateIdRandomFilterLearnsCollisions() throws Exception {
+    PowerMockito.mockStatic(RandomUniqueId.class);
+    uid = new UniqueId(client, table, METRIC, 3, true);
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(fake_scanner);
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    assertEquals(0L, (long) uid.enableRandomIdFilter(1000, 0.01).join());
+
+    when(RandomUniqueId.getRandomUID()).thenReturn(24L).thenReturn(42L)
+      .thenReturn(24L).thenReturn(42L).thenReturn(43L);
+    when(client.get(anyGet())).thenAnswer(
+        new Answer<Deferred<ArrayList<KeyValue>>>() {
+          @Override
+          public Deferred<ArrayList<KeyValue>> answer(
+              final InvocationOnMock invocation) throws Throwable {
+            return Deferred.<ArrayList<KeyValue>>fromResult(null);
+          }
+        });
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(false))
+      .thenAnswer(answerTrue());
+
+    // 24 was taken by another TSD
+    assertArrayEquals(new byte[] { 0, 0, 42 }, uid.getOrCreateId("foo"));
+    assertEquals(1, uid.randomIdCollisions());
+    // both 24 and 42 are now known to be assigned
+    assertArrayEquals(new byte[] { 0, 0, 43 }, uid.getOrCreateId("bar"));
+    assertEquals(1, uid.randomIdCollisions());
+    assertEquals(2, uid.randomIdsScreened());
+    // only the first screened ID is looked up
+    assertEquals(1, uid.randomIdFalsePositiveChecks());
+    assertEquals(1, uid.randomIdFalsePositives());
+  }
+
+  @Test (expected = IllegalStateException.class)
+  public void enableRandomIdFilterNotRandom() {
+    uid = new UniqueId(client, table, METRIC, 3);
+    uid.enableRandomIdFilter(1000, 0.01);
+  }
+
   @Test
   public void suggestWithNoMatch() {
     uid = new UniqueId(client, table, METRIC, 3);